@@ -0,0 +1,128 @@
+package ca.awoo.websoc.bench;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.awoo.websoc.AsyncWebSocket;
+import ca.awoo.websoc.PreparedMessage;
+import ca.awoo.websoc.WebSocketEngine;
+import ca.awoo.websoc.WebSocketListener;
+import ca.awoo.websoc.WebSocketServer;
+
+/**
+ * Broadcasts a message from a {@link WebSocketServer} to every one of a crowd of local subscribers, and waits for all of them to receive it.
+ * <p>
+ * {@code prepared} encodes the message once as a {@link PreparedMessage} and queues the same frame on every connection. {@code perConnection} sends it to each connection separately, encoding a frame for each.
+ * One operation is one broadcast to all subscribers. Each subscriber is a connection at both ends, so 10000 subscribers need over 20000 file descriptors: raise {@code ulimit -n} first.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+public class BroadcastBenchmark {
+
+    @Param({"10000"})
+    int subscribers;
+
+    @Param({"64", "1024"})
+    int payloadSize;
+
+    final List<AsyncWebSocket> sockets = new CopyOnWriteArrayList<AsyncWebSocket>();
+    final Semaphore received = new Semaphore(0);
+    WebSocketServer server;
+    WebSocketEngine engine;
+    byte[] payload;
+
+    @Setup
+    public void setup() throws Exception {
+        server = new WebSocketServer(0, new Listener() {
+            public void onOpen(AsyncWebSocket socket) {
+                sockets.add(socket);
+            }
+        });
+        engine = new WebSocketEngine();
+        final CountDownLatch opened = new CountDownLatch(subscribers);
+        URI uri = new URI("ws://localhost:" + server.getPort() + "/");
+        for(int i = 0; i < subscribers; i++){
+            engine.connect(uri, new Listener() {
+                public void onOpen(AsyncWebSocket socket) {
+                    opened.countDown();
+                }
+
+                public void onMessage(AsyncWebSocket socket, int opcode, byte[] data) {
+                    received.release();
+                }
+            });
+        }
+        if(!opened.await(60, TimeUnit.SECONDS)){
+            throw new IOException("Only " + (subscribers - opened.getCount()) + " subscribers connected");
+        }
+        while(sockets.size() < subscribers){
+            Thread.sleep(10);
+        }
+        payload = new byte[payloadSize];
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        engine.close();
+        server.close();
+    }
+
+    @Benchmark
+    public int prepared() throws InterruptedException {
+        int sent = PreparedMessage.binary(payload, 0, payload.length).broadcast(sockets);
+        received.acquire(sent);
+        return sent;
+    }
+
+    @Benchmark
+    public int perConnection() throws InterruptedException {
+        int sent = 0;
+        for(AsyncWebSocket socket : sockets){
+            try {
+                socket.send(payload);
+                sent++;
+            } catch (IOException e) {
+                //Closed
+            }
+        }
+        received.acquire(sent);
+        return sent;
+    }
+
+    private static class Listener implements WebSocketListener {
+        public void onOpen(AsyncWebSocket socket) {
+        }
+
+        public void onMessage(AsyncWebSocket socket, int opcode, byte[] data) {
+        }
+
+        public void onClose(AsyncWebSocket socket, int code, String reason) {
+        }
+
+        public void onError(AsyncWebSocket socket, Exception e) {
+        }
+    }
+}
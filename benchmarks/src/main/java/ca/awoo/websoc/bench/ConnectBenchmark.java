@@ -0,0 +1,53 @@
+package ca.awoo.websoc.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.awoo.websoc.WebSocket;
+import ca.awoo.websoc.WebSocketException;
+
+/**
+ * Times connection setup: TCP connect, sending the upgrade request and parsing the 101 response.
+ * <p>
+ * The peer hangs up right after the handshake so connections don't pile up.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConnectBenchmark {
+
+    LoopbackEchoPeer peer;
+
+    @Setup
+    public void setup() throws IOException {
+        peer = new LoopbackEchoPeer();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        peer.close();
+    }
+
+    @Benchmark
+    public WebSocket connect() throws WebSocketException, IOException {
+        WebSocket ws = new WebSocket(peer.uri("/close"));
+        ws.close();
+        return ws;
+    }
+}
@@ -0,0 +1,137 @@
+package ca.awoo.websoc.bench;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.awoo.websoc.DeflateCodec;
+
+/**
+ * The CPU cost and compression ratio of permessage-deflate on chat-like JSON messages.
+ * <p>
+ * The {@code rawBytes} and {@code wireBytes} counters add up message sizes before and after compression, so wireBytes / rawBytes is the compression ratio.
+ * {@code perMessageDeflater} is the baseline of creating a Deflater for every message, which the pooled codec replaces.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DeflateBenchmark {
+
+    private static final String[] WORDS = {"hello", "anyone", "around", "the", "deploy", "is", "done", "lunch", "meeting", "at", "noon", "thanks", "see", "you", "later", "build", "failed", "again", "looks", "good", "to", "me"};
+
+    @Param({"1", "6"})
+    int level;
+
+    @Param({"true", "false"})
+    boolean contextTakeover;
+
+    byte[][] messages;
+    DeflateCodec sender;
+    DeflateCodec receiver;
+    byte[][] compressed;
+    int next;
+    int nextCompressed;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Bytes {
+        public long rawBytes;
+        public long wireBytes;
+
+        @Setup(Level.Iteration)
+        public void reset(){
+            rawBytes = 0;
+            wireBytes = 0;
+        }
+    }
+
+    @Setup
+    public void setup(){
+        Random random = new Random(42);
+        messages = new byte[256][];
+        for(int i = 0; i < messages.length; i++){
+            StringBuilder text = new StringBuilder();
+            int words = 3 + random.nextInt(12);
+            for(int w = 0; w < words; w++){
+                text.append(w == 0 ? "" : " ").append(WORDS[random.nextInt(WORDS.length)]);
+            }
+            String json = "{\"type\":\"message\",\"room\":\"room-" + random.nextInt(8) + "\",\"user\":{\"id\":" + random.nextInt(1000) + ",\"name\":\"user" + random.nextInt(1000) + "\"},\"timestamp\":" + (1700000000000L + i * 1000L) + ",\"text\":\"" + text + "\"}";
+            messages[i] = json.getBytes(StandardCharsets.UTF_8);
+        }
+        sender = new DeflateCodec(level, contextTakeover, contextTakeover);
+        receiver = new DeflateCodec(level, contextTakeover, contextTakeover);
+        //The stream of compressed messages the receiver decompresses, in order, for the inflate benchmark
+        compressed = new byte[messages.length][];
+        DeflateCodec codec = new DeflateCodec(level, contextTakeover, contextTakeover);
+        for(int i = 0; i < messages.length; i++){
+            compressed[i] = codec.compress(messages[i], 0, messages[i].length);
+        }
+        codec.release();
+    }
+
+    @TearDown
+    public void tearDown(){
+        sender.release();
+        receiver.release();
+    }
+
+    @Benchmark
+    public byte[] compress(Bytes bytes){
+        byte[] message = messages[next++ & 255];
+        byte[] payload = sender.compress(message, 0, message.length);
+        bytes.rawBytes += message.length;
+        bytes.wireBytes += payload.length;
+        return payload;
+    }
+
+    @Benchmark
+    public byte[] decompress() throws IOException {
+        int i = nextCompressed++ & 255;
+        if(i == 0 && contextTakeover){
+            //Start the stream again, as the compressed messages were made with a fresh context
+            receiver.release();
+        }
+        return receiver.decompress(compressed[i], 0, compressed[i].length);
+    }
+
+    @Benchmark
+    public byte[] perMessageDeflater(Bytes bytes){
+        byte[] message = messages[next++ & 255];
+        Deflater deflater = new Deflater(level, true);
+        try {
+            deflater.setInput(message);
+            deflater.finish();
+            byte[] out = new byte[message.length + 64];
+            int n = 0;
+            while(!deflater.finished()){
+                n += deflater.deflate(out, n, out.length - n);
+            }
+            bytes.rawBytes += message.length;
+            bytes.wireBytes += n;
+            return out;
+        } finally {
+            deflater.end();
+        }
+    }
+}
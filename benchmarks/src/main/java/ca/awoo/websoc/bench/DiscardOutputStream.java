@@ -0,0 +1,21 @@
+package ca.awoo.websoc.bench;
+
+import java.io.OutputStream;
+
+/**
+ * An OutputStream that throws away everything written to it, counting the writes so the work can't be optimised away.
+ */
+public class DiscardOutputStream extends OutputStream {
+
+    public long writes = 0;
+
+    @Override
+    public void write(int b){
+        writes++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len){
+        writes++;
+    }
+}
@@ -0,0 +1,89 @@
+package ca.awoo.websoc.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.awoo.websoc.FrameDecoder;
+import ca.awoo.websoc.FrameEncoder;
+import ca.awoo.websoc.WebSocket.Frame;
+
+/**
+ * Encodes and decodes single frames over in-memory streams.
+ * <p>
+ * Run with {@code -prof gc} to see bytes allocated per operation.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FrameCodecBenchmark {
+
+    @Param({"16", "1024", "65536", "1048576"})
+    int payloadSize;
+
+    @Param({"false", "true"})
+    boolean masked;
+
+    Frame frame;
+    byte[] mask;
+    DiscardOutputStream out;
+    FrameEncoder encoder;
+    InputStream rawIn;
+    FrameDecoder decoder;
+
+    @Setup
+    public void setup() throws IOException {
+        Random random = new Random(42);
+        byte[] data = new byte[payloadSize];
+        random.nextBytes(data);
+        mask = new byte[4];
+        random.nextBytes(mask);
+        frame = new Frame(true, 2, masked, data.length, masked ? mask : new byte[4], data);
+        out = new DiscardOutputStream();
+        encoder = new FrameEncoder(out);
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        frame.write(wire);
+        rawIn = new RepeatingInputStream(wire.toByteArray());
+        decoder = new FrameDecoder(new RepeatingInputStream(wire.toByteArray()));
+    }
+
+    @Benchmark
+    public long encoderWrite() throws IOException {
+        encoder.write(true, 2, masked ? mask : null, frame.getData(), 0, payloadSize);
+        return out.writes;
+    }
+
+    @Benchmark
+    public long frameWrite() throws IOException {
+        frame.write(out);
+        return out.writes;
+    }
+
+    @Benchmark
+    public Frame decoderRead() throws IOException {
+        return decoder.read();
+    }
+
+    @Benchmark
+    public Frame frameRead() throws IOException {
+        return Frame.read(rawIn);
+    }
+}
@@ -0,0 +1,101 @@
+package ca.awoo.websoc.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import ca.awoo.websoc.FrameDecoder;
+import ca.awoo.websoc.SlabAllocator;
+import ca.awoo.websoc.WebSocket.Frame;
+
+/**
+ * Compares reading a burst of frames with {@link Frame#read} against {@link FrameDecoder}, into new arrays and into buffers from a {@link SlabAllocator}.
+ * <p>
+ * Run with {@code -prof gc} to see the allocation each way: the pooled reads should allocate next to nothing per frame.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FrameReadBenchmark {
+
+    static final int FRAMES = 1000;
+
+    @Param({"16", "125", "1024", "65536"})
+    int payloadSize;
+
+    byte[] wire;
+    SlabAllocator allocator;
+
+    @Setup
+    public void setup() throws IOException {
+        Random random = new Random(42);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for(int i = 0; i < FRAMES; i++){
+            byte[] data = new byte[payloadSize];
+            random.nextBytes(data);
+            new Frame(true, 2, false, data.length, new byte[4], data).write(out);
+        }
+        wire = out.toByteArray();
+        allocator = new SlabAllocator();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void frameRead(Blackhole bh) throws IOException {
+        ByteArrayInputStream in = new ByteArrayInputStream(wire);
+        for(int i = 0; i < FRAMES; i++){
+            bh.consume(Frame.read(in));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void frameDecoder(Blackhole bh) throws IOException {
+        FrameDecoder decoder = new FrameDecoder(new ByteArrayInputStream(wire));
+        for(int i = 0; i < FRAMES; i++){
+            bh.consume(decoder.read());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void frameReadPooled(Blackhole bh) throws IOException {
+        ByteArrayInputStream in = new ByteArrayInputStream(wire);
+        for(int i = 0; i < FRAMES; i++){
+            Frame frame = Frame.read(in, allocator);
+            bh.consume(frame.getPayload());
+            frame.release();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void frameDecoderPooled(Blackhole bh) throws IOException {
+        FrameDecoder decoder = new FrameDecoder(new ByteArrayInputStream(wire));
+        for(int i = 0; i < FRAMES; i++){
+            Frame frame = decoder.read(allocator);
+            bh.consume(frame.getPayload());
+            frame.release();
+        }
+    }
+}
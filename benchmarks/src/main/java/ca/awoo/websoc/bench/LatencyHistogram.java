@@ -0,0 +1,123 @@
+package ca.awoo.websoc.bench;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A latency histogram in the style of HdrHistogram: log-linear buckets that keep every value to within about 1.6% however large it is.
+ * <p>
+ * Values below 128 get a bucket each. Above that, each power of two is split into 64 buckets, so a bucket is never wider than 1/64 of the values in it.
+ * That is fine enough for p99.9 to mean something, where the library's power of two {@link ca.awoo.websoc.Histogram} would only give the nearest power of two.
+ * Recording is a couple of atomic adds and safe from any thread.
+ * </p>
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 7;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int HALF_COUNT = SUB_COUNT >> 1;
+    private static final int BUCKETS = SUB_COUNT + (64 - SUB_BITS) * HALF_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a value. Negative values are counted as 0.
+     * @param value the value, usually nanoseconds
+     */
+    public void record(long value){
+        if(value < 0){
+            value = 0;
+        }
+        counts.incrementAndGet(index(value));
+        long m;
+        while(value > (m = max.get()) && !max.compareAndSet(m, value)){
+        }
+    }
+
+    static int index(long value){
+        if(value < SUB_COUNT){
+            return (int) value;
+        }
+        //Shift the value down to 7 significant bits, from 64 to 127
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return SUB_COUNT + (shift - 1) * HALF_COUNT + (int) (value >>> shift) - HALF_COUNT;
+    }
+
+    /**
+     * @return the largest value that lands in a bucket
+     */
+    static long highestValue(int index){
+        if(index < SUB_COUNT){
+            return index;
+        }
+        int shift = (index - SUB_COUNT) / HALF_COUNT + 1;
+        long mantissa = (index - SUB_COUNT) % HALF_COUNT + HALF_COUNT;
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+    /**
+     * Move everything recorded so far into a new histogram, leaving this one empty. Values recorded while this runs land in one or the other.
+     * @return the values recorded since the last reset
+     */
+    public LatencyHistogram reset(){
+        LatencyHistogram snapshot = new LatencyHistogram();
+        for(int i = 0; i < BUCKETS; i++){
+            long n = counts.getAndSet(i, 0);
+            if(n != 0){
+                snapshot.counts.set(i, n);
+            }
+        }
+        snapshot.max.set(max.getAndSet(0));
+        return snapshot;
+    }
+
+    /**
+     * Add another histogram's values to this one.
+     * @param other the histogram to add
+     */
+    public void add(LatencyHistogram other){
+        for(int i = 0; i < BUCKETS; i++){
+            long n = other.counts.get(i);
+            if(n != 0){
+                counts.addAndGet(i, n);
+            }
+        }
+        long m;
+        long value = other.max.get();
+        while(value > (m = max.get()) && !max.compareAndSet(m, value)){
+        }
+    }
+
+    public long getCount(){
+        long total = 0;
+        for(int i = 0; i < BUCKETS; i++){
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    public long getMax(){
+        return max.get();
+    }
+
+    /**
+     * @param percentile the percentile, from 0 to 100
+     * @return the highest value of the bucket the percentile falls in, never more than the largest value, or 0 if nothing has been recorded
+     */
+    public long getPercentile(double percentile){
+        long total = getCount();
+        if(total == 0){
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * Math.min(Math.max(percentile, 0), 100) / 100));
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++){
+            seen += counts.get(i);
+            if(seen >= rank){
+                return Math.min(highestValue(i), max.get());
+            }
+        }
+        return max.get();
+    }
+}
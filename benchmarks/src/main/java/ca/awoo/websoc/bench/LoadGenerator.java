@@ -0,0 +1,379 @@
+package ca.awoo.websoc.bench;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.net.URI;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+import ca.awoo.websoc.EchoServer;
+import ca.awoo.websoc.Metrics;
+import ca.awoo.websoc.PerMessageDeflate;
+import ca.awoo.websoc.WebSocket;
+import ca.awoo.websoc.WebSocketConnector;
+
+/**
+ * Drives blocking {@link WebSocket} connections against an {@link EchoServer} in the same process and reports throughput and round trip latency.
+ * <p>
+ * Each message carries the time it was meant to be sent, and its round trip is measured from then to its echo being read, so a stall delays every message queued behind it instead of hiding them (coordinated omission).
+ * Latencies go in {@link LatencyHistogram}s, one per report interval and one for the whole run.
+ * </p>
+ * <p>
+ * For soak runs, each report includes the heap left after the last garbage collection, which should stay flat, and the bytes waiting in write queues.
+ * Run it from the benchmarks jar:
+ * </p>
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar ca.awoo.websoc.bench.LoadGenerator --connections 100 --size 1024 --rate 100 --duration 600
+ * </pre>
+ * <p>
+ * Options:
+ * </p>
+ * <ul>
+ * <li>{@code --connections n}: connections to open, 10 by default</li>
+ * <li>{@code --size bytes}: message size, at least 8, 128 by default</li>
+ * <li>{@code --rate n}: messages per second per connection, or 0, the default, to send each message as soon as the last one's echo is back</li>
+ * <li>{@code --fragment bytes}: send each message as a stream in fragments of this size, or 0, the default, for one frame</li>
+ * <li>{@code --tls}: connect with wss, using {@code --keystore} and {@code --password} or a throwaway self-signed certificate made with keytool</li>
+ * <li>{@code --compression}: negotiate permessage-deflate</li>
+ * <li>{@code --duration seconds}: how long to run, 30 by default, or 0 to run until killed</li>
+ * <li>{@code --interval seconds}: how often to report, 5 by default</li>
+ * </ul>
+ * <p>
+ * The exit status is 1 if any connection failed.
+ * </p>
+ */
+public class LoadGenerator {
+
+    int connections = 10;
+    int size = 128;
+    int rate = 0;
+    int fragment = 0;
+    boolean tls = false;
+    boolean compression = false;
+    String keystore;
+    String password = "password";
+    long durationSeconds = 30;
+    long intervalSeconds = 5;
+
+    final LatencyHistogram interval = new LatencyHistogram();
+    final LatencyHistogram total = new LatencyHistogram();
+    final AtomicLong messages = new AtomicLong();
+    final AtomicLong bytes = new AtomicLong();
+    final AtomicLong errors = new AtomicLong();
+    volatile boolean running = true;
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        try {
+            generator.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+        }
+        System.exit(generator.run() ? 0 : 1);
+    }
+
+    void parse(String[] args){
+        for(int i = 0; i < args.length; i++){
+            String arg = args[i];
+            if("--tls".equals(arg)){
+                tls = true;
+                continue;
+            }
+            if("--compression".equals(arg)){
+                compression = true;
+                continue;
+            }
+            if(i + 1 == args.length){
+                throw new IllegalArgumentException("Missing value for " + arg);
+            }
+            String value = args[++i];
+            if("--connections".equals(arg)){
+                connections = Integer.parseInt(value);
+            }else if("--size".equals(arg)){
+                size = Integer.parseInt(value);
+            }else if("--rate".equals(arg)){
+                rate = Integer.parseInt(value);
+            }else if("--fragment".equals(arg)){
+                fragment = Integer.parseInt(value);
+            }else if("--keystore".equals(arg)){
+                keystore = value;
+            }else if("--password".equals(arg)){
+                password = value;
+            }else if("--duration".equals(arg)){
+                durationSeconds = Long.parseLong(value);
+            }else if("--interval".equals(arg)){
+                intervalSeconds = Long.parseLong(value);
+            }else{
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        if(connections < 1 || size < 8 || rate < 0 || (fragment != 0 && fragment < 4) || durationSeconds < 0 || intervalSeconds < 1){
+            throw new IllegalArgumentException("Invalid options: need connections >= 1, size >= 8, rate >= 0, fragment 0 or >= 4, duration >= 0 and interval >= 1");
+        }
+    }
+
+    /**
+     * Run the load until the duration is up.
+     * @return true if no connection failed
+     */
+    boolean run() throws Exception {
+        SSLContext sslContext = tls ? sslContext() : null;
+        PerMessageDeflate deflate = compression ? new PerMessageDeflate() : null;
+        EchoServer server = new EchoServer(0, sslContext, deflate);
+        WebSocketConnector connector = new WebSocketConnector(sslContext);
+        connector.setCompression(deflate);
+        URI uri = server.getUri();
+        System.out.println(String.format(Locale.ROOT, "%d connections to %s, %d byte messages, %s, %s%s",
+            connections, uri, size, rate == 0 ? "closed loop" : rate + "/s each", fragment == 0 ? "unfragmented" : fragment + " byte fragments", compression ? ", compressed" : ""));
+        List<Thread> threads = new ArrayList<Thread>();
+        List<WebSocket> sockets = new ArrayList<WebSocket>();
+        for(int i = 0; i < connections; i++){
+            WebSocket ws = connector.connect(uri);
+            if(fragment != 0){
+                ws.setFragmentSize(fragment);
+            }
+            sockets.add(ws);
+            if(rate == 0){
+                threads.add(start(new ClosedLoop(ws), "load-" + i));
+            }else{
+                threads.add(start(new Reader(ws), "load-reader-" + i));
+                threads.add(start(new Sender(ws), "load-sender-" + i));
+            }
+        }
+        long start = System.nanoTime();
+        long end = durationSeconds == 0 ? Long.MAX_VALUE : start + TimeUnit.SECONDS.toNanos(durationSeconds);
+        long last = start;
+        long lastMessages = 0;
+        long lastBytes = 0;
+        while(System.nanoTime() < end && errors.get() == 0){
+            long next = Math.min(last + TimeUnit.SECONDS.toNanos(intervalSeconds), end);
+            while(System.nanoTime() < next){
+                LockSupport.parkNanos(next - System.nanoTime());
+            }
+            long now = System.nanoTime();
+            LatencyHistogram snapshot = interval.reset();
+            total.add(snapshot);
+            long m = messages.get();
+            long b = bytes.get();
+            report(String.format(Locale.ROOT, "%6.0fs", (now - start) / 1e9), snapshot, m - lastMessages, b - lastBytes, now - last);
+            last = now;
+            lastMessages = m;
+            lastBytes = b;
+        }
+        running = false;
+        for(WebSocket ws : sockets){
+            ws.close();
+        }
+        //Closing the server's ends of the connections ends the reads still waiting
+        server.close();
+        connector.close();
+        for(Thread thread : threads){
+            thread.join(5000);
+        }
+        report(" total", total, messages.get(), bytes.get(), last - start);
+        if(errors.get() != 0){
+            System.out.println(errors.get() + " connections failed");
+        }
+        return errors.get() == 0;
+    }
+
+    private void report(String label, LatencyHistogram latency, long count, long byteCount, long nanos){
+        double seconds = nanos / 1e9;
+        System.out.println(String.format(Locale.ROOT, "%s %10.0f msg/s %8.2f MB/s  p50 %8.3fms  p99 %8.3fms  p99.9 %8.3fms  max %8.3fms  live heap %6.1fMB  queued %dB",
+            label, count / seconds, byteCount / seconds / 1e6,
+            latency.getPercentile(50) / 1e6, latency.getPercentile(99) / 1e6, latency.getPercentile(99.9) / 1e6, latency.getMax() / 1e6,
+            liveHeap() / 1e6, Metrics.global().getQueuedBytes()));
+    }
+
+    /**
+     * @return the heap in use after the last garbage collection, which only grows in a soak run if something leaks
+     */
+    private static long liveHeap(){
+        long used = 0;
+        for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()){
+            MemoryUsage usage = pool.getCollectionUsage();
+            if(pool.getType() == MemoryType.HEAP && usage != null){
+                used += usage.getUsed();
+            }
+        }
+        return used;
+    }
+
+    private static Thread start(Runnable task, String name){
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private void send(WebSocket ws, byte[] payload, long intended) throws IOException {
+        for(int i = 0; i < 8; i++){
+            payload[i] = (byte) (intended >>> (56 - i * 8));
+        }
+        if(fragment == 0){
+            ws.sendBinary(payload, 0, payload.length);
+        }else{
+            WebSocket.MessageOutputStream out = ws.startMessage(2);
+            out.write(payload);
+            out.close();
+        }
+    }
+
+    /**
+     * Read one echoed message and record its round trip.
+     * @return false if the connection has closed
+     */
+    private boolean receive(WebSocket ws, byte[] buffer) throws IOException {
+        InputStream in = ws.nextMessage();
+        if(in == null){
+            return false;
+        }
+        int n = 0;
+        int read;
+        while((read = in.read(buffer, n, buffer.length - n)) > 0){
+            n += read;
+        }
+        long now = System.nanoTime();
+        long intended = 0;
+        for(int i = 0; i < 8; i++){
+            intended = intended << 8 | (buffer[i] & 0xFF);
+        }
+        interval.record(now - intended);
+        messages.incrementAndGet();
+        bytes.addAndGet(n);
+        return true;
+    }
+
+    private void failed(IOException e){
+        if(running){
+            errors.incrementAndGet();
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Sends each message once the last one's echo is back, one at a time.
+     */
+    private class ClosedLoop implements Runnable {
+        private final WebSocket ws;
+
+        ClosedLoop(WebSocket ws){
+            this.ws = ws;
+        }
+
+        public void run() {
+            byte[] payload = new byte[size];
+            byte[] buffer = new byte[size];
+            try {
+                while(running){
+                    send(ws, payload, System.nanoTime());
+                    if(!receive(ws, buffer)){
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                failed(e);
+            }
+        }
+    }
+
+    /**
+     * Sends messages on a fixed schedule, whether or not their echoes are keeping up.
+     */
+    private class Sender implements Runnable {
+        private final WebSocket ws;
+
+        Sender(WebSocket ws){
+            this.ws = ws;
+        }
+
+        public void run() {
+            byte[] payload = new byte[size];
+            long period = TimeUnit.SECONDS.toNanos(1) / rate;
+            long next = System.nanoTime();
+            try {
+                while(running){
+                    long wait;
+                    while((wait = next - System.nanoTime()) > 0){
+                        LockSupport.parkNanos(wait);
+                    }
+                    send(ws, payload, next);
+                    next += period;
+                }
+            } catch (IOException e) {
+                failed(e);
+            }
+        }
+    }
+
+    private class Reader implements Runnable {
+        private final WebSocket ws;
+
+        Reader(WebSocket ws){
+            this.ws = ws;
+        }
+
+        public void run() {
+            byte[] buffer = new byte[size];
+            try {
+                while(running && receive(ws, buffer)){
+                }
+            } catch (IOException e) {
+                failed(e);
+            }
+        }
+    }
+
+    /**
+     * A context that serves and trusts the same certificate, from --keystore or made up for the run.
+     */
+    private SSLContext sslContext() throws Exception {
+        File file;
+        KeyStore keyStore;
+        if(keystore != null){
+            file = new File(keystore);
+            keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        }else{
+            file = File.createTempFile("loadgen", ".p12");
+            file.delete();
+            file.deleteOnExit();
+            String keytool = new File(new File(System.getProperty("java.home"), "bin"), "keytool").getPath();
+            Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "localhost", "-keyalg", "RSA", "-keysize", "2048", "-validity", "2",
+                "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1", "-storetype", "PKCS12",
+                "-keystore", file.getPath(), "-storepass", password, "-keypass", password).inheritIO().start();
+            if(process.waitFor() != 0){
+                throw new IOException("keytool failed, pass --keystore instead");
+            }
+            keyStore = KeyStore.getInstance("PKCS12");
+        }
+        InputStream in = new FileInputStream(file);
+        try {
+            keyStore.load(in, password.toCharArray());
+        } finally {
+            in.close();
+        }
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keyStore, password.toCharArray());
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(keyStore);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
+        return context;
+    }
+}
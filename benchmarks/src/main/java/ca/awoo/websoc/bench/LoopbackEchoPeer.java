@@ -0,0 +1,141 @@
+package ca.awoo.websoc.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Locale;
+
+import ca.awoo.websoc.FrameDecoder;
+import ca.awoo.websoc.FrameEncoder;
+import ca.awoo.websoc.WebSocket.Frame;
+
+/**
+ * A minimal websocket server on the loopback interface that echoes every frame back as it was received.
+ * <p>
+ * Each connection gets its own thread. Connecting to the path {@code /close} completes the handshake and then hangs up, which is used to time connection setup on its own.
+ * </p>
+ */
+public class LoopbackEchoPeer implements Runnable {
+
+    private final ServerSocket serverSocket;
+    private final Thread acceptThread;
+
+    public LoopbackEchoPeer() throws IOException {
+        serverSocket = new ServerSocket(0, 1024, InetAddress.getLoopbackAddress());
+        acceptThread = new Thread(this, "loopback-echo-accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    public URI uri(String path){
+        try {
+            return new URI("ws://127.0.0.1:" + serverSocket.getLocalPort() + path);
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+
+    public void run(){
+        while(!serverSocket.isClosed()){
+            try {
+                final Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                Thread thread = new Thread(new Runnable() {
+                    public void run() {
+                        serve(socket);
+                    }
+                }, "loopback-echo");
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                //Closed
+            }
+        }
+    }
+
+    private void serve(Socket socket){
+        try {
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            String path = null;
+            String key = null;
+            String line;
+            while((line = readLine(in)).length() > 0){
+                if(path == null){
+                    path = line.split(" ")[1];
+                }else if(line.toLowerCase(Locale.ROOT).startsWith("sec-websocket-key:")){
+                    key = line.substring(line.indexOf(':') + 1).trim();
+                }
+            }
+            String response = "HTTP/1.1 101 Switching Protocols\r\n"
+                + "Upgrade: websocket\r\n"
+                + "Connection: Upgrade\r\n"
+                + "Sec-WebSocket-Accept: " + accept(key) + "\r\n"
+                + "\r\n";
+            out.write(response.getBytes("UTF-8"));
+            out.flush();
+            if("/close".equals(path)){
+                return;
+            }
+            FrameDecoder decoder = new FrameDecoder(in);
+            FrameEncoder encoder = new FrameEncoder(out, 65536);
+            while(true){
+                Frame frame = decoder.read();
+                encoder.write(frame.isFin(), frame.getOpcode(), null, frame.getData(), 0, frame.getData().length);
+                if(frame.getOpcode() == 8){
+                    return;
+                }
+            }
+        } catch (EOFException e) {
+            //Client went away
+        } catch (SocketException e) {
+            //Client went away
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                //Nothing to do
+            }
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while((b = in.read()) != '\n'){
+            if(b == -1){
+                throw new EOFException();
+            }
+            if(b != '\r'){
+                line.write(b);
+            }
+        }
+        return line.toString("UTF-8");
+    }
+
+    private static String accept(String key) throws IOException {
+        try {
+            byte[] sha1 = MessageDigest.getInstance("SHA-1").digest((key + "258EAFA5-E914-47DA-95CA-C5AB0DC85B11").getBytes("UTF-8"));
+            return Base64.getEncoder().encodeToString(sha1);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+}
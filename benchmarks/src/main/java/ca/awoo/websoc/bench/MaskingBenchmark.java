@@ -0,0 +1,59 @@
+package ca.awoo.websoc.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.awoo.websoc.Masking;
+
+/**
+ * Compares {@link Masking} against a plain byte at a time loop.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MaskingBenchmark {
+
+    @Param({"125", "4096", "131072", "524288"})
+    int payloadSize;
+
+    byte[] key;
+    byte[] data;
+
+    @Setup
+    public void setup(){
+        Random random = new Random(42);
+        key = new byte[4];
+        random.nextBytes(key);
+        data = new byte[payloadSize];
+        random.nextBytes(data);
+    }
+
+    @Benchmark
+    public byte[] scalar(){
+        for(int i = 0; i < data.length; i++){
+            data[i] ^= key[i % 4];
+        }
+        return data;
+    }
+
+    @Benchmark
+    public byte[] unrolled(){
+        Masking.mask(key, data, 0, data.length);
+        return data;
+    }
+}
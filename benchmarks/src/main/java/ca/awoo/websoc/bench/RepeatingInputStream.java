@@ -0,0 +1,31 @@
+package ca.awoo.websoc.bench;
+
+import java.io.InputStream;
+
+/**
+ * An InputStream that replays the same bytes forever, so a decoder can be driven for as long as a benchmark runs.
+ */
+public class RepeatingInputStream extends InputStream {
+
+    private final byte[] bytes;
+    private int position = 0;
+
+    public RepeatingInputStream(byte[] bytes){
+        this.bytes = bytes;
+    }
+
+    @Override
+    public int read(){
+        int b = bytes[position] & 0xFF;
+        position = (position + 1) % bytes.length;
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len){
+        int count = Math.min(len, bytes.length - position);
+        System.arraycopy(bytes, position, b, off, count);
+        position = (position + count) % bytes.length;
+        return count;
+    }
+}
@@ -0,0 +1,252 @@
+package ca.awoo.websoc.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import ca.awoo.websoc.CaptureReader;
+import ca.awoo.websoc.EchoServer;
+import ca.awoo.websoc.FrameCapture;
+import ca.awoo.websoc.FrameDecoder;
+import ca.awoo.websoc.WebSocket;
+import ca.awoo.websoc.WebSocket.Frame;
+
+/**
+ * Plays back frames recorded by a {@link FrameCapture}, to profile the library against real traffic instead of made up messages.
+ * <p>
+ * In decode mode the frames are encoded into memory once and read back over and over with {@link Frame#read} and {@link FrameDecoder}, as fast as they go.
+ * In server mode an {@link EchoServer} is started in the same process, one connection is opened for each captured connection, and each connection's frames are written to it in the order they were captured, either as fast as they go or spaced out as they were captured.
+ * </p>
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar ca.awoo.websoc.bench.ReplayDriver --mode server --speed original captures/
+ * </pre>
+ * <p>
+ * Options, followed by a capture file or a directory of them:
+ * </p>
+ * <ul>
+ * <li>{@code --mode decode|server}: decode by default</li>
+ * <li>{@code --direction incoming|outgoing}: which side's frames to play, incoming by default</li>
+ * <li>{@code --speed max|original|factor}: in server mode, max to send as fast as possible, the default, original to keep the captured timing, or a number to play that many times faster than captured</li>
+ * <li>{@code --duration seconds}: in decode mode, how long to decode for, 10 by default</li>
+ * <li>{@code --unmasked}: in decode mode, leave the frames unmasked as a server sends them instead of masked as a client does</li>
+ * </ul>
+ * <p>
+ * Frames with reserved bits set, such as compressed ones, and close frames aren't played in server mode, and truncated payloads are played as far as they were captured.
+ * </p>
+ */
+public class ReplayDriver {
+
+    String mode = "decode";
+    boolean outgoing = false;
+    double speed = 0;
+    long durationSeconds = 10;
+    boolean masked = true;
+    File source;
+
+    public static void main(String[] args) throws Exception {
+        ReplayDriver driver = new ReplayDriver();
+        try {
+            driver.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+        }
+        List<FrameCapture.Record> records = new ArrayList<FrameCapture.Record>();
+        CaptureReader reader = new CaptureReader(driver.source);
+        try {
+            FrameCapture.Record record;
+            while((record = reader.next()) != null){
+                if(record.isOutgoing() == driver.outgoing){
+                    records.add(record);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        if(records.isEmpty()){
+            System.err.println("No " + (driver.outgoing ? "outgoing" : "incoming") + " frames in " + driver.source);
+            System.exit(1);
+        }
+        if("server".equals(driver.mode)){
+            driver.serve(records);
+        }else{
+            driver.decode(records);
+        }
+    }
+
+    void parse(String[] args){
+        for(int i = 0; i < args.length; i++){
+            String arg = args[i];
+            if("--unmasked".equals(arg)){
+                masked = false;
+                continue;
+            }
+            if(!arg.startsWith("--")){
+                if(i + 1 != args.length){
+                    throw new IllegalArgumentException("The capture has to come last");
+                }
+                source = new File(arg);
+                continue;
+            }
+            if(i + 1 == args.length){
+                throw new IllegalArgumentException("Missing value for " + arg);
+            }
+            String value = args[++i];
+            if("--mode".equals(arg)){
+                if(!"decode".equals(value) && !"server".equals(value)){
+                    throw new IllegalArgumentException("Unknown mode: " + value);
+                }
+                mode = value;
+            }else if("--direction".equals(arg)){
+                if(!"incoming".equals(value) && !"outgoing".equals(value)){
+                    throw new IllegalArgumentException("Unknown direction: " + value);
+                }
+                outgoing = "outgoing".equals(value);
+            }else if("--speed".equals(arg)){
+                if("max".equals(value)){
+                    speed = 0;
+                }else if("original".equals(value)){
+                    speed = 1;
+                }else{
+                    speed = Double.parseDouble(value);
+                    if(speed <= 0){
+                        throw new IllegalArgumentException("Invalid speed: " + value);
+                    }
+                }
+            }else if("--duration".equals(arg)){
+                durationSeconds = Long.parseLong(value);
+            }else{
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        if(source == null || durationSeconds < 1){
+            throw new IllegalArgumentException("Usage: ReplayDriver [--mode decode|server] [--direction incoming|outgoing] [--speed max|original|factor] [--duration seconds] [--unmasked] capture");
+        }
+    }
+
+    /**
+     * Read the frames back over and over, alternating Frame.read and FrameDecoder, and report each one's throughput.
+     */
+    void decode(List<FrameCapture.Record> records) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] mask = masked ? new byte[]{0x12, 0x34, 0x56, 0x78} : null;
+        long payloadBytes = 0;
+        for(FrameCapture.Record record : records){
+            out.write(record.encode(mask));
+            payloadBytes += record.getPayload().length;
+        }
+        byte[] wire = out.toByteArray();
+        int frames = records.size();
+        System.out.println(String.format(Locale.ROOT, "%d frames, %d payload bytes, %d wire bytes, %s",
+            frames, payloadBytes, wire.length, masked ? "masked" : "unmasked"));
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(durationSeconds);
+        long[] passes = new long[2];
+        long[] nanos = new long[2];
+        long check = 0;
+        while(System.nanoTime() < end){
+            for(int way = 0; way < 2; way++){
+                long start = System.nanoTime();
+                ByteArrayInputStream in = new ByteArrayInputStream(wire);
+                FrameDecoder decoder = way == 1 ? new FrameDecoder(in) : null;
+                for(int i = 0; i < frames; i++){
+                    Frame frame = way == 0 ? Frame.read(in) : decoder.read();
+                    check += frame.getLength();
+                }
+                nanos[way] += System.nanoTime() - start;
+                passes[way]++;
+            }
+        }
+        if(check != (passes[0] + passes[1]) * payloadBytes){
+            throw new IOException("Replayed payloads don't add up");
+        }
+        String[] names = {"Frame.read", "FrameDecoder"};
+        for(int way = 0; way < 2; way++){
+            double seconds = nanos[way] / 1e9;
+            System.out.println(String.format(Locale.ROOT, "%-12s %12.0f frames/s %10.2f MB/s",
+                names[way], passes[way] * frames / seconds, passes[way] * wire.length / seconds / 1e6));
+        }
+    }
+
+    /**
+     * Play each captured connection's frames over its own connection to a local echo server, and report what was sent and echoed.
+     */
+    void serve(List<FrameCapture.Record> records) throws Exception {
+        EchoServer server = new EchoServer();
+        final AtomicLong echoedFrames = new AtomicLong();
+        final AtomicLong echoedBytes = new AtomicLong();
+        Map<Integer, WebSocket> sockets = new HashMap<Integer, WebSocket>();
+        List<Thread> readers = new ArrayList<Thread>();
+        long sentFrames = 0;
+        long sentBytes = 0;
+        long skipped = 0;
+        Random random = new Random();
+        long firstTime = records.get(0).getTime();
+        long start = System.nanoTime();
+        for(FrameCapture.Record record : records){
+            if(record.getRsv() != 0 || record.getOpcode() == 8){
+                skipped++;
+                continue;
+            }
+            WebSocket ws = sockets.get(record.getConnection());
+            if(ws == null){
+                ws = new WebSocket(server.getUri());
+                sockets.put(record.getConnection(), ws);
+                final WebSocket reading = ws;
+                //Echoes are drained as they come so the server never blocks on a full socket
+                Thread reader = new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            while(true){
+                                Frame frame = reading.readFrame();
+                                if(frame == null || frame.getOpcode() == 8){
+                                    break;
+                                }
+                                echoedFrames.incrementAndGet();
+                                echoedBytes.addAndGet(frame.getLength());
+                            }
+                        } catch (IOException e) {
+                            //Closed
+                        }
+                    }
+                }, "replay-reader-" + record.getConnection());
+                reader.setDaemon(true);
+                reader.start();
+                readers.add(reader);
+            }
+            if(speed != 0){
+                long due = start + (long) ((record.getTime() - firstTime) / speed);
+                while(System.nanoTime() < due){
+                    LockSupport.parkNanos(due - System.nanoTime());
+                }
+            }
+            //A client's frames have to be masked
+            byte[] mask = new byte[4];
+            random.nextBytes(mask);
+            byte[] payload = record.getPayload();
+            ws.writeFrame(new Frame(record.isFin(), record.getRsv(), record.getOpcode(), true, payload.length, mask, payload));
+            sentFrames++;
+            sentBytes += record.getPayload().length;
+        }
+        long elapsed = System.nanoTime() - start;
+        for(WebSocket ws : sockets.values()){
+            ws.close(1000, "");
+        }
+        for(Thread reader : readers){
+            reader.join(5000);
+        }
+        server.close();
+        double seconds = elapsed / 1e9;
+        System.out.println(String.format(Locale.ROOT, "%d connections, %d frames sent in %.3fs, %.0f frames/s %.2f MB/s, %d frames and %d bytes echoed, %d frames skipped",
+            sockets.size(), sentFrames, seconds, sentFrames / seconds, sentBytes / seconds / 1e6, echoedFrames.get(), echoedBytes.get(), skipped));
+    }
+}
@@ -0,0 +1,103 @@
+package ca.awoo.websoc.bench;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.awoo.websoc.WebSocket;
+import ca.awoo.websoc.WebSocket.Frame;
+
+/**
+ * Round trips messages through WebSocketOutputStream and WebSocketInputStream against a {@link LoopbackEchoPeer}.
+ * <p>
+ * With more than one fragment the message is sent as a run of continuation frames with writeFrame, and read back as one message through the input stream.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StreamBenchmark {
+
+    @Param({"16", "4096", "65536", "1048576"})
+    int payloadSize;
+
+    @Param({"1", "8"})
+    int fragments;
+
+    LoopbackEchoPeer peer;
+    WebSocket ws;
+    OutputStream out;
+    InputStream in;
+    byte[] payload;
+    Frame[] fragmentFrames;
+    byte[] readBuffer;
+
+    @Setup
+    public void setup() throws Exception {
+        peer = new LoopbackEchoPeer();
+        ws = new WebSocket(peer.uri("/"));
+        ws.setTcpNoDelay(true);
+        out = ws.getOutputStream();
+        in = ws.getInputStream();
+        Random random = new Random(42);
+        payload = new byte[payloadSize];
+        random.nextBytes(payload);
+        fragmentFrames = new Frame[fragments];
+        int fragmentSize = (payloadSize + fragments - 1) / fragments;
+        for(int i = 0; i < fragments; i++){
+            int off = Math.min(i * fragmentSize, payloadSize);
+            int len = Math.min(fragmentSize, payloadSize - off);
+            byte[] data = new byte[len];
+            System.arraycopy(payload, off, data, 0, len);
+            byte[] mask = new byte[4];
+            random.nextBytes(mask);
+            fragmentFrames[i] = new Frame(i == fragments - 1, i == 0 ? 2 : 0, true, len, mask, data);
+        }
+        readBuffer = new byte[payloadSize];
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        ws.close();
+        peer.close();
+    }
+
+    @Benchmark
+    public byte[] roundTrip() throws IOException {
+        if(fragments == 1){
+            out.write(payload);
+        }else{
+            for(Frame frame : fragmentFrames){
+                ws.writeFrame(frame);
+            }
+        }
+        int soFar = 0;
+        while(soFar < payloadSize){
+            int read = in.read(readBuffer, soFar, payloadSize - soFar);
+            if(read == -1){
+                throw new EOFException();
+            }
+            soFar += read;
+        }
+        return readBuffer;
+    }
+}
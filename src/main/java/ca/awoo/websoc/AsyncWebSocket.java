@@ -0,0 +1,1125 @@
+package ca.awoo.websoc;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ca.awoo.websoc.WebSocket.Frame;
+
+/**
+ * A non-blocking websocket connection owned by one of a {@link WebSocketEngine}'s or a {@link WebSocketServer}'s event loops.
+ * <p>
+ * Connecting, the upgrade handshake, reading and writing all happen on the event loop thread. Bytes are decoded into frames as they arrive and complete messages are handed to the {@link WebSocketListener}.
+ * </p>
+ * <p>
+ * The client end masks every frame it sends. The server end sends unmasked frames and closes the connection with a protocol error if the client sends one unmasked.
+ * </p>
+ * <p>
+ * If permessage-deflate was negotiated, whole messages sent with {@link #send(byte[])} or {@link #send(String)} are compressed and compressed messages received are decompressed before they reach the listener.
+ * Frames sent with {@link #sendFrame} are never compressed.
+ * </p>
+ * <p>
+ * The send methods can be called from any thread. Each frame is encoded whole and queued, so frames from different threads never interleave on the wire.
+ * </p>
+ */
+public class AsyncWebSocket implements EventLoop.Handler {
+
+    private enum State { CONNECTING, HANDSHAKE, OPEN, CLOSING, CLOSED }
+
+    private static final int MAX_REDIRECTS = 5;
+    private static final int READ_BUFFER_SIZE = 16384;
+
+    private final WebSocketEngine engine;
+    private final boolean client;
+    private final boolean secure;
+    private final EventLoop loop;
+    private final WebSocketListener listener;
+    private final PerMessageDeflate deflate;
+    private final Random maskRandom = new Random();
+    private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final EventLoop.Task flushTask = new EventLoop.Task(this) {
+        public void run() {
+            flushScheduled.set(false);
+            try {
+                flush();
+            } catch (IOException e) {
+                failed(e);
+            }
+        }
+    };
+    private final EventLoop.Task readTask = new EventLoop.Task(this) {
+        public void run() {
+            try {
+                if(state != State.CLOSED && !readPaused && transport.hasBufferedInput()){
+                    read();
+                    flush();
+                }
+            } catch (IOException e) {
+                failed(e);
+            }
+        }
+    };
+    private final Runnable closeTimeoutTask = new Runnable() {
+        public void run() {
+            //On the timer thread, so hand the close to the loop
+            loop.execute(new EventLoop.Task(AsyncWebSocket.this) {
+                public void run() {
+                    if(state == State.CLOSING){
+                        closed(1006, "");
+                    }
+                }
+            });
+        }
+    };
+
+    private volatile State state = State.CONNECTING;
+    private volatile URI uri;
+    private SocketChannel channel;
+    private Transport transport;
+    private SelectionKey key;
+    private String expectedAccept;
+    private int redirects = 0;
+    private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final LinkedList<ByteBuffer> pending = new LinkedList<ByteBuffer>();
+    private final ByteBuffer[] gather = new ByteBuffer[64];
+    private SpillBuffer message;
+    private int messageOpcode;
+    private boolean messageCompressed;
+    private volatile DeflateCodec codec;
+    private final Dispatch dispatch;
+    private final SerialExecutor events;
+    private boolean readPaused = false;
+    private final Pinger pinger;
+    private final Metrics metrics = Metrics.connection();
+    private final AtomicLong queuedSince = new AtomicLong();
+    private long handshakeStart;
+    private int messageFragments;
+    private volatile FrameCapture capture;
+    private int captureConnection;
+    private volatile ReceiveLimits limits = new ReceiveLimits();
+    private volatile int closeTimeout = 5000;
+    private TimerWheel.Timeout closeTimer;
+
+    AsyncWebSocket(WebSocketEngine engine, EventLoop loop, URI uri, WebSocketListener listener){
+        this.engine = engine;
+        this.client = true;
+        this.loop = loop;
+        this.uri = Handshake.normalize(uri);
+        this.secure = "wss".equals(this.uri.getScheme());
+        this.listener = listener;
+        this.deflate = engine.getCompression();
+        this.dispatch = engine.getDispatch();
+        this.events = newEvents();
+        this.pinger = newPinger(engine.getHeartbeat());
+        setCapture(engine.getCapture());
+        setReceiveLimits(engine.getReceiveLimits());
+    }
+
+    /**
+     * Create the server end of a connection that has just been accepted.
+     * @param loop the loop the connection will belong to
+     * @param channel the accepted, non-blocking channel
+     * @param transport the transport over the channel
+     * @param secure true if the transport is TLS, used for the scheme of {@link #getUri()}
+     * @param listener the listener to call with the connection's events
+     * @param deflate the permessage-deflate settings to accept offers with, or null to turn them down
+     * @param dispatch the settings to call the listener through, or null to call it on the loop thread
+     * @param heartbeat the settings to ping the client with, or null to not ping it
+     */
+    AsyncWebSocket(EventLoop loop, SocketChannel channel, Transport transport, boolean secure, WebSocketListener listener, PerMessageDeflate deflate, Dispatch dispatch, Heartbeat heartbeat){
+        this.engine = null;
+        this.client = false;
+        this.loop = loop;
+        this.channel = channel;
+        this.transport = transport;
+        this.secure = secure;
+        this.listener = listener;
+        this.deflate = deflate;
+        this.dispatch = dispatch;
+        this.events = newEvents();
+        this.pinger = newPinger(heartbeat);
+        this.state = State.HANDSHAKE;
+    }
+
+    private Pinger newPinger(Heartbeat heartbeat){
+        if(heartbeat == null){
+            return null;
+        }
+        return new Pinger(heartbeat, new Pinger.Peer() {
+            public void ping(byte[] payload) {
+                if(state == State.OPEN){
+                    enqueue(ByteBuffer.wrap(FrameEncoder.encode(true, 9, newMask(), payload, 0, payload.length)));
+                }
+            }
+
+            public void dead() {
+                loop.execute(new EventLoop.Task(AsyncWebSocket.this) {
+                    public void run() {
+                        AsyncWebSocket.this.failed(new IOException("Peer missed " + pinger.getOutstanding() + " pongs"));
+                    }
+                });
+            }
+
+            public void failed(final RuntimeException e) {
+                loop.execute(new EventLoop.Task(AsyncWebSocket.this) {
+                    public void run() {
+                        AsyncWebSocket.this.failed(e);
+                    }
+                });
+            }
+        });
+    }
+
+    private SerialExecutor newEvents(){
+        if(dispatch == null){
+            return null;
+        }
+        SerialExecutor queue = dispatch.newQueue();
+        queue.setOnRoom(new Runnable() {
+            public void run() {
+                loop.execute(new EventLoop.Task(AsyncWebSocket.this) {
+                    public void run() {
+                        resumeReading();
+                    }
+                });
+            }
+        });
+        return queue;
+    }
+
+    /**
+     * Start connecting on the event loop.
+     */
+    void start(){
+        handshakeStart = System.nanoTime();
+        loop.execute(new EventLoop.Task(AsyncWebSocket.this) {
+            public void run() {
+                try {
+                    open();
+                } catch (IOException e) {
+                    failed(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Register an accepted connection with its event loop and wait for the upgrade request.
+     */
+    void accepted(){
+        handshakeStart = System.nanoTime();
+        loop.execute(new EventLoop.Task(AsyncWebSocket.this) {
+            public void run() {
+                try {
+                    key = loop.register(channel, SelectionKey.OP_READ, AsyncWebSocket.this);
+                    flush();
+                } catch (IOException e) {
+                    failed(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the URI this socket is connected to, after any redirects. For the server end, the URI the client asked for, or null until the upgrade request has been read.
+     */
+    public URI getUri(){
+        return uri;
+    }
+
+    /**
+     * Record the connection's frames, before it has started.
+     * @param capture the capture to record to, or null to not record
+     */
+    void setCapture(FrameCapture capture){
+        if(capture != null){
+            this.captureConnection = capture.newConnection();
+        }
+        this.capture = capture;
+    }
+
+    /**
+     * Limit the size of frames and messages received, before the connection has started.
+     * @param limits the limits, or null for the defaults
+     */
+    void setReceiveLimits(ReceiveLimits limits){
+        this.limits = limits == null ? new ReceiveLimits() : limits;
+    }
+
+    /**
+     * @return how long {@link #close(int, String)} waits for the peer's close frame before dropping the connection, in milliseconds
+     */
+    public int getCloseTimeout(){
+        return closeTimeout;
+    }
+
+    /**
+     * Set how long {@link #close(int, String)} waits for the peer's close frame. If the peer hasn't answered by then the connection is dropped and the listener told it closed with status 1006.
+     * @param closeTimeout the time to wait in milliseconds, or 0 to drop the connection on the next timer tick
+     */
+    public void setCloseTimeout(int closeTimeout){
+        if(closeTimeout < 0){
+            throw new IllegalArgumentException("Negative close timeout: " + closeTimeout);
+        }
+        this.closeTimeout = closeTimeout;
+    }
+
+    /**
+     * @return the limits on what is received
+     */
+    public ReceiveLimits getReceiveLimits(){
+        return limits;
+    }
+
+    /**
+     * @return true for the end that connected, which masks what it sends, or false for a server's end
+     */
+    boolean isClient(){
+        return client;
+    }
+
+    /**
+     * @return true if the handshake has completed and the connection hasn't started closing
+     */
+    public boolean isOpen(){
+        return state == State.OPEN;
+    }
+
+    /**
+     * @return true if permessage-deflate was negotiated for this connection
+     */
+    public boolean isCompressed(){
+        return codec != null;
+    }
+
+    /**
+     * Send a binary message in a single frame.
+     * @param data the message
+     * @throws IOException if the connection is not open.
+     */
+    public void send(byte[] data) throws IOException {
+        sendMessage(2, data, 0, data.length);
+    }
+
+    /**
+     * Send a text message in a single frame. Unless it is compressed, the text is encoded to UTF-8 straight into the frame.
+     * @param text the message
+     * @throws IOException if the connection is not open.
+     */
+    public void send(CharSequence text) throws IOException {
+        if(state != State.OPEN){
+            throw new IOException("WebSocket is not open");
+        }
+        DeflateCodec codec = this.codec;
+        int length = codec == null ? -1 : Utf8.encodedLength(text);
+        if(codec == null || !codec.shouldCompress(length)){
+            enqueue(ByteBuffer.wrap(FrameEncoder.encodeText(true, 1, newMask(), text)));
+            return;
+        }
+        byte[] data = new byte[length];
+        Utf8.Encoder encoder = new Utf8.Encoder();
+        encoder.reset(text);
+        encoder.encode(data, 0, data.length);
+        sendMessage(1, data, 0, data.length);
+    }
+
+    /**
+     * Send a prepared message. On the server end of a connection the prepared frame is queued as it is, shared with every other connection it is sent to.
+     * @param message the message
+     * @throws IOException if the connection is not open.
+     */
+    public void send(PreparedMessage message) throws IOException {
+        if(state != State.OPEN){
+            throw new IOException("WebSocket is not open");
+        }
+        if(client){
+            enqueue(ByteBuffer.wrap(message.masked(newMask())));
+        }else{
+            enqueue(message.frame(codec));
+        }
+    }
+
+    /**
+     * Send a whole message in a single frame, compressed if permessage-deflate was negotiated.
+     */
+    void sendMessage(int opcode, byte[] data, int off, int len) throws IOException {
+        if(state != State.OPEN){
+            throw new IOException("WebSocket is not open");
+        }
+        DeflateCodec codec = this.codec;
+        if(codec == null || !codec.shouldCompress(len)){
+            sendFrame(true, opcode, data, off, len);
+            return;
+        }
+        //The compression context depends on the order messages go out in, so compress and queue together
+        synchronized(codec){
+            byte[] compressed = codec.compress(data, off, len);
+            enqueue(ByteBuffer.wrap(FrameEncoder.encode(true, opcode | Frame.RSV1, newMask(), compressed, 0, compressed.length)));
+        }
+    }
+
+    /**
+     * @return the connection's metrics, which are added to {@link Metrics#global()} as well
+     */
+    public Metrics getMetrics(){
+        return metrics;
+    }
+
+    /**
+     * @return the round trip time of the last heartbeat ping answered, in nanoseconds, or -1 if none has been or there is no heartbeat
+     */
+    public long getLastRttNanos(){
+        return pinger == null ? -1 : pinger.getLastRttNanos();
+    }
+
+    /**
+     * @return the round trip time of heartbeat pings smoothed over the last several, in nanoseconds, or -1 if none has been answered or there is no heartbeat
+     */
+    public long getSmoothedRttNanos(){
+        return pinger == null ? -1 : pinger.getSmoothedRttNanos();
+    }
+
+    /**
+     * Send a ping. The pong is answered by the peer and ignored here, unless it answers a heartbeat ping.
+     * @param data the ping payload, at most 125 bytes
+     * @throws IOException if the connection is not open.
+     */
+    public void ping(byte[] data) throws IOException {
+        sendFrame(true, 9, data, 0, data.length);
+    }
+
+    /**
+     * Queue a single frame. The payload is masked into a new buffer, so the array can be reused as soon as this returns.
+     * @param fin whether this is the final frame of a message
+     * @param opcode the frame's opcode
+     * @param data the array holding the payload
+     * @param off the offset of the payload in data
+     * @param len the length of the payload
+     * @throws IOException if the connection is not open.
+     */
+    public void sendFrame(boolean fin, int opcode, byte[] data, int off, int len) throws IOException {
+        if(state != State.OPEN){
+            throw new IOException("WebSocket is not open");
+        }
+        enqueue(ByteBuffer.wrap(FrameEncoder.encode(fin, opcode, newMask(), data, off, len)));
+    }
+
+    /**
+     * Start the close handshake with a normal closure status.
+     */
+    public void close(){
+        close(1000, "");
+    }
+
+    /**
+     * Start the close handshake. {@link WebSocketListener#onClose} is called once the peer answers, or with status 1006 if it hasn't within {@link #getCloseTimeout()}.
+     * @param code the close status code
+     * @param reason the close reason
+     */
+    public void close(final int code, final String reason){
+        loop.execute(new EventLoop.Task(AsyncWebSocket.this) {
+            public void run() {
+                if(state == State.OPEN){
+                    state = State.CLOSING;
+                    byte[] payload = closePayload(code, reason);
+                    enqueue(ByteBuffer.wrap(FrameEncoder.encode(true, 8, newMask(), payload, 0, payload.length)));
+                    closeTimer = TimerWheel.shared().schedule(closeTimeoutTask, closeTimeout, TimeUnit.MILLISECONDS);
+                }else if(state != State.CLOSING){
+                    closed(1006, "");
+                }
+            }
+        });
+    }
+
+    private byte[] newMask(){
+        if(!client){
+            return null;
+        }
+        byte[] mask = new byte[4];
+        int bits = maskRandom.nextInt();
+        mask[0] = (byte) (bits >> 24);
+        mask[1] = (byte) (bits >> 16);
+        mask[2] = (byte) (bits >> 8);
+        mask[3] = (byte) bits;
+        return mask;
+    }
+
+    private static byte[] closePayload(int code, String reason){
+        try {
+            byte[] reasonBytes = reason.getBytes("UTF-8");
+            byte[] payload = new byte[2 + reasonBytes.length];
+            payload[0] = (byte) (code >> 8);
+            payload[1] = (byte) code;
+            System.arraycopy(reasonBytes, 0, payload, 2, reasonBytes.length);
+            return payload;
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Start the heartbeat and record the handshake once the connection is open.
+     */
+    private void opened(){
+        metrics.handshake(System.nanoTime() - handshakeStart);
+        metrics.register();
+        if(pinger != null){
+            pinger.start();
+        }
+    }
+
+    /**
+     * Count an encoded frame about to be queued in the metrics.
+     * @return the frame
+     */
+    private ByteBuffer countFrame(ByteBuffer frame){
+        metrics.frameOut(frame.array(), frame.arrayOffset() + frame.position());
+        FrameCapture capture = this.capture;
+        if(capture != null){
+            capture.recordEncoded(captureConnection, true, frame.array(), frame.arrayOffset() + frame.position());
+        }
+        return countBytes(frame);
+    }
+
+    /**
+     * Count bytes about to be queued in the metrics.
+     * @return the bytes
+     */
+    private ByteBuffer countBytes(ByteBuffer bytes){
+        metrics.queued(bytes.remaining());
+        queuedSince.compareAndSet(0, System.nanoTime());
+        return bytes;
+    }
+
+    private void enqueue(ByteBuffer buffer){
+        writeQueue.add(countFrame(buffer));
+        if(loop.inLoop()){
+            try {
+                flush();
+            } catch (IOException e) {
+                failed(e);
+            }
+        }else if(flushScheduled.compareAndSet(false, true)){
+            loop.execute(flushTask);
+        }
+    }
+
+    private void open() throws IOException {
+        channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        state = State.CONNECTING;
+        if(channel.connect(new InetSocketAddress(uri.getHost(), Handshake.port(uri)))){
+            key = loop.register(channel, SelectionKey.OP_READ, this);
+            connected();
+        }else{
+            key = loop.register(channel, SelectionKey.OP_CONNECT, this);
+        }
+    }
+
+    private void connected() throws IOException {
+        state = State.HANDSHAKE;
+        key.interestOps(SelectionKey.OP_READ);
+        transport = engine.newTransport(channel, uri);
+        String handshakeKey = Handshake.newKey();
+        try {
+            expectedAccept = Handshake.accept(handshakeKey);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("No SHA-1 algorithm");
+        }
+        //The request goes ahead of anything already queued
+        pending.addFirst(countBytes(ByteBuffer.wrap(Handshake.request(uri, handshakeKey, deflate == null ? null : deflate.offer()).getBytes("UTF-8"))));
+        flush();
+    }
+
+    public void handle(SelectionKey key) throws IOException {
+        if(key.isConnectable()){
+            channel.finishConnect();
+            connected();
+            return;
+        }
+        if(key.isReadable() && !readPaused){
+            read();
+        }
+        flush();
+    }
+
+    public void failed(Exception e){
+        if(state != State.CLOSED){
+            fireError(e);
+            closed(1006, "");
+        }
+    }
+
+    private void closed(int code, String reason){
+        if(state == State.CLOSED){
+            return;
+        }
+        state = State.CLOSED;
+        if(pinger != null){
+            pinger.stop();
+        }
+        if(closeTimer != null){
+            closeTimer.cancel();
+            closeTimer = null;
+        }
+        closeChannel();
+        long unwritten = 0;
+        for(ByteBuffer buffer : writeQueue){
+            unwritten += buffer.remaining();
+        }
+        for(ByteBuffer buffer : pending){
+            unwritten += buffer.remaining();
+        }
+        metrics.queued(-unwritten);
+        metrics.unregister();
+        writeQueue.clear();
+        pending.clear();
+        if(codec != null){
+            codec.release();
+        }
+        if(message != null){
+            message.discard();
+            message = null;
+        }
+        fireClose(code, reason);
+    }
+
+    private void closeChannel(){
+        if(key != null){
+            key.cancel();
+        }
+        if(transport != null){
+            transport.close();
+            transport = null;
+        }else if(channel != null){
+            try {
+                channel.close();
+            } catch (IOException e) {
+                //Already as closed as it's going to get
+            }
+        }
+    }
+
+    private void flush() throws IOException {
+        if(state == State.CONNECTING || state == State.CLOSED){
+            return;
+        }
+        boolean wasReady = transport.ready();
+        boolean flushed = transport.flush();
+        ByteBuffer next;
+        while((next = writeQueue.poll()) != null){
+            pending.add(next);
+        }
+        while(!pending.isEmpty()){
+            int count = 0;
+            for(ByteBuffer buffer : pending){
+                if(count == gather.length){
+                    break;
+                }
+                gather[count++] = buffer;
+            }
+            long written = flushed && transport.ready() ? transport.write(gather, 0, count) : 0;
+            metrics.queued(-written);
+            for(int i = 0; i < count; i++){
+                gather[i] = null;
+            }
+            while(!pending.isEmpty() && !pending.peek().hasRemaining()){
+                pending.poll();
+            }
+            if(written == 0){
+                //The socket's send buffer is full, wait until it's writable again
+                break;
+            }
+        }
+        if(state == State.CLOSED){
+            return;
+        }
+        if(pending.isEmpty() && writeQueue.isEmpty()){
+            long since = queuedSince.getAndSet(0);
+            if(since != 0){
+                metrics.written(System.nanoTime() - since);
+            }
+        }
+        if(!transport.flush() || (transport.ready() && !pending.isEmpty())){
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }else{
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+        if(!wasReady && transport.ready() && transport.hasBufferedInput()){
+            //The TLS handshake finished here and read the peer's first bytes along with its last records, which the channel won't signal again
+            loop.execute(readTask);
+        }
+    }
+
+    private void read() throws IOException {
+        long start = System.nanoTime();
+        int read;
+        do{
+            read = transport.read(readBuffer);
+            if(read == -1){
+                closed(1006, "");
+                return;
+            }
+            readBuffer.flip();
+            if(state == State.HANDSHAKE){
+                readHandshake();
+            }
+            if(state == State.OPEN || state == State.CLOSING){
+                readFrames();
+            }
+            readBuffer.compact();
+            if(readBuffer.position() == 0 && readBuffer.capacity() > READ_BUFFER_SIZE){
+                //Don't hold on to the room a large frame needed
+                readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            }
+        }while(read > 0 && !readPaused && transport != null && transport.hasBufferedInput());
+        if(read > 0){
+            metrics.read(System.nanoTime() - start);
+        }
+    }
+
+    private void readHandshake() throws IOException {
+        int end = Handshake.endOfHead(readBuffer);
+        if(end == -1){
+            if(readBuffer.limit() >= Handshake.MAX_HEAD_SIZE){
+                if(!client){
+                    reject("431 Request Header Fields Too Large");
+                }
+                throw new IOException("Handshake too large");
+            }
+            return;
+        }
+        Handshake.Head head;
+        try {
+            head = Handshake.parse(readBuffer.array(), readBuffer.arrayOffset() + readBuffer.position(), end - readBuffer.position());
+        } catch (IOException e) {
+            if(!client){
+                reject("400 Bad Request");
+            }
+            throw e;
+        }
+        //Whatever follows the head is frames, left in the buffer for readFrames
+        readBuffer.position(end);
+        if(client){
+            readResponse(head);
+        }else{
+            readRequest(head);
+        }
+    }
+
+    private void readResponse(Handshake.Head head) throws IOException {
+        int code = head.status();
+        if(code >= 300 && code <= 399){
+            redirect(head.header("location"));
+            return;
+        }
+        if(code != 101){
+            throw new IOException("Invalid response: " + head.startLine);
+        }
+        boolean upgrade = "websocket".equalsIgnoreCase(head.header("upgrade"));
+        boolean connection = head.headerContains("connection", "upgrade");
+        boolean accept = expectedAccept.equals(head.header("sec-websocket-accept"));
+        if(!upgrade || !connection || !accept){
+            throw new IOException("Invalid handshake");
+        }
+        String extensions = head.header("sec-websocket-extensions");
+        if(deflate != null){
+            codec = deflate.accept(extensions);
+        }else if(extensions != null){
+            throw new IOException("Server accepted an extension that wasn't offered: " + extensions);
+        }
+        state = State.OPEN;
+        opened();
+        fireOpen();
+    }
+
+    private void readRequest(Handshake.Head head) throws IOException {
+        String[] request = head.startLine.split(" ");
+        if(request.length != 3 || !"GET".equals(request[0]) || !request[2].startsWith("HTTP/1.1")){
+            reject("400 Bad Request");
+            throw new IOException("Invalid request line: " + head.startLine);
+        }
+        if(!"13".equals(head.header("sec-websocket-version"))){
+            reject("426 Upgrade Required");
+            throw new IOException("Unsupported websocket version: " + head.header("sec-websocket-version"));
+        }
+        String handshakeKey = head.header("sec-websocket-key");
+        String host = head.header("host");
+        boolean upgrade = "websocket".equalsIgnoreCase(head.header("upgrade"));
+        boolean connection = head.headerContains("connection", "upgrade");
+        if(handshakeKey == null || host == null || !upgrade || !connection){
+            reject("400 Bad Request");
+            throw new IOException("Invalid upgrade request");
+        }
+        try {
+            uri = new URI((secure ? "wss://" : "ws://") + host + request[1]);
+        } catch (URISyntaxException e) {
+            reject("400 Bad Request");
+            throw new IOException("Invalid request URI: " + request[1]);
+        }
+        String accept;
+        try {
+            accept = Handshake.accept(handshakeKey);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("No SHA-1 algorithm");
+        }
+        String extensions = deflate == null ? null : deflate.respond(head.header("sec-websocket-extensions"));
+        if(extensions != null){
+            codec = deflate.serverCodec(extensions);
+        }
+        //The response goes ahead of anything the listener sends from onOpen
+        pending.addFirst(countBytes(ByteBuffer.wrap(Handshake.response(accept, extensions).getBytes("UTF-8"))));
+        state = State.OPEN;
+        opened();
+        flush();
+        fireOpen();
+    }
+
+    /**
+     * Answer an upgrade request with an error status. The caller then fails the connection, which closes it.
+     */
+    private void reject(String status) throws IOException {
+        pending.add(countBytes(ByteBuffer.wrap(Handshake.rejection(status).getBytes("UTF-8"))));
+        flush();
+    }
+
+    private void redirect(String location) throws IOException {
+        if(location == null){
+            throw new IOException("Redirect without location header");
+        }
+        if(++redirects > MAX_REDIRECTS){
+            throw new IOException("Too many redirects");
+        }
+        URI newUri;
+        try {
+            newUri = Handshake.normalize(new URI(location));
+        } catch (URISyntaxException e) {
+            throw new IOException("Invalid redirect location: " + location);
+        }
+        closeChannel();
+        pending.clear();
+        //Leave the buffer empty and ready to be compacted by read()
+        readBuffer.clear();
+        readBuffer.flip();
+        uri = newUri;
+        open();
+    }
+
+    private void readFrames() throws IOException {
+        while((state == State.OPEN || state == State.CLOSING) && !readPaused){
+            Frame frame;
+            try {
+                //Checked as soon as the header is in, before the buffer grows to fit the frame
+                frame = FrameDecoder.decode(readBuffer, limits.getMaxFrameSize());
+            } catch (MessageTooBigException e) {
+                fail(1009, "Frame too large");
+                return;
+            }
+            if(frame == null){
+                long size = FrameDecoder.frameSize(readBuffer);
+                if(size > readBuffer.capacity()){
+                    ByteBuffer grown = ByteBuffer.allocate((int) size);
+                    grown.put(readBuffer);
+                    grown.flip();
+                    readBuffer = grown;
+                }
+                return;
+            }
+            int rsv = frame.getRsv();
+            if(rsv != 0 && !(rsv == 4 && codec != null && (frame.getOpcode() == 1 || frame.getOpcode() == 2))){
+                fail(1002, "Unexpected reserved bits");
+                return;
+            }
+            if(!client && !frame.isMasked()){
+                fail(1002, "Unmasked frame from client");
+                return;
+            }
+            try {
+                handleFrame(frame);
+            } catch (MessageTooBigException e) {
+                fail(1009, "Message too large");
+                return;
+            }
+        }
+    }
+
+    /**
+     * Close the connection straight away because the peer broke the protocol, telling it why first.
+     */
+    private void fail(int code, String reason) throws IOException {
+        byte[] payload = closePayload(code, reason);
+        state = State.CLOSING;
+        pending.add(countFrame(ByteBuffer.wrap(FrameEncoder.encode(true, 8, newMask(), payload, 0, payload.length))));
+        flush();
+        closed(code, reason);
+    }
+
+    /**
+     * Hand a whole message to the listener, failing the connection instead if it is text that isn't valid UTF-8.
+     */
+    private void deliver(int opcode, byte[] data) throws IOException {
+        if(opcode == 1 && !Utf8.isValid(data, 0, data.length)){
+            fail(1007, "Invalid UTF-8 in text message");
+            return;
+        }
+        fireMessage(opcode, data);
+    }
+
+    /**
+     * Hand a message that was put back together to the listener, mapped from its file if it was spilled to one.
+     */
+    private void deliver(int opcode, SpillBuffer whole) throws IOException {
+        if(!whole.isSpilled()){
+            deliver(opcode, whole.toByteArray());
+            return;
+        }
+        ByteBuffer data = whole.toBuffer();
+        if(opcode == 1 && !Utf8.isValid(data)){
+            fail(1007, "Invalid UTF-8 in text message");
+            return;
+        }
+        fireLargeMessage(opcode, data);
+    }
+
+    /**
+     * @return a buffer to put a message back together in, which spills to a file past the threshold only if the listener can take a mapped message
+     */
+    private SpillBuffer newMessage(){
+        ReceiveLimits limits = this.limits;
+        long threshold = listener instanceof LargeMessageListener ? limits.getSpillThreshold() : Long.MAX_VALUE;
+        return new SpillBuffer(threshold, limits.getMaxMessageSize(), limits.getSpillDirectory());
+    }
+
+    /**
+     * Inflate a compressed message, within the message size limit.
+     */
+    private SpillBuffer decompress(ByteBuffer compressed) throws IOException {
+        SpillBuffer out = newMessage();
+        try {
+            codec.decompress(compressed, out);
+        } catch (IOException e) {
+            out.discard();
+            throw e;
+        }
+        return out;
+    }
+
+    private void fireOpen(){
+        if(events == null){
+            listener.onOpen(this);
+            return;
+        }
+        events.force(new Runnable() {
+            public void run() {
+                listener.onOpen(AsyncWebSocket.this);
+            }
+        });
+    }
+
+    /**
+     * Call the listener with a message, on the loop thread or through the dispatch queue, following the dispatch's overflow policy if the queue is full.
+     */
+    private void fireMessage(final int opcode, final byte[] data) throws IOException {
+        if(events == null){
+            listener.onMessage(this, opcode, data);
+            return;
+        }
+        fireMessage(new Runnable() {
+            public void run() {
+                listener.onMessage(AsyncWebSocket.this, opcode, data);
+            }
+        });
+    }
+
+    /**
+     * Call the listener with a message that was spilled to a file, the same way as {@link #fireMessage(int, byte[])}.
+     */
+    private void fireLargeMessage(final int opcode, final ByteBuffer data) throws IOException {
+        final LargeMessageListener listener = (LargeMessageListener) this.listener;
+        if(events == null){
+            listener.onLargeMessage(this, opcode, data);
+            return;
+        }
+        fireMessage(new Runnable() {
+            public void run() {
+                listener.onLargeMessage(AsyncWebSocket.this, opcode, data);
+            }
+        });
+    }
+
+    /**
+     * Queue a call to the listener with a message, following the dispatch's overflow policy if the queue is full.
+     */
+    private void fireMessage(Runnable task) throws IOException {
+        switch(dispatch.getOverflow()){
+            case BLOCK:
+                //The loop can't wait, so stop reading instead until the queue has drained
+                events.force(task);
+                if(events.isFull()){
+                    pauseReading();
+                    dispatch.overflowed(this);
+                }
+                break;
+            case DROP:
+                if(!events.offer(task)){
+                    dispatch.overflowed(this);
+                }
+                break;
+            default:
+                if(!events.offer(task)){
+                    dispatch.overflowed(this);
+                    fail(1011, "Listener queue overflowed");
+                }
+                break;
+        }
+    }
+
+    private void fireClose(final int code, final String reason){
+        if(events == null){
+            listener.onClose(this, code, reason);
+            return;
+        }
+        events.force(new Runnable() {
+            public void run() {
+                listener.onClose(AsyncWebSocket.this, code, reason);
+            }
+        });
+    }
+
+    private void fireError(final Exception e){
+        if(events == null){
+            listener.onError(this, e);
+            return;
+        }
+        events.force(new Runnable() {
+            public void run() {
+                listener.onError(AsyncWebSocket.this, e);
+            }
+        });
+    }
+
+    private void pauseReading(){
+        readPaused = true;
+        if(key != null && key.isValid()){
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Start reading again once the dispatch queue has room, beginning with any frames left in the read buffer.
+     */
+    private void resumeReading(){
+        if(!readPaused || state == State.CLOSED){
+            return;
+        }
+        readPaused = false;
+        try {
+            readBuffer.flip();
+            readFrames();
+            readBuffer.compact();
+            if(!readPaused && state != State.CLOSED){
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                if(transport.hasBufferedInput()){
+                    read();
+                }
+                flush();
+            }
+        } catch (IOException e) {
+            failed(e);
+        }
+    }
+
+    private void handleFrame(Frame frame) throws IOException {
+        byte[] data = frame.getData();
+        metrics.frameIn(frame.getOpcode(), data.length);
+        FrameCapture capture = this.capture;
+        if(capture != null){
+            capture.record(captureConnection, false, frame);
+        }
+        if(frame.getOpcode() >= 8 && (!frame.isFin() || data.length > 125)){
+            //Control frames can't be fragmented and fit in a short length, as WebSocket checks too
+            fail(1002, "Invalid control frame");
+            return;
+        }
+        switch(frame.getOpcode()){
+            case 0:
+                if(message == null){
+                    throw new IOException("Continuation frame without a message to continue");
+                }
+                message.write(data, 0, data.length);
+                messageFragments++;
+                if(frame.isFin()){
+                    metrics.messageIn(messageFragments);
+                    SpillBuffer whole = message;
+                    message = null;
+                    if(messageCompressed){
+                        whole = decompress(whole.toBuffer());
+                    }
+                    deliver(messageOpcode, whole);
+                }
+                break;
+            case 1:
+            case 2:
+                if(message != null){
+                    //The message in progress will never be finished, so let go of its file now
+                    message.discard();
+                    message = null;
+                    fail(1002, "New message before the last one was finished");
+                    break;
+                }
+                if(frame.isFin()){
+                    metrics.messageIn(1);
+                    if(frame.getRsv() != 0){
+                        deliver(frame.getOpcode(), decompress(ByteBuffer.wrap(data)));
+                        break;
+                    }
+                    if(data.length > limits.getMaxMessageSize()){
+                        throw new MessageTooBigException("Message larger than " + limits.getMaxMessageSize() + " bytes");
+                    }
+                    deliver(frame.getOpcode(), data);
+                }else{
+                    messageFragments = 1;
+                    message = newMessage();
+                    messageOpcode = frame.getOpcode();
+                    messageCompressed = frame.getRsv() != 0;
+                    message.write(data, 0, data.length);
+                }
+                break;
+            case 8:
+                int code = data.length >= 2 ? (data[0] & 0xFF) << 8 | (data[1] & 0xFF) : 1005;
+                String reason = data.length > 2 ? new String(data, 2, data.length - 2, "UTF-8") : "";
+                if(state == State.OPEN){
+                    state = State.CLOSING;
+                    pending.add(countFrame(ByteBuffer.wrap(FrameEncoder.encode(true, 8, newMask(), data, 0, Math.min(data.length, 2)))));
+                    flush();
+                }
+                closed(code, reason);
+                break;
+            case 9:
+                enqueue(ByteBuffer.wrap(FrameEncoder.encode(true, 10, newMask(), data, 0, data.length)));
+                break;
+            case 10:
+                if(pinger != null){
+                    pinger.pong(data);
+                }
+                break;
+            default:
+                throw new IOException("Unknown opcode: " + frame.getOpcode());
+        }
+    }
+}
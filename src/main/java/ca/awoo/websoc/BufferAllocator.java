@@ -0,0 +1,18 @@
+package ca.awoo.websoc;
+
+/**
+ * Hands out buffers for frame payloads, so reading a frame doesn't have to allocate an array for it.
+ * <p>
+ * Buffers are reference counted. Whoever allocates one owns a reference to it and must {@link PooledBuffer#release()} it when done, after which it may be handed out again.
+ * </p>
+ * @see SlabAllocator
+ */
+public interface BufferAllocator {
+
+    /**
+     * Allocate a buffer with a reference count of 1.
+     * @param capacity the bytes the buffer must hold
+     * @return a buffer positioned at 0 with its limit at capacity
+     */
+    PooledBuffer allocate(int capacity);
+}
@@ -0,0 +1,61 @@
+package ca.awoo.websoc;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of same-sized heap buffers, so per-connection buffers are reused instead of reallocated for every connection.
+ * <p>
+ * At most maxPooled buffers are kept. Anything released beyond that is left for the garbage collector.
+ * </p>
+ */
+class BufferPool {
+
+    private final int bufferSize;
+    private final int maxPooled;
+    private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    BufferPool(int bufferSize, int maxPooled){
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * @return the capacity of the buffers in this pool
+     */
+    int bufferSize(){
+        return bufferSize;
+    }
+
+    /**
+     * Take a cleared buffer from the pool, or allocate a new one if the pool is empty.
+     * @return a buffer with a capacity of {@link #bufferSize()}
+     */
+    ByteBuffer acquire(){
+        ByteBuffer buffer = free.poll();
+        if(buffer == null){
+            return ByteBuffer.allocate(bufferSize);
+        }
+        pooled.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Give a buffer back to the pool. The caller must not use it afterwards.
+     * @param buffer a buffer from {@link #acquire()}
+     */
+    void release(ByteBuffer buffer){
+        if(buffer == null || buffer.capacity() != bufferSize){
+            return;
+        }
+        if(pooled.incrementAndGet() <= maxPooled){
+            free.add(buffer);
+        }else{
+            pooled.decrementAndGet();
+        }
+    }
+}
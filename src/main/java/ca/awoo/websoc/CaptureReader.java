@@ -0,0 +1,123 @@
+package ca.awoo.websoc;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads back the frames a {@link FrameCapture} wrote, in the order they were recorded, by mapping each file into memory in turn.
+ */
+public class CaptureReader implements Closeable {
+
+    private final List<File> files;
+    private int next = 0;
+    private MappedByteBuffer map;
+
+    /**
+     * @param source a capture file, or a directory to read every capture file in, oldest first
+     * @throws IOException if there are no capture files there.
+     */
+    public CaptureReader(File source) throws IOException {
+        if(source.isDirectory()){
+            File[] found = source.listFiles(new FileFilter() {
+                public boolean accept(File file) {
+                    return file.isFile() && file.getName().endsWith(FrameCapture.SUFFIX);
+                }
+            });
+            if(found == null || found.length == 0){
+                throw new IOException("No capture files in " + source);
+            }
+            //The names sort by when the capture started, then by sequence
+            Arrays.sort(found);
+            files = Arrays.asList(found);
+        }else{
+            files = new ArrayList<File>();
+            files.add(source);
+        }
+    }
+
+    /**
+     * @return the next frame, or null once every file has been read
+     * @throws IOException if a file couldn't be read or isn't a capture file.
+     */
+    public FrameCapture.Record next() throws IOException {
+        while(true){
+            if(map == null){
+                if(next == files.size()){
+                    return null;
+                }
+                open(files.get(next++));
+            }
+            if(map.remaining() >= 4){
+                int size = map.getInt();
+                if(size > 0){
+                    return read(size);
+                }
+            }
+            //A zero length, or the end of the file, ends its records
+            map = null;
+        }
+    }
+
+    /**
+     * Read every frame that is left.
+     * @return the frames
+     * @throws IOException if a file couldn't be read or isn't a capture file.
+     */
+    public List<FrameCapture.Record> readAll() throws IOException {
+        List<FrameCapture.Record> records = new ArrayList<FrameCapture.Record>();
+        FrameCapture.Record record;
+        while((record = next()) != null){
+            records.add(record);
+        }
+        return records;
+    }
+
+    private void open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+        if(map.remaining() < FrameCapture.FILE_HEADER || map.getInt() != FrameCapture.MAGIC){
+            throw new IOException("Not a capture file: " + file);
+        }
+        int version = map.getInt();
+        if(version != FrameCapture.VERSION){
+            throw new IOException("Unknown capture version " + version + ": " + file);
+        }
+    }
+
+    private FrameCapture.Record read(int size) throws IOException {
+        try {
+            long time = map.getLong();
+            int connection = map.getInt();
+            boolean outgoing = map.get() != 0;
+            int first = map.get() & 0xFF;
+            long length = map.getLong();
+            int captured = map.getInt();
+            if(captured < 0 || captured != size + 4 - FrameCapture.RECORD_HEADER){
+                throw new IOException("Corrupt capture record");
+            }
+            byte[] payload = new byte[captured];
+            map.get(payload);
+            return new FrameCapture.Record(time, connection, outgoing, first, length, payload);
+        } catch (BufferUnderflowException e) {
+            throw (IOException) new IOException("Capture record cut short").initCause(e);
+        }
+    }
+
+    public void close(){
+        map = null;
+        next = files.size();
+    }
+}
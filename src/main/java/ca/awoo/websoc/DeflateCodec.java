@@ -0,0 +1,286 @@
+package ca.awoo.websoc;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses and decompresses whole messages for one connection that negotiated permessage-deflate (RFC 7692).
+ * <p>
+ * Keeping the compression context between messages lets repeated content, like the keys of JSON messages, be sent as back references to earlier messages.
+ * It needs a sync flush, which Deflater only has from Java 7. On older runtimes every message is finished on its own instead, so the context is never kept.
+ * </p>
+ * <p>
+ * Without context takeover the Deflater or Inflater is borrowed from a shared pool for each message. With it, the connection holds one until {@link #release()}.
+ * </p>
+ */
+public final class DeflateCodec {
+
+    //The end of a sync flush, which is left off the wire and put back before inflating
+    static final byte[] TAIL = {0, 0, (byte) 0xFF, (byte) 0xFF};
+    private static final int SYNC_FLUSH = 2;
+    private static final Method syncDeflate;
+
+    static {
+        Method method;
+        try {
+            method = Deflater.class.getMethod("deflate", byte[].class, int.class, int.class, int.class);
+        } catch (NoSuchMethodException e) {
+            method = null;
+        }
+        syncDeflate = method;
+    }
+
+    private final int level;
+    private final boolean compressTakeover;
+    private final boolean decompressTakeover;
+    private final int threshold;
+    private Deflater deflater;
+    private Inflater inflater;
+
+    /**
+     * @param level the compression level, from -1 for the default to 9
+     * @param compressTakeover whether to keep the compression context between messages sent
+     * @param decompressTakeover whether the peer keeps its compression context between the messages it sends
+     */
+    public DeflateCodec(int level, boolean compressTakeover, boolean decompressTakeover){
+        this(level, compressTakeover, decompressTakeover, 0);
+    }
+
+    DeflateCodec(int level, boolean compressTakeover, boolean decompressTakeover, int threshold){
+        if(level < -1 || level > 9){
+            throw new IllegalArgumentException("Invalid compression level: " + level);
+        }
+        this.level = level;
+        this.compressTakeover = compressTakeover && canKeepContext();
+        this.decompressTakeover = decompressTakeover;
+        this.threshold = threshold;
+    }
+
+    /**
+     * @return true if this runtime can sync flush a Deflater, which keeping the compression context between messages needs
+     */
+    public static boolean canKeepContext(){
+        return syncDeflate != null;
+    }
+
+    /**
+     * @return the compression level
+     */
+    int level(){
+        return level;
+    }
+
+    /**
+     * @return true if the compression context is kept between messages sent, so each compressed message depends on the ones before it
+     */
+    boolean keepsContext(){
+        return compressTakeover;
+    }
+
+    /**
+     * @param length the length of a message about to be sent
+     * @return true if the message is long enough to be worth compressing
+     */
+    boolean shouldCompress(int length){
+        return length >= threshold;
+    }
+
+    /**
+     * Compress a whole message.
+     * @param data the array holding the message
+     * @param off the offset of the message in data
+     * @param len the length of the message
+     * @return the compressed payload to send with RSV1 set
+     */
+    public synchronized byte[] compress(byte[] data, int off, int len){
+        Deflater d = deflater != null ? deflater : ZipPool.deflater(level);
+        byte[] out = new byte[len + (len >> 4) + 64];
+        int n = 0;
+        try {
+            d.setInput(data, off, len);
+            if(syncDeflate != null){
+                while(true){
+                    n += syncDeflate(d, out, n, out.length - n);
+                    if(n < out.length){
+                        break;
+                    }
+                    out = grow(out, n);
+                }
+                if(n >= TAIL.length){
+                    //A sync flush ends with an empty stored block, which the receiver puts back
+                    n -= TAIL.length;
+                }else{
+                    //Nothing new to flush, so send the empty block on its own as RFC 7692 describes
+                    out[0] = 0;
+                    n = 1;
+                }
+            }else{
+                d.finish();
+                while(!d.finished()){
+                    n += d.deflate(out, n, out.length - n);
+                    if(n == out.length){
+                        out = grow(out, n);
+                    }
+                }
+            }
+        } finally {
+            if(compressTakeover){
+                deflater = d;
+            }else{
+                ZipPool.release(d, level);
+            }
+        }
+        byte[] payload = new byte[n];
+        System.arraycopy(out, 0, payload, 0, n);
+        return payload;
+    }
+
+    /**
+     * Decompress a whole message, all of its frames' payloads joined together.
+     * @param data the array holding the compressed message
+     * @param off the offset of the message in data
+     * @param len the length of the message
+     * @return the decompressed message
+     * @throws IOException if the data isn't valid deflate data.
+     */
+    public byte[] decompress(byte[] data, int off, int len) throws IOException {
+        Inflater inf = borrowInflater();
+        byte[] out = new byte[(int) Math.min(Integer.MAX_VALUE - 8, Math.max(64L, len * 4L))];
+        int n = 0;
+        boolean ok = false;
+        try {
+            inf.setInput(data, off, len);
+            boolean tail = false;
+            while(true){
+                int read = inf.inflate(out, n, out.length - n);
+                n += read;
+                if(n == out.length){
+                    out = grow(out, n);
+                }else if(read == 0){
+                    if(inf.finished() || tail || !inf.needsInput()){
+                        break;
+                    }
+                    inf.setInput(TAIL);
+                    tail = true;
+                }
+            }
+            ok = true;
+        } catch (DataFormatException e) {
+            throw (IOException) new IOException("Invalid compressed data").initCause(e);
+        } finally {
+            returnInflater(inf, ok);
+        }
+        byte[] message = new byte[n];
+        System.arraycopy(out, 0, message, 0, n);
+        return message;
+    }
+
+    /**
+     * Decompress a whole message into a buffer that moves to a file once it gets large, so a message that inflates to more than it should is refused as soon as it passes the buffer's maximum size.
+     * @param data the compressed message, all of its frames' payloads joined together, from its position to its limit
+     * @param out the buffer to put the decompressed message in
+     * @throws MessageTooBigException if the message inflates to more than out's maximum size.
+     * @throws IOException if the data isn't valid deflate data, or out couldn't be written.
+     */
+    void decompress(ByteBuffer data, SpillBuffer out) throws IOException {
+        Inflater inf = borrowInflater();
+        //Inflaters can only read from arrays, so a mapped message is fed through a chunk at a time
+        byte[] chunk = data.hasArray() ? null : new byte[8192];
+        byte[] buffer = new byte[8192];
+        boolean ok = false;
+        try {
+            boolean tail = false;
+            while(true){
+                int read = inf.inflate(buffer, 0, buffer.length);
+                if(read > 0){
+                    out.write(buffer, 0, read);
+                    continue;
+                }
+                if(inf.finished() || tail || !inf.needsInput()){
+                    break;
+                }
+                if(!data.hasRemaining()){
+                    inf.setInput(TAIL);
+                    tail = true;
+                }else if(chunk == null){
+                    inf.setInput(data.array(), data.arrayOffset() + data.position(), data.remaining());
+                    data.position(data.limit());
+                }else{
+                    int count = Math.min(chunk.length, data.remaining());
+                    data.get(chunk, 0, count);
+                    inf.setInput(chunk, 0, count);
+                }
+            }
+            ok = true;
+        } catch (DataFormatException e) {
+            throw (IOException) new IOException("Invalid compressed data").initCause(e);
+        } finally {
+            returnInflater(inf, ok);
+        }
+    }
+
+    /**
+     * Take the Inflater for the next message, to decompress it a piece at a time. It must be given back with {@link #returnInflater(Inflater, boolean)} once the message is done.
+     * <p>
+     * The compressed payload must be followed by {@link #TAIL} before the last of the message can be inflated.
+     * </p>
+     * @return the Inflater holding the peer's context, or a fresh one from the pool
+     */
+    synchronized Inflater borrowInflater(){
+        Inflater inf = inflater != null ? inflater : ZipPool.inflater();
+        inflater = null;
+        return inf;
+    }
+
+    /**
+     * Give back the Inflater for a message.
+     * @param inf the Inflater from {@link #borrowInflater()}
+     * @param ok false if the message couldn't be inflated, which throws the context away
+     */
+    synchronized void returnInflater(Inflater inf, boolean ok){
+        if(inf.finished()){
+            //The peer ended the stream, so there's no context left to keep
+            inf.reset();
+        }
+        if(ok && decompressTakeover){
+            inflater = inf;
+        }else{
+            ZipPool.release(inf);
+        }
+    }
+
+    /**
+     * Give any Deflater or Inflater held for context takeover back to the pool. The codec can still be used afterwards, but starts with a fresh context.
+     */
+    public synchronized void release(){
+        if(deflater != null){
+            ZipPool.release(deflater, level);
+            deflater = null;
+        }
+        if(inflater != null){
+            ZipPool.release(inflater);
+            inflater = null;
+        }
+    }
+
+    private static int syncDeflate(Deflater deflater, byte[] out, int off, int len){
+        try {
+            return ((Integer) syncDeflate.invoke(deflater, out, off, len, SYNC_FLUSH)).intValue();
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        } catch (InvocationTargetException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private static byte[] grow(byte[] array, int used){
+        byte[] grown = new byte[array.length * 2];
+        System.arraycopy(array, 0, grown, 0, used);
+        return grown;
+    }
+}
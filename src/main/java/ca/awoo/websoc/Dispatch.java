@@ -0,0 +1,152 @@
+package ca.awoo.websoc;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Settings for calling listeners on an Executor instead of the thread that reads the socket.
+ * <p>
+ * Give one to a {@link WebSocket} for its read listeners, or to a {@link WebSocketEngine} or {@link WebSocketServer} for every connection's {@link WebSocketListener}.
+ * A slow listener then no longer holds up reading. Each connection's calls still happen one at a time and in order, though not always on the same thread.
+ * </p>
+ * <p>
+ * Each connection queues up to {@link #getCapacity()} calls. What happens when the queue is full is up to the {@link Overflow} policy, and every overflow is reported to the overflow listeners.
+ * Opening, closing and error events are never dropped or refused.
+ * </p>
+ */
+public class Dispatch {
+
+    /**
+     * What to do with a frame or message when a connection's listener queue is full.
+     */
+    public enum Overflow {
+        /**
+         * Stop reading until there's room. A blocking WebSocket's reader waits, and an AsyncWebSocket stops reading from the socket until the queue has drained to half.
+         * Nothing is lost, and the peer is slowed down by TCP flow control.
+         */
+        BLOCK,
+        /**
+         * Drop the frame or message without calling the listeners.
+         */
+        DROP,
+        /**
+         * Fail the connection.
+         */
+        FAIL
+    }
+
+    /**
+     * Called when a connection's listener queue is full.
+     */
+    public interface OverflowListener {
+
+        /**
+         * @param connection the {@link WebSocket} or {@link AsyncWebSocket} whose queue was full
+         * @param policy what was done about it
+         */
+        void overflow(Object connection, Overflow policy);
+    }
+
+    private final Executor executor;
+    private final int capacity;
+    private final Overflow overflow;
+    private final List<OverflowListener> overflowListeners = new CopyOnWriteArrayList<OverflowListener>();
+    private final AtomicLong overflows = new AtomicLong();
+
+    /**
+     * @param executor the executor to call listeners on
+     * @param capacity the most calls each connection queues
+     * @param overflow what to do when a connection's queue is full
+     */
+    public Dispatch(Executor executor, int capacity, Overflow overflow){
+        if(capacity < 1){
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        if(executor == null || overflow == null){
+            throw new NullPointerException();
+        }
+        this.executor = executor;
+        this.capacity = capacity;
+        this.overflow = overflow;
+    }
+
+    /**
+     * Call listeners on virtual threads, if the runtime has them, or on a pool of daemon threads otherwise.
+     * <p>
+     * A connection only has one call running or waiting on the executor at a time, so with virtual threads each busy connection gets a virtual thread of its own.
+     * </p>
+     * @param capacity the most calls each connection queues
+     * @param overflow what to do when a connection's queue is full
+     * @return the settings
+     */
+    public static Dispatch virtualThreads(int capacity, Overflow overflow){
+        return new Dispatch(virtualThreadExecutor(), capacity, overflow);
+    }
+
+    /**
+     * @return Executors.newVirtualThreadPerTaskExecutor() from Java 21, or a cached pool of daemon threads before that
+     */
+    static ExecutorService virtualThreadExecutor(){
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (Exception e) {
+            final AtomicInteger count = new AtomicInteger();
+            return Executors.newCachedThreadPool(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "websoc-dispatch-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    public Executor getExecutor(){
+        return executor;
+    }
+
+    public int getCapacity(){
+        return capacity;
+    }
+
+    public Overflow getOverflow(){
+        return overflow;
+    }
+
+    /**
+     * @return how many times any connection's queue has been full
+     */
+    public long getOverflowCount(){
+        return overflows.get();
+    }
+
+    /**
+     * Add a listener to be called every time a connection's queue is full. It is called on the thread that found it full, so it mustn't block.
+     * @param listener the listener to call
+     */
+    public void onOverflow(OverflowListener listener){
+        overflowListeners.add(listener);
+    }
+
+    /**
+     * @return a new queue for one connection
+     */
+    SerialExecutor newQueue(){
+        return new SerialExecutor(executor, capacity);
+    }
+
+    void overflowed(Object connection){
+        overflows.incrementAndGet();
+        for(OverflowListener listener : overflowListeners){
+            listener.overflow(connection, overflow);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package ca.awoo.websoc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * An in-process websocket server that sends every message straight back to whoever sent it.
+ * <p>
+ * Handy for tests and benchmarks that shouldn't depend on the network. It listens on the loopback interface, on any free port unless told otherwise.
+ * </p>
+ */
+public class EchoServer implements Closeable {
+
+    private final WebSocketServer server;
+
+    /**
+     * Start a plain ws echo server on a free port.
+     * @throws IOException if the server couldn't be started.
+     */
+    public EchoServer() throws IOException {
+        this(0, null);
+    }
+
+    /**
+     * Start an echo server.
+     * @param port the port to listen on, or 0 for any free port
+     * @param sslContext the context to serve wss with, or null to serve plain ws
+     * @throws IOException if the server couldn't be started.
+     */
+    public EchoServer(int port, SSLContext sslContext) throws IOException {
+        this(port, sslContext, null);
+    }
+
+    /**
+     * Start an echo server that accepts permessage-deflate.
+     * @param port the port to listen on, or 0 for any free port
+     * @param sslContext the context to serve wss with, or null to serve plain ws
+     * @param compression the settings to accept compression offers with, or null to turn them down
+     * @throws IOException if the server couldn't be started.
+     */
+    public EchoServer(int port, SSLContext sslContext, PerMessageDeflate compression) throws IOException {
+        server = new WebSocketServer(new InetSocketAddress("localhost", port), Runtime.getRuntime().availableProcessors(), sslContext, new Echo());
+        server.setCompression(compression);
+    }
+
+    /**
+     * @return the port the server is listening on
+     */
+    public int getPort(){
+        return server.getPort();
+    }
+
+    /**
+     * @return the ws or wss URI to connect to this server with
+     */
+    public URI getUri(){
+        try {
+            return new URI((server.isSecure() ? "wss" : "ws") + "://localhost:" + server.getPort() + "/");
+        } catch (URISyntaxException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Stop the server, dropping any open connections.
+     */
+    public void close(){
+        server.close();
+    }
+
+    private static class Echo implements WebSocketListener {
+
+        public void onOpen(AsyncWebSocket socket) {
+        }
+
+        public void onMessage(AsyncWebSocket socket, int opcode, byte[] data) {
+            try {
+                socket.sendMessage(opcode, data, 0, data.length);
+            } catch (IOException e) {
+                //The client has started closing, there's nobody left to echo to
+            }
+        }
+
+        public void onClose(AsyncWebSocket socket, int code, String reason) {
+        }
+
+        public void onError(AsyncWebSocket socket, Exception e) {
+        }
+    }
+
+    /**
+     * Run an echo server until the process is killed.
+     * @param args the port to listen on, 8080 if not given
+     * @throws IOException if the server couldn't be started.
+     * @throws InterruptedException if the main thread is interrupted.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        EchoServer server = new EchoServer(args.length > 0 ? Integer.parseInt(args[0]) : 8080, null);
+        System.out.println("Echoing on " + server.getUri());
+        Thread.sleep(Long.MAX_VALUE);
+    }
+}
@@ -0,0 +1,161 @@
+package ca.awoo.websoc;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single thread that owns a Selector and every channel registered with it.
+ * <p>
+ * Channels are only ever touched from the loop's thread. Other threads hand work to the loop with {@link #execute(Task)}, which wakes the selector up.
+ * </p>
+ */
+class EventLoop implements Runnable {
+
+    /**
+     * Something registered with the loop that gets told when its channel is ready.
+     */
+    interface Handler {
+        /**
+         * Called on the loop thread when the key's channel is ready for one of its interest ops.
+         * @param key the ready key
+         * @throws IOException if handling failed. The loop passes it on to {@link #failed(Exception)}.
+         */
+        void handle(SelectionKey key) throws IOException;
+
+        /**
+         * Called on the loop thread when handling the channel throws.
+         * @param e what was thrown
+         */
+        void failed(Exception e);
+    }
+
+    /**
+     * Work to run on the loop thread for a handler. If the task throws, the handler is told through {@link Handler#failed(Exception)}.
+     */
+    abstract static class Task implements Runnable {
+        final Handler owner;
+
+        /**
+         * @param owner the handler the task is run for
+         */
+        Task(Handler owner){
+            this.owner = owner;
+        }
+    }
+
+    private final Selector selector;
+    private final Queue<Task> tasks = new ConcurrentLinkedQueue<Task>();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    EventLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+    }
+
+    void start(){
+        thread.start();
+    }
+
+    /**
+     * @return true if the calling thread is this loop's thread
+     */
+    boolean inLoop(){
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Run a task on the loop thread. Tasks run in the order they were submitted.
+     * @param task the task to run
+     */
+    void execute(Task task){
+        tasks.add(task);
+        if(!inLoop()){
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Register a channel with this loop's selector. Must be called on the loop thread.
+     * @param channel a non-blocking channel
+     * @param ops the initial interest ops
+     * @param handler the handler to call when the channel is ready
+     * @return the channel's key
+     * @throws ClosedChannelException if the channel has been closed.
+     */
+    SelectionKey register(SelectableChannel channel, int ops, Handler handler) throws ClosedChannelException{
+        return channel.register(selector, ops, handler);
+    }
+
+    /**
+     * Stop the loop and close every channel registered with it.
+     */
+    void shutdown(){
+        running = false;
+        selector.wakeup();
+    }
+
+    public void run(){
+        IOException failure = null;
+        try {
+            while(running){
+                if(tasks.isEmpty()){
+                    selector.select();
+                }else{
+                    //Tasks queued from the loop itself don't wake the selector up
+                    selector.selectNow();
+                }
+                runTasks();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while(keys.hasNext()){
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Handler handler = (Handler) key.attachment();
+                    try {
+                        if(key.isValid()){
+                            handler.handle(key);
+                        }
+                    } catch (Exception e) {
+                        handler.failed(e);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            //The selector is broken, which is what every channel on it gets told
+            failure = e;
+        } finally {
+            runTasks();
+            for(SelectionKey key : new ArrayList<SelectionKey>(selector.keys())){
+                ((Handler) key.attachment()).failed(failure != null ? failure : new ClosedChannelException());
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                //Nothing more we can do
+            }
+        }
+    }
+
+    private void runTasks(){
+        Task task;
+        while((task = tasks.poll()) != null){
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                try {
+                    task.owner.failed(e);
+                } catch (RuntimeException e1) {
+                    //The handler couldn't take it either, and the loop still has other channels to run
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,381 @@
+package ca.awoo.websoc;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ca.awoo.fwoabl.function.Consumer;
+import ca.awoo.websoc.WebSocket.Frame;
+
+/**
+ * Records frames as compact binary records in memory-mapped files, to capture real traffic and play it back later with {@link CaptureReader}.
+ * <p>
+ * Each record holds the time, the connection, the direction, the first header byte (fin, reserved bits and opcode), the payload length and the payload, cut short at the capture's payload limit.
+ * Recording a frame only copies its payload and offers it to a bounded queue; a writer thread puts the records in the files. If the writer falls behind the queue fills up and frames are dropped and counted rather than slowing the connection down.
+ * </p>
+ * <p>
+ * The files are named {@code capture-<start millis>-<sequence>.wscap} and are rotated when one fills up, keeping only the newest few, so a capture left on uses a fixed amount of disk.
+ * Attach a capture to a blocking connection with {@link #attach(WebSocket)}, or to every connection of a {@link WebSocketServer} or {@link WebSocketEngine} with their setCapture.
+ * </p>
+ */
+public class FrameCapture implements Closeable {
+
+    static final int MAGIC = 0x57534346;
+    static final int VERSION = 1;
+    static final int FILE_HEADER = 8;
+    //Length, time, connection, direction, first byte, payload length, captured length
+    static final int RECORD_HEADER = 4 + 8 + 4 + 1 + 1 + 8 + 4;
+    static final String SUFFIX = ".wscap";
+
+    private static final Record STOP = new Record(0, 0, false, 0, 0, new byte[0]);
+
+    private final File directory;
+    private final int fileSize;
+    private final int maxFiles;
+    private final int maxPayload;
+    private final BlockingQueue<Record> queue;
+    private final AtomicLong recorded = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final long startMillis = System.currentTimeMillis();
+    private final long startNanos = System.nanoTime();
+    private final LinkedList<File> files = new LinkedList<File>();
+    private final Thread writer;
+    private volatile boolean closed = false;
+    private volatile IOException failure;
+    private MappedByteBuffer map;
+    private int sequence = 0;
+
+    /**
+     * A captured frame.
+     */
+    public static final class Record {
+        private final long time;
+        private final int connection;
+        private final boolean outgoing;
+        private final int first;
+        private final long length;
+        private final byte[] payload;
+
+        Record(long time, int connection, boolean outgoing, int first, long length, byte[] payload){
+            this.time = time;
+            this.connection = connection;
+            this.outgoing = outgoing;
+            this.first = first;
+            this.length = length;
+            this.payload = payload;
+        }
+
+        /**
+         * @return when the frame was captured, in nanoseconds since the epoch, precise relative to the other frames of its capture
+         */
+        public long getTime(){
+            return time;
+        }
+
+        /**
+         * @return the number the capture gave the frame's connection
+         */
+        public int getConnection(){
+            return connection;
+        }
+
+        /**
+         * @return true if the frame was sent, or false if it was received
+         */
+        public boolean isOutgoing(){
+            return outgoing;
+        }
+
+        public boolean isFin(){
+            return (first & 0x80) != 0;
+        }
+
+        public int getRsv(){
+            return (first >> 4) & 0x07;
+        }
+
+        public int getOpcode(){
+            return first & 0x0F;
+        }
+
+        /**
+         * @return the length of the frame's payload, which may be more than was captured
+         */
+        public long getLength(){
+            return length;
+        }
+
+        /**
+         * @return the captured payload, unmasked
+         */
+        public byte[] getPayload(){
+            return payload;
+        }
+
+        /**
+         * @return true if the payload was cut short by the capture's payload limit
+         */
+        public boolean isTruncated(){
+            return payload.length < length;
+        }
+
+        /**
+         * @return the frame, unmasked, with the captured payload
+         */
+        public Frame toFrame(){
+            return new Frame(isFin(), getRsv(), getOpcode(), false, payload.length, new byte[4], payload);
+        }
+
+        /**
+         * @param mask the masking key, or null to leave the frame unmasked as a server sends it
+         * @return the frame as it goes on the wire, with the captured payload
+         */
+        public byte[] encode(byte[] mask){
+            return FrameEncoder.encode(isFin(), first & 0x7F, mask, payload, 0, payload.length);
+        }
+    }
+
+    /**
+     * Capture to a directory in files of 64MB, keeping the newest 8, with up to 64KB of each payload.
+     * @param directory the directory to write the files to, which is created if it doesn't exist
+     * @throws IOException if the directory couldn't be created.
+     */
+    public FrameCapture(File directory) throws IOException {
+        this(directory, 64 << 20, 8, 65536, 16384);
+    }
+
+    /**
+     * @param directory the directory to write the files to, which is created if it doesn't exist
+     * @param fileSize the size of each file
+     * @param maxFiles how many files to keep, deleting the oldest when another is started
+     * @param maxPayload the most payload bytes to keep from each frame
+     * @param queueSize how many frames can wait for the writer before more are dropped
+     * @throws IOException if the directory couldn't be created.
+     */
+    public FrameCapture(File directory, int fileSize, int maxFiles, int maxPayload, int queueSize) throws IOException {
+        if(fileSize < FILE_HEADER + RECORD_HEADER + 4 || maxFiles < 1 || maxPayload < 0){
+            throw new IllegalArgumentException("Invalid capture settings");
+        }
+        if(!directory.isDirectory() && !directory.mkdirs()){
+            throw new IOException("Couldn't create " + directory);
+        }
+        this.directory = directory;
+        this.fileSize = fileSize;
+        this.maxFiles = maxFiles;
+        this.maxPayload = Math.min(maxPayload, fileSize - FILE_HEADER - RECORD_HEADER - 4);
+        this.queue = new ArrayBlockingQueue<Record>(queueSize);
+        writer = new Thread(new Runnable() {
+            public void run() {
+                drain();
+            }
+        }, "websoc-capture");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Capture every frame read from and written to a blocking connection, through its frame listeners.
+     * <p>
+     * Frames read with {@link WebSocket#nextMessage()} reach read listeners without their payloads, so only their headers are captured.
+     * </p>
+     * @param ws the connection
+     * @return the number its frames are recorded under
+     */
+    public int attach(WebSocket ws){
+        final int connection = newConnection();
+        ws.onReadFrame(new Consumer<Frame>() {
+            public void invoke(Frame frame) {
+                record(connection, false, frame);
+            }
+        });
+        ws.onWriteFrame(new Consumer<Frame>() {
+            public void invoke(Frame frame) {
+                record(connection, true, frame);
+            }
+        });
+        return connection;
+    }
+
+    /**
+     * @return a new number to record a connection's frames under
+     */
+    public int newConnection(){
+        return connections.incrementAndGet();
+    }
+
+    /**
+     * Record a frame.
+     * @param connection the number of the frame's connection
+     * @param outgoing true if the frame is being sent, or false if it was received
+     * @param frame the frame, whose payload, if it has one, is unmasked
+     */
+    public void record(int connection, boolean outgoing, Frame frame){
+        byte[] data = frame.getData();
+        int first = (frame.isFin() ? 0x80 : 0) | frame.getRsv() << 4 | frame.getOpcode();
+        record(connection, outgoing, first, frame.getLength(), data, 0, data == null ? 0 : data.length, null);
+    }
+
+    /**
+     * Record a frame that has already been encoded.
+     * @param frame an array holding the whole frame
+     * @param off where the frame starts in the array
+     */
+    void recordEncoded(int connection, boolean outgoing, byte[] frame, int off){
+        int second = frame[off + 1] & 0xFF;
+        int lengthBits = second & 0x7F;
+        int p = off + 2;
+        long length;
+        if(lengthBits == 126){
+            length = (frame[p] & 0xFF) << 8 | (frame[p + 1] & 0xFF);
+            p += 2;
+        }else if(lengthBits == 127){
+            length = 0;
+            for(int i = 0; i < 8; i++){
+                length = length << 8 | (frame[p + i] & 0xFF);
+            }
+            p += 8;
+        }else{
+            length = lengthBits;
+        }
+        byte[] mask = null;
+        if((second & 0x80) != 0){
+            mask = new byte[4];
+            System.arraycopy(frame, p, mask, 0, 4);
+            p += 4;
+        }
+        record(connection, outgoing, frame[off] & 0xFF, length, frame, p, (int) Math.min(length, frame.length - p), mask);
+    }
+
+    private void record(int connection, boolean outgoing, int first, long length, byte[] data, int off, int len, byte[] mask){
+        if(closed){
+            return;
+        }
+        long time = startMillis * 1000000L + (System.nanoTime() - startNanos);
+        byte[] payload = new byte[Math.min(len, maxPayload)];
+        System.arraycopy(data, off, payload, 0, payload.length);
+        if(mask != null){
+            Masking.mask(mask, payload, 0, payload.length);
+        }
+        if(queue.offer(new Record(time, connection, outgoing, first, length, payload))){
+            recorded.incrementAndGet();
+        }else{
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return how many frames have been queued to be written
+     */
+    public long getRecordedCount(){
+        return recorded.get();
+    }
+
+    /**
+     * @return how many frames were dropped because the writer was behind, or had failed
+     */
+    public long getDroppedCount(){
+        return dropped.get();
+    }
+
+    /**
+     * @return why the writer stopped, or null if it hasn't
+     */
+    public IOException getFailure(){
+        return failure;
+    }
+
+    /**
+     * @return the directory the files are written to
+     */
+    public File getDirectory(){
+        return directory;
+    }
+
+    /**
+     * Stop capturing, and wait for the frames already recorded to be written out.
+     */
+    public void close(){
+        if(closed){
+            return;
+        }
+        closed = true;
+        try {
+            queue.put(STOP);
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drain(){
+        try {
+            while(true){
+                Record record = queue.take();
+                if(record == STOP){
+                    break;
+                }
+                if(failure == null){
+                    try {
+                        write(record);
+                    } catch (IOException e) {
+                        failure = e;
+                    }
+                }else{
+                    dropped.incrementAndGet();
+                }
+            }
+        } catch (InterruptedException e) {
+            //Nothing interrupts the writer
+        }
+        if(map != null){
+            map.force();
+            map = null;
+        }
+    }
+
+    private void write(Record record) throws IOException {
+        int size = RECORD_HEADER + record.payload.length;
+        //Room is left for a zero length after the record, which marks the end of the file
+        if(map == null || map.remaining() < size + 4){
+            rotate();
+        }
+        map.putInt(size - 4);
+        map.putLong(record.time);
+        map.putInt(record.connection);
+        map.put((byte) (record.outgoing ? 1 : 0));
+        map.put((byte) record.first);
+        map.putLong(record.length);
+        map.putInt(record.payload.length);
+        map.put(record.payload);
+    }
+
+    private void rotate() throws IOException {
+        if(map != null){
+            map.force();
+        }
+        File file = new File(directory, String.format("capture-%d-%06d%s", startMillis, sequence++, SUFFIX));
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(fileSize);
+            //The mapping stays valid once the file is closed
+            map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+        } finally {
+            raf.close();
+        }
+        map.putInt(MAGIC);
+        map.putInt(VERSION);
+        files.add(file);
+        while(files.size() > maxFiles){
+            files.removeFirst().delete();
+        }
+    }
+}
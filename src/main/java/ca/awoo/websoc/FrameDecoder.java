@@ -0,0 +1,481 @@
+package ca.awoo.websoc;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import ca.awoo.websoc.WebSocket.Frame;
+
+/**
+ * Decodes frames from an InputStream through a reusable read buffer.
+ * <p>
+ * Rather than reading the frame header one byte at a time, the decoder pulls whatever the stream has available into its buffer and decodes as many headers and payloads from that as it can before going back to the stream.
+ * Payloads that are larger than what is buffered are read straight into the frame's data array.
+ * </p>
+ * <p>
+ * {@link #read()} returns whole frames. {@link #readHeader()} and {@link #readPayload(byte[], int, int)} stream a frame's payload instead, so frames of any size can be read in constant memory.
+ * </p>
+ * <p>
+ * Because the decoder reads ahead, it must be the only thing reading from the stream once it has been created.
+ * </p>
+ */
+public class FrameDecoder {
+
+    /**
+     * The largest possible frame header: 2 bytes, 8 bytes of extended length and a 4 byte mask.
+     */
+    public static final int MAX_HEADER_LENGTH = 14;
+
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    private final InputStream in;
+    private final byte[] buffer;
+    private int position = 0;
+    private int limit = 0;
+    private long payloadRemaining = 0;
+    private long payloadOffset = 0;
+    private byte[] payloadMask;
+    private long maxFrameSize = Integer.MAX_VALUE;
+    private Metrics metrics;
+    private long headerAt;
+    private int fragments = 0;
+
+    /**
+     * Create a decoder with the default buffer size.
+     * @param in the stream to read frames from
+     */
+    public FrameDecoder(InputStream in){
+        this(in, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Create a decoder with the given buffer size.
+     * @param in the stream to read frames from
+     * @param bufferSize the size of the read buffer, must be at least {@link #MAX_HEADER_LENGTH}
+     */
+    public FrameDecoder(InputStream in, int bufferSize){
+        if(bufferSize < MAX_HEADER_LENGTH){
+            throw new IllegalArgumentException("Buffer size must be at least " + MAX_HEADER_LENGTH + ": " + bufferSize);
+        }
+        this.in = in;
+        this.buffer = new byte[bufferSize];
+    }
+
+    /**
+     * Create a decoder that starts with bytes already read from the stream, like those that arrived with the handshake response.
+     * @param in the stream to read frames from
+     * @param initial the bytes to decode before reading the stream, or null for none
+     */
+    FrameDecoder(InputStream in, byte[] initial){
+        this(in, initial == null ? DEFAULT_BUFFER_SIZE : Math.max(DEFAULT_BUFFER_SIZE, initial.length));
+        if(initial != null){
+            System.arraycopy(initial, 0, buffer, 0, initial.length);
+            limit = initial.length;
+        }
+    }
+
+    /**
+     * @return the largest payload a frame can have without being refused
+     */
+    public long getMaxFrameSize(){
+        return maxFrameSize;
+    }
+
+    /**
+     * Refuse frames with larger payloads than this as soon as their headers are read, before anything is allocated for them. The default is 2GB, the most that fits in an array.
+     * @param maxFrameSize the largest payload to accept
+     */
+    public void setMaxFrameSize(long maxFrameSize){
+        if(maxFrameSize < 0){
+            throw new IllegalArgumentException("Invalid maximum frame size: " + maxFrameSize);
+        }
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    /**
+     * Count the frames read from now on in a connection's metrics, along with how long each took from its header arriving to its payload having been read.
+     * @param metrics the metrics to count frames in, or null to stop counting
+     */
+    void setMetrics(Metrics metrics){
+        this.metrics = metrics;
+    }
+
+    /**
+     * Read a frame. This method will block until a whole frame has been read.
+     * <p>
+     * If the payload of a frame from {@link #readHeader()} hasn't all been read, the rest of it is skipped first.
+     * </p>
+     * @return the frame read from the stream
+     * @throws MessageTooBigException if the frame's payload is larger than {@link #getMaxFrameSize()}.
+     * @throws IOException if there was a problem reading the frame, or the stream ended part way through one.
+     */
+    public Frame read() throws IOException {
+        return read(null);
+    }
+
+    /**
+     * Read a frame into a buffer from an allocator. This method will block until a whole frame has been read.
+     * <p>
+     * The frame must be {@link Frame#release() released} once it has been used.
+     * </p>
+     * @param allocator the allocator to take the payload's buffer from, or null to read it into an array
+     * @return the frame read from the stream
+     * @throws IOException if there was a problem reading the frame, or the stream ended part way through one.
+     */
+    public Frame read(BufferAllocator allocator) throws IOException {
+        Frame header = readHeader();
+        long length = header.getLength();
+        if(length > Integer.MAX_VALUE){
+            throw new IOException("Frame too large: " + length);
+        }
+        if(allocator != null){
+            PooledBuffer payload = allocator.allocate((int) length);
+            try {
+                ByteBuffer buffer = payload.buffer();
+                while(buffer.hasRemaining()){
+                    readPayload(buffer);
+                }
+                buffer.flip();
+            } catch (IOException e) {
+                payload.release();
+                throw e;
+            }
+            return Frame.pooled(header.isFin(), header.getRsv(), header.getOpcode(), header.isMasked(), length, header.getMask(), payload);
+        }
+        byte[] data = new byte[(int) length];
+        int soFar = 0;
+        while(soFar < data.length){
+            soFar += readPayload(data, soFar, data.length - soFar);
+        }
+        return new Frame(header.isFin(), header.getRsv(), header.getOpcode(), header.isMasked(), length, header.getMask(), data);
+    }
+
+    /**
+     * Read just the header of the next frame, leaving its payload to be read with {@link #readPayload(byte[], int, int)}.
+     * <p>
+     * This lets a payload of any size be streamed through a small array. If the payload of the previous frame hasn't all been read, the rest of it is skipped first.
+     * </p>
+     * @return the frame's header, as a Frame whose data is null
+     * @throws MessageTooBigException if the frame's payload is larger than {@link #getMaxFrameSize()}.
+     * @throws IOException if there was a problem reading the header, or the stream ended part way through one.
+     */
+    public Frame readHeader() throws IOException {
+        skipPayload();
+        require(2);
+        int first = buffer[position] & 0xFF;
+        int second = buffer[position + 1] & 0xFF;
+        boolean fin = (first & 0x80) != 0;
+        int rsv = (first >> 4) & 0x07;
+        int opcode = first & 0x0F;
+        boolean masked = (second & 0x80) != 0;
+        int lengthBits = second & 0x7F;
+        int headerLength = 2;
+        if(lengthBits == 126){
+            headerLength += 2;
+        }else if(lengthBits == 127){
+            headerLength += 8;
+        }
+        if(masked){
+            headerLength += 4;
+        }
+        require(headerLength);
+        int p = position + 2;
+        long length;
+        if(lengthBits == 126){
+            length = (buffer[p] & 0xFF) << 8 | (buffer[p + 1] & 0xFF);
+            p += 2;
+        }else if(lengthBits == 127){
+            length = 0;
+            for(int i = 0; i < 8; i++){
+                length = length << 8 | (buffer[p + i] & 0xFF);
+            }
+            p += 8;
+        }else{
+            length = lengthBits;
+        }
+        if(length < 0){
+            throw new IOException("Invalid frame length: " + length);
+        }
+        if(length > maxFrameSize){
+            throw new MessageTooBigException("Frame larger than " + maxFrameSize + " bytes: " + length);
+        }
+        byte[] maskKey = new byte[4];
+        if(masked){
+            System.arraycopy(buffer, p, maskKey, 0, 4);
+            p += 4;
+        }
+        position = p;
+        payloadRemaining = length;
+        payloadOffset = 0;
+        payloadMask = masked ? maskKey : null;
+        if(metrics != null){
+            count(fin, opcode, length);
+        }
+        return new Frame(fin, rsv, opcode, masked, length, maskKey, null);
+    }
+
+    /**
+     * Read some of the payload of the frame from the last {@link #readHeader()}, unmasked.
+     * @param b the array to read into
+     * @param off the offset in b to start at
+     * @param len the most bytes to read
+     * @return the number of bytes read, which is at least 1 unless len is 0, or -1 if the whole payload has been read
+     * @throws IOException if there was a problem reading, or the stream ended part way through the payload.
+     */
+    public int readPayload(byte[] b, int off, int len) throws IOException {
+        if(payloadRemaining == 0){
+            return -1;
+        }
+        int count = (int) Math.min(len, payloadRemaining);
+        if(count == 0){
+            return 0;
+        }
+        int read;
+        if(position == limit && count >= buffer.length){
+            //Nothing buffered and the caller wants at least a buffer's worth, so read straight into their array
+            read = in.read(b, off, count);
+            if(read == -1){
+                throw new EOFException("Stream ended with " + payloadRemaining + " payload bytes left");
+            }
+        }else{
+            if(position == limit){
+                position = 0;
+                limit = 0;
+                int filled = in.read(buffer, 0, buffer.length);
+                if(filled == -1){
+                    throw new EOFException("Stream ended with " + payloadRemaining + " payload bytes left");
+                }
+                limit = filled;
+            }
+            read = Math.min(count, limit - position);
+            System.arraycopy(buffer, position, b, off, read);
+            position += read;
+        }
+        if(payloadMask != null){
+            Masking.mask(payloadMask, payloadOffset, b, off, b, off, read);
+        }
+        consumed(read);
+        return read;
+    }
+
+    /**
+     * Read some of the payload of the frame from the last {@link #readHeader()}, unmasked, into a buffer.
+     * <p>
+     * The payload always goes through the decoder's own array, so this suits direct buffers, which a stream can't read into.
+     * </p>
+     * @param dst the buffer to read into, from its position up to its limit
+     * @return the number of bytes read, which is at least 1 unless dst is full, or -1 if the whole payload has been read
+     * @throws IOException if there was a problem reading, or the stream ended part way through the payload.
+     */
+    public int readPayload(ByteBuffer dst) throws IOException {
+        if(payloadRemaining == 0){
+            return -1;
+        }
+        if(!dst.hasRemaining()){
+            return 0;
+        }
+        if(position == limit){
+            position = 0;
+            limit = 0;
+            int read = in.read(buffer, 0, buffer.length);
+            if(read == -1){
+                throw new EOFException("Stream ended with " + payloadRemaining + " payload bytes left");
+            }
+            limit = read;
+        }
+        int count = (int) Math.min(Math.min(dst.remaining(), payloadRemaining), limit - position);
+        if(payloadMask != null){
+            Masking.mask(payloadMask, payloadOffset, buffer, position, buffer, position, count);
+        }
+        dst.put(buffer, position, count);
+        position += count;
+        consumed(count);
+        return count;
+    }
+
+    private void consumed(int count){
+        payloadOffset += count;
+        payloadRemaining -= count;
+        if(payloadRemaining == 0 && metrics != null){
+            metrics.read(System.nanoTime() - headerAt);
+        }
+    }
+
+    /**
+     * @return the number of payload bytes of the current frame that haven't been read yet
+     */
+    public long payloadRemaining(){
+        return payloadRemaining;
+    }
+
+    /**
+     * @return the number of payload bytes of the current frame that can be read without blocking
+     */
+    public int payloadAvailable(){
+        return (int) Math.min(limit - position, payloadRemaining);
+    }
+
+    private void skipPayload() throws IOException {
+        while(payloadRemaining > 0){
+            if(position == limit){
+                position = 0;
+                limit = 0;
+                int read = in.read(buffer, 0, buffer.length);
+                if(read == -1){
+                    throw new EOFException("Stream ended with " + payloadRemaining + " payload bytes left");
+                }
+                limit = read;
+            }
+            int skipped = (int) Math.min(limit - position, payloadRemaining);
+            position += skipped;
+            payloadRemaining -= skipped;
+            if(payloadRemaining == 0 && metrics != null){
+                metrics.read(System.nanoTime() - headerAt);
+            }
+        }
+    }
+
+    private void count(boolean fin, int opcode, long length){
+        metrics.frameIn(opcode, length);
+        if(opcode < 8){
+            fragments = opcode == 0 ? fragments + 1 : 1;
+            if(fin){
+                metrics.messageIn(fragments);
+            }
+        }
+        if(length == 0){
+            metrics.read(0);
+        }else{
+            headerAt = System.nanoTime();
+        }
+    }
+
+    /**
+     * Work out how many bytes the frame at the start of a buffer takes up, header included.
+     * @param buffer a buffer positioned at the start of a frame. Its position is not changed.
+     * @return the size of the whole frame, or -1 if the buffer doesn't hold all of the header yet
+     * @throws IOException if the frame is too large to decode into an array.
+     */
+    public static long frameSize(ByteBuffer buffer) throws IOException {
+        return frameSize(buffer, Integer.MAX_VALUE - MAX_HEADER_LENGTH);
+    }
+
+    /**
+     * Work out how many bytes the frame at the start of a buffer takes up, header included, refusing it if its payload is larger than a limit.
+     * @param buffer a buffer positioned at the start of a frame. Its position is not changed.
+     * @param maxFrameSize the largest payload to accept
+     * @return the size of the whole frame, or -1 if the buffer doesn't hold all of the header yet
+     * @throws MessageTooBigException if the frame's payload is larger than maxFrameSize.
+     * @throws IOException if the frame is too large to decode into an array.
+     */
+    public static long frameSize(ByteBuffer buffer, long maxFrameSize) throws IOException {
+        int start = buffer.position();
+        if(buffer.remaining() < 2){
+            return -1;
+        }
+        int second = buffer.get(start + 1) & 0xFF;
+        int lengthBits = second & 0x7F;
+        int headerLength = 2;
+        if(lengthBits == 126){
+            headerLength += 2;
+        }else if(lengthBits == 127){
+            headerLength += 8;
+        }
+        if((second & 0x80) != 0){
+            headerLength += 4;
+        }
+        if(buffer.remaining() < headerLength){
+            return -1;
+        }
+        long length;
+        if(lengthBits == 126){
+            length = buffer.getShort(start + 2) & 0xFFFF;
+        }else if(lengthBits == 127){
+            length = buffer.getLong(start + 2);
+        }else{
+            length = lengthBits;
+        }
+        if(length < 0 || length > Integer.MAX_VALUE - MAX_HEADER_LENGTH){
+            throw new IOException("Frame too large: " + length);
+        }
+        if(length > maxFrameSize){
+            throw new MessageTooBigException("Frame larger than " + maxFrameSize + " bytes: " + length);
+        }
+        return headerLength + length;
+    }
+
+    /**
+     * Decode a frame from a buffer, if the buffer holds all of it.
+     * <p>
+     * This is for callers that gather bytes as they arrive, such as a selector loop. If the frame is incomplete nothing is consumed and null is returned, so the caller can read more and try again.
+     * </p>
+     * @param buffer a buffer positioned at the start of a frame
+     * @return the decoded frame, or null if the buffer doesn't hold the whole frame yet
+     * @throws IOException if the frame is too large to decode into an array.
+     */
+    public static Frame decode(ByteBuffer buffer) throws IOException {
+        return decode(buffer, Integer.MAX_VALUE - MAX_HEADER_LENGTH);
+    }
+
+    /**
+     * Decode a frame from a buffer, if the buffer holds all of it, refusing it as soon as its header is there if its payload is larger than a limit.
+     * @param buffer a buffer positioned at the start of a frame
+     * @param maxFrameSize the largest payload to accept
+     * @return the decoded frame, or null if the buffer doesn't hold the whole frame yet
+     * @throws MessageTooBigException if the frame's payload is larger than maxFrameSize.
+     * @throws IOException if the frame is too large to decode into an array.
+     */
+    public static Frame decode(ByteBuffer buffer, long maxFrameSize) throws IOException {
+        long size = frameSize(buffer, maxFrameSize);
+        if(size == -1 || buffer.remaining() < size){
+            return null;
+        }
+        int first = buffer.get() & 0xFF;
+        int second = buffer.get() & 0xFF;
+        boolean fin = (first & 0x80) != 0;
+        int rsv = (first >> 4) & 0x07;
+        int opcode = first & 0x0F;
+        boolean masked = (second & 0x80) != 0;
+        int lengthBits = second & 0x7F;
+        long length;
+        if(lengthBits == 126){
+            length = buffer.getShort() & 0xFFFF;
+        }else if(lengthBits == 127){
+            length = buffer.getLong();
+        }else{
+            length = lengthBits;
+        }
+        byte[] maskKey = new byte[4];
+        if(masked){
+            buffer.get(maskKey);
+        }
+        byte[] data = new byte[(int) length];
+        buffer.get(data);
+        if(masked){
+            Masking.mask(maskKey, data, 0, data.length);
+        }
+        return new Frame(fin, rsv, opcode, masked, length, maskKey, data);
+    }
+
+    /**
+     * Make sure at least n bytes are buffered, reading from the stream if needed.
+     */
+    private void require(int n) throws IOException {
+        if(limit - position >= n){
+            return;
+        }
+        if(position > 0){
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
+        }
+        while(limit < n){
+            int read = in.read(buffer, limit, buffer.length - limit);
+            if(read == -1){
+                throw new EOFException("Stream ended part way through a frame header");
+            }
+            limit += read;
+        }
+    }
+}
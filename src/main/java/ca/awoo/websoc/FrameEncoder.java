@@ -0,0 +1,177 @@
+package ca.awoo.websoc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import ca.awoo.websoc.WebSocket.Frame;
+
+/**
+ * Encodes frames to an OutputStream through a reusable write buffer.
+ * <p>
+ * The header and the (masked) payload are assembled in the buffer and handed to the stream in a single write, so a frame that fits in the buffer costs one call on the underlying stream.
+ * Larger frames are written in buffer sized pieces.
+ * </p>
+ * <p>
+ * The payload passed in is never modified. Masking is done while copying into the buffer.
+ * </p>
+ */
+public class FrameEncoder {
+
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    private final OutputStream out;
+    private final byte[] buffer;
+
+    /**
+     * Create an encoder with the default buffer size.
+     * @param out the stream to write frames to
+     */
+    public FrameEncoder(OutputStream out){
+        this(out, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Create an encoder with a buffer big enough for payloads of bufferSize bytes plus the largest header.
+     * @param out the stream to write frames to
+     * @param bufferSize the largest payload that will be written in a single call on the stream
+     */
+    public FrameEncoder(OutputStream out, int bufferSize){
+        this.out = out;
+        this.buffer = new byte[FrameDecoder.MAX_HEADER_LENGTH + Math.max(bufferSize, 0)];
+    }
+
+    /**
+     * Write a frame.
+     * @param frame the frame to write
+     * @throws IOException if there was a problem writing the frame.
+     */
+    public void write(Frame frame) throws IOException {
+        write(frame.isFin(), frame.getOpcode() | frame.getRsv() << 4, frame.isMasked() ? frame.getMask() : null, frame.getData(), 0, (int) frame.getLength());
+    }
+
+    /**
+     * Write a frame straight from a slice of an array.
+     * @param fin whether this is the final frame of a message
+     * @param opcode the frame's opcode, which may have {@link Frame#RSV1} or'd into it
+     * @param mask the 4 byte masking key, or null to send the payload unmasked
+     * @param data the array holding the payload
+     * @param off the offset of the payload in data
+     * @param len the length of the payload
+     * @throws IOException if there was a problem writing the frame.
+     */
+    public void write(boolean fin, int opcode, byte[] mask, byte[] data, int off, int len) throws IOException {
+        int p = writeHeader(buffer, 0, fin, opcode, mask, len);
+        int chunk = Math.min(len, buffer.length - p);
+        if(mask == null){
+            System.arraycopy(data, off, buffer, p, chunk);
+        }else{
+            Masking.mask(mask, 0, data, off, buffer, p, chunk);
+        }
+        out.write(buffer, 0, p + chunk);
+        int written = chunk;
+        while(written < len){
+            chunk = Math.min(len - written, buffer.length);
+            if(mask == null){
+                out.write(data, off + written, len - written);
+                written = len;
+            }else{
+                Masking.mask(mask, written, data, off + written, buffer, 0, chunk);
+                out.write(buffer, 0, chunk);
+                written += chunk;
+            }
+        }
+    }
+
+    /**
+     * Work out the size of a frame header.
+     * @param masked whether the frame is masked
+     * @param length the length of the payload
+     * @return the number of bytes the header takes up
+     */
+    public static int headerLength(boolean masked, long length){
+        int headerLength = 2;
+        if(length >= 65536){
+            headerLength += 8;
+        }else if(length >= 126){
+            headerLength += 2;
+        }
+        if(masked){
+            headerLength += 4;
+        }
+        return headerLength;
+    }
+
+    /**
+     * Encode a whole frame into a new array, ready to be handed to a channel.
+     * @param fin whether this is the final frame of a message
+     * @param opcode the frame's opcode, which may have {@link Frame#RSV1} or'd into it
+     * @param mask the 4 byte masking key, or null to send the payload unmasked
+     * @param data the array holding the payload, which is not modified
+     * @param off the offset of the payload in data
+     * @param len the length of the payload
+     * @return the encoded frame
+     */
+    public static byte[] encode(boolean fin, int opcode, byte[] mask, byte[] data, int off, int len){
+        byte[] frame = new byte[headerLength(mask != null, len) + len];
+        int p = writeHeader(frame, 0, fin, opcode, mask, len);
+        if(mask == null){
+            System.arraycopy(data, off, frame, p, len);
+        }else{
+            Masking.mask(mask, 0, data, off, frame, p, len);
+        }
+        return frame;
+    }
+
+    /**
+     * Encode a whole text frame into a new array, with the text encoded to UTF-8 straight into the frame's payload.
+     * @param fin whether this is the final frame of a message
+     * @param opcode the frame's opcode, usually 1
+     * @param mask the 4 byte masking key, or null to send the payload unmasked
+     * @param text the payload
+     * @return the encoded frame
+     */
+    public static byte[] encodeText(boolean fin, int opcode, byte[] mask, CharSequence text){
+        int len = Utf8.encodedLength(text);
+        byte[] frame = new byte[headerLength(mask != null, len) + len];
+        int p = writeHeader(frame, 0, fin, opcode, mask, len);
+        Utf8.Encoder encoder = new Utf8.Encoder();
+        encoder.reset(text);
+        encoder.encode(frame, p, len);
+        if(mask != null){
+            Masking.mask(mask, frame, p, len);
+        }
+        return frame;
+    }
+
+    /**
+     * Write a frame header into an array.
+     * @param dst the array to write into, which needs room for {@link FrameDecoder#MAX_HEADER_LENGTH} bytes
+     * @param p the offset in dst to start at
+     * @param fin whether this is the final frame of a message
+     * @param opcode the frame's opcode, which may have {@link Frame#RSV1} or'd into it
+     * @param mask the 4 byte masking key, or null if the payload is unmasked
+     * @param length the length of the payload
+     * @return the offset in dst just after the header
+     */
+    static int writeHeader(byte[] dst, int p, boolean fin, int opcode, byte[] mask, long length){
+        int maskBit = mask != null ? 0x80 : 0;
+        dst[p++] = (byte) ((fin ? 0x80 : 0) | opcode);
+        if(length < 126){
+            dst[p++] = (byte) (length | maskBit);
+        }else if(length < 65536){
+            dst[p++] = (byte) (126 | maskBit);
+            dst[p++] = (byte) (length >> 8);
+            dst[p++] = (byte) length;
+        }else{
+            dst[p++] = (byte) (127 | maskBit);
+            for(int shift = 56; shift >= 0; shift -= 8){
+                dst[p++] = (byte) (length >> shift);
+            }
+        }
+        if(mask != null){
+            System.arraycopy(mask, 0, dst, p, 4);
+            p += 4;
+        }
+        return p;
+    }
+}
@@ -0,0 +1,462 @@
+package ca.awoo.websoc;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+
+import ca.awoo.fwoabl.Base64;
+
+/**
+ * The pieces of the opening handshake that the blocking and non-blocking clients and the server share.
+ */
+final class Handshake {
+
+    //This magic UUID is defined in the spec
+    static final String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+    /**
+     * The largest head, start line and headers, that is read or parsed.
+     */
+    static final int MAX_HEAD_SIZE = 16384;
+
+    /**
+     * The most headers a head may have.
+     */
+    static final int MAX_HEADERS = 100;
+
+    private static final String TOKEN_PUNCTUATION = "!#$%&'*+-.^_`|~";
+
+    private static final SecureRandom random = new SecureRandom();
+
+    //MessageDigest isn't thread safe, and looking one up is slow, so each thread keeps its own
+    private static final ThreadLocal<MessageDigest> SHA1 = new ThreadLocal<MessageDigest>(){
+        protected MessageDigest initialValue(){
+            try {
+                return MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e) {
+                return null;
+            }
+        }
+    };
+
+    private static final ThreadLocal<byte[]> HEAD_BUFFER = new ThreadLocal<byte[]>(){
+        protected byte[] initialValue(){
+            return new byte[MAX_HEAD_SIZE];
+        }
+    };
+
+    private Handshake(){
+    }
+
+    /**
+     * Turn http and https URIs into their ws and wss equivalents.
+     * @param uri the URI being connected to
+     * @return a ws or wss URI
+     * @throws IllegalArgumentException if the scheme isn't one of http, https, ws or wss.
+     */
+    static URI normalize(URI uri){
+        String scheme = uri.getScheme();
+        if("http".equals(scheme)){
+            scheme = "ws";
+        }else if("https".equals(scheme)){
+            scheme = "wss";
+        }else if(!"ws".equals(scheme) && !"wss".equals(scheme)){
+            throw new IllegalArgumentException("Invalid scheme: " + uri.getScheme());
+        }
+        if(scheme.equals(uri.getScheme())){
+            return uri;
+        }
+        try {
+            return new URI(scheme, uri.getUserInfo(), uri.getHost(), uri.getPort(), uri.getPath(), uri.getQuery(), uri.getFragment());
+        } catch (URISyntaxException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @param uri a ws or wss URI
+     * @return the URI's port, or the default port for its scheme
+     */
+    static int port(URI uri){
+        if(uri.getPort() != -1){
+            return uri.getPort();
+        }
+        return "wss".equals(uri.getScheme()) ? 443 : 80;
+    }
+
+    /**
+     * @return a new random Sec-WebSocket-Key
+     */
+    static String newKey(){
+        byte[] key = new byte[16];
+        synchronized(random){
+            random.nextBytes(key);
+        }
+        return Base64.getEncoder().encode(key);
+    }
+
+    /**
+     * Work out the Sec-WebSocket-Accept value that goes with a key.
+     * @param key the Sec-WebSocket-Key sent by the client
+     * @return the value the server should send back
+     * @throws NoSuchAlgorithmException if there is no SHA-1 implementation
+     */
+    static String accept(String key) throws NoSuchAlgorithmException{
+        MessageDigest digest = SHA1.get();
+        if(digest == null){
+            throw new NoSuchAlgorithmException("SHA-1 not available");
+        }
+        //Parsed header values hold one byte per char, so this hashes the key's bytes just as they were sent
+        digest.reset();
+        int n = key.length();
+        for(int i = 0; i < n; i++){
+            digest.update((byte) key.charAt(i));
+        }
+        for(int i = 0; i < GUID.length(); i++){
+            digest.update((byte) GUID.charAt(i));
+        }
+        return Base64.getEncoder().encode(digest.digest());
+    }
+
+    /**
+     * Build the upgrade request for a websocket URI.
+     * @param uri the ws or wss URI being connected to
+     * @param key the Sec-WebSocket-Key to send
+     * @return the request, including the blank line that ends it
+     */
+    static String request(URI uri, String key){
+        return request(uri, key, null);
+    }
+
+    /**
+     * Build the upgrade request for a websocket URI, offering extensions.
+     * @param uri the ws or wss URI being connected to
+     * @param key the Sec-WebSocket-Key to send
+     * @param extensions the Sec-WebSocket-Extensions value to offer, or null to offer none
+     * @return the request, including the blank line that ends it
+     */
+    static String request(URI uri, String key, String extensions){
+        String path = uri.getRawPath();
+        if(path == null || path.length() == 0){
+            path = "/";
+        }
+        if(uri.getRawQuery() != null){
+            path += "?" + uri.getRawQuery();
+        }
+        String host = uri.getHost();
+        if(uri.getPort() != -1){
+            host += ":" + uri.getPort();
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("GET ").append(path).append(" HTTP/1.1\r\n");
+        sb.append("Host: ").append(host).append("\r\n");
+        sb.append("Origin: ").append("https://").append(uri.getHost()).append("/\r\n");//TODO: handle origin better
+        sb.append("Upgrade: websocket\r\n");
+        sb.append("Connection: Upgrade\r\n");
+        sb.append("Sec-WebSocket-Key: ").append(key).append("\r\n");
+        sb.append("Sec-WebSocket-Version: 13\r\n");
+        if(extensions != null){
+            sb.append("Sec-WebSocket-Extensions: ").append(extensions).append("\r\n");
+        }
+        sb.append("\r\n");
+        return sb.toString();
+    }
+
+    /**
+     * Build the response that accepts an upgrade request.
+     * @param accept the Sec-WebSocket-Accept value for the request's key
+     * @param extensions the Sec-WebSocket-Extensions value accepted, or null if none were
+     * @return the response, including the blank line that ends it
+     */
+    static String response(String accept, String extensions){
+        StringBuilder sb = new StringBuilder();
+        sb.append("HTTP/1.1 101 Switching Protocols\r\n");
+        sb.append("Upgrade: websocket\r\n");
+        sb.append("Connection: Upgrade\r\n");
+        sb.append("Sec-WebSocket-Accept: ").append(accept).append("\r\n");
+        if(extensions != null){
+            sb.append("Sec-WebSocket-Extensions: ").append(extensions).append("\r\n");
+        }
+        sb.append("\r\n");
+        return sb.toString();
+    }
+
+    /**
+     * Build a response that turns an upgrade request down.
+     * @param status the status code and reason phrase, like "400 Bad Request"
+     * @return the response, including the blank line that ends it
+     */
+    static String rejection(String status){
+        StringBuilder sb = new StringBuilder();
+        sb.append("HTTP/1.1 ").append(status).append("\r\n");
+        if(status.startsWith("426")){
+            sb.append("Sec-WebSocket-Version: 13\r\n");
+        }
+        sb.append("Connection: close\r\n");
+        sb.append("Content-Length: 0\r\n");
+        sb.append("\r\n");
+        return sb.toString();
+    }
+
+    /**
+     * The start line and headers of an HTTP request or response.
+     */
+    static class Head {
+        final String startLine;
+        final Map<String, String> headers;
+        /**
+         * Bytes that were read after the blank line ending the head, like frames sent straight after a 101, or null if there were none.
+         */
+        byte[] rest;
+
+        Head(String startLine, Map<String, String> headers){
+            this.startLine = startLine;
+            this.headers = headers;
+        }
+
+        /**
+         * @param name a header name in lower case
+         * @return the header's value, or null if it wasn't sent
+         */
+        String header(String name){
+            return headers.get(name);
+        }
+
+        /**
+         * Check whether a comma separated header, like Connection, contains a token.
+         * @param name a header name in lower case
+         * @param token the token to look for, compared ignoring case
+         * @return true if the header is present and lists the token
+         */
+        boolean headerContains(String name, String token){
+            String value = headers.get(name);
+            if(value == null){
+                return false;
+            }
+            for(String part : value.split(",")){
+                if(part.trim().equalsIgnoreCase(token)){
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return the status code of a response's status line
+         * @throws IOException if the start line isn't an HTTP/1.1 status line.
+         */
+        int status() throws IOException {
+            String line = startLine;
+            if(!line.startsWith("HTTP/1.1 ") || line.length() < 12 || (line.length() > 12 && line.charAt(12) != ' ')){
+                throw new IOException("Invalid status line: " + line);
+            }
+            int code = 0;
+            for(int i = 9; i < 12; i++){
+                char c = line.charAt(i);
+                if(c < '0' || c > '9'){
+                    throw new IOException("Invalid status line: " + line);
+                }
+                code = code * 10 + (c - '0');
+            }
+            return code;
+        }
+    }
+
+    /**
+     * Find the end of an HTTP head in a buffer.
+     * @param buffer the bytes received so far, from position to limit
+     * @return the index just past the blank line that ends the head, or -1 if it hasn't all arrived
+     */
+    static int endOfHead(ByteBuffer buffer){
+        if(buffer.hasArray()){
+            int base = buffer.arrayOffset();
+            int end = endOfHead(buffer.array(), base + buffer.position(), base + buffer.limit());
+            return end == -1 ? -1 : end - base;
+        }
+        for(int i = buffer.position(); i + 3 < buffer.limit(); i++){
+            if(buffer.get(i) == '\r' && buffer.get(i + 1) == '\n' && buffer.get(i + 2) == '\r' && buffer.get(i + 3) == '\n'){
+                return i + 4;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Find the end of an HTTP head in an array.
+     * @param buf the array holding the bytes received so far
+     * @param from the index to start looking at
+     * @param to the index just past the last byte received
+     * @return the index just past the blank line that ends the head, or -1 if it isn't between from and to
+     */
+    static int endOfHead(byte[] buf, int from, int to){
+        //Step along the last byte of the terminator, which is always a \n
+        for(int i = from + 3; i < to; i++){
+            if(buf[i] == '\n'){
+                if(buf[i - 1] == '\r' && buf[i - 2] == '\n' && buf[i - 3] == '\r'){
+                    return i + 1;
+                }
+            }else if(buf[i] != '\r'){
+                //No terminator can end within the next 3 bytes either
+                i += 3;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Read an HTTP head from a blocking stream.
+     * <p>
+     * The stream is read in chunks into a buffer kept for the calling thread, rather than a byte at a time. Anything read past the end of the head is returned in {@link Head#rest} so it isn't lost; the caller must read it before reading the stream again.
+     * </p>
+     * @param in the stream to read from
+     * @return the parsed head
+     * @throws IOException if the stream ended or failed, the head was larger than {@link #MAX_HEAD_SIZE}, or it isn't a valid head.
+     */
+    static Head read(InputStream in) throws IOException {
+        byte[] buf = HEAD_BUFFER.get();
+        int n = 0;
+        while(true){
+            int read = in.read(buf, n, buf.length - n);
+            if(read == -1){
+                throw new EOFException("Connection closed during the handshake");
+            }
+            //The terminator may have started in the bytes already searched
+            int end = endOfHead(buf, Math.max(0, n - 3), n + read);
+            n += read;
+            if(end != -1){
+                Head head = parse(buf, 0, end);
+                if(end < n){
+                    head.rest = new byte[n - end];
+                    System.arraycopy(buf, end, head.rest, 0, n - end);
+                }
+                return head;
+            }
+            if(n == buf.length){
+                throw new IOException("Handshake larger than " + MAX_HEAD_SIZE + " bytes");
+            }
+        }
+    }
+
+    /**
+     * Parse an HTTP head, start line and headers, up to and including the blank line.
+     * <p>
+     * Parsing works on the bytes directly. Lines must end with CRLF, header names must be tokens and values mustn't hold control characters other than tab.
+     * Obsolete line folding is refused, as RFC 7230 allows. A header that is repeated has its values joined with commas.
+     * </p>
+     * @param buf the array holding the head
+     * @param off the offset of the head in buf
+     * @param len the length of the head, including the blank line
+     * @return the parsed head, with header names in lower case
+     * @throws IOException if the head is malformed, or has more than {@link #MAX_HEADERS} headers.
+     */
+    static Head parse(byte[] buf, int off, int len) throws IOException {
+        if(len > MAX_HEAD_SIZE){
+            throw new IOException("Handshake larger than " + MAX_HEAD_SIZE + " bytes");
+        }
+        int end = off + len;
+        int eol = endOfLine(buf, off, end);
+        String startLine = latin1(buf, off, eol);
+        Map<String, String> headers = new HashMap<String, String>();
+        int count = 0;
+        int p = eol + 2;
+        while(true){
+            eol = endOfLine(buf, p, end);
+            if(eol == p){
+                break;
+            }
+            if(++count > MAX_HEADERS){
+                throw new IOException("More than " + MAX_HEADERS + " headers");
+            }
+            int colon = p;
+            while(colon < eol && buf[colon] != ':'){
+                if(!isTokenChar(buf[colon])){
+                    throw new IOException("Invalid header name");
+                }
+                colon++;
+            }
+            if(colon == p || colon == eol){
+                throw new IOException("Malformed header line");
+            }
+            int valueStart = colon + 1;
+            int valueEnd = eol;
+            while(valueStart < valueEnd && (buf[valueStart] == ' ' || buf[valueStart] == '\t')){
+                valueStart++;
+            }
+            while(valueEnd > valueStart && (buf[valueEnd - 1] == ' ' || buf[valueEnd - 1] == '\t')){
+                valueEnd--;
+            }
+            for(int i = valueStart; i < valueEnd; i++){
+                int b = buf[i] & 0xFF;
+                if((b < 0x20 && b != '\t') || b == 0x7F){
+                    throw new IOException("Invalid character in header value");
+                }
+            }
+            String name = lowerCase(buf, p, colon);
+            String value = latin1(buf, valueStart, valueEnd);
+            String previous = headers.put(name, value);
+            if(previous != null){
+                headers.put(name, previous + ", " + value);
+            }
+            p = eol + 2;
+        }
+        return new Head(startLine, headers);
+    }
+
+    /**
+     * @return the index of the CRLF ending the line that starts at from
+     */
+    private static int endOfLine(byte[] buf, int from, int end) throws IOException {
+        for(int i = from; i < end; i++){
+            if(buf[i] == '\r'){
+                if(i + 1 < end && buf[i + 1] == '\n'){
+                    return i;
+                }
+                throw new IOException("Bare CR in handshake");
+            }else if(buf[i] == '\n'){
+                throw new IOException("Bare LF in handshake");
+            }
+        }
+        throw new IOException("Handshake ended part way through a line");
+    }
+
+    /**
+     * @return true if b may appear in an HTTP token, as defined by RFC 7230
+     */
+    private static boolean isTokenChar(byte b){
+        if((b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9')){
+            return true;
+        }
+        return b > 0x20 && b < 0x7F && TOKEN_PUNCTUATION.indexOf(b) != -1;
+    }
+
+    private static String latin1(byte[] buf, int from, int to){
+        char[] chars = new char[to - from];
+        for(int i = 0; i < chars.length; i++){
+            chars[i] = (char) (buf[from + i] & 0xFF);
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Copy a header name, which is known to be ASCII, in lower case.
+     */
+    private static String lowerCase(byte[] buf, int from, int to){
+        char[] chars = new char[to - from];
+        for(int i = 0; i < chars.length; i++){
+            int c = buf[from + i];
+            if(c >= 'A' && c <= 'Z'){
+                c += 'a' - 'A';
+            }
+            chars[i] = (char) c;
+        }
+        return new String(chars);
+    }
+}
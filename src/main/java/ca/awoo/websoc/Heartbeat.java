@@ -0,0 +1,50 @@
+package ca.awoo.websoc;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Settings for pinging the peer of a connection to check it is still there and measure the round trip time.
+ * <p>
+ * Give one to a {@link WebSocket}, {@link WebSocketEngine} or {@link WebSocketServer}. Each connection then sends a ping every interval and times the pong that answers it.
+ * A connection whose peer has left the given number of pings unanswered is taken to be dead and dropped, and reported closed with status 1006.
+ * </p>
+ * <p>
+ * Every connection's pings are scheduled on one shared timer wheel with 100ms ticks, so there is no thread or Timer per connection, and intervals are only kept to the nearest tick.
+ * </p>
+ */
+public class Heartbeat {
+
+    private final long intervalNanos;
+    private final int maxMissedPongs;
+
+    /**
+     * @param interval the time between pings
+     * @param unit the unit of interval
+     * @param maxMissedPongs how many pings may go unanswered before the peer is taken to be dead
+     */
+    public Heartbeat(long interval, TimeUnit unit, int maxMissedPongs){
+        if(interval <= 0){
+            throw new IllegalArgumentException("Interval must be positive: " + interval);
+        }
+        if(maxMissedPongs < 1){
+            throw new IllegalArgumentException("Missed pongs must be at least 1: " + maxMissedPongs);
+        }
+        this.intervalNanos = unit.toNanos(interval);
+        this.maxMissedPongs = maxMissedPongs;
+    }
+
+    /**
+     * @param unit the unit to return the interval in
+     * @return the time between pings
+     */
+    public long getInterval(TimeUnit unit){
+        return unit.convert(intervalNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return how many pings may go unanswered before the peer is taken to be dead
+     */
+    public int getMaxMissedPongs(){
+        return maxMissedPongs;
+    }
+}
@@ -0,0 +1,116 @@
+package ca.awoo.websoc;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of non-negative values, like latencies in nanoseconds, with a bucket for each power of two.
+ * <p>
+ * Recording a value is a few atomic adds on arrays allocated up front, so it is safe from any thread and never allocates. The price is precision: a percentile is only known to within a factor of two, and is reported as the top of its bucket.
+ * </p>
+ */
+public class Histogram {
+
+    private static final int BUCKETS = 64;
+
+    private final Histogram parent;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public Histogram(){
+        this(null);
+    }
+
+    /**
+     * @param parent a histogram that every value is recorded into as well, or null for none
+     */
+    Histogram(Histogram parent){
+        this.parent = parent;
+    }
+
+    /**
+     * Record a value. Negative values are counted as 0.
+     * @param value the value to record
+     */
+    public void record(long value){
+        if(value < 0){
+            value = 0;
+        }
+        counts.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(value) - (value == 0 ? 0 : 1));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long m;
+        while(value > (m = max.get()) && !max.compareAndSet(m, value)){
+        }
+        if(parent != null){
+            parent.record(value);
+        }
+    }
+
+    /**
+     * @return how many values have been recorded
+     */
+    public long getCount(){
+        return count.get();
+    }
+
+    /**
+     * @return the sum of every value recorded
+     */
+    public long getSum(){
+        return sum.get();
+    }
+
+    /**
+     * @return the largest value recorded, or 0 if there are none
+     */
+    public long getMax(){
+        return max.get();
+    }
+
+    /**
+     * @return the mean of the values recorded, or 0 if there are none
+     */
+    public double getMean(){
+        long n = count.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    /**
+     * Estimate a percentile. Values recorded while this runs may or may not be counted.
+     * @param percentile the percentile, from 0 to 100
+     * @return the top of the bucket the percentile falls in, never more than the largest value recorded, or 0 if there are none
+     */
+    public long getPercentile(double percentile){
+        long total = 0;
+        for(int i = 0; i < BUCKETS; i++){
+            total += counts.get(i);
+        }
+        if(total == 0){
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * Math.min(Math.max(percentile, 0), 100) / 100);
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++){
+            seen += counts.get(i);
+            if(seen >= rank && seen > 0){
+                long top = i == BUCKETS - 1 ? Long.MAX_VALUE : (1L << (i + 1)) - 1;
+                return Math.min(top, max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * @return the number of values recorded in each bucket. Bucket 0 holds 0 and 1, and bucket i holds 2<sup>i</sup> up to 2<sup>i+1</sup>-1
+     */
+    public long[] getBuckets(){
+        long[] buckets = new long[BUCKETS];
+        for(int i = 0; i < BUCKETS; i++){
+            buckets[i] = counts.get(i);
+        }
+        return buckets;
+    }
+}
@@ -0,0 +1,76 @@
+package ca.awoo.websoc;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Publishes {@link Metrics} as MBeans named ca.awoo.websoc:type=Metrics,name=<i>name</i> on the platform MBean server.
+ * <p>
+ * Registering every connection is cheap for a few hundred of them, but with many thousands it is better to publish only the global metrics with {@link #globalOnly()}.
+ * </p>
+ */
+public class JmxRegistry implements MetricsRegistry {
+
+    private final MBeanServer server;
+    private final boolean connections;
+
+    /**
+     * Publish the global metrics and every connection's.
+     */
+    public JmxRegistry(){
+        this(ManagementFactory.getPlatformMBeanServer(), true);
+    }
+
+    private JmxRegistry(MBeanServer server, boolean connections){
+        this.server = server;
+        this.connections = connections;
+    }
+
+    /**
+     * @return a registry that publishes only the global metrics
+     */
+    public static JmxRegistry globalOnly(){
+        return new JmxRegistry(ManagementFactory.getPlatformMBeanServer(), false);
+    }
+
+    public void register(String name, Metrics metrics){
+        if(!connections && !Metrics.GLOBAL_NAME.equals(name)){
+            return;
+        }
+        try {
+            ObjectName objectName = objectName(name);
+            if(server.isRegistered(objectName)){
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(metrics, objectName);
+        } catch (JMException e) {
+            //Metrics mustn't break connections
+        }
+    }
+
+    public void unregister(String name){
+        if(!connections && !Metrics.GLOBAL_NAME.equals(name)){
+            return;
+        }
+        try {
+            ObjectName objectName = objectName(name);
+            if(server.isRegistered(objectName)){
+                server.unregisterMBean(objectName);
+            }
+        } catch (JMException e) {
+            //Metrics mustn't break connections
+        }
+    }
+
+    /**
+     * @param name the name the metrics were registered under
+     * @return the MBean's name
+     * @throws JMException if the name can't be part of an ObjectName.
+     */
+    public static ObjectName objectName(String name) throws JMException {
+        return new ObjectName("ca.awoo.websoc:type=Metrics,name=" + ObjectName.quote(name));
+    }
+}
@@ -0,0 +1,22 @@
+package ca.awoo.websoc;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link WebSocketListener} that can take messages too large to keep on the heap.
+ * <p>
+ * A message larger than the connection's {@link ReceiveLimits#getSpillThreshold() spill threshold} is written to a temporary file as its frames arrive, and handed to {@link #onLargeMessage} mapped into memory instead of to {@link #onMessage} as an array.
+ * The file is deleted once it is mapped, or where a mapped file can't be deleted, as on Windows, after the buffer has been garbage collected. Either way the disk space comes back when the buffer is garbage collected.
+ * Listeners that don't implement this get every message as an array, up to the connection's maximum message size.
+ * </p>
+ */
+public interface LargeMessageListener extends WebSocketListener {
+
+    /**
+     * Called with each complete message over the spill threshold. Text messages have already been checked to be valid UTF-8.
+     * @param socket the connection
+     * @param opcode the opcode of the message's first frame, 1 for text or 2 for binary
+     * @param data the message payload, a read only buffer mapped from the file it was spilled to
+     */
+    void onLargeMessage(AsyncWebSocket socket, int opcode, ByteBuffer data);
+}
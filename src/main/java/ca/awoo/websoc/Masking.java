@@ -0,0 +1,68 @@
+package ca.awoo.websoc;
+
+/**
+ * Applies a websocket masking key to payload bytes.
+ * <p>
+ * The key is rotated to line up with the first byte and held in locals, and the bulk of the payload is XORed in an unrolled loop 8 bytes at a time, with no key index to work out per byte and no wrapper objects.
+ * Whatever is left over at the end is done a byte at a time.
+ * Masking and unmasking are the same operation.
+ * </p>
+ */
+public final class Masking {
+
+    /**
+     * Below this many bytes the unrolled loop isn't worth setting up.
+     */
+    private static final int UNROLL_THRESHOLD = 16;
+
+    private Masking(){
+    }
+
+    /**
+     * Mask an array in place.
+     * @param key the 4 byte masking key
+     * @param data the bytes to mask
+     * @param off the offset of the first byte to mask
+     * @param len the number of bytes to mask
+     */
+    public static void mask(byte[] key, byte[] data, int off, int len){
+        mask(key, 0, data, off, data, off, len);
+    }
+
+    /**
+     * Mask bytes from one array into another. The arrays may be the same.
+     * @param key the 4 byte masking key
+     * @param keyOffset the position of the first byte within the payload, which picks the key byte it is masked with
+     * @param src the bytes to mask
+     * @param srcOff the offset of the first byte in src
+     * @param dst the array to write the masked bytes to
+     * @param dstOff the offset to start writing at in dst
+     * @param len the number of bytes to mask
+     */
+    public static void mask(byte[] key, long keyOffset, byte[] src, int srcOff, byte[] dst, int dstOff, int len){
+        int k = (int) (keyOffset & 3);
+        int i = 0;
+        if(len >= UNROLL_THRESHOLD){
+            byte k0 = key[k];
+            byte k1 = key[(k + 1) & 3];
+            byte k2 = key[(k + 2) & 3];
+            byte k3 = key[(k + 3) & 3];
+            int unrolled = len & ~7;
+            for(; i < unrolled; i += 8){
+                int s = srcOff + i;
+                int d = dstOff + i;
+                dst[d] = (byte) (src[s] ^ k0);
+                dst[d + 1] = (byte) (src[s + 1] ^ k1);
+                dst[d + 2] = (byte) (src[s + 2] ^ k2);
+                dst[d + 3] = (byte) (src[s + 3] ^ k3);
+                dst[d + 4] = (byte) (src[s + 4] ^ k0);
+                dst[d + 5] = (byte) (src[s + 5] ^ k1);
+                dst[d + 6] = (byte) (src[s + 6] ^ k2);
+                dst[d + 7] = (byte) (src[s + 7] ^ k3);
+            }
+        }
+        for(; i < len; i++){
+            dst[dstOff + i] = (byte) (src[srcOff + i] ^ key[(k + i) & 3]);
+        }
+    }
+}
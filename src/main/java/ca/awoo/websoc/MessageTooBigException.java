@@ -0,0 +1,15 @@
+package ca.awoo.websoc;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a peer sends a frame or message larger than the {@link ReceiveLimits} allow. Connections fail with close status 1009 when this happens.
+ */
+public class MessageTooBigException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public MessageTooBigException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,341 @@
+package ca.awoo.websoc;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and histograms for a connection, or for every connection together.
+ * <p>
+ * Each connection has its own metrics, from {@link WebSocket#getMetrics()} or {@link AsyncWebSocket#getMetrics()}, and everything recorded there is added to {@link #global()} too.
+ * Recording is atomic adds on arrays allocated up front, so it never allocates and costs little enough to be always on.
+ * </p>
+ * <p>
+ * What is recorded:
+ * </p>
+ * <ul>
+ * <li>frames and payload bytes received and sent, by opcode</li>
+ * <li>how many frames each received message came in</li>
+ * <li>how long the opening handshake took, from connecting, or accepting, to the connection being open</li>
+ * <li>the bytes waiting in the write queue</li>
+ * <li>read latency: for the event loop, the time to handle a batch of bytes read from the socket, and for a blocking WebSocket, the time from a frame's header arriving to the whole frame having been read</li>
+ * <li>write latency: the time from a frame being sent or queued to it being handed to the socket, including any time waiting in the queue</li>
+ * </ul>
+ * <p>
+ * To export the metrics, give a {@link MetricsRegistry}, like {@link JmxRegistry}, to {@link #setRegistry(MetricsRegistry)}.
+ * </p>
+ */
+public class Metrics implements MetricsMBean {
+
+    /**
+     * The name the global metrics are registered under.
+     */
+    public static final String GLOBAL_NAME = "global";
+
+    private static final Metrics GLOBAL = new Metrics(null);
+    private static final AtomicLong ids = new AtomicLong();
+    private static volatile MetricsRegistry registry;
+
+    private final Metrics parent;
+    private final AtomicLongArray framesIn = new AtomicLongArray(16);
+    private final AtomicLongArray framesOut = new AtomicLongArray(16);
+    private final AtomicLongArray bytesIn = new AtomicLongArray(16);
+    private final AtomicLongArray bytesOut = new AtomicLongArray(16);
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final Histogram fragments;
+    private final Histogram handshakes;
+    private final Histogram readLatency;
+    private final Histogram writeLatency;
+    private String name;
+
+    /**
+     * @param parent the metrics to add everything to as well, or null for none
+     */
+    Metrics(Metrics parent){
+        this.parent = parent;
+        this.fragments = new Histogram(parent == null ? null : parent.fragments);
+        this.handshakes = new Histogram(parent == null ? null : parent.handshakes);
+        this.readLatency = new Histogram(parent == null ? null : parent.readLatency);
+        this.writeLatency = new Histogram(parent == null ? null : parent.writeLatency);
+    }
+
+    /**
+     * @return new metrics for a connection, adding to the global metrics
+     */
+    static Metrics connection(){
+        return new Metrics(GLOBAL);
+    }
+
+    /**
+     * @return the metrics of every connection added together
+     */
+    public static Metrics global(){
+        return GLOBAL;
+    }
+
+    /**
+     * Publish the global metrics, and each connection's while it is open, to a registry. Connections already open stay where they were.
+     * @param registry the registry to publish to, or null to stop publishing
+     */
+    public static synchronized void setRegistry(MetricsRegistry registry){
+        MetricsRegistry old = Metrics.registry;
+        if(old != null){
+            old.unregister(GLOBAL_NAME);
+        }
+        Metrics.registry = registry;
+        if(registry != null){
+            registry.register(GLOBAL_NAME, GLOBAL);
+        }
+    }
+
+    /**
+     * @return the registry metrics are published to, or null if they aren't
+     */
+    public static MetricsRegistry getRegistry(){
+        return registry;
+    }
+
+    /**
+     * Publish a connection's metrics to the registry, if there is one.
+     */
+    synchronized void register(){
+        MetricsRegistry r = registry;
+        if(r != null && name == null){
+            name = "connection-" + ids.incrementAndGet();
+            r.register(name, this);
+        }
+    }
+
+    /**
+     * Take a connection's metrics back out of the registry.
+     */
+    synchronized void unregister(){
+        MetricsRegistry r = registry;
+        if(r != null && name != null){
+            r.unregister(name);
+        }
+        name = null;
+    }
+
+    void frameIn(int opcode, long length){
+        framesIn.incrementAndGet(opcode & 0x0F);
+        bytesIn.addAndGet(opcode & 0x0F, length);
+        if(parent != null){
+            parent.frameIn(opcode, length);
+        }
+    }
+
+    void frameOut(int opcode, long length){
+        framesOut.incrementAndGet(opcode & 0x0F);
+        bytesOut.addAndGet(opcode & 0x0F, length);
+        if(parent != null){
+            parent.frameOut(opcode, length);
+        }
+    }
+
+    /**
+     * Count an encoded frame being sent, reading the opcode and payload length from its header.
+     * @param frame the array holding the frame
+     * @param off the offset of the frame's header in the array
+     */
+    void frameOut(byte[] frame, int off){
+        long length = frame[off + 1] & 0x7F;
+        if(length == 126){
+            length = (frame[off + 2] & 0xFF) << 8 | (frame[off + 3] & 0xFF);
+        }else if(length == 127){
+            length = 0;
+            for(int i = 0; i < 8; i++){
+                length = length << 8 | (frame[off + 2 + i] & 0xFF);
+            }
+        }
+        frameOut(frame[off], length);
+    }
+
+    /**
+     * @param count how many frames a received message came in
+     */
+    void messageIn(int count){
+        fragments.record(count);
+    }
+
+    void handshake(long nanos){
+        handshakes.record(nanos);
+    }
+
+    /**
+     * @param delta the change in bytes waiting to be written
+     */
+    void queued(long delta){
+        queuedBytes.addAndGet(delta);
+        if(parent != null){
+            parent.queued(delta);
+        }
+    }
+
+    void read(long nanos){
+        readLatency.record(nanos);
+    }
+
+    void written(long nanos){
+        writeLatency.record(nanos);
+    }
+
+    /**
+     * @param opcode the opcode, from 0 to 15
+     * @return how many frames of the opcode have been received
+     */
+    public long getFramesIn(int opcode){
+        return framesIn.get(opcode);
+    }
+
+    /**
+     * @param opcode the opcode, from 0 to 15
+     * @return how many frames of the opcode have been sent
+     */
+    public long getFramesOut(int opcode){
+        return framesOut.get(opcode);
+    }
+
+    /**
+     * @param opcode the opcode, from 0 to 15
+     * @return the payload bytes received in frames of the opcode
+     */
+    public long getBytesIn(int opcode){
+        return bytesIn.get(opcode);
+    }
+
+    /**
+     * @param opcode the opcode, from 0 to 15
+     * @return the payload bytes sent in frames of the opcode
+     */
+    public long getBytesOut(int opcode){
+        return bytesOut.get(opcode);
+    }
+
+    public long getFramesIn(){
+        return sum(framesIn);
+    }
+
+    public long getFramesOut(){
+        return sum(framesOut);
+    }
+
+    public long getBytesIn(){
+        return sum(bytesIn);
+    }
+
+    public long getBytesOut(){
+        return sum(bytesOut);
+    }
+
+    public long[] getFramesInByOpcode(){
+        return toArray(framesIn);
+    }
+
+    public long[] getFramesOutByOpcode(){
+        return toArray(framesOut);
+    }
+
+    public long[] getBytesInByOpcode(){
+        return toArray(bytesIn);
+    }
+
+    public long[] getBytesOutByOpcode(){
+        return toArray(bytesOut);
+    }
+
+    public long getMessagesIn(){
+        return fragments.getCount();
+    }
+
+    public double getMeanFragmentsPerMessage(){
+        return fragments.getMean();
+    }
+
+    public long getMaxFragmentsPerMessage(){
+        return fragments.getMax();
+    }
+
+    public long getHandshakes(){
+        return handshakes.getCount();
+    }
+
+    public double getMeanHandshakeNanos(){
+        return handshakes.getMean();
+    }
+
+    public long getMaxHandshakeNanos(){
+        return handshakes.getMax();
+    }
+
+    public long getQueuedBytes(){
+        return queuedBytes.get();
+    }
+
+    public long getReadLatencyP50Nanos(){
+        return readLatency.getPercentile(50);
+    }
+
+    public long getReadLatencyP99Nanos(){
+        return readLatency.getPercentile(99);
+    }
+
+    public long getReadLatencyMaxNanos(){
+        return readLatency.getMax();
+    }
+
+    public long getWriteLatencyP50Nanos(){
+        return writeLatency.getPercentile(50);
+    }
+
+    public long getWriteLatencyP99Nanos(){
+        return writeLatency.getPercentile(99);
+    }
+
+    public long getWriteLatencyMaxNanos(){
+        return writeLatency.getMax();
+    }
+
+    /**
+     * @return how many frames each received message came in
+     */
+    public Histogram getFragmentsPerMessage(){
+        return fragments;
+    }
+
+    /**
+     * @return how long opening handshakes took, in nanoseconds
+     */
+    public Histogram getHandshakeTimes(){
+        return handshakes;
+    }
+
+    /**
+     * @return read latencies, in nanoseconds
+     */
+    public Histogram getReadLatency(){
+        return readLatency;
+    }
+
+    /**
+     * @return write latencies, in nanoseconds
+     */
+    public Histogram getWriteLatency(){
+        return writeLatency;
+    }
+
+    private static long sum(AtomicLongArray array){
+        long total = 0;
+        for(int i = 0; i < array.length(); i++){
+            total += array.get(i);
+        }
+        return total;
+    }
+
+    private static long[] toArray(AtomicLongArray array){
+        long[] values = new long[array.length()];
+        for(int i = 0; i < values.length; i++){
+            values[i] = array.get(i);
+        }
+        return values;
+    }
+}
@@ -0,0 +1,61 @@
+package ca.awoo.websoc;
+
+/**
+ * The JMX view of a {@link Metrics}. Times are in nanoseconds.
+ */
+public interface MetricsMBean {
+
+    long getFramesIn();
+
+    long getFramesOut();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    /**
+     * @return frames received of each opcode, indexed by opcode
+     */
+    long[] getFramesInByOpcode();
+
+    /**
+     * @return frames sent of each opcode, indexed by opcode
+     */
+    long[] getFramesOutByOpcode();
+
+    /**
+     * @return payload bytes received in frames of each opcode, indexed by opcode
+     */
+    long[] getBytesInByOpcode();
+
+    /**
+     * @return payload bytes sent in frames of each opcode, indexed by opcode
+     */
+    long[] getBytesOutByOpcode();
+
+    long getMessagesIn();
+
+    double getMeanFragmentsPerMessage();
+
+    long getMaxFragmentsPerMessage();
+
+    long getHandshakes();
+
+    double getMeanHandshakeNanos();
+
+    long getMaxHandshakeNanos();
+
+    long getQueuedBytes();
+
+    long getReadLatencyP50Nanos();
+
+    long getReadLatencyP99Nanos();
+
+    long getReadLatencyMaxNanos();
+
+    long getWriteLatencyP50Nanos();
+
+    long getWriteLatencyP99Nanos();
+
+    long getWriteLatencyMaxNanos();
+}
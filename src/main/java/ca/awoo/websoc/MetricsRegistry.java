@@ -0,0 +1,22 @@
+package ca.awoo.websoc;
+
+/**
+ * Somewhere to publish {@link Metrics}, like JMX or a metrics library, set with {@link Metrics#setRegistry(MetricsRegistry)}.
+ * <p>
+ * The global metrics are registered as "global" and each connection's metrics as "connection-" and a number, from when the connection opens to when it closes.
+ * Methods may be called from any thread, including event loop threads, so they mustn't block.
+ * </p>
+ */
+public interface MetricsRegistry {
+
+    /**
+     * @param name the name to publish the metrics under
+     * @param metrics the metrics to publish
+     */
+    void register(String name, Metrics metrics);
+
+    /**
+     * @param name the name the metrics were published under
+     */
+    void unregister(String name);
+}
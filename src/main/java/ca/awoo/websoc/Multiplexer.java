@@ -0,0 +1,624 @@
+package ca.awoo.websoc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Many independent, two-way streams carried over one websocket connection, each with an InputStream and OutputStream like {@link WebSocket#getInputStream()}.
+ * <p>
+ * Either end can {@link #open()} a stream, and the other end gets it from {@link #accept()}. Both ends of the connection have to be multiplexed.
+ * Every binary message on the connection is one piece of one stream: a type byte, the stream's id, then the data. Client ends number their streams with odd ids and server ends with even ones, so the two never clash.
+ * </p>
+ * <p>
+ * Each stream has its own flow control. A stream's reader grants the writer credit for {@link #getWindowSize()} bytes, and gives more back as it reads them, so a writer can never have more than that in flight and a stream nobody is reading holds up only its own writer.
+ * Writes go out in pieces of no more than {@link #MAX_CHUNK} bytes, so a bulk transfer on one stream doesn't hold up the others for long.
+ * </p>
+ * <p>
+ * A peer can have at most {@link #getMaxStreams()} streams open at once, so the window times that bounds how much it can make this end buffer. Streams it opens beyond that are reset as soon as they arrive.
+ * </p>
+ * <p>
+ * Over a {@link WebSocket} the multiplexer reads the connection on a thread of its own. Over an {@link AsyncWebSocket} the connection's listener has to hand it each message with {@link #receive(byte[])}, and call {@link #disconnected()} once the connection has closed.
+ * </p>
+ */
+public class Multiplexer {
+
+    /**
+     * The most data sent in one message.
+     */
+    public static final int MAX_CHUNK = 16384;
+
+    /**
+     * The credit each end starts a stream with, which both ends assume without having to say so.
+     */
+    public static final int INITIAL_WINDOW = 65536;
+
+    /**
+     * The most streams a peer may have open at once, unless {@link #setMaxStreams(int)} says otherwise.
+     */
+    public static final int DEFAULT_MAX_STREAMS = 256;
+
+    static final int OPEN = 0;
+    static final int DATA = 1;
+    static final int CREDIT = 2;
+    static final int FIN = 3;
+    static final int RESET = 4;
+    static final int HEADER = 5;
+
+    /**
+     * Where the multiplexer's messages go.
+     */
+    private interface Link {
+        void send(byte[] message) throws IOException;
+
+        void close();
+    }
+
+    private final Link link;
+    private final Map<Integer, Stream> streams = new ConcurrentHashMap<Integer, Stream>();
+    private final LinkedList<Stream> accepted = new LinkedList<Stream>();
+    //Streams the peer opened that haven't been forgotten yet
+    private final AtomicInteger peerStreams = new AtomicInteger();
+    private final int peerParity;
+    private int nextId;
+    private volatile int windowSize = INITIAL_WINDOW;
+    private volatile int maxStreams = DEFAULT_MAX_STREAMS;
+    private volatile boolean closed = false;
+
+    /**
+     * Multiplex a blocking connection, reading it on a new daemon thread. Nothing else should read or write the connection afterwards.
+     * @param ws the connection
+     */
+    public Multiplexer(final WebSocket ws){
+        this(true, new Link() {
+            public void send(byte[] message) throws IOException {
+                ws.sendBinary(message, 0, message.length);
+            }
+
+            public void close() {
+                ws.close(1000, "");
+            }
+        });
+        Thread reader = new Thread(new Runnable() {
+            public void run() {
+                read(ws);
+            }
+        }, "websoc-mux-" + ws.getInetAddress().getHostAddress());
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Multiplex an event loop connection. Its listener must pass every message to {@link #receive(byte[])} and call {@link #disconnected()} from onClose.
+     * @param socket the connection
+     */
+    public Multiplexer(final AsyncWebSocket socket){
+        this(socket.isClient(), new Link() {
+            public void send(byte[] message) throws IOException {
+                socket.send(message);
+            }
+
+            public void close() {
+                socket.close();
+            }
+        });
+    }
+
+    private Multiplexer(boolean client, Link link){
+        this.link = link;
+        this.nextId = client ? 1 : 2;
+        this.peerParity = client ? 0 : 1;
+    }
+
+    /**
+     * @return the credit each stream's reader grants its writer, in bytes
+     */
+    public int getWindowSize(){
+        return windowSize;
+    }
+
+    /**
+     * Set how much each stream opened or accepted from now on lets the peer send before it has been read.
+     * A bigger window keeps a fast stream busy over a slow link, and a smaller one buffers less for each stream.
+     * @param windowSize the window in bytes, at least {@link #INITIAL_WINDOW}
+     */
+    public void setWindowSize(int windowSize){
+        if(windowSize < INITIAL_WINDOW){
+            throw new IllegalArgumentException("Window smaller than the initial window: " + windowSize);
+        }
+        this.windowSize = windowSize;
+    }
+
+    /**
+     * @return the most streams the peer may have open at once
+     */
+    public int getMaxStreams(){
+        return maxStreams;
+    }
+
+    /**
+     * Limit how many streams the peer may have open at once. Each can hold up to {@link #getWindowSize()} bytes that haven't been read yet, so this bounds how much memory the peer can make this end hold.
+     * A stream the peer opens beyond the limit is reset straight away, so its writes fail, and streams already open are left alone.
+     * @param maxStreams the most streams, at least 1
+     */
+    public void setMaxStreams(int maxStreams){
+        if(maxStreams < 1){
+            throw new IllegalArgumentException("Need to allow at least one stream: " + maxStreams);
+        }
+        this.maxStreams = maxStreams;
+    }
+
+    /**
+     * @return how many streams are open, counting ones only one side has finished with
+     */
+    public int getStreamCount(){
+        return streams.size();
+    }
+
+    /**
+     * Open a new stream to the peer. It can be written to straight away.
+     * @return the stream
+     * @throws IOException if the connection has closed.
+     */
+    public Stream open() throws IOException {
+        Stream stream;
+        synchronized(this){
+            if(closed){
+                throw new IOException("Multiplexer is closed");
+            }
+            stream = new Stream(nextId, windowSize);
+            nextId += 2;
+            streams.put(stream.id, stream);
+        }
+        link.send(header(OPEN, stream.id, 0));
+        stream.grantExtra();
+        return stream;
+    }
+
+    /**
+     * Wait for the peer to open a stream.
+     * @return the stream, or null once the connection has closed
+     * @throws InterruptedIOException if the thread was interrupted while waiting.
+     */
+    public synchronized Stream accept() throws InterruptedIOException {
+        try {
+            while(accepted.isEmpty() && !closed){
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a stream");
+        }
+        return accepted.poll();
+    }
+
+    /**
+     * Close the connection, which ends every stream.
+     */
+    public void close(){
+        link.close();
+        disconnected();
+    }
+
+    /**
+     * Handle a message from the peer. Only call this for a connection multiplexed with {@link #Multiplexer(AsyncWebSocket)}; it never blocks, so it is safe on the event loop.
+     * @param message a binary message from the connection
+     */
+    public void receive(byte[] message){
+        try {
+            receive(message, message.length);
+        } catch (IOException e) {
+            //The peer broke the protocol, which leaves no stream to trust
+            close();
+        }
+    }
+
+    /**
+     * End every stream because the connection has closed. Reads and writes in progress fail, and {@link #accept()} returns null.
+     */
+    public void disconnected(){
+        synchronized(this){
+            closed = true;
+            notifyAll();
+        }
+        for(Stream stream : streams.values()){
+            stream.reset(false);
+        }
+    }
+
+    private void read(WebSocket ws){
+        byte[] buffer = new byte[HEADER + MAX_CHUNK];
+        try {
+            WebSocket.MessageInputStream in;
+            while((in = ws.nextMessage()) != null){
+                if(in.getOpcode() != 2){
+                    throw new IOException("Text message on a multiplexed connection");
+                }
+                int length = 0;
+                int read;
+                while((read = in.read(buffer, length, buffer.length - length)) > 0){
+                    length += read;
+                }
+                if(length == buffer.length && in.read() != -1){
+                    throw new IOException("Multiplexed message too long");
+                }
+                receive(buffer, length);
+            }
+        } catch (IOException e) {
+            //The connection is going, so the streams are too
+        }
+        close();
+    }
+
+    private void receive(byte[] message, int length) throws IOException {
+        if(length < HEADER){
+            throw new IOException("Multiplexed message too short");
+        }
+        int type = message[0];
+        int id = readInt(message, 1);
+        Stream stream = streams.get(id);
+        switch(type){
+            case OPEN:
+                if(stream != null || (id & 1) != peerParity){
+                    throw new IOException("Invalid stream id: " + id);
+                }
+                if(peerStreams.incrementAndGet() > maxStreams){
+                    //Refused, so the peer's writes fail instead of piling up here
+                    peerStreams.decrementAndGet();
+                    send(header(RESET, id, 0));
+                    break;
+                }
+                stream = new Stream(id, windowSize);
+                synchronized(this){
+                    if(closed){
+                        peerStreams.decrementAndGet();
+                        return;
+                    }
+                    streams.put(id, stream);
+                    accepted.add(stream);
+                    notifyAll();
+                }
+                stream.grantExtra();
+                break;
+            case DATA:
+                if(stream != null){
+                    stream.data(message, HEADER, length - HEADER);
+                }
+                //Otherwise the stream was reset, and this was already on its way
+                break;
+            case CREDIT:
+                if(length < HEADER + 4){
+                    throw new IOException("Multiplexed message too short");
+                }
+                if(stream != null){
+                    stream.credit(readInt(message, HEADER));
+                }
+                break;
+            case FIN:
+                if(stream != null){
+                    stream.fin();
+                }
+                break;
+            case RESET:
+                if(stream != null){
+                    stream.reset(false);
+                }
+                break;
+            default:
+                throw new IOException("Unknown multiplexed message type: " + type);
+        }
+    }
+
+    /**
+     * Stop tracking a stream once both ends have finished with it or it has been reset.
+     */
+    private void forget(int id){
+        if(streams.remove(id) != null && (id & 1) == peerParity){
+            peerStreams.decrementAndGet();
+        }
+    }
+
+    private static byte[] header(int type, int id, int extra){
+        byte[] message = new byte[HEADER + extra];
+        message[0] = (byte) type;
+        writeInt(message, 1, id);
+        return message;
+    }
+
+    private static int readInt(byte[] b, int off){
+        return (b[off] & 0xFF) << 24 | (b[off + 1] & 0xFF) << 16 | (b[off + 2] & 0xFF) << 8 | (b[off + 3] & 0xFF);
+    }
+
+    private static void writeInt(byte[] b, int off, int value){
+        b[off] = (byte) (value >> 24);
+        b[off + 1] = (byte) (value >> 16);
+        b[off + 2] = (byte) (value >> 8);
+        b[off + 3] = (byte) value;
+    }
+
+    private void send(byte[] message){
+        try {
+            link.send(message);
+        } catch (IOException e) {
+            //The connection has gone, and disconnected() will end the stream
+        }
+    }
+
+    /**
+     * One stream. Reads must be made by one thread at a time, and so must writes, though one thread can read while another writes.
+     */
+    public class Stream {
+
+        private final int id;
+        private final int window;
+        private final StreamInputStream in = new StreamInputStream();
+        private final StreamOutputStream out = new StreamOutputStream();
+        private final LinkedList<byte[]> buffers = new LinkedList<byte[]>();
+        private int bufferOffset = 0;
+        //Bytes the peer may still send before it needs more credit
+        private int receiveWindow;
+        //Bytes read since credit was last given back
+        private int consumed = 0;
+        //Bytes this end may still send
+        private int sendCredit = INITIAL_WINDOW;
+        private boolean finReceived = false;
+        private boolean finSent = false;
+        private boolean reset = false;
+
+        Stream(int id, int window){
+            this.id = id;
+            this.window = window;
+            this.receiveWindow = window;
+        }
+
+        /**
+         * @return the stream's id, odd if a client end opened it and even if a server end did
+         */
+        public int getId(){
+            return id;
+        }
+
+        /**
+         * @return the stream's data from the peer, which ends once the peer closes its output
+         */
+        public InputStream getInputStream(){
+            return in;
+        }
+
+        /**
+         * @return the stream's data to the peer. Closing it tells the peer there is no more, but leaves the input open.
+         */
+        public OutputStream getOutputStream(){
+            return out;
+        }
+
+        /**
+         * Close both directions. If the peer hasn't finished sending, the stream is reset so it stops.
+         * @throws IOException if the connection has closed.
+         */
+        public void close() throws IOException {
+            boolean abort;
+            synchronized(this){
+                abort = !finReceived && !reset;
+            }
+            if(abort){
+                reset(true);
+            }else{
+                out.close();
+            }
+        }
+
+        /**
+         * Grant the peer whatever more than the initial window this end allows.
+         */
+        void grantExtra(){
+            if(window > INITIAL_WINDOW){
+                grant(window - INITIAL_WINDOW);
+            }
+        }
+
+        private void grant(int bytes){
+            byte[] message = header(CREDIT, id, 4);
+            writeInt(message, HEADER, bytes);
+            send(message);
+        }
+
+        synchronized void data(byte[] message, int off, int len) throws IOException {
+            if(finReceived){
+                throw new IOException("Data after the end of stream " + id);
+            }
+            if(len > receiveWindow){
+                throw new IOException("Stream " + id + " sent more than its credit");
+            }
+            receiveWindow -= len;
+            if(reset || len == 0){
+                return;
+            }
+            byte[] data = new byte[len];
+            System.arraycopy(message, off, data, 0, len);
+            buffers.add(data);
+            notifyAll();
+        }
+
+        synchronized void credit(int bytes) throws IOException {
+            if(bytes <= 0 || sendCredit + bytes < 0){
+                throw new IOException("Invalid credit for stream " + id);
+            }
+            sendCredit += bytes;
+            notifyAll();
+        }
+
+        synchronized void fin(){
+            finReceived = true;
+            if(finSent){
+                //Forgotten before the reader wakes, so it never sees the stream still counted
+                forget(id);
+            }
+            notifyAll();
+        }
+
+        /**
+         * Give up on the stream, telling the peer if this end is the one giving up.
+         */
+        void reset(boolean tell){
+            synchronized(this){
+                if(reset){
+                    return;
+                }
+                reset = true;
+                buffers.clear();
+                forget(id);
+                notifyAll();
+            }
+            if(tell){
+                send(header(RESET, id, 0));
+            }
+        }
+
+        private class StreamInputStream extends InputStream {
+
+            private final byte[] single = new byte[1];
+
+            @Override
+            public int read() throws IOException {
+                int read = read(single, 0, 1);
+                return read == -1 ? -1 : single[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if(len == 0){
+                    return 0;
+                }
+                int n = 0;
+                int grant = 0;
+                synchronized(Stream.this){
+                    try {
+                        while(buffers.isEmpty() && !finReceived && !reset){
+                            Stream.this.wait();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted reading stream " + id);
+                    }
+                    if(reset){
+                        throw new IOException(closed ? "Connection closed" : "Stream " + id + " reset");
+                    }
+                    while(n < len && !buffers.isEmpty()){
+                        byte[] head = buffers.getFirst();
+                        int count = Math.min(len - n, head.length - bufferOffset);
+                        System.arraycopy(head, bufferOffset, b, off + n, count);
+                        n += count;
+                        bufferOffset += count;
+                        if(bufferOffset == head.length){
+                            buffers.removeFirst();
+                            bufferOffset = 0;
+                        }
+                    }
+                    if(n == 0){
+                        return -1;
+                    }
+                    consumed += n;
+                    //Credit goes back in batches, so a stream of small reads doesn't answer each one
+                    if(consumed >= window / 2 && !finReceived){
+                        grant = consumed;
+                        receiveWindow += consumed;
+                        consumed = 0;
+                    }
+                }
+                if(grant > 0){
+                    grant(grant);
+                }
+                return n;
+            }
+
+            @Override
+            public int available() {
+                synchronized(Stream.this){
+                    int available = 0;
+                    for(byte[] buffer : buffers){
+                        available += buffer.length;
+                    }
+                    return available - bufferOffset;
+                }
+            }
+
+            /**
+             * Close the whole stream.
+             */
+            @Override
+            public void close() throws IOException {
+                Stream.this.close();
+            }
+        }
+
+        private class StreamOutputStream extends OutputStream {
+
+            private final byte[] single = new byte[1];
+
+            @Override
+            public synchronized void write(int b) throws IOException {
+                single[0] = (byte) b;
+                write(single, 0, 1);
+            }
+
+            /**
+             * Send data, waiting for credit from the peer whenever it runs out.
+             */
+            @Override
+            public synchronized void write(byte[] b, int off, int len) throws IOException {
+                while(len > 0){
+                    int n;
+                    synchronized(Stream.this){
+                        try {
+                            while(sendCredit == 0 && !reset && !finSent){
+                                Stream.this.wait();
+                            }
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException("Interrupted waiting for credit on stream " + id);
+                        }
+                        if(reset){
+                            throw new IOException(closed ? "Connection closed" : "Stream " + id + " reset");
+                        }
+                        if(finSent){
+                            throw new IOException("Stream " + id + " output is closed");
+                        }
+                        n = Math.min(Math.min(len, sendCredit), MAX_CHUNK);
+                        sendCredit -= n;
+                    }
+                    byte[] message = header(DATA, id, n);
+                    System.arraycopy(b, off, message, HEADER, n);
+                    link.send(message);
+                    off += n;
+                    len -= n;
+                }
+            }
+
+            /**
+             * Tell the peer nothing more will be sent. Writes go out as they are made, so this is all closing does.
+             */
+            @Override
+            public synchronized void close() throws IOException {
+                boolean done;
+                synchronized(Stream.this){
+                    if(finSent || reset){
+                        return;
+                    }
+                    finSent = true;
+                    done = finReceived;
+                    Stream.this.notifyAll();
+                }
+                link.send(header(FIN, id, 0));
+                if(done){
+                    forget(id);
+                }
+            }
+        }
+    }
+}
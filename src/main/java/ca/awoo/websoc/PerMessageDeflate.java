@@ -0,0 +1,288 @@
+package ca.awoo.websoc;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * Settings for the permessage-deflate extension (RFC 7692), and its negotiation in the opening handshake.
+ * <p>
+ * Give one to a {@link WebSocket}, {@link WebSocketEngine} or {@link WebSocketServer} to offer or accept compression. Each connection that agrees on it gets its own {@link DeflateCodec}.
+ * The same settings work for either end: "our" messages are the ones this end sends and the "peer's" are the ones it receives.
+ * </p>
+ * <p>
+ * java.util.zip always compresses with a 32K window, so this end never offers or accepts a smaller window for its own messages. The peer can be asked to use a smaller window with {@link #setPeerMaxWindowBits(int)}.
+ * </p>
+ */
+public class PerMessageDeflate {
+
+    static final String NAME = "permessage-deflate";
+
+    private static final String SERVER_NO_CONTEXT_TAKEOVER = "server_no_context_takeover";
+    private static final String CLIENT_NO_CONTEXT_TAKEOVER = "client_no_context_takeover";
+    private static final String SERVER_MAX_WINDOW_BITS = "server_max_window_bits";
+    private static final String CLIENT_MAX_WINDOW_BITS = "client_max_window_bits";
+
+    private int level = Deflater.DEFAULT_COMPRESSION;
+    private boolean noContextTakeover = false;
+    private boolean peerNoContextTakeover = false;
+    private int peerMaxWindowBits = 15;
+    private int threshold = 0;
+
+    /**
+     * @return the compression level, from -1 for the default to 9
+     */
+    public int getLevel(){
+        return level;
+    }
+
+    /**
+     * @param level the compression level, from -1 for the default to 9
+     */
+    public void setLevel(int level){
+        if(level < -1 || level > 9){
+            throw new IllegalArgumentException("Invalid compression level: " + level);
+        }
+        this.level = level;
+    }
+
+    /**
+     * @return true if the context is reset after every message sent
+     */
+    public boolean isNoContextTakeover(){
+        return noContextTakeover;
+    }
+
+    /**
+     * Reset the compression context after every message sent. This compresses small, similar messages worse, but no Deflater is held between messages.
+     * @param noContextTakeover true to reset the context after every message
+     */
+    public void setNoContextTakeover(boolean noContextTakeover){
+        this.noContextTakeover = noContextTakeover;
+    }
+
+    /**
+     * @return true if the peer is asked to reset its context after every message
+     */
+    public boolean isPeerNoContextTakeover(){
+        return peerNoContextTakeover;
+    }
+
+    /**
+     * Ask the peer to reset its compression context after every message, so no Inflater is held between messages.
+     * @param peerNoContextTakeover true to ask the peer to reset its context
+     */
+    public void setPeerNoContextTakeover(boolean peerNoContextTakeover){
+        this.peerNoContextTakeover = peerNoContextTakeover;
+    }
+
+    /**
+     * @return the largest window, as a power of two, the peer is asked to compress with
+     */
+    public int getPeerMaxWindowBits(){
+        return peerMaxWindowBits;
+    }
+
+    /**
+     * Ask the peer to compress with a smaller window, which saves the peer memory. A server can only ask this of clients that offer to honour it.
+     * @param peerMaxWindowBits the window size as a power of two, from 8 to 15
+     */
+    public void setPeerMaxWindowBits(int peerMaxWindowBits){
+        if(peerMaxWindowBits < 8 || peerMaxWindowBits > 15){
+            throw new IllegalArgumentException("Invalid window bits: " + peerMaxWindowBits);
+        }
+        this.peerMaxWindowBits = peerMaxWindowBits;
+    }
+
+    /**
+     * @return the shortest message that is compressed
+     */
+    public int getThreshold(){
+        return threshold;
+    }
+
+    /**
+     * Send messages shorter than this uncompressed. Very short messages often come out longer once compressed, especially without context takeover.
+     * @param threshold the shortest message to compress, in bytes
+     */
+    public void setThreshold(int threshold){
+        this.threshold = threshold;
+    }
+
+    /**
+     * Whether messages this end sends declare that the context is reset, either because it was asked for or because the runtime can't keep it.
+     */
+    private boolean resetsOwnContext(){
+        return noContextTakeover || !DeflateCodec.canKeepContext();
+    }
+
+    /**
+     * @return the Sec-WebSocket-Extensions value a client offers
+     */
+    String offer(){
+        StringBuilder sb = new StringBuilder(NAME);
+        if(resetsOwnContext()){
+            sb.append("; ").append(CLIENT_NO_CONTEXT_TAKEOVER);
+        }
+        if(peerNoContextTakeover){
+            sb.append("; ").append(SERVER_NO_CONTEXT_TAKEOVER);
+        }
+        if(peerMaxWindowBits < 15){
+            sb.append("; ").append(SERVER_MAX_WINDOW_BITS).append('=').append(peerMaxWindowBits);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Check the server's answer to {@link #offer()} on the client.
+     * @param response the Sec-WebSocket-Extensions value the server sent, or null if it sent none
+     * @return the codec for the connection, or null if the server turned compression down
+     * @throws IOException if the server answered with something that wasn't offered.
+     */
+    DeflateCodec accept(String response) throws IOException {
+        if(response == null){
+            return null;
+        }
+        if(response.indexOf(',') != -1){
+            throw new IOException("Server accepted more than one extension: " + response);
+        }
+        Map<String, String> params = parseElement(response);
+        if(params == null || !NAME.equals(params.get(""))){
+            throw new IOException("Server accepted an extension that wasn't offered: " + response);
+        }
+        for(Map.Entry<String, String> param : params.entrySet()){
+            String name = param.getKey();
+            String value = param.getValue();
+            if(name.length() == 0){
+                continue;
+            }
+            if(name.equals(SERVER_NO_CONTEXT_TAKEOVER) || name.equals(CLIENT_NO_CONTEXT_TAKEOVER)){
+                if(value != null){
+                    throw new IOException("Invalid permessage-deflate response: " + response);
+                }
+            }else if(name.equals(SERVER_MAX_WINDOW_BITS)){
+                int bits = windowBits(value);
+                if(bits == -1 || bits > peerMaxWindowBits){
+                    throw new IOException("Invalid permessage-deflate response: " + response);
+                }
+            }else{
+                //Includes client_max_window_bits, which is never offered
+                throw new IOException("Invalid permessage-deflate response: " + response);
+            }
+        }
+        if(peerNoContextTakeover && !params.containsKey(SERVER_NO_CONTEXT_TAKEOVER)){
+            throw new IOException("Server ignored server_no_context_takeover: " + response);
+        }
+        boolean compressTakeover = !noContextTakeover && !params.containsKey(CLIENT_NO_CONTEXT_TAKEOVER);
+        boolean decompressTakeover = !params.containsKey(SERVER_NO_CONTEXT_TAKEOVER);
+        return new DeflateCodec(level, compressTakeover, decompressTakeover, threshold);
+    }
+
+    /**
+     * Pick the first acceptable permessage-deflate offer from a client, on the server.
+     * @param offers the Sec-WebSocket-Extensions value the client sent, or null if it sent none
+     * @return the Sec-WebSocket-Extensions value to answer with, or null to turn compression down
+     */
+    String respond(String offers){
+        if(offers == null){
+            return null;
+        }
+        for(String offer : offers.split(",")){
+            Map<String, String> params = parseElement(offer);
+            if(params == null || !NAME.equals(params.get(""))){
+                continue;
+            }
+            boolean valid = true;
+            boolean clientWindowBits = false;
+            for(Map.Entry<String, String> param : params.entrySet()){
+                String name = param.getKey();
+                String value = param.getValue();
+                if(name.length() == 0){
+                    continue;
+                }
+                if(name.equals(SERVER_NO_CONTEXT_TAKEOVER) || name.equals(CLIENT_NO_CONTEXT_TAKEOVER)){
+                    valid &= value == null;
+                }else if(name.equals(SERVER_MAX_WINDOW_BITS)){
+                    //Only a full size window can be honoured
+                    valid &= windowBits(value) == 15;
+                }else if(name.equals(CLIENT_MAX_WINDOW_BITS)){
+                    valid &= value == null || windowBits(value) != -1;
+                    clientWindowBits = true;
+                }else{
+                    valid = false;
+                }
+            }
+            if(!valid){
+                continue;
+            }
+            StringBuilder sb = new StringBuilder(NAME);
+            if(resetsOwnContext() || params.containsKey(SERVER_NO_CONTEXT_TAKEOVER)){
+                sb.append("; ").append(SERVER_NO_CONTEXT_TAKEOVER);
+            }
+            if(peerNoContextTakeover){
+                sb.append("; ").append(CLIENT_NO_CONTEXT_TAKEOVER);
+            }
+            if(clientWindowBits && peerMaxWindowBits < 15){
+                sb.append("; ").append(CLIENT_MAX_WINDOW_BITS).append('=').append(peerMaxWindowBits);
+            }
+            return sb.toString();
+        }
+        return null;
+    }
+
+    /**
+     * Create the server's codec for a response from {@link #respond(String)}.
+     * @param response the Sec-WebSocket-Extensions value the server is answering with
+     * @return the codec for the connection
+     */
+    DeflateCodec serverCodec(String response){
+        Map<String, String> params = parseElement(response);
+        boolean compressTakeover = !params.containsKey(SERVER_NO_CONTEXT_TAKEOVER);
+        boolean decompressTakeover = !params.containsKey(CLIENT_NO_CONTEXT_TAKEOVER);
+        return new DeflateCodec(level, compressTakeover, decompressTakeover, threshold);
+    }
+
+    /**
+     * Parse one comma separated element of a Sec-WebSocket-Extensions value.
+     * @return the element's parameters, with null values for parameters without one and the extension's name under the key "", or null if a parameter appears twice
+     */
+    private static Map<String, String> parseElement(String element){
+        Map<String, String> params = new HashMap<String, String>();
+        String[] parts = element.split(";");
+        params.put("", parts[0].trim());
+        for(int i = 1; i < parts.length; i++){
+            String part = parts[i].trim();
+            int equals = part.indexOf('=');
+            String name = equals == -1 ? part : part.substring(0, equals).trim();
+            String value = null;
+            if(equals != -1){
+                value = part.substring(equals + 1).trim();
+                if(value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")){
+                    value = value.substring(1, value.length() - 1);
+                }
+            }
+            if(params.containsKey(name)){
+                return null;
+            }
+            params.put(name, value);
+        }
+        return params;
+    }
+
+    /**
+     * @return the window bits in a parameter value, or -1 if it isn't a number from 8 to 15
+     */
+    private static int windowBits(String value){
+        if(value == null || value.length() == 0 || value.length() > 2){
+            return -1;
+        }
+        for(int i = 0; i < value.length(); i++){
+            if(!Character.isDigit(value.charAt(i))){
+                return -1;
+            }
+        }
+        int bits = Integer.parseInt(value);
+        return bits >= 8 && bits <= 15 ? bits : -1;
+    }
+}
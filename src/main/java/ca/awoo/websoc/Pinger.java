@@ -0,0 +1,158 @@
+package ca.awoo.websoc;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One connection's heartbeat: sends pings on the shared {@link TimerWheel}, matches pongs to them and keeps the round trip times.
+ * <p>
+ * Each ping's payload is an 8 byte sequence number, so a pong is matched to the ping it answers even when several are outstanding. Pongs that don't carry one of ours, like answers to pings the application sent, are ignored.
+ * Answering a ping also answers every ping sent before it, since pongs come back in order.
+ * </p>
+ */
+final class Pinger {
+
+    /**
+     * The connection being pinged.
+     */
+    interface Peer {
+        /**
+         * Send a ping. Called on the timer thread, so it mustn't block.
+         * @param payload the ping's payload
+         */
+        void ping(byte[] payload);
+
+        /**
+         * Drop the connection because too many pings have gone unanswered. Called on the timer thread, so it mustn't block.
+         */
+        void dead();
+
+        /**
+         * Drop the connection because sending a ping failed. Called on the timer thread, so it mustn't block.
+         * @param e what went wrong
+         */
+        void failed(RuntimeException e);
+    }
+
+    private final Heartbeat heartbeat;
+    private final Peer peer;
+    private final TimerWheel wheel;
+    private final long[] sentAt;
+    private final Runnable tick = new Runnable() {
+        public void run() {
+            tick();
+        }
+    };
+    private TimerWheel.Timeout timeout;
+    private boolean stopped = false;
+    private long sent = 0;
+    private long answered = 0;
+    private long lastRtt = -1;
+    private long smoothedRtt = -1;
+
+    Pinger(Heartbeat heartbeat, Peer peer){
+        this(heartbeat, peer, TimerWheel.shared());
+    }
+
+    Pinger(Heartbeat heartbeat, Peer peer, TimerWheel wheel){
+        this.heartbeat = heartbeat;
+        this.peer = peer;
+        this.wheel = wheel;
+        this.sentAt = new long[heartbeat.getMaxMissedPongs()];
+    }
+
+    /**
+     * Send the first ping after one interval.
+     */
+    synchronized void start(){
+        if(!stopped && timeout == null){
+            timeout = wheel.schedule(tick, heartbeat.getInterval(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Stop pinging for good.
+     */
+    synchronized void stop(){
+        stopped = true;
+        if(timeout != null){
+            timeout.cancel();
+        }
+    }
+
+    private void tick(){
+        byte[] payload = null;
+        boolean dead = false;
+        synchronized(this){
+            if(stopped){
+                return;
+            }
+            if(sent - answered >= sentAt.length){
+                stopped = true;
+                dead = true;
+            }else{
+                sent++;
+                sentAt[(int) (sent % sentAt.length)] = System.nanoTime();
+                payload = new byte[8];
+                for(int i = 0; i < 8; i++){
+                    payload[i] = (byte) (sent >> (56 - i * 8));
+                }
+                timeout = wheel.schedule(tick, heartbeat.getInterval(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+            }
+        }
+        if(dead){
+            peer.dead();
+            return;
+        }
+        try {
+            peer.ping(payload);
+        } catch (RuntimeException e) {
+            stop();
+            peer.failed(e);
+        }
+    }
+
+    /**
+     * Look at a pong received from the peer.
+     * @param data the pong's payload
+     */
+    void pong(byte[] data){
+        if(data.length != 8){
+            return;
+        }
+        long now = System.nanoTime();
+        long sequence = 0;
+        for(int i = 0; i < 8; i++){
+            sequence = sequence << 8 | (data[i] & 0xFF);
+        }
+        synchronized(this){
+            if(sequence <= answered || sequence > sent){
+                return;
+            }
+            answered = sequence;
+            lastRtt = now - sentAt[(int) (sequence % sentAt.length)];
+            //Smoothed the way TCP smooths its RTT, with a gain of 1/8
+            smoothedRtt = smoothedRtt < 0 ? lastRtt : smoothedRtt + (lastRtt - smoothedRtt) / 8;
+        }
+    }
+
+    /**
+     * @return the round trip time of the last ping answered, in nanoseconds, or -1 if none has been
+     */
+    synchronized long getLastRttNanos(){
+        return lastRtt;
+    }
+
+    /**
+     * @return the smoothed round trip time, in nanoseconds, or -1 if no ping has been answered
+     */
+    synchronized long getSmoothedRttNanos(){
+        return smoothedRtt;
+    }
+
+    /**
+     * @return how many pings are waiting for a pong
+     */
+    synchronized int getOutstanding(){
+        return (int) (sent - answered);
+    }
+}
@@ -0,0 +1,45 @@
+package ca.awoo.websoc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A transport that reads and writes the channel directly.
+ */
+class PlainTransport implements Transport {
+
+    private final SocketChannel channel;
+
+    PlainTransport(SocketChannel channel){
+        this.channel = channel;
+    }
+
+    public int read(ByteBuffer dst) throws IOException {
+        return channel.read(dst);
+    }
+
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        return channel.write(srcs, offset, length);
+    }
+
+    public boolean flush(){
+        return true;
+    }
+
+    public boolean ready(){
+        return true;
+    }
+
+    public boolean hasBufferedInput(){
+        return false;
+    }
+
+    public void close(){
+        try {
+            channel.close();
+        } catch (IOException e) {
+            //Already as closed as it's going to get
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package ca.awoo.websoc;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reference counted buffer from a {@link BufferAllocator}.
+ * <p>
+ * The buffer starts with one reference. Each {@link #retain()} adds one and each {@link #release()} takes one away, and when the last is released the buffer goes back to its allocator.
+ * Nothing may touch the buffer after its last release, as it may already belong to someone else.
+ * </p>
+ */
+public final class PooledBuffer {
+
+    private final ByteBuffer buffer;
+    private final SlabAllocator allocator;
+    private final int sizeClass;
+    private final AtomicInteger refs = new AtomicInteger();
+
+    /**
+     * The next free buffer in the allocator's free list.
+     */
+    PooledBuffer next;
+
+    /**
+     * The allocator's leak tracker for the buffer while it is allocated, if leak detection is on.
+     */
+    SlabAllocator.Leak leak;
+
+    /**
+     * @param buffer the memory
+     * @param allocator the allocator to give it back to, or null if it isn't pooled
+     * @param sizeClass the allocator's size class the memory belongs to
+     */
+    PooledBuffer(ByteBuffer buffer, SlabAllocator allocator, int sizeClass){
+        this.buffer = buffer;
+        this.allocator = allocator;
+        this.sizeClass = sizeClass;
+    }
+
+    int sizeClass(){
+        return sizeClass;
+    }
+
+    /**
+     * Hand the buffer out with one reference and its limit at capacity.
+     */
+    PooledBuffer init(int capacity){
+        buffer.clear();
+        buffer.limit(capacity);
+        refs.set(1);
+        return this;
+    }
+
+    /**
+     * @return the buffer's memory. Its position and limit belong to the holder of the buffer
+     */
+    public ByteBuffer buffer(){
+        return buffer;
+    }
+
+    /**
+     * @return the number of references held
+     */
+    public int refCount(){
+        return refs.get();
+    }
+
+    /**
+     * Add a reference, for handing the buffer to someone who will release it separately.
+     * @return this buffer
+     * @throws IllegalStateException if the buffer has already been released.
+     */
+    public PooledBuffer retain(){
+        int n;
+        do {
+            n = refs.get();
+            if(n <= 0){
+                throw new IllegalStateException("Buffer has already been released");
+            }
+        } while(!refs.compareAndSet(n, n + 1));
+        return this;
+    }
+
+    /**
+     * Take away a reference, giving the buffer back to its allocator if it was the last.
+     * @return true if the buffer was given back
+     * @throws IllegalStateException if the buffer has already been released.
+     */
+    public boolean release(){
+        int n;
+        do {
+            n = refs.get();
+            if(n <= 0){
+                throw new IllegalStateException("Buffer has already been released");
+            }
+        } while(!refs.compareAndSet(n, n - 1));
+        if(n > 1){
+            return false;
+        }
+        if(allocator != null){
+            allocator.recycle(this);
+        }
+        return true;
+    }
+}
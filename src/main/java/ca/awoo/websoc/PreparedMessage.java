@@ -0,0 +1,120 @@
+package ca.awoo.websoc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import ca.awoo.websoc.WebSocket.Frame;
+
+/**
+ * A message encoded once, header and all, to be sent to any number of connections.
+ * <p>
+ * The server ends of connections don't mask what they send, so every one of them can write the same encoded frame. Sending a prepared message to a server connection queues a view of the shared frame, without encoding or copying anything.
+ * Client connections have to mask each frame with a key of their own, so they still get a masked copy.
+ * </p>
+ * <p>
+ * A connection that negotiated permessage-deflate without keeping its compression context gets a compressed frame, which is compressed once for each compression level and then shared as well.
+ * Compression that keeps the context depends on every message a connection has sent before, so those connections are sent the frame uncompressed, which permessage-deflate allows.
+ * </p>
+ * <p>
+ * A prepared message is immutable and can be sent from any thread.
+ * </p>
+ */
+public final class PreparedMessage {
+
+    private final int opcode;
+    private final byte[] frame;
+    private final int headerLength;
+    //Compressed frames, by compression level from -1 to 9
+    private final AtomicReferenceArray<byte[]> compressed = new AtomicReferenceArray<byte[]>(11);
+
+    private PreparedMessage(int opcode, byte[] frame){
+        this.opcode = opcode;
+        this.frame = frame;
+        this.headerLength = headerLength(frame);
+    }
+
+    /**
+     * Prepare a text message.
+     * @param text the message
+     * @return the prepared message
+     */
+    public static PreparedMessage text(CharSequence text){
+        return new PreparedMessage(1, FrameEncoder.encodeText(true, 1, null, text));
+    }
+
+    /**
+     * Prepare a binary message. The data is copied, so the array can be reused straight away.
+     * @param data the array holding the message
+     * @param off the offset of the message in data
+     * @param len the length of the message
+     * @return the prepared message
+     */
+    public static PreparedMessage binary(byte[] data, int off, int len){
+        return new PreparedMessage(2, FrameEncoder.encode(true, 2, null, data, off, len));
+    }
+
+    private static int headerLength(byte[] frame){
+        int lengthBits = frame[1] & 0x7F;
+        return lengthBits == 126 ? 4 : lengthBits == 127 ? 10 : 2;
+    }
+
+    /**
+     * @return 1 for a text message or 2 for a binary message
+     */
+    public int getOpcode(){
+        return opcode;
+    }
+
+    /**
+     * @return the length of the uncompressed payload
+     */
+    public int getLength(){
+        return frame.length - headerLength;
+    }
+
+    /**
+     * Send the message to each of a number of connections. Connections that aren't open are skipped.
+     * @param sockets the connections to send to
+     * @return how many connections the message was queued on
+     */
+    public int broadcast(Iterable<AsyncWebSocket> sockets){
+        int sent = 0;
+        for(AsyncWebSocket socket : sockets){
+            try {
+                socket.send(this);
+                sent++;
+            } catch (IOException e) {
+                //Closed since it was listed
+            }
+        }
+        return sent;
+    }
+
+    /**
+     * @param codec the connection's compression, or null if it has none
+     * @return a view of the shared, unmasked frame to queue, which must not be written to
+     */
+    ByteBuffer frame(DeflateCodec codec){
+        if(codec == null || codec.keepsContext() || !codec.shouldCompress(getLength())){
+            return ByteBuffer.wrap(frame);
+        }
+        int index = codec.level() + 1;
+        byte[] encoded = compressed.get(index);
+        if(encoded == null){
+            //Two threads may compress at once, and either result will do
+            byte[] payload = codec.compress(frame, headerLength, getLength());
+            encoded = FrameEncoder.encode(true, opcode | Frame.RSV1, null, payload, 0, payload.length);
+            compressed.set(index, encoded);
+        }
+        return ByteBuffer.wrap(encoded);
+    }
+
+    /**
+     * @param mask the masking key
+     * @return a new copy of the frame, uncompressed and masked with the key, for a client connection
+     */
+    byte[] masked(byte[] mask){
+        return FrameEncoder.encode(true, opcode, mask, frame, headerLength, getLength());
+    }
+}
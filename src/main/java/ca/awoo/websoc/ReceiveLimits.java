@@ -0,0 +1,89 @@
+package ca.awoo.websoc;
+
+import java.io.File;
+
+/**
+ * Settings for how much a connection will receive, so a peer can't run the JVM out of memory by claiming a huge frame or sending a message that never ends.
+ * <p>
+ * Give one to a {@link WebSocket}, {@link WebSocketEngine} or {@link WebSocketServer}. The frame size is checked as soon as a frame's header has been read, before anything is allocated for its payload, and the message size as each frame of a message arrives and as a compressed message is inflated.
+ * A connection that receives a frame or message over its limit is failed with close status 1009 and the read throws a {@link MessageTooBigException}.
+ * </p>
+ * <p>
+ * An {@link AsyncWebSocket} whose listener is a {@link LargeMessageListener} keeps messages larger than the spill threshold in a temporary file instead of on the heap, and hands them over mapped into memory.
+ * Messages read from a {@link WebSocket} with {@link WebSocket#nextMessage()} are streamed off the socket, so they never need to spill.
+ * </p>
+ */
+public class ReceiveLimits {
+
+    private long maxFrameSize = 16 << 20;
+    private long maxMessageSize = 64 << 20;
+    private int spillThreshold = 1 << 20;
+    private File spillDirectory;
+
+    /**
+     * @return the largest frame payload accepted, 16MB unless changed
+     */
+    public long getMaxFrameSize(){
+        return maxFrameSize;
+    }
+
+    /**
+     * @param maxFrameSize the largest frame payload accepted, at least 125 so any control frame fits
+     */
+    public void setMaxFrameSize(long maxFrameSize){
+        if(maxFrameSize < 125 || maxFrameSize > Integer.MAX_VALUE - FrameDecoder.MAX_HEADER_LENGTH){
+            throw new IllegalArgumentException("Invalid maximum frame size: " + maxFrameSize);
+        }
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    /**
+     * @return the largest message accepted, after decompression, 64MB unless changed
+     */
+    public long getMaxMessageSize(){
+        return maxMessageSize;
+    }
+
+    /**
+     * Set the largest message accepted. Messages an {@link AsyncWebSocket} puts back together can't be larger than 2GB whatever this is set to; messages streamed from a {@link WebSocket} can.
+     * @param maxMessageSize the largest message accepted, after decompression
+     */
+    public void setMaxMessageSize(long maxMessageSize){
+        if(maxMessageSize < 0){
+            throw new IllegalArgumentException("Invalid maximum message size: " + maxMessageSize);
+        }
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    /**
+     * @return the size above which a message is moved to a temporary file, 1MB unless changed
+     */
+    public int getSpillThreshold(){
+        return spillThreshold;
+    }
+
+    /**
+     * Set the size above which a message is moved from the heap to a temporary file. This only applies to connections whose listener is a {@link LargeMessageListener}.
+     * @param spillThreshold the size in bytes
+     */
+    public void setSpillThreshold(int spillThreshold){
+        if(spillThreshold < 0){
+            throw new IllegalArgumentException("Invalid spill threshold: " + spillThreshold);
+        }
+        this.spillThreshold = spillThreshold;
+    }
+
+    /**
+     * @return the directory messages are spilled to, or null for the system's temporary directory
+     */
+    public File getSpillDirectory(){
+        return spillDirectory;
+    }
+
+    /**
+     * @param spillDirectory the directory to spill messages to, or null for the system's temporary directory
+     */
+    public void setSpillDirectory(File spillDirectory){
+        this.spillDirectory = spillDirectory;
+    }
+}
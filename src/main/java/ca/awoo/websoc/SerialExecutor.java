@@ -0,0 +1,173 @@
+package ca.awoo.websoc;
+
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs one connection's listener calls on a shared Executor, one at a time and in the order they were queued.
+ * <p>
+ * Only one task for the connection is ever running or submitted to the executor, so on a pool the calls may move between threads but never overlap or reorder.
+ * After a batch of tasks the drain is submitted again instead of looping, so one busy connection can't hold a pool thread forever.
+ * </p>
+ * <p>
+ * The queue holds up to a capacity of tasks. {@link #offer(Runnable)} refuses tasks beyond it and {@link #put(Runnable)} waits for room.
+ * {@link #force(Runnable)} ignores it, for events like a close that must never be lost.
+ * </p>
+ */
+final class SerialExecutor {
+
+    private static final int BATCH = 64;
+
+    private final Executor executor;
+    private final int capacity;
+    private final LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+    private final Runnable drain = new Runnable() {
+        public void run() {
+            drain();
+        }
+    };
+    private boolean running = false;
+    private boolean full = false;
+    private Runnable onRoom;
+
+    /**
+     * @param executor the executor to run tasks on
+     * @param capacity the most tasks to queue
+     */
+    SerialExecutor(Executor executor, int capacity){
+        if(capacity < 1){
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        this.executor = executor;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Set a task to run, on the executor's thread, when a queue that was full has drained to half its capacity.
+     * @param onRoom the task to run
+     */
+    synchronized void setOnRoom(Runnable onRoom){
+        this.onRoom = onRoom;
+    }
+
+    /**
+     * Queue a task if there's room.
+     * @param task the task to run
+     * @return false if the queue was full and the task was refused
+     */
+    boolean offer(Runnable task){
+        boolean submit;
+        synchronized(this){
+            if(tasks.size() >= capacity){
+                full = true;
+                return false;
+            }
+            submit = add(task);
+        }
+        if(submit){
+            submit();
+        }
+        return true;
+    }
+
+    /**
+     * Queue a task, waiting for room if the queue is full.
+     * @param task the task to run
+     * @throws InterruptedException if the thread was interrupted while waiting.
+     */
+    void put(Runnable task) throws InterruptedException {
+        boolean submit;
+        synchronized(this){
+            while(tasks.size() >= capacity){
+                full = true;
+                wait();
+            }
+            submit = add(task);
+        }
+        if(submit){
+            submit();
+        }
+    }
+
+    /**
+     * Queue a task whether or not there's room.
+     * @param task the task to run
+     */
+    void force(Runnable task){
+        boolean submit;
+        synchronized(this){
+            submit = add(task);
+        }
+        if(submit){
+            submit();
+        }
+    }
+
+    /**
+     * @return true if the queue is at its capacity
+     */
+    synchronized boolean isFull(){
+        return tasks.size() >= capacity;
+    }
+
+    synchronized int size(){
+        return tasks.size();
+    }
+
+    /**
+     * Add a task to the queue while holding the lock.
+     * @return true if the drain needs submitting to the executor
+     */
+    private boolean add(Runnable task){
+        tasks.add(task);
+        if(tasks.size() >= capacity){
+            full = true;
+        }
+        if(running){
+            return false;
+        }
+        running = true;
+        return true;
+    }
+
+    private void submit(){
+        try {
+            executor.execute(drain);
+        } catch (RuntimeException e) {
+            synchronized(this){
+                running = false;
+            }
+            throw e;
+        }
+    }
+
+    private void drain(){
+        for(int i = 0; i < BATCH; i++){
+            Runnable task;
+            Runnable room = null;
+            synchronized(this){
+                task = tasks.poll();
+                if(task == null){
+                    running = false;
+                    return;
+                }
+                if(full && tasks.size() <= capacity / 2){
+                    full = false;
+                    room = onRoom;
+                }
+                notifyAll();
+            }
+            if(room != null){
+                room.run();
+            }
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Thread thread = Thread.currentThread();
+                thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+            }
+        }
+        //Go to the back of the executor's queue so other connections get a turn
+        submit();
+    }
+}
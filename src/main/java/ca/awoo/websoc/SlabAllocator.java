@@ -0,0 +1,288 @@
+package ca.awoo.websoc;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link BufferAllocator} that carves buffers out of large slabs, by default of direct memory, and reuses them.
+ * <p>
+ * Buffers come in size classes of powers of two from {@value #MIN_SIZE} bytes to {@value #MAX_SIZE}. Each class takes slabs of {@value #SLAB_SIZE} bytes as it needs them and slices them into buffers of its size,
+ * and released buffers go on a free list for the class. Once the slabs have warmed up, allocating and releasing a buffer allocates nothing.
+ * Requests larger than the biggest class, or made once the slabs have reached the allocator's limit, get a buffer of their own that isn't pooled.
+ * </p>
+ * <p>
+ * With leak detection on, which is what the system property {@code ca.awoo.websoc.leakDetection=true} does by default, each allocation remembers where it was made.
+ * A buffer that is garbage collected without being released is counted in {@link #getLeakCount()}, and if a {@link LeakListener} has been set it is told where the buffer was allocated.
+ * Its memory isn't reused, just as it wouldn't be with leak detection off, since whoever lost the buffer may still be using the ByteBuffer it came with.
+ * This costs an allocation and a stack trace per buffer, so it is for debugging.
+ * </p>
+ */
+public class SlabAllocator implements BufferAllocator {
+
+    /**
+     * The smallest size class.
+     */
+    public static final int MIN_SIZE = 64;
+    /**
+     * The largest size class. Larger buffers aren't pooled.
+     */
+    public static final int MAX_SIZE = 65536;
+    /**
+     * The size of each slab.
+     */
+    public static final int SLAB_SIZE = 1 << 20;
+
+    private static final int MIN_SHIFT = 6;
+    private static final int CLASSES = 11;
+
+    private final boolean direct;
+    private final long maxBytes;
+    private final SizeClass[] classes = new SizeClass[CLASSES];
+    private final AtomicLong slabBytes = new AtomicLong();
+    private final AtomicLong allocations = new AtomicLong();
+    private final AtomicLong unpooled = new AtomicLong();
+    private final AtomicLong inUse = new AtomicLong();
+    private final AtomicLong leaks = new AtomicLong();
+    private final ReferenceQueue<PooledBuffer> leakQueue = new ReferenceQueue<PooledBuffer>();
+    private final ConcurrentHashMap<Leak, Boolean> tracked = new ConcurrentHashMap<Leak, Boolean>();
+    private volatile boolean leakDetection = Boolean.getBoolean("ca.awoo.websoc.leakDetection");
+    private volatile LeakListener leakListener;
+
+    /**
+     * Told about each buffer found to have been garbage collected without being released, while leak detection is on.
+     */
+    public interface LeakListener {
+        /**
+         * Called on whichever thread is allocating when the leak is found, so it mustn't block.
+         * @param allocatedAt a throwable made where the buffer was allocated, whose stack trace shows where
+         */
+        void onLeak(Throwable allocatedAt);
+    }
+
+    /**
+     * A size class's free buffers, kept as a stack linked through the buffers themselves so freeing one allocates nothing.
+     */
+    private static final class SizeClass {
+        final int size;
+        private PooledBuffer free;
+
+        SizeClass(int size){
+            this.size = size;
+        }
+
+        synchronized PooledBuffer poll(){
+            PooledBuffer buffer = free;
+            if(buffer != null){
+                free = buffer.next;
+                buffer.next = null;
+            }
+            return buffer;
+        }
+
+        synchronized void push(PooledBuffer buffer){
+            buffer.next = free;
+            free = buffer;
+        }
+    }
+
+    /**
+     * Tracks an allocated buffer while leak detection is on, remembering where it was allocated in case the buffer is lost.
+     */
+    static final class Leak extends WeakReference<PooledBuffer> {
+        final Throwable allocatedAt;
+
+        Leak(PooledBuffer buffer, ReferenceQueue<PooledBuffer> queue){
+            super(buffer, queue);
+            this.allocatedAt = new Throwable("A buffer allocated here was garbage collected without being released");
+        }
+    }
+
+    /**
+     * Create an allocator of direct buffers that pools up to 64MB.
+     */
+    public SlabAllocator(){
+        this(true, 64L << 20);
+    }
+
+    /**
+     * @param direct true to allocate direct buffers, or false for heap buffers
+     * @param maxBytes the most memory to take for slabs
+     */
+    public SlabAllocator(boolean direct, long maxBytes){
+        this.direct = direct;
+        this.maxBytes = maxBytes;
+        for(int i = 0; i < CLASSES; i++){
+            classes[i] = new SizeClass(MIN_SIZE << i);
+        }
+    }
+
+    /**
+     * Turn leak detection on or off. It only applies to buffers allocated afterwards.
+     * @param leakDetection true to track where each buffer was allocated and report buffers that are never released
+     */
+    public void setLeakDetection(boolean leakDetection){
+        this.leakDetection = leakDetection;
+    }
+
+    public boolean isLeakDetection(){
+        return leakDetection;
+    }
+
+    /**
+     * @return the listener told about leaks, or null if leaks are only counted
+     */
+    public LeakListener getLeakListener(){
+        return leakListener;
+    }
+
+    /**
+     * Set a listener to be told where each leaked buffer was allocated. Without one leaks are only counted.
+     * @param leakListener the listener, or null to only count leaks
+     */
+    public void setLeakListener(LeakListener leakListener){
+        this.leakListener = leakListener;
+    }
+
+    public PooledBuffer allocate(int capacity){
+        if(capacity < 0){
+            throw new IllegalArgumentException("Negative capacity: " + capacity);
+        }
+        if(leakDetection){
+            reportLeaks();
+        }
+        allocations.incrementAndGet();
+        inUse.incrementAndGet();
+        PooledBuffer buffer = null;
+        if(capacity <= MAX_SIZE){
+            int index = sizeClass(capacity);
+            buffer = classes[index].poll();
+            if(buffer == null){
+                buffer = carve(index);
+            }
+        }
+        if(buffer == null){
+            unpooled.incrementAndGet();
+            buffer = new PooledBuffer(direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity), this, -1);
+        }
+        buffer.init(capacity);
+        if(leakDetection){
+            Leak leak = new Leak(buffer, leakQueue);
+            buffer.leak = leak;
+            tracked.put(leak, Boolean.TRUE);
+        }
+        return buffer;
+    }
+
+    /**
+     * @return the size class a capacity fits in
+     */
+    static int sizeClass(int capacity){
+        if(capacity <= MIN_SIZE){
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(capacity - 1) - MIN_SHIFT;
+    }
+
+    /**
+     * Slice a new slab into buffers of a size class, if the limit allows another slab.
+     * @return one of the new buffers, with the rest on the free list, or null if there is no room for a slab
+     */
+    private PooledBuffer carve(int index){
+        SizeClass sizeClass = classes[index];
+        synchronized(sizeClass){
+            //Another thread may have carved a slab while this one waited
+            PooledBuffer buffer = sizeClass.poll();
+            if(buffer != null){
+                return buffer;
+            }
+            long reserved;
+            do {
+                reserved = slabBytes.get();
+                if(reserved + SLAB_SIZE > maxBytes){
+                    return null;
+                }
+            } while(!slabBytes.compareAndSet(reserved, reserved + SLAB_SIZE));
+            ByteBuffer slab = direct ? ByteBuffer.allocateDirect(SLAB_SIZE) : ByteBuffer.allocate(SLAB_SIZE);
+            for(int off = SLAB_SIZE - sizeClass.size; off > 0; off -= sizeClass.size){
+                slab.limit(off + sizeClass.size);
+                slab.position(off);
+                sizeClass.push(new PooledBuffer(slab.slice(), this, index));
+            }
+            slab.limit(sizeClass.size);
+            slab.position(0);
+            return new PooledBuffer(slab.slice(), this, index);
+        }
+    }
+
+    /**
+     * Take back a buffer whose last reference has been released.
+     */
+    void recycle(PooledBuffer buffer){
+        inUse.decrementAndGet();
+        Leak leak = buffer.leak;
+        if(leak != null){
+            buffer.leak = null;
+            tracked.remove(leak);
+            leak.clear();
+        }
+        if(buffer.sizeClass() >= 0){
+            classes[buffer.sizeClass()].push(buffer);
+        }
+    }
+
+    private void reportLeaks(){
+        Leak leak;
+        while((leak = (Leak) leakQueue.poll()) != null){
+            if(tracked.remove(leak) == null){
+                continue;
+            }
+            leaks.incrementAndGet();
+            inUse.decrementAndGet();
+            LeakListener listener = leakListener;
+            if(listener != null){
+                listener.onLeak(leak.allocatedAt);
+            }
+        }
+    }
+
+    /**
+     * @return how many buffers have been allocated
+     */
+    public long getAllocationCount(){
+        return allocations.get();
+    }
+
+    /**
+     * @return how many of the allocations were too large to pool or didn't fit under the limit
+     */
+    public long getUnpooledCount(){
+        return unpooled.get();
+    }
+
+    /**
+     * @return how many buffers are allocated and not yet released
+     */
+    public long getInUseCount(){
+        return inUse.get();
+    }
+
+    /**
+     * @return the memory taken for slabs, in bytes
+     */
+    public long getSlabBytes(){
+        return slabBytes.get();
+    }
+
+    /**
+     * @return how many buffers have been found garbage collected without being released. Only counted with leak detection on
+     */
+    public long getLeakCount(){
+        if(leakDetection){
+            reportLeaks();
+        }
+        return leaks.get();
+    }
+}
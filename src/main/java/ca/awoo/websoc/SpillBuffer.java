@@ -0,0 +1,241 @@
+package ca.awoo.websoc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A message being put back together, kept in an array until it passes a threshold and in a temporary file after that.
+ * <p>
+ * Once the message is complete {@link #toBuffer()} maps the file into memory, so a message of any size up to 2GB can be handed over without pinning the heap.
+ * Writing past the maximum size throws a {@link MessageTooBigException} before anything more is stored.
+ * </p>
+ * <p>
+ * A buffer is used once: written to, then finished with {@link #toByteArray()} or {@link #toBuffer()}, or thrown away with {@link #discard()}.
+ * Nothing can be done with it after it has been finished or discarded.
+ * </p>
+ * <p>
+ * Where a mapped file can't be deleted, as on Windows, its deletion waits until the buffer mapped from it has been garbage collected, and is retried each time another message spills.
+ * </p>
+ */
+final class SpillBuffer {
+
+    /**
+     * A file that couldn't be deleted while it was mapped, enqueued once the buffer mapped from it is garbage collected.
+     */
+    private static final class MappedFile extends PhantomReference<ByteBuffer> {
+        final File file;
+
+        MappedFile(ByteBuffer buffer, File file){
+            super(buffer, unmapped);
+            this.file = file;
+        }
+    }
+
+    private static final ReferenceQueue<ByteBuffer> unmapped = new ReferenceQueue<ByteBuffer>();
+    //Keeps the references reachable until they are enqueued
+    private static final Set<MappedFile> mapped = new HashSet<MappedFile>();
+    //Files whose buffers are gone but which couldn't be deleted yet
+    private static final List<File> undeleted = new ArrayList<File>();
+
+    private final long threshold;
+    private final long maxSize;
+    private final File directory;
+    private byte[] memory = new byte[256];
+    private long size = 0;
+    private File file;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private boolean finished = false;
+
+    /**
+     * @param threshold the size above which the message moves to a file
+     * @param maxSize the largest the message can get
+     * @param directory the directory to make the file in, or null for the system's temporary directory
+     */
+    SpillBuffer(long threshold, long maxSize, File directory){
+        this.threshold = threshold;
+        this.maxSize = Math.min(maxSize, Integer.MAX_VALUE - 8);
+        this.directory = directory;
+    }
+
+    /**
+     * Add some of the message.
+     * @throws MessageTooBigException if this makes the message larger than its maximum size.
+     * @throws IOException if the file couldn't be written.
+     */
+    void write(byte[] b, int off, int len) throws IOException {
+        checkNotFinished();
+        if(size + len > maxSize){
+            throw new MessageTooBigException("Message larger than " + maxSize + " bytes");
+        }
+        if(channel == null && size + len > threshold){
+            spill();
+        }
+        if(channel != null){
+            ByteBuffer src = ByteBuffer.wrap(b, off, len);
+            while(src.hasRemaining()){
+                channel.write(src);
+            }
+        }else{
+            if(size + len > memory.length){
+                byte[] grown = new byte[(int) Math.max(size + len, Math.min(memory.length * 2L, Math.min(threshold, maxSize)))];
+                System.arraycopy(memory, 0, grown, 0, (int) size);
+                memory = grown;
+            }
+            System.arraycopy(b, off, memory, (int) size, len);
+        }
+        size += len;
+    }
+
+    private void spill() throws IOException {
+        deleteUnmapped();
+        file = File.createTempFile("websoc-", ".msg", directory);
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            channel = raf.getChannel();
+            ByteBuffer src = ByteBuffer.wrap(memory, 0, (int) size);
+            while(src.hasRemaining()){
+                channel.write(src);
+            }
+        } catch (IOException e) {
+            discard();
+            throw e;
+        }
+        memory = null;
+    }
+
+    /**
+     * @return the number of bytes written
+     */
+    long size(){
+        return size;
+    }
+
+    /**
+     * @return true if the message has moved to a file
+     */
+    boolean isSpilled(){
+        return channel != null;
+    }
+
+    /**
+     * Finish a message that was never spilled.
+     * @return the message
+     * @throws IllegalStateException if the message was spilled, or the buffer has already been finished or discarded.
+     */
+    byte[] toByteArray(){
+        checkNotFinished();
+        if(channel != null){
+            throw new IllegalStateException("Message was spilled to a file");
+        }
+        finished = true;
+        byte[] data = memory;
+        memory = null;
+        if(data.length == size){
+            return data;
+        }
+        byte[] copy = new byte[(int) size];
+        System.arraycopy(data, 0, copy, 0, copy.length);
+        return copy;
+    }
+
+    /**
+     * Finish the message. A spilled message's file is mapped read only and closed, then deleted if the system allows deleting a mapped file, and otherwise once the buffer has been garbage collected.
+     * @return the message
+     * @throws IllegalStateException if the buffer has already been finished or discarded.
+     * @throws IOException if the file couldn't be mapped.
+     */
+    ByteBuffer toBuffer() throws IOException {
+        checkNotFinished();
+        if(channel == null){
+            finished = true;
+            ByteBuffer data = ByteBuffer.wrap(memory, 0, (int) size);
+            memory = null;
+            return data;
+        }
+        File mappedFile = file;
+        ByteBuffer data;
+        try {
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } catch (IOException e) {
+            discard();
+            throw e;
+        }
+        finished = true;
+        //The mapping stays valid after the channel is closed
+        closeFile();
+        file = null;
+        if(!mappedFile.delete()){
+            synchronized(mapped){
+                mapped.add(new MappedFile(data, mappedFile));
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Throw the message away, closing and deleting its file if it was spilled to one. Does nothing if the buffer has already been finished or discarded.
+     */
+    void discard(){
+        if(finished){
+            return;
+        }
+        finished = true;
+        memory = null;
+        closeFile();
+        if(file != null){
+            //Nothing was mapped from it, so this only fails if it is already gone
+            file.delete();
+            file = null;
+        }
+    }
+
+    private void closeFile(){
+        if(raf != null){
+            try {
+                raf.close();
+            } catch (IOException e) {
+                //Nothing more can be done with it
+            }
+            raf = null;
+        }
+        channel = null;
+    }
+
+    private void checkNotFinished(){
+        if(finished){
+            throw new IllegalStateException("Message already finished or discarded");
+        }
+    }
+
+    /**
+     * Delete the files of mapped buffers that have been garbage collected.
+     */
+    static void deleteUnmapped(){
+        synchronized(mapped){
+            Reference<? extends ByteBuffer> ref;
+            while((ref = unmapped.poll()) != null){
+                mapped.remove(ref);
+                undeleted.add(((MappedFile) ref).file);
+            }
+            //The mapping may be released a little after the buffer is collected, so try again next time
+            for(Iterator<File> i = undeleted.iterator(); i.hasNext();){
+                File file = i.next();
+                if(file.delete() || !file.exists()){
+                    i.remove();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package ca.awoo.websoc;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A hashed timer wheel: one thread that runs any number of timeouts, to the nearest tick.
+ * <p>
+ * Timeouts are hashed into a ring of buckets by the tick they expire on, so scheduling and cancelling cost the same however many are pending, and each tick only looks at one bucket.
+ * A timeout further away than one turn of the wheel waits in its bucket for the right number of turns.
+ * This suits heartbeats for a great many connections, where a Timer or a thread per connection doesn't scale and a tick's worth of slack doesn't matter.
+ * </p>
+ * <p>
+ * Tasks run on the wheel's thread, so they must be quick and mustn't block. The thread is a daemon started by the first timeout.
+ * A task reports its own failures to whatever it belongs to; one that throws anyway, even an Error, is dropped without stopping the wheel.
+ * Should the thread die some other way, the next timeout scheduled starts another, which picks up where it left off.
+ * </p>
+ */
+final class TimerWheel {
+
+    private static TimerWheel shared;
+
+    private final String name;
+    private final long tickNanos;
+    private final LinkedList<Timeout>[] buckets;
+    private final Queue<Timeout> incoming = new ConcurrentLinkedQueue<Timeout>();
+    private Thread thread;
+    private boolean started = false;
+    private long startNanos;
+    private long tick = 0;
+
+    /**
+     * A task scheduled on the wheel.
+     */
+    static final class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        private long rounds;
+        private volatile boolean cancelled = false;
+
+        private Timeout(Runnable task, long deadline){
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Stop the task from running, if it hasn't already.
+         */
+        void cancel(){
+            cancelled = true;
+        }
+
+        boolean isCancelled(){
+            return cancelled;
+        }
+    }
+
+    /**
+     * @param name the name to give the wheel's thread
+     * @param tick the length of a tick
+     * @param unit the unit of tick
+     * @param size the number of buckets, rounded up to a power of two
+     */
+    @SuppressWarnings("unchecked")
+    TimerWheel(String name, long tick, TimeUnit unit, int size){
+        if(tick <= 0 || size < 1){
+            throw new IllegalArgumentException("Invalid tick or size: " + tick + ", " + size);
+        }
+        this.name = name;
+        this.tickNanos = unit.toNanos(tick);
+        int n = 1;
+        while(n < size){
+            n <<= 1;
+        }
+        buckets = (LinkedList<Timeout>[]) new LinkedList<?>[n];
+        for(int i = 0; i < n; i++){
+            buckets[i] = new LinkedList<Timeout>();
+        }
+    }
+
+    /**
+     * @return the wheel every connection's heartbeat shares, with 100ms ticks
+     */
+    static synchronized TimerWheel shared(){
+        if(shared == null){
+            shared = new TimerWheel("websoc-timer", 100, TimeUnit.MILLISECONDS, 512);
+        }
+        return shared;
+    }
+
+    /**
+     * Run a task after a delay. It runs on the tick after the delay is up, so it is never early but may be up to a tick late.
+     * @param task the task to run
+     * @param delay how long to wait
+     * @param unit the unit of delay
+     * @return the timeout, for cancelling it
+     */
+    Timeout schedule(Runnable task, long delay, TimeUnit unit){
+        Timeout timeout;
+        synchronized(this){
+            if(thread == null){
+                if(!started){
+                    //Ticks count from here, even across a restarted thread
+                    startNanos = System.nanoTime();
+                    started = true;
+                }
+                thread = new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            TimerWheel.this.run();
+                        } finally {
+                            synchronized(TimerWheel.this){
+                                thread = null;
+                            }
+                        }
+                    }
+                }, name);
+                thread.setDaemon(true);
+                thread.start();
+            }
+            timeout = new Timeout(task, System.nanoTime() - startNanos + unit.toNanos(Math.max(delay, 0)));
+        }
+        incoming.add(timeout);
+        return timeout;
+    }
+
+    private void run(){
+        while(true){
+            //Sleep to the end of the tick, measured from the start so the ticks don't drift
+            long deadline = tickNanos * (tick + 1);
+            long sleep;
+            while((sleep = deadline - (System.nanoTime() - startNanos)) > 0){
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    //Nothing interrupts the wheel on purpose
+                }
+            }
+            transfer();
+            expire(buckets[(int) (tick & (buckets.length - 1))]);
+            tick++;
+        }
+    }
+
+    /**
+     * Move newly scheduled timeouts into their buckets.
+     */
+    private void transfer(){
+        Timeout timeout;
+        while((timeout = incoming.poll()) != null){
+            if(timeout.cancelled){
+                continue;
+            }
+            //The first tick ending at or after the deadline, and never one that has already passed
+            long expiry = Math.max((timeout.deadline + tickNanos - 1) / tickNanos - 1, tick);
+            timeout.rounds = (expiry - tick) / buckets.length;
+            buckets[(int) (expiry & (buckets.length - 1))].add(timeout);
+        }
+    }
+
+    private void expire(LinkedList<Timeout> bucket){
+        Iterator<Timeout> it = bucket.iterator();
+        while(it.hasNext()){
+            Timeout timeout = it.next();
+            if(timeout.cancelled){
+                it.remove();
+            }else if(timeout.rounds > 0){
+                timeout.rounds--;
+            }else{
+                it.remove();
+                try {
+                    timeout.task.run();
+                } catch (Throwable e) {
+                    //The task had nobody to tell, and every other timeout still has to run, heartbeats and close timers included
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package ca.awoo.websoc;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+/**
+ * A TLS transport built on an SSLEngine over a non-blocking SocketChannel.
+ * <p>
+ * The TLS handshake is driven by whichever of read, write or flush is called first, and carries on each time the channel becomes ready until it completes.
+ * Encrypted bytes are staged in network buffers and decrypted bytes in an application buffer, all taken from shared pools and given back on close.
+ * </p>
+ */
+class TlsTransport implements Transport {
+
+    private static SSLContext defaultContext;
+
+    /**
+     * @return an SSLContext with the default key and trust managers, created once and shared so its session cache is shared too
+     * @throws IOException if TLS isn't available.
+     */
+    static synchronized SSLContext defaultContext() throws IOException {
+        if(defaultContext == null){
+            try {
+                SSLContext context = SSLContext.getInstance("TLS");
+                context.init(null, null, null);
+                defaultContext = context;
+            } catch (NoSuchAlgorithmException e) {
+                throw (IOException) new IOException("No TLS implementation").initCause(e);
+            } catch (KeyManagementException e) {
+                throw (IOException) new IOException("Could not initialise TLS").initCause(e);
+            }
+        }
+        return defaultContext;
+    }
+
+    /**
+     * Creates TLS transports from one SSLContext, sharing its session cache and a pair of buffer pools between them.
+     */
+    static class Factory {
+        private SSLContext context;
+        private BufferPool netBuffers;
+        private BufferPool appBuffers;
+
+        /**
+         * @param context the context to create engines from, or null to use {@link TlsTransport#defaultContext()}
+         */
+        Factory(SSLContext context){
+            this.context = context;
+        }
+
+        /**
+         * Create a transport for a newly connected channel.
+         * @param channel the connected channel
+         * @param host the peer's host name, or null if it isn't known
+         * @param port the peer's port, or -1 if it isn't known
+         * @param client true for the client end of the connection, false for the server end
+         * @return the new transport
+         * @throws IOException if TLS couldn't be set up.
+         */
+        TlsTransport newTransport(SocketChannel channel, String host, int port, boolean client) throws IOException {
+            SSLEngine engine;
+            synchronized(this){
+                if(context == null){
+                    context = defaultContext();
+                }
+                engine = host == null ? context.createSSLEngine() : context.createSSLEngine(host, port);
+                if(netBuffers == null){
+                    netBuffers = new BufferPool(engine.getSession().getPacketBufferSize(), 1024);
+                    appBuffers = new BufferPool(engine.getSession().getApplicationBufferSize(), 1024);
+                }
+            }
+            engine.setUseClientMode(client);
+            return new TlsTransport(channel, engine, netBuffers, appBuffers);
+        }
+    }
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final BufferPool netPool;
+    private final BufferPool appPool;
+    private ByteBuffer netIn;
+    private ByteBuffer netOut;
+    private ByteBuffer appIn;
+    private boolean handshakeDone = false;
+    private boolean inputClosed = false;
+
+    /**
+     * @param channel a connected non-blocking channel
+     * @param engine an engine already set to client or server mode
+     * @param netPool the pool to take encrypted buffers from
+     * @param appPool the pool to take the decrypted buffer from
+     * @throws SSLException if the handshake couldn't be started.
+     */
+    TlsTransport(SocketChannel channel, SSLEngine engine, BufferPool netPool, BufferPool appPool) throws SSLException {
+        this.channel = channel;
+        this.engine = engine;
+        this.netPool = netPool;
+        this.appPool = appPool;
+        this.netIn = netPool.acquire();
+        this.netOut = netPool.acquire();
+        this.appIn = appPool.acquire();
+        engine.beginHandshake();
+    }
+
+    public int read(ByteBuffer dst) throws IOException {
+        if(!handshake()){
+            return inputClosed ? -1 : 0;
+        }
+        while(true){
+            if(appIn.position() > 0){
+                appIn.flip();
+                int count = Math.min(appIn.remaining(), dst.remaining());
+                int limit = appIn.limit();
+                appIn.limit(appIn.position() + count);
+                dst.put(appIn);
+                appIn.limit(limit);
+                appIn.compact();
+                return count;
+            }
+            if(inputClosed){
+                return -1;
+            }
+            if(!unwrap()){
+                return 0;
+            }
+            SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+            if(status == SSLEngineResult.HandshakeStatus.NEED_TASK || status == SSLEngineResult.HandshakeStatus.NEED_WRAP){
+                //The peer started a new handshake or a key update
+                handshakeDone = false;
+                if(!handshake()){
+                    return 0;
+                }
+            }
+        }
+    }
+
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        if(!handshake() || !flushNet()){
+            return 0;
+        }
+        long consumed = 0;
+        while(hasRemaining(srcs, offset, length)){
+            SSLEngineResult result = engine.wrap(srcs, offset, length, netOut);
+            consumed += result.bytesConsumed();
+            switch(result.getStatus()){
+                case BUFFER_OVERFLOW:
+                    if(netOut.position() == 0){
+                        netOut = grow(netOut, engine.getSession().getPacketBufferSize());
+                    }
+                    break;
+                case CLOSED:
+                    throw new IOException("TLS connection closed");
+                default:
+                    break;
+            }
+            if(!flushNet()){
+                break;
+            }
+        }
+        return consumed;
+    }
+
+    public boolean flush() throws IOException {
+        //The handshake may be waiting on the peer rather than the channel, which isn't our concern here
+        handshake();
+        return flushNet();
+    }
+
+    public boolean ready(){
+        return handshakeDone;
+    }
+
+    public boolean hasBufferedInput(){
+        return appIn.position() > 0 || (handshakeDone && netIn.position() > 0 && !inputClosed);
+    }
+
+    public void close(){
+        try {
+            engine.closeOutbound();
+            if(netOut.position() == 0){
+                engine.wrap(EMPTY, netOut);
+            }
+            flushNet();
+        } catch (IOException e) {
+            //Closing anyway
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            //Already as closed as it's going to get
+        }
+        netPool.release(netIn);
+        netPool.release(netOut);
+        appPool.release(appIn);
+        netIn = EMPTY;
+        netOut = EMPTY;
+        appIn = EMPTY;
+    }
+
+    /**
+     * Move the handshake along as far as the channel allows.
+     * @return true once the handshake has finished
+     */
+    private boolean handshake() throws IOException {
+        if(handshakeDone){
+            return true;
+        }
+        while(true){
+            switch(engine.getHandshakeStatus()){
+                case NEED_TASK:
+                    Runnable task;
+                    while((task = engine.getDelegatedTask()) != null){
+                        task.run();
+                    }
+                    break;
+                case NEED_WRAP:
+                    SSLEngineResult result = engine.wrap(EMPTY, netOut);
+                    if(result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW && netOut.position() == 0){
+                        netOut = grow(netOut, engine.getSession().getPacketBufferSize());
+                    }
+                    if(!flushNet()){
+                        return false;
+                    }
+                    break;
+                case NEED_UNWRAP:
+                    if(!unwrap()){
+                        return false;
+                    }
+                    if(inputClosed){
+                        throw new EOFException("Connection closed during the TLS handshake");
+                    }
+                    break;
+                default:
+                    handshakeDone = true;
+                    return flushNet();
+            }
+        }
+    }
+
+    /**
+     * Unwrap one record into the application buffer, reading from the channel if a whole record isn't buffered.
+     * @return true if progress was made, false if the channel has nothing more for now
+     */
+    private boolean unwrap() throws IOException {
+        netIn.flip();
+        SSLEngineResult result;
+        try {
+            result = engine.unwrap(netIn, appIn);
+        } finally {
+            netIn.compact();
+        }
+        switch(result.getStatus()){
+            case BUFFER_UNDERFLOW:
+                if(!netIn.hasRemaining()){
+                    netIn = grow(netIn, engine.getSession().getPacketBufferSize());
+                }
+                int read = channel.read(netIn);
+                if(read == -1){
+                    inputClosed = true;
+                    return true;
+                }
+                return read > 0;
+            case BUFFER_OVERFLOW:
+                if(appIn.position() == 0){
+                    appIn = grow(appIn, engine.getSession().getApplicationBufferSize());
+                }
+                return true;
+            case CLOSED:
+                inputClosed = true;
+                return true;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Write out whatever is in the network output buffer.
+     * @return true if it was all written
+     */
+    private boolean flushNet() throws IOException {
+        if(netOut.position() == 0){
+            return true;
+        }
+        netOut.flip();
+        try {
+            channel.write(netOut);
+            return !netOut.hasRemaining();
+        } finally {
+            netOut.compact();
+        }
+    }
+
+    private static boolean hasRemaining(ByteBuffer[] srcs, int offset, int length){
+        for(int i = offset; i < offset + length; i++){
+            if(srcs[i].hasRemaining()){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Swap a pooled buffer for a bigger unpooled one when the session needs more room than the pool's buffers have.
+     */
+    private static ByteBuffer grow(ByteBuffer buffer, int size){
+        ByteBuffer grown = ByteBuffer.allocate(Math.max(size, buffer.capacity() * 2));
+        buffer.flip();
+        grown.put(buffer);
+        return grown;
+    }
+}
@@ -0,0 +1,53 @@
+package ca.awoo.websoc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The byte pipe under a non-blocking connection: either the SocketChannel itself or a TLS layer over it.
+ * <p>
+ * Like the channel, reads and writes never block and may move fewer bytes than asked for. Only the owning event loop calls these.
+ * </p>
+ */
+interface Transport {
+
+    /**
+     * Read application bytes.
+     * @param dst the buffer to read into
+     * @return the number of bytes read, possibly 0, or -1 at the end of the stream
+     * @throws IOException if the read failed.
+     */
+    int read(ByteBuffer dst) throws IOException;
+
+    /**
+     * Write application bytes.
+     * @param srcs the buffers to write from
+     * @param offset the first buffer to write
+     * @param length the number of buffers to write
+     * @return the number of application bytes taken from the buffers
+     * @throws IOException if the write failed.
+     */
+    long write(ByteBuffer[] srcs, int offset, int length) throws IOException;
+
+    /**
+     * Push out anything the transport has buffered on its own account, such as handshake records.
+     * @return true if nothing is left waiting for the channel to become writable
+     * @throws IOException if the write failed.
+     */
+    boolean flush() throws IOException;
+
+    /**
+     * @return true if application bytes can be written now, which for TLS means the handshake has finished
+     */
+    boolean ready();
+
+    /**
+     * @return true if application bytes are already buffered, so {@link #read} will return data without the channel becoming readable again
+     */
+    boolean hasBufferedInput();
+
+    /**
+     * Close the transport and the channel under it, giving back any pooled buffers.
+     */
+    void close();
+}
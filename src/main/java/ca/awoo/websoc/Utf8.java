@@ -0,0 +1,332 @@
+package ca.awoo.websoc;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.MalformedInputException;
+
+/**
+ * UTF-8 encoding and strict, incremental decoding for text messages.
+ * <p>
+ * The decoder rejects everything RFC 3629 does: overlong forms, surrogates, code points past U+10FFFF and truncated sequences. A websocket must fail a connection that sends any of these in a text message.
+ * It keeps its state between calls, so a message can be decoded a frame or a read at a time even when a character is split across the pieces.
+ * </p>
+ * <p>
+ * java.nio's UTF-8 decoder is not used because older runtimes let some of these through.
+ * </p>
+ */
+public final class Utf8 {
+
+    private static final char REPLACEMENT = 0xFFFD;
+    private static final int REPLACEMENT_LENGTH = 3;
+
+    private Utf8(){
+    }
+
+    /**
+     * Check that a whole message is valid UTF-8.
+     * @param data the array holding the message
+     * @param off the offset of the message in data
+     * @param len the length of the message
+     * @return true if it is valid
+     */
+    public static boolean isValid(byte[] data, int off, int len){
+        Decoder decoder = new Decoder();
+        return decoder.validate(data, off, len) && decoder.isComplete();
+    }
+
+    /**
+     * Check that a whole message is valid UTF-8.
+     * @param data the message, from its position to its limit, which are left as they are
+     * @return true if it is valid
+     */
+    public static boolean isValid(ByteBuffer data){
+        if(data.hasArray()){
+            return isValid(data.array(), data.arrayOffset() + data.position(), data.remaining());
+        }
+        ByteBuffer in = data.duplicate();
+        byte[] chunk = new byte[Math.min(8192, in.remaining())];
+        Decoder decoder = new Decoder();
+        while(in.hasRemaining()){
+            int count = Math.min(chunk.length, in.remaining());
+            in.get(chunk, 0, count);
+            if(!decoder.validate(chunk, 0, count)){
+                return false;
+            }
+        }
+        return decoder.isComplete();
+    }
+
+    /**
+     * Work out how many bytes a string takes up in UTF-8, counting an unpaired surrogate as U+FFFD the way {@link Encoder} writes it.
+     * @param text the string
+     * @return its length in bytes
+     */
+    public static int encodedLength(CharSequence text){
+        int length = 0;
+        int n = text.length();
+        for(int i = 0; i < n; i++){
+            char c = text.charAt(i);
+            if(c < 0x80){
+                length++;
+            }else if(c < 0x800){
+                length += 2;
+            }else if(Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(text.charAt(i + 1))){
+                length += 4;
+                i++;
+            }else{
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Decode a whole message into a new string.
+     * @param data the array holding the message
+     * @param off the offset of the message in data
+     * @param len the length of the message
+     * @return the decoded message
+     * @throws MalformedInputException if the message isn't valid UTF-8.
+     */
+    public static String decode(byte[] data, int off, int len) throws MalformedInputException {
+        Decoder decoder = new Decoder();
+        CharBuffer chars = CharBuffer.allocate(len + 1);
+        decoder.decode(data, off, len, chars);
+        decoder.finish();
+        chars.flip();
+        return chars.toString();
+    }
+
+    /**
+     * Decodes UTF-8 a piece at a time into a CharBuffer.
+     * <p>
+     * One decoder can be reused for any number of messages, as {@link #finish()} resets it.
+     * </p>
+     */
+    public static final class Decoder {
+
+        private int needed = 0;
+        private int seen = 0;
+        private int codePoint = 0;
+        private int lower = 0x80;
+        private int upper = 0xBF;
+
+        /**
+         * Decode as much as fits into a CharBuffer. Decoding stops early when the buffer has less than 2 chars of room left, so a supplementary character always fits.
+         * @param in the array holding the bytes
+         * @param off the offset of the first byte in in
+         * @param len the number of bytes
+         * @param out the buffer to put the chars into
+         * @return the number of bytes used, which is less than len only if out filled up
+         * @throws MalformedInputException if the bytes aren't valid UTF-8.
+         */
+        public int decode(byte[] in, int off, int len, CharBuffer out) throws MalformedInputException {
+            int i = off;
+            int end = off + len;
+            while(i < end && out.remaining() >= 2){
+                int b = in[i] & 0xFF;
+                if(needed == 0 && b < 0x80){
+                    //Runs of ASCII are the common case, so they skip the state machine
+                    int run = Math.min(end - i, out.remaining());
+                    int runEnd = i + run;
+                    while(i < runEnd && in[i] >= 0){
+                        out.put((char) in[i]);
+                        i++;
+                    }
+                    continue;
+                }
+                int cp = step(b);
+                i++;
+                if(cp >= 0x10000){
+                    out.put(Character.toChars(cp));
+                }else if(cp >= 0){
+                    out.put((char) cp);
+                }
+            }
+            return i - off;
+        }
+
+        /**
+         * Check bytes without keeping the chars.
+         * @return false if they aren't valid UTF-8
+         */
+        boolean validate(byte[] in, int off, int len){
+            try {
+                for(int i = off; i < off + len; i++){
+                    int b = in[i];
+                    if(needed == 0 && b >= 0){
+                        continue;
+                    }
+                    step(b & 0xFF);
+                }
+            } catch (MalformedInputException e) {
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * @return true if the bytes so far don't end part way through a character
+         */
+        public boolean isComplete(){
+            return needed == 0;
+        }
+
+        /**
+         * End the message and reset the decoder for the next one.
+         * @throws MalformedInputException if the message ended part way through a character.
+         */
+        public void finish() throws MalformedInputException {
+            boolean complete = needed == 0;
+            int pending = seen + 1;
+            reset();
+            if(!complete){
+                throw new MalformedInputException(pending);
+            }
+        }
+
+        /**
+         * Forget any partial character and start again.
+         */
+        public void reset(){
+            needed = 0;
+            seen = 0;
+            codePoint = 0;
+            lower = 0x80;
+            upper = 0xBF;
+        }
+
+        /**
+         * Feed one byte through the decoder, following the WHATWG decoding algorithm.
+         * @return the finished code point, or -1 if the byte was part of an unfinished sequence
+         */
+        private int step(int b) throws MalformedInputException {
+            if(needed == 0){
+                if(b < 0x80){
+                    return b;
+                }else if(b >= 0xC2 && b <= 0xDF){
+                    needed = 1;
+                    codePoint = b & 0x1F;
+                }else if(b >= 0xE0 && b <= 0xEF){
+                    if(b == 0xE0){
+                        lower = 0xA0;
+                    }else if(b == 0xED){
+                        //Would be a surrogate
+                        upper = 0x9F;
+                    }
+                    needed = 2;
+                    codePoint = b & 0x0F;
+                }else if(b >= 0xF0 && b <= 0xF4){
+                    if(b == 0xF0){
+                        lower = 0x90;
+                    }else if(b == 0xF4){
+                        //Would be past U+10FFFF
+                        upper = 0x8F;
+                    }
+                    needed = 3;
+                    codePoint = b & 0x07;
+                }else{
+                    reset();
+                    throw new MalformedInputException(1);
+                }
+                return -1;
+            }
+            if(b < lower || b > upper){
+                int length = seen + 1;
+                reset();
+                throw new MalformedInputException(length);
+            }
+            lower = 0x80;
+            upper = 0xBF;
+            codePoint = codePoint << 6 | (b & 0x3F);
+            if(++seen < needed){
+                return -1;
+            }
+            int cp = codePoint;
+            needed = 0;
+            seen = 0;
+            codePoint = 0;
+            return cp;
+        }
+    }
+
+    /**
+     * Encodes a string into UTF-8 a buffer at a time, without copying it into a byte array first.
+     * <p>
+     * An unpaired surrogate can't be encoded, so it is written as U+FFFD instead.
+     * </p>
+     */
+    public static final class Encoder {
+
+        private CharSequence text;
+        private int index;
+
+        /**
+         * Start encoding a string.
+         * @param text the string to encode
+         */
+        public void reset(CharSequence text){
+            this.text = text;
+            this.index = 0;
+        }
+
+        /**
+         * @return true once the whole string has been encoded
+         */
+        public boolean isDone(){
+            return text == null || index == text.length();
+        }
+
+        /**
+         * Encode as much of the string as fits. A character is never split, so this stops when the next one doesn't fit in what's left.
+         * @param out the array to encode into
+         * @param off the offset to start at in out
+         * @param len the room in out, which must be at least 4 bytes to be sure of progress
+         * @return the number of bytes written
+         */
+        public int encode(byte[] out, int off, int len){
+            int p = off;
+            int end = off + len;
+            int n = text.length();
+            while(index < n){
+                char c = text.charAt(index);
+                if(c < 0x80){
+                    if(p == end){
+                        break;
+                    }
+                    out[p++] = (byte) c;
+                    index++;
+                }else if(c < 0x800){
+                    if(end - p < 2){
+                        break;
+                    }
+                    out[p++] = (byte) (0xC0 | c >> 6);
+                    out[p++] = (byte) (0x80 | (c & 0x3F));
+                    index++;
+                }else if(Character.isHighSurrogate(c) && index + 1 < n && Character.isLowSurrogate(text.charAt(index + 1))){
+                    if(end - p < 4){
+                        break;
+                    }
+                    int cp = Character.toCodePoint(c, text.charAt(index + 1));
+                    out[p++] = (byte) (0xF0 | cp >> 18);
+                    out[p++] = (byte) (0x80 | (cp >> 12 & 0x3F));
+                    out[p++] = (byte) (0x80 | (cp >> 6 & 0x3F));
+                    out[p++] = (byte) (0x80 | (cp & 0x3F));
+                    index += 2;
+                }else{
+                    if(end - p < REPLACEMENT_LENGTH){
+                        break;
+                    }
+                    if(c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE){
+                        c = REPLACEMENT;
+                    }
+                    out[p++] = (byte) (0xE0 | c >> 12);
+                    out[p++] = (byte) (0x80 | (c >> 6 & 0x3F));
+                    out[p++] = (byte) (0x80 | (c & 0x3F));
+                    index++;
+                }
+            }
+            return p - off;
+        }
+    }
+}
@@ -1,180 +1,202 @@
 package ca.awoo.websoc;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.SocketException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.channels.SocketChannel;
-import java.nio.charset.Charset;
-import java.security.MessageDigest;
+import java.nio.charset.MalformedInputException;
 import java.security.NoSuchAlgorithmException;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLSocket;
 
-import ca.awoo.fwoabl.Base64;
 import ca.awoo.fwoabl.function.Consumer;
-import ca.awoo.fwoabl.function.Function;
-import ca.awoo.praser.Context;
-import ca.awoo.praser.ParseException;
-import ca.awoo.praser.Parser;
-
-import static ca.awoo.praser.Combinators.*;
-import static ca.awoo.praser.Text.*;
 
+/**
+ * A blocking websocket client connection, usable as a {@link Socket}.
+ * <p>
+ * A connection has one reader and any number of writers. Reading, through {@link #nextMessage()}, {@link #readFrame()} or the input stream, must be done by one thread at a time.
+ * Writing is safe from any number of threads at once: every frame is written whole, whether directly or through the write queue, so frames never interleave on the wire.
+ * A message sent in fragments, by {@link #startMessage(int)} or a long {@link #sendText(CharSequence)}, holds back other threads' messages until it is finished, though pongs from the reader can still go between its fragments.
+ * </p>
+ * <p>
+ * Read listeners are called on the reader thread, or on an Executor given with {@link #setDispatch(Dispatch)}, and write listeners on whichever thread is writing. Listeners can be added from any thread at any time.
+ * </p>
+ * <p>
+ * A connection is {@link State#OPEN} once it has been constructed. Either end can start the close handshake, which makes it {@link State#CLOSING}, and once the close frames have been swapped, or the peer has taken too long or gone away, the socket is closed and it is {@link State#CLOSED}.
+ * A connection that fails its handshake, or is redirected, has its socket closed before the constructor returns.
+ * </p>
+ */
 public class WebSocket extends Socket {
 
     private final Socket socket;
     private final URI uri;
+    private final FrameDecoder decoder;
+    private final FrameEncoder encoder;
+    private final WriteQueue writeQueue;
+    private final WebSocketConnector connector;
+    private final PerMessageDeflate compression;
+    private final DeflateCodec codec;
+    private final Metrics metrics = Metrics.connection();
+
+    /**
+     * Where a connection is in its life.
+     */
+    public enum State {
+        /** Messages can be sent and received. */
+        OPEN,
+        /** A close frame has been sent and no more messages can be; messages can still be read until the peer's close frame arrives. */
+        CLOSING,
+        /** The close handshake is over, or was given up on, and the socket is closed. */
+        CLOSED
+    }
+
+    private final Object stateLock = new Object();
+    private volatile State state = State.OPEN;
+    private volatile int closeTimeout = 5000;
+    private volatile int closeCode = -1;
+    private volatile String closeReason;
 
     private static class Connection{
         public final Socket socket;
         public final URI uri;
+        public final DeflateCodec codec;
+        //Bytes read along with the handshake response, which belong to the first frames
+        public final byte[] rest;
 
         public Connection(Socket socket, URI uri){
+            this(socket, uri, null, null);
+        }
+
+        public Connection(Socket socket, URI uri, DeflateCodec codec, byte[] rest){
             this.socket = socket;
             this.uri = uri;
+            this.codec = codec;
+            this.rest = rest;
         }
     }
 
     public WebSocket(URI uri) throws WebSocketException{
+        this(uri, null);
+    }
+
+    /**
+     * Connect to a websocket server, using the given SSLContext for wss.
+     * @param uri the ws or wss URI to connect to
+     * @param sslContext the context to create TLS sockets from, or null to use a default context
+     * @throws WebSocketException if the connection or handshake failed.
+     */
+    public WebSocket(URI uri, SSLContext sslContext) throws WebSocketException{
+        this(uri, sslContext, null);
+    }
+
+    /**
+     * Connect to a websocket server, offering permessage-deflate compression.
+     * <p>
+     * If the server accepts, every message written to the output stream is compressed and compressed messages are decompressed before they reach the input stream.
+     * </p>
+     * @param uri the ws or wss URI to connect to
+     * @param sslContext the context to create TLS sockets from, or null to use a default context
+     * @param compression the compression settings to offer, or null to offer none
+     * @throws WebSocketException if the connection or handshake failed.
+     */
+    public WebSocket(URI uri, SSLContext sslContext, PerMessageDeflate compression) throws WebSocketException{
+        this(sslContext == null ? WebSocketConnector.getDefault() : WebSocketConnector.forContext(sslContext), uri, compression);
+    }
+
+    /**
+     * Connect to a websocket server with a connector's SSLContext.
+     * @param connector the connector opening the socket
+     * @param uri the ws or wss URI to connect to
+     * @param compression the permessage-deflate settings to offer, or null to not offer compression
+     * @throws WebSocketException if the connection or handshake failed.
+     */
+    WebSocket(WebSocketConnector connector, URI uri, PerMessageDeflate compression) throws WebSocketException{
+        this.connector = connector;
+        this.compression = compression;
         Connection con;
+        long start = System.nanoTime();
         try {
             con = connect(uri);
         } catch (NoSuchAlgorithmException e) {
+            connector.failed();
             throw new WebSocketException("No SHA-1 algorithm", e);
         } catch (IOException e) {
+            connector.failed();
             throw new WebSocketException("IO error", e);
-        } catch (ParseException e) {
-            throw new WebSocketException("Parse error", e);
         }
         this.uri = con.uri;
         this.socket = con.socket;
+        this.codec = con.codec;
+        try {
+            this.decoder = new FrameDecoder(socket.getInputStream(), con.rest);
+            this.encoder = new FrameEncoder(socket.getOutputStream());
+            this.writeQueue = new WriteQueue(socket.getOutputStream(), "websoc-writer-" + this.uri.getHost(), metrics);
+        } catch (IOException e) {
+            closeQuietly(socket);
+            throw new WebSocketException("IO error", e);
+        }
+        decoder.setMetrics(metrics);
+        decoder.setMaxFrameSize(limits.getMaxFrameSize());
+        metrics.handshake(System.nanoTime() - start);
+        metrics.register();
     }
 
-    private Connection connect(URI uri) throws IOException, ParseException, NoSuchAlgorithmException{
-        if(uri.getScheme().equals("http")){
-            try {
-                uri = new URI("ws", uri.getUserInfo(), uri.getHost(), uri.getPort(), uri.getPath(), uri.getQuery(), uri.getFragment());
-            } catch (URISyntaxException e) {
-                throw new RuntimeException(e);
-            }
-        }
-        if(uri.getScheme().equals("https")){
-            try {
-                uri = new URI("wss", uri.getUserInfo(), uri.getHost(), uri.getPort(), uri.getPath(), uri.getQuery(), uri.getFragment());
-            } catch (URISyntaxException e) {
-                throw new RuntimeException(e);
-            }
-        }
-        Socket socket;
-        if(uri.getScheme().equals("wss")){
-            try {
-                int port = uri.getPort();
-                if(port == -1){
-                    port = 443;
-                }
-                SSLContext sslContext = SSLContext.getInstance("TLS");
-                sslContext.init(null, null, null);
-                SSLSocket sslSocket = (SSLSocket) sslContext.getSocketFactory().createSocket(uri.getHost(), port);
-                sslSocket.startHandshake();
-                socket = sslSocket;
-            } catch (Exception e) {
-                throw new RuntimeException(e);
-            }
-        } else if(uri.getScheme().equals("ws")) {
-            try {
-                int port = uri.getPort();
-                if(port == -1){
-                    port = 80;
-                }
-                socket = new Socket(uri.getHost(), port);
-            } catch (Exception e) {
-                throw new RuntimeException(e);
+    private Connection connect(URI uri) throws IOException, NoSuchAlgorithmException{
+        uri = Handshake.normalize(uri);
+        Socket socket = connector.open(uri);
+        boolean ok = false;
+        try {
+            Connection connection = new Connection(socket, uri);
+            String keyString = Handshake.newKey();
+            String accept = Handshake.accept(keyString);
+            sendHandshake(keyString, connection);
+            Connection finalConnection = receiveHandshake(accept, connection);
+            ok = true;
+            return finalConnection;
+        } finally {
+            if(!ok){
+                closeQuietly(socket);
             }
-        }else{
-            throw new IllegalArgumentException("Invalid scheme: " + uri.getScheme());
         }
-        Connection connection = new Connection(socket, uri);
-        byte[] key = new byte[16];
-        for(int i = 0; i < 16; i++){
-            //TODO: I don't think Math.random() is on the ietf's list of suitably high-entropy random sources
-            key[i] = (byte)(Math.random() * 256);
+    }
+
+    private static void closeQuietly(Socket socket){
+        try {
+            socket.close();
+        } catch (IOException e) {
+            //Nothing more can be done with it
         }
-        String keyString = Base64.getEncoder().encode(key);
-        //This magic UUID is defined in the spec
-        String responseString = keyString + "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
-        byte[] sha1 = MessageDigest.getInstance("SHA-1").digest(responseString.getBytes("UTF-8"));
-        String accept = Base64.getEncoder().encode(sha1);
-        sendHandshake(keyString, connection);
-        Connection finalConnection = receiveHandshake(accept, connection);
-        return finalConnection;
     }
 
     private void sendHandshake(String key, Connection con) throws IOException{
-        PrintStream out = new PrintStream(con.socket.getOutputStream(), true, "UTF-8");
-        String path = con.uri.getPath();
-        if(path.length() == 0){
-            path = "/";
-        }
-        out.println("GET " + path + " HTTP/1.1");
-        out.println("Host: " + con.uri.getHost());
-        out.println("Origin: " + "https://" + con.uri.getHost() + "/");//TODO: handle origin better
-        out.println("Upgrade: websocket");
-        out.println("Connection: Upgrade");
-        out.println("Sec-WebSocket-Key: " + key);
-        out.println("Sec-WebSocket-Version: 13");
-        out.println();
-    }
-
-    private static class Header{
-        public final String name;
-        public final String value;
-
-        public Header(String name, String value){
-            this.name = name;
-            this.value = value;
-        }
-    }
-
-    @SuppressWarnings("unchecked")
-    private Connection receiveHandshake(String expectedKey, Connection con) throws IOException, ParseException, NoSuchAlgorithmException{
-        //Parse http response
-        Context<Character> context = contextFromStream(con.socket.getInputStream(), Charset.forName("UTF-8"));
-        tag("HTTP/1.1 ").parse(context);
-        int code = integer().parse(context);
-        String message = stringFold(many(not(one('\r')))).parse(context);
-        tag("\r\n").parse(context);
-        Parser<Character, String> headerName = stringFold(oneOrMore(or(letter(), oneOf("-"))));
-        Parser<Character, Character> printable = oneOf(" !\"#$%&'()*+,-./0123456789:;<=>?@ABCDEFGHIJKLMNOPQRSTUVWXYZ[\\]^_`abcdefghijklmnopqrstuvwxyz{|}~");
-        Parser<Character, String> headerValue = stringFold(oneOrMore(printable));
-        Parser<Character, Header> header = map(seq(headerName, tag(": "), headerValue, tag("\r\n")), new Function<List<String>,Header>() {
-            public Header invoke(List<String> l) {
-                return new Header(l.get(0), l.get(2));
-            }
-        });
-        Parser<Character, List<Header>> headers = many(header);
-        List<Header> headerList = headers.parse(context);
-        Map<String, String> headerMap = new HashMap<String, String>();
-        for(Header h : headerList){
-            headerMap.put(h.name.toLowerCase(), h.value);
-        }
+        OutputStream out = con.socket.getOutputStream();
+        out.write(Handshake.request(con.uri, key, compression == null ? null : compression.offer()).getBytes("UTF-8"));
+        out.flush();
+    }
 
+    private Connection receiveHandshake(String expectedKey, Connection con) throws IOException, NoSuchAlgorithmException{
+        Handshake.Head head = Handshake.read(con.socket.getInputStream());
+        int code = head.status();
         if(code >= 300 && code <= 399){
             //Redirect
-            String location = headerMap.get("location");
+            String location = head.header("location");
             if(location == null){
                 throw new IOException("Redirect without location header");
             }
@@ -184,99 +206,348 @@ public class WebSocket extends Socket {
             } catch (URISyntaxException e) {
                 throw new IOException("Invalid redirect location: " + location);
             }
+            //The redirect is followed on a new connection, so this one is done with
+            con.socket.close();
             return connect(newUri);
         }
         if(code != 101){
-            throw new IOException("Invalid response code: " + code + " " + message);
+            throw new IOException("Invalid response: " + head.startLine);
         }
 
-        boolean upgrade = "websocket".equalsIgnoreCase(headerMap.get("upgrade"));
-        boolean connection = "upgrade".equalsIgnoreCase(headerMap.get("connection"));
-        boolean accept = expectedKey.equals(headerMap.get("sec-websocket-accept"));
+        boolean upgrade = "websocket".equalsIgnoreCase(head.header("upgrade"));
+        boolean connection = head.headerContains("connection", "upgrade");
+        boolean accept = expectedKey.equals(head.header("sec-websocket-accept"));
         if(!upgrade || !connection || !accept){
             throw new IOException("Invalid handshake");
         }
-        tag("\r\n").parse(context);
-        return con;
+        String extensions = head.header("sec-websocket-extensions");
+        DeflateCodec codec = null;
+        if(compression != null){
+            codec = compression.accept(extensions);
+        }else if(extensions != null){
+            throw new IOException("Server accepted an extension that wasn't offered: " + extensions);
+        }
+        return new Connection(con.socket, con.uri, codec, head.rest);
     }
 
     public static class Frame {
+        /**
+         * The first reserved bit, shifted to sit alongside an opcode in a frame's first byte. permessage-deflate sets it on compressed messages.
+         */
+        public static final int RSV1 = 0x40;
+
+        private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
         private final boolean fin;
+        private final int rsv;
         private final int opcode;
         private final boolean masked;
         private final long length;
         private final byte[] mask;
         private final byte[] data;
+        private final PooledBuffer payload;
+
+        private static final ThreadLocal<byte[]> SCRATCH = new ThreadLocal<byte[]>(){
+            protected byte[] initialValue(){
+                return new byte[8192];
+            }
+        };
 
         public Frame(boolean fin, int opcode, boolean masked, long length, byte[] mask, byte[] data){
+            this(fin, 0, opcode, masked, length, mask, data);
+        }
+
+        /**
+         * @param fin whether this is the final frame of a message
+         * @param rsv the three reserved bits, from 0 to 7 with RSV1 as the highest
+         * @param opcode the frame's opcode
+         * @param masked whether the payload was masked on the wire
+         * @param length the length of the payload
+         * @param mask the masking key
+         * @param data the unmasked payload
+         */
+        public Frame(boolean fin, int rsv, int opcode, boolean masked, long length, byte[] mask, byte[] data){
+            this(fin, rsv, opcode, masked, length, mask, data, null);
+        }
+
+        private Frame(boolean fin, int rsv, int opcode, boolean masked, long length, byte[] mask, byte[] data, PooledBuffer payload){
             this.fin = fin;
+            this.rsv = rsv;
             this.opcode = opcode;
             this.masked = masked;
             this.length = length;
             this.mask = mask;
             this.data = data;
+            this.payload = payload;
         }
 
+        /**
+         * Create a frame whose payload is in a buffer from a {@link BufferAllocator}. The frame takes over the caller's reference to the buffer.
+         */
+        static Frame pooled(boolean fin, int rsv, int opcode, boolean masked, long length, byte[] mask, PooledBuffer payload){
+            return new Frame(fin, rsv, opcode, masked, length, mask, null, payload);
+        }
+
+        /**
+         * Read a single frame from a stream without reading past the end of it.
+         * <p>
+         * This reads the header a byte at a time, so it is slow on unbuffered streams. Use a {@link FrameDecoder} when it can own the stream.
+         * </p>
+         * @param is the stream to read from
+         * @return the frame read from the stream
+         * @throws IOException if there was a problem reading the frame.
+         */
         public static Frame read(InputStream is) throws IOException{
-            int next = is.read();
+            return read(is, null);
+        }
+
+        /**
+         * Read a single frame from a stream into a buffer from an allocator, without reading past the end of it.
+         * <p>
+         * The frame must be {@link #release() released} once it has been used.
+         * </p>
+         * @param is the stream to read from
+         * @param allocator the allocator to take the payload's buffer from, or null to read it into an array
+         * @return the frame read from the stream
+         * @throws IOException if there was a problem reading the frame.
+         */
+        public static Frame read(InputStream is, BufferAllocator allocator) throws IOException{
+            return read(is, allocator, Integer.MAX_VALUE);
+        }
+
+        /**
+         * Read a single frame from a stream without reading past the end of it, refusing it before anything is allocated for its payload if the payload is larger than a limit.
+         * <p>
+         * A pooled frame must be {@link #release() released} once it has been used.
+         * </p>
+         * @param is the stream to read from
+         * @param allocator the allocator to take the payload's buffer from, or null to read it into an array
+         * @param maxLength the largest payload to accept
+         * @return the frame read from the stream
+         * @throws MessageTooBigException if the frame's payload is longer than maxLength.
+         * @throws IOException if there was a problem reading the frame, or the stream ended part way through it.
+         */
+        public static Frame read(InputStream is, BufferAllocator allocator, long maxLength) throws IOException{
+            int next = readByte(is);
             boolean fin = (next & 0x80) != 0;
+            int rsv = (next >> 4) & 0x07;
             int opcode = next & 0x0F;
-            next = is.read();
+            next = readByte(is);
             boolean mask = (next & 0x80) != 0;
-            int length = next & 0x7F;
+            long length = next & 0x7F;
             if(length == 126){
-                length = is.read() << 8 | is.read();
+                length = readByte(is) << 8 | readByte(is);
             }else if(length == 127){
-                length = is.read() << 56 | is.read() << 48 | is.read() << 40 | is.read() << 32 | is.read() << 24 | is.read() << 16 | is.read() << 8 | is.read();
+                length = 0;
+                for(int i = 0; i < 8; i++){
+                    length = length << 8 | readByte(is);
+                }
+            }
+            if(length < 0 || length > Integer.MAX_VALUE){
+                throw new IOException("Frame too large: " + length);
+            }
+            if(length > maxLength){
+                throw new MessageTooBigException("Frame larger than " + maxLength + " bytes: " + length);
             }
             byte[] maskKey = new byte[4];
             if(mask){
-                is.read(maskKey);
+                readFully(is, maskKey);
+            }
+            if(allocator != null){
+                PooledBuffer payload = allocator.allocate((int) length);
+                try {
+                    readPayload(is, mask ? maskKey : null, payload.buffer());
+                } catch (IOException e) {
+                    payload.release();
+                    throw e;
+                }
+                return pooled(fin, rsv, opcode, mask, length, maskKey, payload);
+            }
+            byte[] data = new byte[(int) length];
+            readFully(is, data);
+            Masking.mask(maskKey, data, 0, data.length);
+            return new Frame(fin, rsv, opcode, mask, length, maskKey, data);
+        }
+
+        private static int readByte(InputStream is) throws IOException{
+            int b = is.read();
+            if(b == -1){
+                throw new EOFException("Stream ended part way through a frame header");
             }
-            byte[] data = new byte[length];
+            return b;
+        }
+
+        private static void readFully(InputStream is, byte[] b) throws IOException{
             int soFar = 0;
-            while(soFar < length){
-                soFar += is.read(data, soFar, length - soFar);
+            while(soFar < b.length){
+                int read = is.read(b, soFar, b.length - soFar);
+                if(read == -1){
+                    throw new EOFException("Stream ended part way through a frame");
+                }
+                soFar += read;
             }
-            for(int i = 0; i < data.length; i++){
-                data[i] ^= maskKey[i % 4];
+        }
+
+        /**
+         * Fill a buffer from a stream, unmasking as it goes, and flip it.
+         */
+        private static void readPayload(InputStream is, byte[] mask, ByteBuffer dst) throws IOException{
+            int start = dst.position();
+            if(dst.hasArray()){
+                byte[] array = dst.array();
+                int off = dst.arrayOffset() + start;
+                int len = dst.remaining();
+                int soFar = 0;
+                while(soFar < len){
+                    int read = is.read(array, off + soFar, len - soFar);
+                    if(read == -1){
+                        throw new EOFException("Stream ended part way through a frame");
+                    }
+                    soFar += read;
+                }
+                if(mask != null){
+                    Masking.mask(mask, 0, array, off, array, off, len);
+                }
+                dst.position(start + len);
+            }else{
+                //Direct memory can only be read into through an array
+                byte[] scratch = SCRATCH.get();
+                while(dst.hasRemaining()){
+                    int read = is.read(scratch, 0, Math.min(scratch.length, dst.remaining()));
+                    if(read == -1){
+                        throw new EOFException("Stream ended part way through a frame");
+                    }
+                    if(mask != null){
+                        Masking.mask(mask, dst.position() - start, scratch, 0, scratch, 0, read);
+                    }
+                    dst.put(scratch, 0, read);
+                }
             }
-            return new Frame(fin, opcode, mask, length, maskKey, data);
+            dst.flip();
+            dst.position(start);
         }
 
+        /**
+         * Write this frame to a stream. The frame's data is not modified.
+         * <p>
+         * The header and payload are put together in a buffer the thread reuses, so a frame of up to 8KB goes to the stream in a single write and a larger one in 8KB pieces.
+         * An unmasked payload past the first piece is written straight from the frame's data, and a payload in a pooled buffer is written without copying it out to an array first.
+         * </p>
+         * @param os the stream to write to
+         * @throws IOException if there was a problem writing the frame.
+         */
         public void write(OutputStream os) throws IOException{
-            os.write((fin ? 0x80 : 0) | opcode);
-            if(length < 126){
-                os.write((int) (length & 0x7F) | (masked ? 0x80 : 0));
-            }else if(length < 65536){
-                os.write(126 | (masked ? 0x80 : 0));
-                os.write((int) (length >> 8));
-                os.write((int) length);
-            }else{
-                os.write(127 | (masked ? 0x80 : 0));
-                os.write((int)(length >> 56));
-                os.write((int)(length >> 48));
-                os.write((int)(length >> 40));
-                os.write((int)(length >> 32));
-                os.write((int)(length >> 24));
-                os.write((int)(length >> 16));
-                os.write((int)(length >> 8));
-                os.write((int)length);
+            byte[] scratch = SCRATCH.get();
+            byte[] key = masked ? mask : null;
+            int len = (int) length;
+            byte[] array = data;
+            int base = 0;
+            ByteBuffer direct = null;
+            if(array == null && payload != null){
+                ByteBuffer buffer = payload.buffer();
+                if(buffer.hasArray()){
+                    array = buffer.array();
+                    base = buffer.arrayOffset() + buffer.position();
+                }else{
+                    direct = buffer.duplicate();
+                }
             }
-            if(masked){
-                os.write(mask);
+            int p = FrameEncoder.writeHeader(scratch, 0, fin, opcode | rsv << 4, key, len);
+            int written = 0;
+            do {
+                int chunk = Math.min(len - written, scratch.length - p);
+                if(direct != null){
+                    direct.get(scratch, p, chunk);
+                    if(key != null){
+                        Masking.mask(key, written, scratch, p, scratch, p, chunk);
+                    }
+                }else if(key == null){
+                    if(p == 0){
+                        //Past the header an unmasked payload needs no copying
+                        os.write(array, base + written, len - written);
+                        return;
+                    }
+                    System.arraycopy(array, base + written, scratch, p, chunk);
+                }else{
+                    Masking.mask(key, written, array, base + written, scratch, p, chunk);
+                }
+                os.write(scratch, 0, p + chunk);
+                written += chunk;
+                p = 0;
+            } while(written < len);
+        }
+
+        public boolean isFin(){
+            return fin;
+        }
+
+        /**
+         * @return the three reserved bits, from 0 to 7 with RSV1 as the highest
+         */
+        public int getRsv(){
+            return rsv;
+        }
+
+        public int getOpcode(){
+            return opcode;
+        }
+
+        public boolean isMasked(){
+            return masked;
+        }
+
+        public long getLength(){
+            return length;
+        }
+
+        public byte[] getMask(){
+            return mask;
+        }
+
+        /**
+         * @return the payload. For a frame read into a buffer from a {@link BufferAllocator} this is a new copy of the buffer each time; {@link #getPayload()} avoids the copy
+         */
+        public byte[] getData(){
+            if(data == null && payload != null){
+                ByteBuffer buffer = payload.buffer().duplicate();
+                byte[] copy = new byte[buffer.remaining()];
+                buffer.get(copy);
+                return copy;
             }
-            for(int i = 0; i < length; i++){
-                data[i] ^= mask[i % 4];
+            return data;
+        }
+
+        /**
+         * @return the payload of a frame read into a buffer from a {@link BufferAllocator}, from its position to its limit, or null if the payload is in an array
+         */
+        public ByteBuffer getPayload(){
+            return payload == null ? null : payload.buffer();
+        }
+
+        /**
+         * @return true if the payload is in a buffer from a {@link BufferAllocator}, which has to be released
+         */
+        public boolean isPooled(){
+            return payload != null;
+        }
+
+        /**
+         * Give the payload's buffer back to its allocator. Frames whose payload is in an array don't need releasing, and this does nothing for them.
+         * Neither the frame's payload nor anything read from {@link #getPayload()} may be used afterwards.
+         * @throws IllegalStateException if the frame has already been released.
+         */
+        public void release(){
+            if(payload != null){
+                payload.release();
             }
-            os.write(data);
         }
 
         private String bytesToString(byte[] bytes){
-            StringBuilder sb = new StringBuilder();
+            //Each byte is two digits and a separator, formatted by table lookup rather than String.format
+            StringBuilder sb = new StringBuilder(bytes.length * 4 + 2);
             sb.append("[");
             for(int i = 0; i < bytes.length; i++){
-                sb.append(String.format("%02X", bytes[i]));
+                sb.append(HEX[(bytes[i] >> 4) & 0x0F]).append(HEX[bytes[i] & 0x0F]);
                 if(i < bytes.length - 1){
                     sb.append(", ");
                 }
@@ -285,26 +556,44 @@ public class WebSocket extends Socket {
             return sb.toString();
         }
 
+        /**
+         * @return a text frame's payload as text, or as bytes if it isn't valid UTF-8 on its own
+         */
+        private String dataToString(){
+            byte[] data = getData();
+            if(opcode == 1 && rsv == 0){
+                try {
+                    return Utf8.decode(data, 0, data.length);
+                } catch (MalformedInputException e) {
+                    //Compressed, or a character split across fragments
+                }
+            }
+            return bytesToString(data);
+        }
+
         @Override
         public String toString(){
             StringBuilder sb = new StringBuilder();
             sb.append("Frame(\n");
             sb.append("  fin: ").append(fin).append("\n");
+            sb.append("  rsv: ").append(rsv).append("\n");
             sb.append("  opcode: ").append(opcode).append("\n");
             sb.append("  masked: ").append(masked).append("\n");
             sb.append("  length: ").append(length).append("\n");
             sb.append("  mask: ").append(bytesToString(mask)).append("\n");
-            if(opcode == 1){
-                sb.append("  data: ").append(new String(data)).append("\n");
+            if(data == null && payload == null){
+                sb.append("  data: (streamed)\n");
             }else{
-                sb.append("  data: ").append(bytesToString(data)).append("\n");
+                sb.append("  data: ").append(dataToString()).append("\n");
             }
             sb.append(")");
             return sb.toString();
         }
     }
 
-    private final Set<Consumer<Frame>> readListeners = new HashSet<Consumer<Frame>>();
+    private final Set<Consumer<Frame>> readListeners = new CopyOnWriteArraySet<Consumer<Frame>>();
+    private volatile Dispatch dispatch;
+    private volatile SerialExecutor listenerQueue;
 
     /**
      * Read a frame from the WebSocket. This method will block until a frame is read.
@@ -315,14 +604,43 @@ public class WebSocket extends Socket {
      * Be careful using this with getInputStream, as reading frames with readFrame will stop them from getting read by the InputStream.
      * </p>
      * @return the frame read from the websocket
+     * @throws MessageTooBigException if the frame is larger than the {@link #getReceiveLimits() limits} allow, which fails the connection.
      * @throws IOException if there was a problem reading the frame.
      */
     public Frame readFrame() throws IOException {
-        Frame frame = Frame.read(socket.getInputStream());
-        for(Consumer<Frame> listener : readListeners){
-            listener.invoke(frame);
+        return readFrame(null);
+    }
+
+    /**
+     * Read a frame from the WebSocket into a buffer from an allocator, so the payload isn't read into a new array.
+     * <p>
+     * The frame must be {@link Frame#release() released} once it has been used. Otherwise this is the same as {@link #readFrame()}.
+     * </p>
+     * @param allocator the allocator to take the payload's buffer from, or null to read it into an array
+     * @return the frame read from the websocket
+     * @throws IOException if there was a problem reading the frame.
+     */
+    public Frame readFrame(BufferAllocator allocator) throws IOException {
+        readLock.lock();
+        try {
+            Frame frame;
+            try {
+                frame = decoder.read(allocator);
+            } catch (MessageTooBigException e) {
+                throw tooBig(e);
+            }
+            if(frame.getOpcode() == 10){
+                pong(frame.getData());
+            }
+            fireRead(frame);
+            if(frame.getOpcode() == 8){
+                closeReceived = true;
+                peerClosed(frame.getData());
+            }
+            return frame;
+        } finally {
+            readLock.unlock();
         }
-        return frame;
     }
 
     /**
@@ -338,21 +656,92 @@ public class WebSocket extends Socket {
         readListeners.add(listener);
     }
 
-    private final Set<Consumer<Frame>> writeListeners = new HashSet<Consumer<Frame>>();
+    private final Set<Consumer<Frame>> writeListeners = new CopyOnWriteArraySet<Consumer<Frame>>();
 
     /**
      * Write a frame to the WebSocket.
      * <p>
      * This method will also fire any listeners that have been added with onWriteFrame.
      * </p>
+     * <p>
+     * A data frame waits for any message another thread is sending in fragments, while a control frame can go between the fragments.
+     * Sending a fragmented message of your own with this method is up to you to keep in one piece; {@link #startMessage(int)} does it for you.
+     * </p>
      * @param frame the frame to write
      * @throws IOException if there was a problem writing the frame.
      */
     public void writeFrame(Frame frame) throws IOException {
-        for(Consumer<Frame> listener : writeListeners){
-            listener.invoke(frame);
+        long start = System.nanoTime();
+        int opcode = frame.getOpcode();
+        if(opcode == 8){
+            startClosing();
+        }
+        fireWrite(frame);
+        if(opcode == 9 || opcode == 10){
+            writeQueue.beginFrame();
+        }else{
+            writeQueue.beginWrite();
+        }
+        try {
+            checkOpen(opcode);
+            encoder.write(frame);
+        } finally {
+            writeQueue.endWrite();
+        }
+        metrics.frameOut(frame.getOpcode(), frame.getLength());
+        metrics.written(System.nanoTime() - start);
+    }
+
+    /**
+     * Write a frame straight from a slice of an array, without copying it unless a write listener needs a Frame.
+     * @param fragment true if this is a fragment of the message the calling thread has open, which doesn't wait for the message to finish
+     */
+    private void writeFrame(boolean fin, int opcode, byte[] mask, byte[] data, int off, int len, boolean fragment) throws IOException {
+        long start = System.nanoTime();
+        if(!writeListeners.isEmpty()){
+            byte[] copy = new byte[len];
+            System.arraycopy(data, off, copy, 0, len);
+            fireWrite(new Frame(fin, (opcode >> 4) & 0x07, opcode & 0x0F, mask != null, len, mask != null ? mask : new byte[4], copy));
+        }
+        int op = opcode & 0x0F;
+        //Pings and pongs can go between fragments and ahead of queued frames, but a close frame goes after everything else
+        if(fragment || op == 9 || op == 10){
+            writeQueue.beginFrame();
+        }else{
+            writeQueue.beginWrite();
+        }
+        try {
+            checkOpen(op);
+            encoder.write(fin, opcode, mask, data, off, len);
+        } finally {
+            writeQueue.endWrite();
+        }
+        metrics.frameOut(opcode, len);
+        metrics.written(System.nanoTime() - start);
+    }
+
+    /**
+     * Check, while holding the stream, that a data frame can still be sent.
+     */
+    private void checkOpen(int opcode) throws IOException {
+        if(opcode < 8 && state != State.OPEN){
+            throw new IOException("WebSocket is not open");
+        }
+    }
+
+    /**
+     * Write a whole message in a single frame, compressed if permessage-deflate was negotiated.
+     */
+    private void writeMessage(int opcode, byte[] data, int off, int len) throws IOException {
+        if(codec != null && codec.shouldCompress(len)){
+            //The compression context depends on the order messages go out in, so compress and write together
+            synchronized(codec){
+                byte[] compressed = codec.compress(data, off, len);
+                writeFrame(true, opcode | Frame.RSV1, newMask(), compressed, 0, compressed.length, false);
+            }
+        }else{
+            writeFrame(true, opcode, newMask(), data, off, len, false);
         }
-        frame.write(socket.getOutputStream());
     }
 
     /**
@@ -365,133 +754,1123 @@ public class WebSocket extends Socket {
         writeListeners.add(listener);
     }
 
-    private class WebSocketInputStream extends InputStream {
-
-        List<Byte> buffer = new ArrayList<Byte>();
-
-        private int readFrame() throws IOException{
-            Frame frame;
-            do{
-                frame = WebSocket.this.readFrame();
-                if(frame.opcode == 8){
-                    return -1;
-                }
-                if(frame.opcode == 9){
-                    Frame response = new Frame(true, 10, false, frame.length, new byte[4], frame.data);
-                    response.write(socket.getOutputStream());
-                    return 0;
-                }
-                for(int i = 0; i < frame.data.length; i++){
-                    buffer.add(frame.data[i]);
-                }
-            }while(!frame.fin);
-            return 0;
-        }
-
-        @Override
-        public int read() throws IOException {
-            while (buffer.isEmpty()){
-                int result = readFrame();
-                if(result == -1){
-                    if(buffer.isEmpty()){
-                        return -1;
-                    }
-                }
-            }
-            return buffer.remove(0);
-        }
-
-        @Override
-        public int read(byte[] b) throws IOException {
-            return read(b, 0, b.length);
-        }
+    /**
+     * Queue a frame to be written by the socket's writer thread, without waiting for it to go out.
+     * <p>
+     * Frames queued close together are written to the socket together. A write made directly afterwards, like {@link #writeFrame(Frame)}, waits for the queued frames to go first.
+     * </p>
+     * @param frame the frame to write
+     * @return a future completed once the frame has been written
+     */
+    public WriteFuture writeFrameAsync(Frame frame){
+        fireWrite(frame);
+        byte[] data = frame.getData();
+        return writeQueue.enqueue(FrameEncoder.encode(frame.isFin(), frame.getOpcode() | frame.getRsv() << 4, frame.isMasked() ? frame.getMask() : null, data, 0, data.length));
+    }
 
-        @Override
-        public int read(byte[] b, int off, int len) throws IOException {
-            if(buffer.isEmpty()){
-                int result = readFrame();
-                if(result == -1){
-                    return -1;
-                }
-            }
-            int i = 0;
-            while(i < len && !buffer.isEmpty()){
-                b[off + i] = buffer.remove(0);
-                i++;
-            }
-            return i;
+    /**
+     * Queue a text message to be written by the socket's writer thread, compressed if permessage-deflate was negotiated.
+     * @param text the message
+     * @return a future completed once the message has been written
+     * @see #writeFrameAsync(Frame)
+     */
+    public WriteFuture sendTextAsync(CharSequence text){
+        if(codec == null && writeListeners.isEmpty()){
+            //Encode straight into the queued frame
+            return writeQueue.enqueue(FrameEncoder.encodeText(true, 1, newMask(), text));
         }
-        
-
+        byte[] data = new byte[Utf8.encodedLength(text)];
+        Utf8.Encoder encoder = new Utf8.Encoder();
+        encoder.reset(text);
+        encoder.encode(data, 0, data.length);
+        return enqueueMessage(1, data, 0, data.length);
     }
 
-    private class WebSocketOutputStream extends OutputStream {
+    /**
+     * Queue a binary message to be written by the socket's writer thread, compressed if permessage-deflate was negotiated.
+     * The message is copied as it is queued, so the array can be reused straight away.
+     * @param data the array holding the message
+     * @param off the offset of the message in data
+     * @param len the length of the message
+     * @return a future completed once the message has been written
+     * @see #writeFrameAsync(Frame)
+     */
+    public WriteFuture sendBinaryAsync(byte[] data, int off, int len){
+        return enqueueMessage(2, data, off, len);
+    }
 
-        private void writeFrame(byte[] bytes, int off, long len) throws IOException {
-            byte[] mask = new byte[4];
-            for(int i = 0; i < 4; i++){
-                mask[i] = (byte)(Math.random() * 256);
+    private WriteFuture enqueueMessage(int opcode, byte[] data, int off, int len){
+        if(codec != null && codec.shouldCompress(len)){
+            synchronized(codec){
+                byte[] compressed = codec.compress(data, off, len);
+                return enqueueFrame(opcode | Frame.RSV1, compressed, 0, compressed.length);
             }
-            byte[] data = new byte[(int)len];
-            for(int i = 0; i < len; i++){
-                data[i] = bytes[off + i];
-            }
-            Frame frame = new Frame(true, 2, true, len, mask, data);
-            WebSocket.this.writeFrame(frame);
-        }
-
-        @Override
-        public void write(int b) throws IOException {
-            byte[] bytes = new byte[1];
-            bytes[0] = (byte)b;
-            writeFrame(bytes, 0, 1);
         }
+        return enqueueFrame(opcode, data, off, len);
+    }
 
-        @Override
-        public void write(byte[] b) throws IOException {
-            writeFrame(b, 0, b.length);
+    private WriteFuture enqueueFrame(int opcode, byte[] data, int off, int len){
+        byte[] mask = newMask();
+        if(!writeListeners.isEmpty()){
+            byte[] copy = new byte[len];
+            System.arraycopy(data, off, copy, 0, len);
+            fireWrite(new Frame(true, (opcode >> 4) & 0x07, opcode & 0x0F, true, len, mask, copy));
         }
+        return writeQueue.enqueue(FrameEncoder.encode(true, opcode, mask, data, off, len));
+    }
 
-        @Override
-        public void write(byte[] b, int off, int len) throws IOException {
-            writeFrame(b, off, len);
+    private void fireWrite(Frame frame){
+        for(Consumer<Frame> listener : writeListeners){
+            listener.invoke(frame);
         }
-
-        
-
     }
 
-    private final WebSocketInputStream inputStream = new WebSocketInputStream();
-    private final WebSocketOutputStream outputStream = new WebSocketOutputStream();
+    /**
+     * Set how much can be queued for the writer thread before the socket becomes unwritable, and how far it has to drain before it is writable again.
+     * The defaults are 32K and 64K.
+     * @param low the low watermark in bytes
+     * @param high the high watermark in bytes
+     * @see #onWritabilityChanged(Consumer)
+     */
+    public void setWriteBufferWatermarks(int low, int high){
+        writeQueue.setWatermarks(low, high);
+    }
 
-    @Override
-    public InputStream getInputStream() throws IOException {
-        return inputStream;
+    /**
+     * @return the low watermark of the write queue, in bytes
+     */
+    public int getWriteBufferLowWatermark(){
+        return writeQueue.getLowWatermark();
     }
 
-    @Override
-    public OutputStream getOutputStream() throws IOException {
-        return outputStream;
+    /**
+     * @return the high watermark of the write queue, in bytes
+     */
+    public int getWriteBufferHighWatermark(){
+        return writeQueue.getHighWatermark();
     }
 
-    @Override
-    public void sendUrgentData(int data) throws IOException{
-        outputStream.write(data);
+    /**
+     * Whether there is room in the write queue. Queueing still works when this is false, but a producer should hold off until it is true again, or the queue grows without bound behind a slow peer.
+     * @return false from when the queue passes the high watermark until it drains to the low watermark
+     */
+    public boolean isWritable(){
+        return writeQueue.isWritable();
     }
 
-    @Override
-    public void close() throws SocketException {
+    /**
+     * @return the bytes queued for the writer thread that haven't been written yet
+     */
+    public long getBufferedAmount(){
+        return writeQueue.getQueuedBytes();
+    }
 
+    /**
+     * Add a listener to be called whenever {@link #isWritable()} changes. It is called with false on the thread that filled the queue, and with true on the writer thread.
+     * @param listener A listener to call with the new writability
+     */
+    public void onWritabilityChanged(Consumer<Boolean> listener){
+        writeQueue.onWritabilityChanged(listener);
     }
 
-    @Override
-    public void shutdownInput() throws SocketException {
+    private volatile int fragmentSize = 65536;
+    private byte[] fragmentBuffer;
+    private byte[] textBuffer;
+    private final byte[] textBytes = new byte[8192];
+    private final Utf8.Encoder textEncoder = new Utf8.Encoder();
+    private final Utf8.Decoder textDecoder = new Utf8.Decoder();
+    private MessageInputStream currentMessage;
+    private volatile boolean closeReceived = false;
+    //Held by whichever thread is reading, so close() can tell whether it has to read the peer's close frame itself
+    private final ReentrantLock readLock = new ReentrantLock();
 
+    /**
+     * @return the largest payload of each frame sent by a {@link MessageOutputStream}
+     */
+    public int getFragmentSize(){
+        return fragmentSize;
     }
 
-    @Override
-    public void shutdownOutput() throws SocketException {
+    /**
+     * Set the largest payload of each frame sent by a {@link MessageOutputStream} or a long {@link #sendText(CharSequence)}. This is also how much a message stream buffers, so it is the most memory a streamed message takes to send.
+     * @param fragmentSize the fragment size in bytes, at least 4 so any character fits
+     */
+    public void setFragmentSize(int fragmentSize){
+        if(fragmentSize < 4){
+            throw new IllegalArgumentException("Fragment size must be at least 4: " + fragmentSize);
+        }
+        this.fragmentSize = fragmentSize;
+    }
 
+    /**
+     * Wait for the next message and return a stream of its payload.
+     * <p>
+     * The payload is read off the socket as the stream is read, one frame at a time, so a message of any size is read in constant memory.
+     * Pings that arrive part way through are answered. If the stream of the previous message hasn't been read to the end, the rest of it is skipped.
+     * </p>
+     * <p>
+     * Be careful mixing this with readFrame or getInputStream, as they read from the same socket.
+     * </p>
+     * @return the message, or null if the peer has closed the connection
+     * @throws MessageTooBigException if a frame is larger than the {@link #getReceiveLimits() limits} allow, which fails the connection.
+     * @throws IOException if there was a problem reading, or the peer broke the protocol.
+     */
+    public MessageInputStream nextMessage() throws IOException {
+        readLock.lock();
+        try {
+            if(currentMessage != null){
+                currentMessage.close();
+                currentMessage = null;
+            }
+            while(!closeReceived){
+                Frame header = decoder.readHeader();
+                int opcode = header.getOpcode();
+                if(opcode >= 8){
+                    control(header);
+                    continue;
+                }
+                fireRead(header);
+                if(opcode == 0){
+                    throw new IOException("Continuation frame without a message to continue");
+                }
+                if(opcode != 1 && opcode != 2){
+                    throw new IOException("Unknown opcode: " + opcode);
+                }
+                if(header.getRsv() != 0 && (codec == null || header.getRsv() != 4)){
+                    throw new IOException("Unexpected reserved bits");
+                }
+                currentMessage = new MessageInputStream(header);
+                return currentMessage;
+            }
+            return null;
+        } catch (MessageTooBigException e) {
+            throw tooBig(e);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Start sending a message as a stream. The message is sent in frames of up to {@link #getFragmentSize()} bytes as it is written, and the final frame is sent when the stream is closed.
+     * <p>
+     * Only one message can be sent at a time. If another thread is streaming a message this waits for it to be closed, and until this one is closed other threads' messages wait for it.
+     * Streamed messages are never compressed.
+     * </p>
+     * @param opcode 1 for a text message or 2 for a binary message
+     * @return the message's stream
+     * @throws IOException if this thread already has a streamed message open.
+     */
+    public MessageOutputStream startMessage(int opcode) throws IOException {
+        if(opcode != 1 && opcode != 2){
+            throw new IllegalArgumentException("Not a data opcode: " + opcode);
+        }
+        writeQueue.beginMessage();
+        return new MessageOutputStream(opcode, fragmentBuffer());
+    }
+
+    /**
+     * Send a text message.
+     * <p>
+     * The text is encoded to UTF-8 straight into a buffer the socket keeps, never through a byte array of its own.
+     * Without compression, text longer than {@link #getFragmentSize()} is sent in fragments as it is encoded. With compression it is encoded whole and compressed as one message.
+     * </p>
+     * @param text the message
+     * @throws IOException if there was a problem writing, or a streamed message is still open.
+     */
+    public void sendText(CharSequence text) throws IOException {
+        if(codec != null){
+            //The codec's lock also guards the text buffer
+            synchronized(codec){
+                int length = Utf8.encodedLength(text);
+                if(textBuffer == null || textBuffer.length < length){
+                    textBuffer = new byte[Math.max(length, 1024)];
+                }
+                textEncoder.reset(text);
+                textEncoder.encode(textBuffer, 0, length);
+                writeMessage(1, textBuffer, 0, length);
+            }
+            return;
+        }
+        //Holding the message keeps the fragments together and guards the fragment buffer
+        writeQueue.beginMessage();
+        try {
+            byte[] buffer = fragmentBuffer();
+            textEncoder.reset(text);
+            int opcode = 1;
+            boolean fin;
+            do {
+                int n = textEncoder.encode(buffer, 0, buffer.length);
+                fin = textEncoder.isDone();
+                writeFrame(fin, opcode, newMask(), buffer, 0, n, true);
+                opcode = 0;
+            } while(!fin);
+        } finally {
+            writeQueue.endMessage();
+        }
+    }
+
+    /**
+     * Send a binary message in a single frame, compressed if permessage-deflate was negotiated.
+     * @param data the array holding the message
+     * @param off the offset of the message in data
+     * @param len the length of the message
+     * @throws IOException if there was a problem writing, or a streamed message is still open.
+     */
+    public void sendBinary(byte[] data, int off, int len) throws IOException {
+        writeMessage(2, data, off, len);
+    }
+
+    private byte[] fragmentBuffer(){
+        if(fragmentBuffer == null || fragmentBuffer.length != fragmentSize){
+            fragmentBuffer = new byte[fragmentSize];
+        }
+        return fragmentBuffer;
+    }
+
+    /**
+     * Call the read listeners with a frame, on the reader's thread or through the dispatch queue.
+     */
+    private void fireRead(final Frame frame) throws IOException {
+        if(readListeners.isEmpty()){
+            return;
+        }
+        Dispatch dispatch = this.dispatch;
+        SerialExecutor queue = listenerQueue;
+        if(dispatch == null || queue == null){
+            for(Consumer<Frame> listener : readListeners){
+                listener.invoke(frame);
+            }
+            return;
+        }
+        Runnable task = new Runnable() {
+            public void run() {
+                for(Consumer<Frame> listener : readListeners){
+                    listener.invoke(frame);
+                }
+            }
+        };
+        switch(dispatch.getOverflow()){
+            case BLOCK:
+                if(queue.isFull()){
+                    dispatch.overflowed(this);
+                }
+                try {
+                    queue.put(task);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for the listener queue");
+                }
+                break;
+            case DROP:
+                if(!queue.offer(task)){
+                    dispatch.overflowed(this);
+                }
+                break;
+            default:
+                if(!queue.offer(task)){
+                    dispatch.overflowed(this);
+                    throw new IOException("Listener queue overflowed");
+                }
+                break;
+        }
+    }
+
+    /**
+     * Call read listeners on an Executor instead of the reading thread, so a slow listener doesn't hold up reading. Each frame still reaches the listeners in order, one at a time.
+     * <p>
+     * With {@link Dispatch.Overflow#FAIL}, a read that finds the queue full throws an IOException.
+     * Write listeners are still called on the writing thread.
+     * </p>
+     * @param dispatch the settings to dispatch with, or null to call listeners on the reading thread
+     */
+    public void setDispatch(Dispatch dispatch){
+        this.dispatch = dispatch;
+        this.listenerQueue = dispatch == null ? null : dispatch.newQueue();
+    }
+
+    /**
+     * @return the settings read listeners are dispatched with, or null if they are called on the reading thread
+     */
+    public Dispatch getDispatch(){
+        return dispatch;
+    }
+
+    private volatile Heartbeat heartbeat;
+    private volatile Pinger pinger;
+
+    /**
+     * Ping the peer regularly, dropping the connection if it stops answering, or stop pinging.
+     * <p>
+     * Pings are queued like {@link #writeFrameAsync(Frame)}, and pongs are only seen while the connection is being read, so the reader must keep reading for the peer to count as alive.
+     * A connection whose peer misses too many pongs has its socket closed, which ends any read in progress with an exception.
+     * </p>
+     * @param heartbeat the settings to ping with, or null to stop pinging
+     */
+    public void setHeartbeat(Heartbeat heartbeat){
+        Pinger old = pinger;
+        if(old != null){
+            old.stop();
+        }
+        this.heartbeat = heartbeat;
+        if(heartbeat == null){
+            pinger = null;
+            return;
+        }
+        Pinger p = new Pinger(heartbeat, new Pinger.Peer() {
+            public void ping(byte[] payload) {
+                enqueueFrame(9, payload, 0, payload.length);
+            }
+
+            public void dead() {
+                closed();
+            }
+
+            public void failed(RuntimeException e) {
+                //Whoever is reading or writing finds the socket closed
+                closed();
+            }
+        });
+        pinger = p;
+        p.start();
+    }
+
+    /**
+     * @return the settings the peer is pinged with, or null if it isn't
+     */
+    public Heartbeat getHeartbeat(){
+        return heartbeat;
+    }
+
+    private volatile ReceiveLimits limits = new ReceiveLimits();
+
+    /**
+     * Limit the size of frames and messages received from now on. A peer that goes over them has the connection failed with close status 1009.
+     * @param limits the limits, or null for the defaults of 16MB frames and 64MB messages
+     */
+    public void setReceiveLimits(ReceiveLimits limits){
+        this.limits = limits == null ? new ReceiveLimits() : limits;
+        decoder.setMaxFrameSize(this.limits.getMaxFrameSize());
+    }
+
+    /**
+     * @return the limits on what is received
+     */
+    public ReceiveLimits getReceiveLimits(){
+        return limits;
+    }
+
+    /**
+     * @return the connection's metrics, which are added to {@link Metrics#global()} as well
+     */
+    public Metrics getMetrics(){
+        return metrics;
+    }
+
+    /**
+     * @return the round trip time of the last heartbeat ping answered, in nanoseconds, or -1 if none has been
+     */
+    public long getLastRttNanos(){
+        Pinger p = pinger;
+        return p == null ? -1 : p.getLastRttNanos();
+    }
+
+    /**
+     * @return the round trip time of heartbeat pings smoothed over the last several, in nanoseconds, or -1 if none has been answered
+     */
+    public long getSmoothedRttNanos(){
+        Pinger p = pinger;
+        return p == null ? -1 : p.getSmoothedRttNanos();
+    }
+
+    private void pong(byte[] data){
+        Pinger p = pinger;
+        if(p != null){
+            p.pong(data);
+        }
+    }
+
+    /**
+     * Read the payload of a control frame and act on it: pings are answered and a close is remembered.
+     */
+    private void control(Frame header) throws IOException {
+        if(!header.isFin() || header.getLength() > 125){
+            throw new IOException("Invalid control frame");
+        }
+        byte[] data = new byte[(int) header.getLength()];
+        int soFar = 0;
+        while(soFar < data.length){
+            soFar += decoder.readPayload(data, soFar, data.length - soFar);
+        }
+        Frame frame = new Frame(true, header.getRsv(), header.getOpcode(), header.isMasked(), data.length, header.getMask(), data);
+        fireRead(frame);
+        switch(frame.getOpcode()){
+            case 8:
+                closeReceived = true;
+                peerClosed(data);
+                break;
+            case 9:
+                writeFrame(true, 10, newMask(), data, 0, data.length, false);
+                break;
+            case 10:
+                pong(data);
+                break;
+            default:
+                throw new IOException("Unknown opcode: " + frame.getOpcode());
+        }
+    }
+
+    /**
+     * The payload of one received message, read off the socket a frame at a time as the stream is read.
+     * <p>
+     * A read returns at most the rest of the current frame, and blocks until it has that much or len bytes. Compressed messages are inflated as they are read.
+     * Closing the stream skips whatever is left of the message.
+     * A message that grows past the maximum message size of the connection's {@link ReceiveLimits}, as sent or once inflated, fails the connection and the read throws a {@link MessageTooBigException}.
+     * </p>
+     */
+    public class MessageInputStream extends InputStream {
+
+        private final int opcode;
+        private final byte[] single = new byte[1];
+        private Frame frame;
+        private boolean done = false;
+        private Inflater inflater;
+        private byte[] raw;
+        private boolean tailFed = false;
+        private long received;
+        private long inflated = 0;
+
+        MessageInputStream(Frame first) throws MessageTooBigException {
+            this.opcode = first.getOpcode();
+            this.frame = first;
+            this.received = first.getLength();
+            checkMessageSize(received);
+            if(first.getRsv() != 0){
+                inflater = codec.borrowInflater();
+                raw = new byte[8192];
+            }
+        }
+
+        /**
+         * @return 1 for a text message or 2 for a binary message
+         */
+        public int getOpcode(){
+            return opcode;
+        }
+
+        /**
+         * @return true if this is a text message
+         */
+        public boolean isText(){
+            return opcode == 1;
+        }
+
+        /**
+         * Decode the rest of a text message into a CharBuffer, checking that it is valid UTF-8.
+         * <p>
+         * The message is decoded as it is read, so a character split across frames is put back together. The chars go after sink's position.
+         * If the sink fills up it is replaced with a larger copy, so keep hold of the buffer that is returned and clear it to reuse it for the next message.
+         * </p>
+         * <p>
+         * Invalid UTF-8 fails the connection with a close frame with status 1007, as the RFC requires, and closes it as {@link WebSocket#close(int, String)} does before the exception is thrown.
+         * </p>
+         * @param sink the buffer to decode into, or null to allocate one
+         * @return the buffer holding the message, flipped ready to be read
+         * @throws IOException if there was a problem reading, this isn't a text message, or it isn't valid UTF-8.
+         */
+        public CharBuffer readText(CharBuffer sink) throws IOException {
+            if(opcode != 1){
+                throw new IOException("Not a text message");
+            }
+            if(sink == null){
+                sink = CharBuffer.allocate(1024);
+            }
+            byte[] bytes = textBytes;
+            try {
+                int read;
+                while((read = read(bytes, 0, bytes.length)) != -1){
+                    int off = 0;
+                    while(off < read){
+                        if(sink.remaining() < 2){
+                            CharBuffer grown = CharBuffer.allocate(sink.capacity() * 2);
+                            sink.flip();
+                            grown.put(sink);
+                            sink = grown;
+                        }
+                        off += textDecoder.decode(bytes, off, read - off, sink);
+                    }
+                }
+                textDecoder.finish();
+            } catch (MalformedInputException e) {
+                textDecoder.reset();
+                //The same handshake as any other close, which skips the rest of this message while it waits for the peer's close
+                WebSocket.this.close(1007, "");
+                throw e;
+            }
+            sink.flip();
+            return sink;
+        }
+
+        /**
+         * @return true if the message was sent compressed
+         */
+        public boolean isCompressed(){
+            return raw != null;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int read = read(single, 0, 1);
+            return read == -1 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            readLock.lock();
+            try {
+                return readMessage(b, off, len);
+            } catch (MessageTooBigException e) {
+                throw tooBig(e);
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        private int readMessage(byte[] b, int off, int len) throws IOException {
+            if(done){
+                return -1;
+            }
+            if(len == 0){
+                return 0;
+            }
+            if(inflater == null){
+                int read = readRaw(b, off, len);
+                if(read == -1){
+                    done = true;
+                }
+                return read;
+            }
+            boolean ok = false;
+            try {
+                while(true){
+                    int read = inflater.inflate(b, off, len);
+                    if(read > 0){
+                        inflated += read;
+                        checkMessageSize(inflated);
+                        ok = true;
+                        return read;
+                    }
+                    if(inflater.finished() || (tailFed && inflater.needsInput())){
+                        //Anything after a final block is ignored, but it still has to come off the socket
+                        while(readRaw(raw, 0, raw.length) != -1){
+                        }
+                        codec.returnInflater(inflater, true);
+                        inflater = null;
+                        done = true;
+                        ok = true;
+                        return -1;
+                    }
+                    if(!inflater.needsInput()){
+                        throw new IOException("Invalid compressed data");
+                    }
+                    int count = readRaw(raw, 0, raw.length);
+                    if(count == -1){
+                        inflater.setInput(DeflateCodec.TAIL);
+                        tailFed = true;
+                    }else{
+                        inflater.setInput(raw, 0, count);
+                    }
+                }
+            } catch (DataFormatException e) {
+                throw (IOException) new IOException("Invalid compressed data").initCause(e);
+            } finally {
+                if(!ok){
+                    //Whatever went wrong, the Inflater's native memory goes back now rather than when it's collected
+                    codec.returnInflater(inflater, false);
+                    inflater = null;
+                    //The rest of the message can't be inflated, and mustn't be read as if it weren't compressed
+                    done = true;
+                }
+            }
+        }
+
+        @Override
+        public int available() throws IOException {
+            return done || inflater != null ? 0 : decoder.payloadAvailable();
+        }
+
+        /**
+         * Skip the rest of the message.
+         */
+        @Override
+        public void close() throws IOException {
+            readLock.lock();
+            try {
+                byte[] skip = raw != null ? raw : new byte[8192];
+                if(inflater != null){
+                    //Inflate what's left so the peer's context stays in step
+                    byte[] out = new byte[8192];
+                    while(readMessage(out, 0, out.length) != -1){
+                    }
+                }else{
+                    while(!done && readRaw(skip, 0, skip.length) != -1){
+                    }
+                    done = true;
+                }
+            } catch (MessageTooBigException e) {
+                throw tooBig(e);
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        /**
+         * Read payload bytes as they were sent, moving on to the message's next frame when one runs out.
+         */
+        private int readRaw(byte[] b, int off, int len) throws IOException {
+            while(decoder.payloadRemaining() == 0){
+                if(frame.isFin()){
+                    return -1;
+                }
+                nextFrame();
+            }
+            int count = (int) Math.min(len, decoder.payloadRemaining());
+            int soFar = 0;
+            while(soFar < count){
+                soFar += decoder.readPayload(b, off + soFar, count - soFar);
+            }
+            return count;
+        }
+
+        private void nextFrame() throws IOException {
+            while(true){
+                Frame header = decoder.readHeader();
+                if(header.getOpcode() >= 8){
+                    control(header);
+                    if(closeReceived){
+                        done = true;
+                        throw new EOFException("Connection closed part way through a message");
+                    }
+                    continue;
+                }
+                fireRead(header);
+                if(header.getOpcode() != 0 || header.getRsv() != 0){
+                    throw new IOException("Expected a continuation frame");
+                }
+                received += header.getLength();
+                checkMessageSize(received);
+                frame = header;
+                return;
+            }
+        }
+    }
+
+    /**
+     * A message sent as a stream, in frames of up to {@link WebSocket#getFragmentSize()} bytes.
+     * <p>
+     * Writes are buffered until a whole fragment is ready. Writes of at least a whole fragment go straight out without being copied.
+     * Flushing sends what is buffered as a fragment of its own. Closing sends the final frame, which must be done before anything else is written to the socket.
+     * </p>
+     */
+    public class MessageOutputStream extends OutputStream {
+
+        private final int opcode;
+        private final byte[] buffer;
+        private final byte[] single = new byte[1];
+        private int count = 0;
+        private boolean started = false;
+        private boolean closed = false;
+
+        MessageOutputStream(int opcode, byte[] buffer){
+            this.opcode = opcode;
+            this.buffer = buffer;
+        }
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            single[0] = (byte) b;
+            write(single, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            if(closed){
+                throw new IOException("Message already sent");
+            }
+            while(len > 0){
+                if(count == 0 && len >= buffer.length){
+                    sendFragment(b, off, buffer.length, false);
+                    off += buffer.length;
+                    len -= buffer.length;
+                }else{
+                    int n = Math.min(len, buffer.length - count);
+                    System.arraycopy(b, off, buffer, count, n);
+                    count += n;
+                    off += n;
+                    len -= n;
+                    if(count == buffer.length){
+                        sendFragment(buffer, 0, count, false);
+                        count = 0;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            if(closed){
+                return;
+            }
+            if(count > 0){
+                sendFragment(buffer, 0, count, false);
+                count = 0;
+            }
+            socket.getOutputStream().flush();
+        }
+
+        /**
+         * Send the final frame of the message, with anything still buffered.
+         */
+        @Override
+        public synchronized void close() throws IOException {
+            if(closed){
+                return;
+            }
+            closed = true;
+            try {
+                sendFragment(buffer, 0, count, true);
+            } finally {
+                count = 0;
+                writeQueue.endMessage();
+            }
+        }
+
+        private void sendFragment(byte[] data, int off, int len, boolean fin) throws IOException {
+            writeFrame(fin, started ? 0 : opcode, newMask(), data, off, len, true);
+            started = true;
+        }
+    }
+
+    /**
+     * The payloads of every message received, one after another.
+     */
+    private class WebSocketInputStream extends InputStream {
+
+        private MessageInputStream message;
+
+        @Override
+        public int read() throws IOException {
+            while(true){
+                if(message == null){
+                    message = nextMessage();
+                    if(message == null){
+                        return -1;
+                    }
+                }
+                int read = message.read();
+                if(read != -1){
+                    return read;
+                }
+                message = null;
+            }
+        }
+
+        @Override
+        public int read(byte[] b) throws IOException {
+            return read(b, 0, b.length);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0){
+                return 0;
+            }
+            while(true){
+                if(message == null){
+                    message = nextMessage();
+                    if(message == null){
+                        return -1;
+                    }
+                }
+                int read = message.read(b, off, len);
+                if(read != -1){
+                    return read;
+                }
+                message = null;
+            }
+        }
+
+        @Override
+        public int available() throws IOException {
+            return message == null ? 0 : message.available();
+        }
+
+    }
+
+    private class WebSocketOutputStream extends OutputStream {
+
+        private final byte[] single = new byte[1];
+
+        @Override
+        public void write(int b) throws IOException {
+            single[0] = (byte)b;
+            writeMessage(2, single, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b) throws IOException {
+            writeMessage(2, b, 0, b.length);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            writeMessage(2, b, off, len);
+        }
+
+        
+
+    }
+
+    private static byte[] newMask(){
+        byte[] mask = new byte[4];
+        for(int i = 0; i < 4; i++){
+            mask[i] = (byte)(Math.random() * 256);
+        }
+        return mask;
+    }
+
+    private final WebSocketInputStream inputStream = new WebSocketInputStream();
+    private final WebSocketOutputStream outputStream = new WebSocketOutputStream();
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return inputStream;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return outputStream;
+    }
+
+    @Override
+    public void sendUrgentData(int data) throws IOException{
+        outputStream.write(data);
+    }
+
+    /**
+     * Close the connection normally, with status 1000.
+     * @see #close(int, String)
+     */
+    @Override
+    public void close() throws SocketException {
+        close(1000, "");
+    }
+
+    /**
+     * Close the connection with the close handshake: send a close frame, wait up to {@link #getCloseTimeout()} milliseconds for the peer's, then close the socket.
+     * <p>
+     * Messages queued before the close are written first. If another thread is reading, it reads the peer's close frame and this waits for it to do so; otherwise this reads and throws away whatever the peer sends until its close frame arrives.
+     * Either way the socket is closed when this returns, and any read still in progress ends. Closing a connection that is already closed does nothing.
+     * </p>
+     * @param code the close status code
+     * @param reason the close reason, which must fit in 123 bytes of UTF-8
+     */
+    public void close(int code, String reason){
+        if(state == State.CLOSED){
+            return;
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(closeTimeout);
+        try {
+            if(startClosing()){
+                byte[] payload = closePayload(code, reason);
+                writeFrame(true, 8, newMask(), payload, 0, payload.length, false);
+            }
+            awaitClose(deadline);
+        } catch (IOException e) {
+            //The peer has gone or broken the protocol, so there's no point waiting for it
+        } finally {
+            closed();
+        }
+    }
+
+    private static byte[] closePayload(int code, String reason){
+        try {
+            byte[] reasonBytes = reason.getBytes("UTF-8");
+            byte[] payload = new byte[2 + reasonBytes.length];
+            payload[0] = (byte) (code >> 8);
+            payload[1] = (byte) code;
+            System.arraycopy(reasonBytes, 0, payload, 2, reasonBytes.length);
+            return payload;
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Move from OPEN to CLOSING, after which no more data can be sent or queued.
+     * @return false if the connection was already closing or closed
+     */
+    private boolean startClosing(){
+        synchronized(stateLock){
+            if(state != State.OPEN){
+                return false;
+            }
+            state = State.CLOSING;
+        }
+        Pinger p = pinger;
+        if(p != null){
+            p.stop();
+        }
+        writeQueue.close();
+        return true;
+    }
+
+    /**
+     * Wait for the peer's close frame, reading it here if no other thread is reading.
+     */
+    private void awaitClose(long deadline) throws IOException {
+        try {
+            if(!readLock.tryLock(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)){
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        try {
+            long remaining;
+            while(!closeReceived && (remaining = deadline - System.nanoTime()) > 0){
+                socket.setSoTimeout((int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining)));
+                //Reading a message skips the one before, and the close frame ends them
+                nextMessage();
+            }
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Act on the peer's close frame: answer it if this end hadn't started closing, then close the socket, as the handshake is over.
+     */
+    private void peerClosed(byte[] data) throws IOException {
+        closeCode = data.length >= 2 ? (data[0] & 0xFF) << 8 | (data[1] & 0xFF) : 1005;
+        closeReason = data.length > 2 ? new String(data, 2, data.length - 2, "UTF-8") : "";
+        try {
+            if(startClosing()){
+                writeFrame(true, 8, newMask(), data, 0, Math.min(data.length, 2), false);
+            }
+        } catch (IOException e) {
+            //A peer failing the connection can close it without waiting for the answer
+        } finally {
+            closed();
+        }
+    }
+
+    /**
+     * @throws MessageTooBigException if a message of this size is over the limit.
+     */
+    private void checkMessageSize(long size) throws MessageTooBigException {
+        long max = limits.getMaxMessageSize();
+        if(size > max){
+            throw new MessageTooBigException("Message larger than " + max + " bytes");
+        }
+    }
+
+    /**
+     * Fail the connection because the peer sent more than the limits allow: send a close frame with status 1009 and close the socket straight away, as the rest of what the peer sent can't be read.
+     * @return the exception, for the caller to throw
+     */
+    private MessageTooBigException tooBig(MessageTooBigException e){
+        try {
+            if(startClosing()){
+                byte[] payload = closePayload(1009, "");
+                writeFrame(true, 8, newMask(), payload, 0, payload.length, false);
+            }
+        } catch (IOException sendFailed) {
+            //The socket is being closed anyway
+        } finally {
+            closed();
+        }
+        return e;
+    }
+
+    /**
+     * Close the socket and let go of everything the connection holds. This can be called more than once, from any thread.
+     */
+    private void closed(){
+        synchronized(stateLock){
+            if(state == State.CLOSED){
+                return;
+            }
+            state = State.CLOSED;
+        }
+        Pinger p = pinger;
+        if(p != null){
+            p.stop();
+        }
+        writeQueue.close();
+        closeQuietly(socket);
+        if(codec != null){
+            codec.release();
+        }
+        metrics.unregister();
+    }
+
+    /**
+     * @return where the connection is in its life
+     */
+    public State getState(){
+        return state;
+    }
+
+    /**
+     * @return the status code of the peer's close frame, 1005 if it didn't give one, or -1 if it hasn't sent one
+     */
+    public int getCloseCode(){
+        return closeCode;
+    }
+
+    /**
+     * @return the reason in the peer's close frame, or null if it hasn't sent one
+     */
+    public String getCloseReason(){
+        return closeReason;
+    }
+
+    /**
+     * @return how long {@link #close()} waits for the peer's close frame, in milliseconds
+     */
+    public int getCloseTimeout(){
+        return closeTimeout;
+    }
+
+    /**
+     * Set how long {@link #close()} waits for the peer's close frame before closing the socket anyway.
+     * @param closeTimeout the time to wait in milliseconds, or 0 to close the socket as soon as the close frame is sent
+     */
+    public void setCloseTimeout(int closeTimeout){
+        if(closeTimeout < 0){
+            throw new IllegalArgumentException("Negative close timeout: " + closeTimeout);
+        }
+        this.closeTimeout = closeTimeout;
+    }
+
+    /**
+     * Stop reading from the socket. Not supported on wss connections, like any SSLSocket.
+     */
+    @Override
+    public void shutdownInput() throws IOException {
+        socket.shutdownInput();
+    }
+
+    /**
+     * Start the close handshake without waiting for the peer's close frame, which can still be read. The socket is closed once it arrives.
+     */
+    @Override
+    public void shutdownOutput() throws IOException {
+        if(startClosing()){
+            byte[] payload = closePayload(1000, "");
+            writeFrame(true, 8, newMask(), payload, 0, payload.length, false);
+        }
     }
 
     @Override
@@ -653,7 +2032,7 @@ public class WebSocket extends Socket {
 
     @Override
     public boolean isClosed() {
-        return socket.isClosed();
+        return state == State.CLOSED || socket.isClosed();
     }
 
     @Override
@@ -663,6 +2042,6 @@ public class WebSocket extends Socket {
 
     @Override
     public boolean isOutputShutdown(){
-        return socket.isOutputShutdown();
+        return state != State.OPEN || socket.isOutputShutdown();
     }
 }
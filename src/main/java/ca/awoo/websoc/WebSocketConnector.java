@@ -0,0 +1,395 @@
+package ca.awoo.websoc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Socket;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Opens blocking {@link WebSocket} connections that share one SSLContext.
+ * <p>
+ * Every wss connection from a connector comes from the same SSLContext, so TLS sessions are cached and a reconnect to a host it has talked to before resumes the session with an abbreviated handshake instead of a full one.
+ * After a failover this turns thousands of full handshakes into cheap ones on both ends.
+ * </p>
+ * <p>
+ * At most {@link #getParallelism()} connections are set up at once, whether through {@link #connect(URI)} on the caller's thread or {@link #connectAsync(URI)} on the connector's own threads.
+ * The connector counts and times TLS handshakes, telling full ones from resumed ones, so the effect of resumption can be watched.
+ * </p>
+ * <p>
+ * Two things keep a mass reconnect from falling back to full handshakes.
+ * While one connection made with {@link #connect(URI)} is doing the first handshake to a host and port, the others to it wait for it to finish, so they find its session in the cache instead of all racing to make their own.
+ * They wait at most {@link #getFirstHandshakeTimeout()} milliseconds, without taking up a place among the connections being set up, and do a full handshake of their own if it takes longer.
+ * And connections are made with TLS 1.2 unless {@link #setProtocols(String[])} says otherwise: a TLS 1.3 session ticket can only be used once, so connections set up in parallel can't share it, while a TLS 1.2 session can be resumed by any number of them.
+ * </p>
+ */
+public class WebSocketConnector implements Closeable {
+
+    private static WebSocketConnector defaultConnector;
+
+    private final AtomicInteger threadCount = new AtomicInteger();
+    private final SSLContext sslContext;
+    private final int parallelism;
+    private final Semaphore permits;
+    private final Map<String, CountDownLatch> firstHandshakes = new HashMap<String, CountDownLatch>();
+    private volatile String[] protocols = {"TLSv1.2"};
+    private volatile int firstHandshakeTimeout = 5000;
+    private volatile PerMessageDeflate compression;
+    private ExecutorService pool;
+    private boolean closed = false;
+
+    private final AtomicLong connects = new AtomicLong();
+    private final AtomicLong failedConnects = new AtomicLong();
+    private final AtomicLong handshakes = new AtomicLong();
+    private final AtomicLong resumedHandshakes = new AtomicLong();
+    private final AtomicLong handshakeNanos = new AtomicLong();
+    private final AtomicLong maxHandshakeNanos = new AtomicLong();
+
+    /**
+     * Create a connector with the shared default SSLContext, setting up as many connections at once as there are processors, times four.
+     */
+    public WebSocketConnector(){
+        this(null);
+    }
+
+    /**
+     * Create a connector with its own SSLContext.
+     * @param sslContext the context to create TLS sockets from, or null to use a shared default context
+     */
+    public WebSocketConnector(SSLContext sslContext){
+        this(sslContext, Runtime.getRuntime().availableProcessors() * 4);
+    }
+
+    /**
+     * Create a connector with its own SSLContext and a limit on connections set up at once.
+     * @param sslContext the context to create TLS sockets from, or null to use a shared default context
+     * @param parallelism the most connections to set up at once
+     */
+    public WebSocketConnector(SSLContext sslContext, int parallelism){
+        if(parallelism < 1){
+            throw new IllegalArgumentException("Parallelism must be positive: " + parallelism);
+        }
+        this.sslContext = sslContext;
+        this.parallelism = parallelism;
+        this.permits = new Semaphore(parallelism);
+    }
+
+    /**
+     * @return the connector that {@link WebSocket}'s constructors use when they aren't given an SSLContext
+     */
+    static synchronized WebSocketConnector getDefault(){
+        if(defaultConnector == null){
+            defaultConnector = new WebSocketConnector(null, Integer.MAX_VALUE);
+            //A single connection gains nothing from giving up TLS 1.3
+            defaultConnector.setProtocols(null);
+        }
+        return defaultConnector;
+    }
+
+    /**
+     * @param sslContext the context to create TLS sockets from
+     * @return a connector for one connection, which keeps the context's TLS protocols
+     */
+    static WebSocketConnector forContext(SSLContext sslContext){
+        WebSocketConnector connector = new WebSocketConnector(sslContext, 1);
+        connector.setProtocols(null);
+        return connector;
+    }
+
+    /**
+     * @return the permessage-deflate settings offered by new connections, or null if compression isn't offered
+     */
+    public PerMessageDeflate getCompression(){
+        return compression;
+    }
+
+    /**
+     * Offer permessage-deflate compression on connections made from now on.
+     * @param compression the settings to offer, or null to stop offering compression
+     */
+    public void setCompression(PerMessageDeflate compression){
+        this.compression = compression;
+    }
+
+    /**
+     * @return the TLS protocols connections are made with, or null if they use the SSLContext's defaults
+     */
+    public String[] getProtocols(){
+        return protocols == null ? null : protocols.clone();
+    }
+
+    /**
+     * Set the TLS protocols connections are made with. Protocols the SSLContext doesn't enable are left out, and if none are left the context's defaults are used.
+     * @param protocols the protocol names, or null to use the SSLContext's defaults
+     */
+    public void setProtocols(String[] protocols){
+        this.protocols = protocols == null ? null : protocols.clone();
+    }
+
+    /**
+     * @return how long in milliseconds a connection waits for the first handshake to the same host and port before doing its own
+     */
+    public int getFirstHandshakeTimeout(){
+        return firstHandshakeTimeout;
+    }
+
+    /**
+     * Set how long a connection waits for another connection's handshake to the same host and port, so it can resume that session.
+     * @param firstHandshakeTimeout the time to wait in milliseconds, or 0 not to wait
+     */
+    public void setFirstHandshakeTimeout(int firstHandshakeTimeout){
+        if(firstHandshakeTimeout < 0){
+            throw new IllegalArgumentException("Negative first handshake timeout: " + firstHandshakeTimeout);
+        }
+        this.firstHandshakeTimeout = firstHandshakeTimeout;
+    }
+
+    /**
+     * @return the most connections set up at once
+     */
+    public int getParallelism(){
+        return parallelism;
+    }
+
+    /**
+     * Connect to a websocket server on the calling thread, waiting first if too many connections are being set up already.
+     * <p>
+     * For wss, if another connection to the same host and port is doing its handshake, this waits up to {@link #getFirstHandshakeTimeout()} for it to finish so its session can be resumed.
+     * </p>
+     * @param uri the ws or wss URI to connect to
+     * @return the open connection
+     * @throws WebSocketException if the connection or handshake failed, or the thread was interrupted while waiting.
+     */
+    public WebSocket connect(URI uri) throws WebSocketException {
+        URI normalized = Handshake.normalize(uri);
+        String endpoint = "wss".equals(normalized.getScheme()) ? normalized.getHost() + ":" + Handshake.port(normalized) : null;
+        CountDownLatch first = null;
+        boolean leading = false;
+        if(endpoint != null){
+            synchronized(firstHandshakes){
+                first = firstHandshakes.get(endpoint);
+                if(first == null){
+                    first = new CountDownLatch(1);
+                    firstHandshakes.put(endpoint, first);
+                    leading = true;
+                }
+            }
+        }
+        try {
+            if(first != null && !leading){
+                //Waiting doesn't hold a permit, and a first handshake that hangs only costs the timeout
+                first.await(firstHandshakeTimeout, TimeUnit.MILLISECONDS);
+            }
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            if(leading){
+                firstDone(endpoint, first);
+            }
+            throw new WebSocketException("Interrupted waiting to connect", new InterruptedIOException());
+        }
+        try {
+            return new WebSocket(this, uri, compression);
+        } finally {
+            permits.release();
+            if(leading){
+                firstDone(endpoint, first);
+            }
+        }
+    }
+
+    /**
+     * Let the connections waiting on a first handshake go, and forget it so the next connection to the endpoint leads again.
+     */
+    private void firstDone(String endpoint, CountDownLatch first){
+        synchronized(firstHandshakes){
+            firstHandshakes.remove(endpoint);
+        }
+        first.countDown();
+    }
+
+    /**
+     * Connect to a websocket server on one of the connector's threads. There are as many threads as the parallelism, so this is the easy way to reconnect a lot of sockets at once.
+     * @param uri the ws or wss URI to connect to
+     * @return a future for the open connection, which fails with a {@link WebSocketException} if the connection or handshake failed
+     * @throws IllegalStateException if the connector has been closed.
+     */
+    public Future<WebSocket> connectAsync(final URI uri){
+        return pool().submit(new Callable<WebSocket>() {
+            public WebSocket call() throws WebSocketException {
+                return connect(uri);
+            }
+        });
+    }
+
+    /**
+     * Connect to a number of websocket servers, {@link #getParallelism()} at a time.
+     * @param uris the ws or wss URIs to connect to
+     * @return a future for each connection, in the same order as the URIs
+     * @throws IllegalStateException if the connector has been closed.
+     */
+    public List<Future<WebSocket>> connectAll(Collection<URI> uris){
+        List<Future<WebSocket>> futures = new ArrayList<Future<WebSocket>>(uris.size());
+        for(URI uri : uris){
+            futures.add(connectAsync(uri));
+        }
+        return futures;
+    }
+
+    private synchronized ExecutorService pool(){
+        if(closed){
+            throw new IllegalStateException("Connector is closed");
+        }
+        if(pool == null){
+            pool = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "websoc-connector-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return pool;
+    }
+
+    /**
+     * Open the socket for a connection, doing the TLS handshake for wss.
+     * @param uri the normalized ws or wss URI to connect to
+     * @return the connected socket
+     * @throws IOException if the socket couldn't connect or the TLS handshake failed.
+     */
+    Socket open(URI uri) throws IOException {
+        connects.incrementAndGet();
+        int port = Handshake.port(uri);
+        if(!"wss".equals(uri.getScheme())){
+            return new Socket(uri.getHost(), port);
+        }
+        SSLContext context = sslContext == null ? TlsTransport.defaultContext() : sslContext;
+        SSLSocket socket = null;
+        try {
+            //Creating the socket by host and port is what lets the context find a cached session for it
+            socket = (SSLSocket) context.getSocketFactory().createSocket(uri.getHost(), port);
+            enableProtocols(socket);
+            long startMillis = System.currentTimeMillis();
+            long start = System.nanoTime();
+            socket.startHandshake();
+            long elapsed = System.nanoTime() - start;
+            SSLSession session = socket.getSession();
+            handshakes.incrementAndGet();
+            //A resumed session was created by an earlier handshake
+            if(session.getCreationTime() < startMillis){
+                resumedHandshakes.incrementAndGet();
+            }
+            handshakeNanos.addAndGet(elapsed);
+            long max;
+            while(elapsed > (max = maxHandshakeNanos.get()) && !maxHandshakeNanos.compareAndSet(max, elapsed)){
+            }
+            return socket;
+        } catch (IOException e) {
+            if(socket != null){
+                try {
+                    socket.close();
+                } catch (IOException e1) {
+                    //Already failing
+                }
+            }
+            throw e;
+        }
+    }
+
+    private void enableProtocols(SSLSocket socket){
+        String[] wanted = protocols;
+        if(wanted == null){
+            return;
+        }
+        List<String> enabled = new ArrayList<String>();
+        for(String protocol : socket.getEnabledProtocols()){
+            for(String want : wanted){
+                if(want.equals(protocol)){
+                    enabled.add(protocol);
+                }
+            }
+        }
+        if(!enabled.isEmpty()){
+            socket.setEnabledProtocols(enabled.toArray(new String[enabled.size()]));
+        }
+    }
+
+    /**
+     * Count a connection that failed, at any stage.
+     */
+    void failed(){
+        failedConnects.incrementAndGet();
+    }
+
+    /**
+     * @return how many sockets have been opened, counting redirects and failures
+     */
+    public long getConnectCount(){
+        return connects.get();
+    }
+
+    /**
+     * @return how many connections have failed, in connecting, the TLS handshake or the websocket handshake
+     */
+    public long getFailedConnectCount(){
+        return failedConnects.get();
+    }
+
+    /**
+     * @return how many TLS handshakes have completed, full and resumed
+     */
+    public long getHandshakeCount(){
+        return handshakes.get();
+    }
+
+    /**
+     * @return how many of the TLS handshakes resumed a cached session
+     */
+    public long getResumedHandshakeCount(){
+        return resumedHandshakes.get();
+    }
+
+    /**
+     * @return the time spent in TLS handshakes that completed, added up, in nanoseconds
+     */
+    public long getHandshakeNanos(){
+        return handshakeNanos.get();
+    }
+
+    /**
+     * @return the longest TLS handshake so far, in nanoseconds
+     */
+    public long getMaxHandshakeNanos(){
+        return maxHandshakeNanos.get();
+    }
+
+    /**
+     * Stop the connector's threads. Connections already open are left open, and connections still waiting to be set up are abandoned.
+     */
+    public synchronized void close(){
+        closed = true;
+        if(pool != null){
+            pool.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package ca.awoo.websoc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * A non-blocking websocket client engine.
+ * <p>
+ * The engine runs a small number of event loop threads, each owning a Selector. Connections are spread across the loops, so a few threads can serve thousands of connections.
+ * Use {@link WebSocket} instead for a single blocking connection.
+ * </p>
+ * <p>
+ * wss connections use TLS through an SSLEngine. Every connection shares the engine's SSLContext, so TLS sessions can be resumed from its session cache, and their network buffers come from a shared pool.
+ * </p>
+ */
+public class WebSocketEngine implements Closeable {
+
+    private final EventLoop[] loops;
+    private final AtomicInteger next = new AtomicInteger();
+    private final TlsTransport.Factory tls;
+    private volatile PerMessageDeflate compression;
+    private volatile Dispatch dispatch;
+    private volatile Heartbeat heartbeat;
+    private volatile FrameCapture capture;
+    private volatile ReceiveLimits limits = new ReceiveLimits();
+
+    /**
+     * Create an engine with one event loop.
+     * @throws IOException if a selector couldn't be opened.
+     */
+    public WebSocketEngine() throws IOException {
+        this(1);
+    }
+
+    /**
+     * Create an engine with the given number of event loops.
+     * @param threads the number of event loop threads
+     * @throws IOException if a selector couldn't be opened.
+     */
+    public WebSocketEngine(int threads) throws IOException {
+        this(threads, null);
+    }
+
+    /**
+     * Create an engine with the given number of event loops and its own SSLContext for wss connections.
+     * @param threads the number of event loop threads
+     * @param sslContext the context to create TLS engines from, or null to use a shared default context
+     * @throws IOException if a selector couldn't be opened.
+     */
+    public WebSocketEngine(int threads, SSLContext sslContext) throws IOException {
+        this.tls = new TlsTransport.Factory(sslContext);
+        if(threads < 1){
+            throw new IllegalArgumentException("Need at least one thread: " + threads);
+        }
+        loops = new EventLoop[threads];
+        for(int i = 0; i < threads; i++){
+            loops[i] = new EventLoop("websoc-engine-" + i);
+        }
+        for(EventLoop loop : loops){
+            loop.start();
+        }
+    }
+
+    /**
+     * @return the permessage-deflate settings offered by new connections, or null if compression isn't offered
+     */
+    public PerMessageDeflate getCompression(){
+        return compression;
+    }
+
+    /**
+     * Offer permessage-deflate compression on connections made from now on.
+     * @param compression the settings to offer, or null to stop offering compression
+     */
+    public void setCompression(PerMessageDeflate compression){
+        this.compression = compression;
+    }
+
+    /**
+     * @return the settings listeners are called through, or null if they are called on the event loop threads
+     */
+    public Dispatch getDispatch(){
+        return dispatch;
+    }
+
+    /**
+     * Call the listener on an Executor instead of the event loop threads, for connections made from now on. Each connection's events still arrive in order, one at a time.
+     * @param dispatch the settings to dispatch with, or null to call the listener on the event loop threads
+     */
+    public void setDispatch(Dispatch dispatch){
+        this.dispatch = dispatch;
+    }
+
+    /**
+     * @return the settings connections ping their peers with, or null if they don't
+     */
+    public Heartbeat getHeartbeat(){
+        return heartbeat;
+    }
+
+    /**
+     * Ping the peers of connections made from now on, dropping any that stop answering.
+     * @param heartbeat the settings to ping with, or null to not ping
+     */
+    public void setHeartbeat(Heartbeat heartbeat){
+        this.heartbeat = heartbeat;
+    }
+
+    /**
+     * @return the capture connections record their frames to, or null if they don't
+     */
+    public FrameCapture getCapture(){
+        return capture;
+    }
+
+    /**
+     * Record every frame sent and received by connections made from now on.
+     * @param capture the capture to record to, or null to stop recording new connections
+     */
+    public void setCapture(FrameCapture capture){
+        this.capture = capture;
+    }
+
+    /**
+     * @return the limits on what connections receive
+     */
+    public ReceiveLimits getReceiveLimits(){
+        return limits;
+    }
+
+    /**
+     * Limit the size of frames and messages received by connections made from now on. A peer that goes over them has its connection failed with close status 1009.
+     * @param limits the limits, or null for the defaults of 16MB frames and 64MB messages
+     */
+    public void setReceiveLimits(ReceiveLimits limits){
+        this.limits = limits == null ? new ReceiveLimits() : limits;
+    }
+
+    /**
+     * Start connecting to a websocket server. This returns straight away and the listener is told when the connection opens or fails.
+     * @param uri the ws or wss URI to connect to
+     * @param listener the listener to call with the connection's events
+     * @return the new connection
+     */
+    public AsyncWebSocket connect(URI uri, WebSocketListener listener){
+        EventLoop loop = loops[(next.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+        AsyncWebSocket socket = new AsyncWebSocket(this, loop, uri, listener);
+        socket.start();
+        return socket;
+    }
+
+    /**
+     * Create the transport for a newly connected channel.
+     * @param channel the connected channel
+     * @param uri the ws or wss URI it is connected to
+     * @return a TLS transport for wss, otherwise a plain one
+     * @throws IOException if TLS couldn't be set up.
+     */
+    Transport newTransport(SocketChannel channel, URI uri) throws IOException {
+        if(!"wss".equals(uri.getScheme())){
+            return new PlainTransport(channel);
+        }
+        return tls.newTransport(channel, uri.getHost(), Handshake.port(uri), true);
+    }
+
+    /**
+     * Stop the event loops. Any connections still open are dropped without a close handshake.
+     */
+    public void close(){
+        for(EventLoop loop : loops){
+            loop.shutdown();
+        }
+    }
+}
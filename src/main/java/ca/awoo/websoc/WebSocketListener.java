@@ -0,0 +1,43 @@
+package ca.awoo.websoc;
+
+/**
+ * Callbacks for an {@link AsyncWebSocket}.
+ * <p>
+ * By default they are all called on the connection's event loop thread, so they must not block: a slow callback holds up every connection on that loop.
+ * Given a {@link Dispatch} through {@link WebSocketEngine#setDispatch(Dispatch)} or {@link WebSocketServer#setDispatch(Dispatch)}, they are called on the Dispatch's Executor instead and may block, though a slow one lets the connection's queue of calls fill up and its {@link Dispatch.Overflow} policy take over.
+ * </p>
+ * <p>
+ * Either way, each connection's callbacks are made one at a time and in the order its events happened, though with a Dispatch not always on the same thread. Callbacks for different connections can run at the same time.
+ * </p>
+ */
+public interface WebSocketListener {
+
+    /**
+     * Called once the opening handshake has completed.
+     * @param socket the connection
+     */
+    void onOpen(AsyncWebSocket socket);
+
+    /**
+     * Called with each complete message. Fragmented messages are put back together before this is called.
+     * @param socket the connection
+     * @param opcode the opcode of the message's first frame, 1 for text or 2 for binary
+     * @param data the message payload
+     */
+    void onMessage(AsyncWebSocket socket, int opcode, byte[] data);
+
+    /**
+     * Called once when the connection has closed, whether cleanly or not.
+     * @param socket the connection
+     * @param code the close status code, or 1006 if no close frame was received
+     * @param reason the close reason, which may be empty
+     */
+    void onClose(AsyncWebSocket socket, int code, String reason);
+
+    /**
+     * Called when the connection fails. {@link #onClose} is called after this.
+     * @param socket the connection
+     * @param e what went wrong
+     */
+    void onError(AsyncWebSocket socket, Exception e);
+}
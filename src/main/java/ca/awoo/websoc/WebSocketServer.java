@@ -0,0 +1,281 @@
+package ca.awoo.websoc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+
+import ca.awoo.fwoabl.function.Consumer;
+
+/**
+ * A non-blocking websocket server.
+ * <p>
+ * The server runs one event loop thread per core by default. The first loop also accepts new connections, and accepted connections are spread across all of the loops.
+ * Each connection reads the upgrade request, checks it and answers with the Sec-WebSocket-Accept worked out the same way {@link WebSocket} checks it.
+ * A bad request gets an HTTP error response and the connection is closed.
+ * </p>
+ * <p>
+ * Every connection is reported to the one {@link WebSocketListener}, which can tell them apart by the {@link AsyncWebSocket} it is given.
+ * Given an SSLContext with a key manager, the server speaks wss instead of ws.
+ * </p>
+ * <p>
+ * If accepting fails, for instance because the process is out of file descriptors, the server tells its {@link #onError(Consumer)} listeners and stops accepting for a while before trying again, backing off further each time it fails in a row.
+ * </p>
+ */
+public class WebSocketServer implements Closeable {
+
+    private static final long MIN_ACCEPT_BACKOFF_MILLIS = 10;
+    private static final long MAX_ACCEPT_BACKOFF_MILLIS = 1000;
+
+    private final ServerSocketChannel serverChannel;
+    private final EventLoop[] loops;
+    private final WebSocketListener listener;
+    private final TlsTransport.Factory tls;
+    private volatile PerMessageDeflate compression;
+    private volatile Dispatch dispatch;
+    private volatile Heartbeat heartbeat;
+    private volatile FrameCapture capture;
+    private volatile ReceiveLimits limits = new ReceiveLimits();
+    private final Set<Consumer<Exception>> errorListeners = new CopyOnWriteArraySet<Consumer<Exception>>();
+    private final Acceptor acceptor = new Acceptor();
+    private int next = 0;
+
+    /**
+     * Listen on a port on every interface, with one event loop per core.
+     * @param port the port to listen on, or 0 for any free port
+     * @param listener the listener to call with every connection's events
+     * @throws IOException if the port couldn't be bound or a selector couldn't be opened.
+     */
+    public WebSocketServer(int port, WebSocketListener listener) throws IOException {
+        this(new InetSocketAddress(port), Runtime.getRuntime().availableProcessors(), null, listener);
+    }
+
+    /**
+     * Listen on an address.
+     * @param address the address to listen on
+     * @param threads the number of event loop threads
+     * @param sslContext the context to create TLS engines from for wss, or null to serve plain ws
+     * @param listener the listener to call with every connection's events
+     * @throws IOException if the address couldn't be bound or a selector couldn't be opened.
+     */
+    public WebSocketServer(InetSocketAddress address, int threads, SSLContext sslContext, WebSocketListener listener) throws IOException {
+        if(threads < 1){
+            throw new IllegalArgumentException("Need at least one thread: " + threads);
+        }
+        this.listener = listener;
+        this.tls = sslContext == null ? null : new TlsTransport.Factory(sslContext);
+        loops = new EventLoop[threads];
+        for(int i = 0; i < threads; i++){
+            loops[i] = new EventLoop("websoc-server-" + i);
+        }
+        serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.socket().bind(address, 1024);
+            serverChannel.configureBlocking(false);
+        } catch (IOException e) {
+            serverChannel.close();
+            throw e;
+        }
+        for(EventLoop loop : loops){
+            loop.start();
+        }
+        loops[0].execute(new EventLoop.Task(acceptor) {
+            public void run() {
+                try {
+                    acceptor.key = loops[0].register(serverChannel, SelectionKey.OP_ACCEPT, acceptor);
+                } catch (IOException e) {
+                    acceptor.failed(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the port the server is listening on
+     */
+    public int getPort(){
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * @return the permessage-deflate settings offers are accepted with, or null if compression is turned down
+     */
+    public PerMessageDeflate getCompression(){
+        return compression;
+    }
+
+    /**
+     * Accept permessage-deflate offers on connections accepted from now on.
+     * @param compression the settings to accept offers with, or null to turn compression down
+     */
+    public void setCompression(PerMessageDeflate compression){
+        this.compression = compression;
+    }
+
+    /**
+     * @return the settings listeners are called through, or null if they are called on the event loop threads
+     */
+    public Dispatch getDispatch(){
+        return dispatch;
+    }
+
+    /**
+     * Call the listener on an Executor instead of the event loop threads, for connections accepted from now on. Each connection's events still arrive in order, one at a time.
+     * @param dispatch the settings to dispatch with, or null to call the listener on the event loop threads
+     */
+    public void setDispatch(Dispatch dispatch){
+        this.dispatch = dispatch;
+    }
+
+    /**
+     * @return the settings connections ping their peers with, or null if they don't
+     */
+    public Heartbeat getHeartbeat(){
+        return heartbeat;
+    }
+
+    /**
+     * Ping the peers of connections accepted from now on, dropping any that stop answering.
+     * @param heartbeat the settings to ping with, or null to not ping
+     */
+    public void setHeartbeat(Heartbeat heartbeat){
+        this.heartbeat = heartbeat;
+    }
+
+    /**
+     * @return the capture connections record their frames to, or null if they don't
+     */
+    public FrameCapture getCapture(){
+        return capture;
+    }
+
+    /**
+     * Record every frame sent and received by connections accepted from now on.
+     * @param capture the capture to record to, or null to stop recording new connections
+     */
+    public void setCapture(FrameCapture capture){
+        this.capture = capture;
+    }
+
+    /**
+     * @return the limits on what connections receive
+     */
+    public ReceiveLimits getReceiveLimits(){
+        return limits;
+    }
+
+    /**
+     * Limit the size of frames and messages received by connections accepted from now on. A peer that goes over them has its connection failed with close status 1009.
+     * @param limits the limits, or null for the defaults of 16MB frames and 64MB messages
+     */
+    public void setReceiveLimits(ReceiveLimits limits){
+        this.limits = limits == null ? new ReceiveLimits() : limits;
+    }
+
+    /**
+     * Add a listener to be called when the server itself fails, rather than one of its connections, such as when accepting a connection fails.
+     * <p>
+     * It is called on the event loop thread that accepts connections, so it must not block.
+     * </p>
+     * @param listener A listener to call with what went wrong
+     */
+    public void onError(Consumer<Exception> listener){
+        errorListeners.add(listener);
+    }
+
+    /**
+     * @return true if the server was given an SSLContext and speaks wss
+     */
+    public boolean isSecure(){
+        return tls != null;
+    }
+
+    /**
+     * Stop accepting connections and stop the event loops. Any connections still open are dropped without a close handshake.
+     */
+    public void close(){
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            //Already as closed as it's going to get
+        }
+        for(EventLoop loop : loops){
+            loop.shutdown();
+        }
+    }
+
+    /**
+     * Accepts every pending connection each time the server channel is ready and hands them out to the loops in turn.
+     */
+    private class Acceptor implements EventLoop.Handler {
+
+        private SelectionKey key;
+        private long backoff = 0;
+        private final EventLoop.Task resume = new EventLoop.Task(this) {
+            public void run() {
+                if(key.isValid()){
+                    key.interestOps(SelectionKey.OP_ACCEPT);
+                }
+            }
+        };
+        private final Runnable wake = new Runnable() {
+            public void run() {
+                //On the timer thread, so hand it to the loop
+                loops[0].execute(resume);
+            }
+        };
+
+        public void handle(SelectionKey key) throws IOException {
+            SocketChannel channel;
+            while((channel = serverChannel.accept()) != null){
+                backoff = 0;
+                try {
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                    Transport transport = tls == null ? new PlainTransport(channel) : tls.newTransport(channel, null, -1, false);
+                    EventLoop loop = loops[next];
+                    next = (next + 1) % loops.length;
+                    AsyncWebSocket socket = new AsyncWebSocket(loop, channel, transport, tls != null, listener, compression, dispatch, heartbeat);
+                    socket.setCapture(capture);
+                    socket.setReceiveLimits(limits);
+                    socket.accepted();
+                } catch (IOException e) {
+                    //Drop this connection but keep accepting others
+                    channel.close();
+                }
+            }
+        }
+
+        /**
+         * Tell the error listeners that accepting failed, unless it was the server closing, and stop accepting for a while.
+         * <p>
+         * A failure like running out of file descriptors leaves the connection waiting in the backlog, so accepting again straight away would only fail again as fast as the loop can spin.
+         * </p>
+         */
+        public void failed(Exception e){
+            if(!serverChannel.isOpen()){
+                return;
+            }
+            for(Consumer<Exception> errorListener : errorListeners){
+                try {
+                    errorListener.invoke(e);
+                } catch (RuntimeException e1) {
+                    //A broken listener mustn't stop the server from accepting again
+                }
+            }
+            if(key != null && key.isValid()){
+                backoff = Math.min(Math.max(backoff * 2, MIN_ACCEPT_BACKOFF_MILLIS), MAX_ACCEPT_BACKOFF_MILLIS);
+                key.interestOps(0);
+                TimerWheel.shared().schedule(wake, backoff, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package ca.awoo.websoc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import ca.awoo.fwoabl.function.Consumer;
+
+/**
+ * The result of a queued write, completed once the frame has been handed to the socket or the write has failed.
+ * <p>
+ * Queued writes can't be taken back, so cancelling always fails. Listeners added with {@link #onComplete(Consumer)} are called on the thread that completes the write, or straight away if it is already done.
+ * </p>
+ */
+public class WriteFuture implements Future<Void> {
+
+    private boolean done = false;
+    private Throwable cause;
+    private List<Consumer<WriteFuture>> listeners;
+
+    /**
+     * @return a future that has already completed successfully
+     */
+    static WriteFuture succeeded(){
+        WriteFuture future = new WriteFuture();
+        future.complete();
+        return future;
+    }
+
+    /**
+     * @param cause why the write failed
+     * @return a future that has already failed
+     */
+    static WriteFuture failed(Throwable cause){
+        WriteFuture future = new WriteFuture();
+        future.fail(cause);
+        return future;
+    }
+
+    void complete(){
+        finish(null);
+    }
+
+    void fail(Throwable cause){
+        finish(cause);
+    }
+
+    private void finish(Throwable cause){
+        List<Consumer<WriteFuture>> toCall;
+        synchronized(this){
+            if(done){
+                return;
+            }
+            done = true;
+            this.cause = cause;
+            toCall = listeners;
+            listeners = null;
+            notifyAll();
+        }
+        if(toCall != null){
+            for(Consumer<WriteFuture> listener : toCall){
+                listener.invoke(this);
+            }
+        }
+    }
+
+    /**
+     * Call a listener once the write is done.
+     * @param listener the listener to call with this future
+     */
+    public void onComplete(Consumer<WriteFuture> listener){
+        synchronized(this){
+            if(!done){
+                if(listeners == null){
+                    listeners = new ArrayList<Consumer<WriteFuture>>(1);
+                }
+                listeners.add(listener);
+                return;
+            }
+        }
+        listener.invoke(this);
+    }
+
+    /**
+     * @return true if the write is done and didn't fail
+     */
+    public synchronized boolean isSuccess(){
+        return done && cause == null;
+    }
+
+    /**
+     * @return why the write failed, or null if it hasn't
+     */
+    public synchronized Throwable getCause(){
+        return cause;
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning){
+        return false;
+    }
+
+    public boolean isCancelled(){
+        return false;
+    }
+
+    public synchronized boolean isDone(){
+        return done;
+    }
+
+    public synchronized Void get() throws InterruptedException, ExecutionException {
+        while(!done){
+            wait();
+        }
+        return result();
+    }
+
+    public synchronized Void get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while(!done){
+            long left = deadline - System.nanoTime();
+            if(left <= 0){
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+        return result();
+    }
+
+    private Void result() throws ExecutionException {
+        if(cause != null){
+            throw new ExecutionException(cause);
+        }
+        return null;
+    }
+}
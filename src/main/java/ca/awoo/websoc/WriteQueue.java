@@ -0,0 +1,353 @@
+package ca.awoo.websoc;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import ca.awoo.fwoabl.function.Consumer;
+
+/**
+ * The outbound queue of a blocking {@link WebSocket}, drained by a writer thread of its own.
+ * <p>
+ * Queued frames are already encoded. The writer takes everything queued at once and copies small frames into one buffer, so a burst of small frames goes out in a single socket write.
+ * Frames larger than the buffer are written on their own without being copied.
+ * </p>
+ * <p>
+ * The writer thread is started when something is queued and stops once the queue has been idle for a while.
+ * </p>
+ * <p>
+ * Once more than the high watermark is queued the queue becomes unwritable, and it becomes writable again when the writer has brought it down to the low watermark.
+ * Producers can watch for this with the writability listeners and hold off instead of queueing without bound.
+ * </p>
+ * <p>
+ * Writes made directly on a caller's thread go through {@link #beginWrite()} and {@link #endWrite()}, which wait for the frames queued before them so they can't overtake them.
+ * Only one thread writes to the stream at a time, so frames never interleave. A message sent as several frames holds the queue with {@link #beginMessage()} so no other data frame lands between its fragments; control frames still can, as the RFC allows.
+ * </p>
+ * <p>
+ * Queued frames are counted in the connection's {@link Metrics}, along with the bytes waiting and how long each frame waited before it was written.
+ * </p>
+ */
+class WriteQueue {
+
+    private static final int COALESCE_SIZE = 65536;
+    private static final long IDLE_MILLIS = 10000;
+
+    private final OutputStream out;
+    private final String name;
+    private final Metrics metrics;
+    private final LinkedList<Entry> queue = new LinkedList<Entry>();
+    private final List<Consumer<Boolean>> writabilityListeners = new CopyOnWriteArrayList<Consumer<Boolean>>();
+    private int lowWatermark = 32768;
+    private int highWatermark = 65536;
+    private long queuedBytes = 0;
+    private boolean writable = true;
+    private boolean writing = false;
+    private boolean closed = false;
+    private IOException failure;
+    private Thread messageOwner;
+    private Thread writer;
+    private byte[] coalesce;
+
+    private static class Entry {
+        final byte[] frame;
+        final WriteFuture future;
+        final long queuedAt;
+
+        Entry(byte[] frame, WriteFuture future, long queuedAt){
+            this.frame = frame;
+            this.future = future;
+            this.queuedAt = queuedAt;
+        }
+    }
+
+    /**
+     * @param out the stream to write to
+     * @param name the name to give the writer thread
+     */
+    WriteQueue(OutputStream out, String name){
+        this(out, name, new Metrics(null));
+    }
+
+    /**
+     * @param out the stream to write to
+     * @param name the name to give the writer thread
+     * @param metrics the metrics to count queued frames in
+     */
+    WriteQueue(OutputStream out, String name, Metrics metrics){
+        this.out = out;
+        this.name = name;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Set the watermarks. This can be done at any time, and takes effect with the next write.
+     * @param low the queued bytes the queue must come down to before it is writable again
+     * @param high the queued bytes above which the queue is unwritable
+     */
+    synchronized void setWatermarks(int low, int high){
+        if(low < 0 || high < low){
+            throw new IllegalArgumentException("Invalid watermarks: " + low + ", " + high);
+        }
+        this.lowWatermark = low;
+        this.highWatermark = high;
+    }
+
+    synchronized int getLowWatermark(){
+        return lowWatermark;
+    }
+
+    synchronized int getHighWatermark(){
+        return highWatermark;
+    }
+
+    synchronized boolean isWritable(){
+        return writable;
+    }
+
+    synchronized long getQueuedBytes(){
+        return queuedBytes;
+    }
+
+    void onWritabilityChanged(Consumer<Boolean> listener){
+        writabilityListeners.add(listener);
+    }
+
+    /**
+     * Queue an encoded frame for the writer thread.
+     * @param frame the whole frame, which must not be changed afterwards
+     * @return a future completed once the frame has been written
+     */
+    WriteFuture enqueue(byte[] frame){
+        WriteFuture future = new WriteFuture();
+        boolean changed = false;
+        synchronized(this){
+            if(failure != null){
+                return WriteFuture.failed(failure);
+            }
+            if(closed){
+                return WriteFuture.failed(new IOException("WebSocket is closed"));
+            }
+            queue.add(new Entry(frame, future, System.nanoTime()));
+            queuedBytes += frame.length;
+            metrics.frameOut(frame, 0);
+            metrics.queued(frame.length);
+            if(writable && queuedBytes > highWatermark){
+                writable = false;
+                changed = true;
+            }
+            if(writer == null){
+                writer = new Thread(new Runnable() {
+                    public void run() {
+                        drain();
+                    }
+                }, name);
+                writer.setDaemon(true);
+                writer.start();
+            }
+            notifyAll();
+        }
+        if(changed){
+            fireWritability(false);
+        }
+        return future;
+    }
+
+    /**
+     * Wait for everything queued so far to be written and for any open message to be finished, then take the stream for a whole message in one frame on the caller's thread.
+     * @throws IOException if the writer has failed, the caller has a message open, or the thread was interrupted while waiting.
+     */
+    synchronized void beginWrite() throws IOException {
+        checkOwner();
+        await(true);
+        writing = true;
+    }
+
+    /**
+     * Take the stream for a frame that is allowed between the fragments of an open message: a control frame, or the next fragment of the message itself.
+     * This only waits for the stream to be free, not for the queue, so a pong can go out ahead of queued messages.
+     * @throws IOException if the writer has failed, or the thread was interrupted while waiting.
+     */
+    synchronized void beginFrame() throws IOException {
+        await(false);
+        writing = true;
+    }
+
+    /**
+     * Give the stream back after {@link #beginWrite()} or {@link #beginFrame()}.
+     */
+    synchronized void endWrite(){
+        writing = false;
+        notifyAll();
+    }
+
+    /**
+     * Open a message that will be written as several frames. Until {@link #endMessage()}, no other data frame is written, whether directly or from the queue.
+     * The message's own frames are written with {@link #beginFrame()}.
+     * @throws IOException if the writer has failed, the caller already has a message open, or the thread was interrupted while waiting.
+     */
+    synchronized void beginMessage() throws IOException {
+        checkOwner();
+        await(true);
+        messageOwner = Thread.currentThread();
+    }
+
+    /**
+     * Finish the message opened with {@link #beginMessage()}. This can be called from any thread.
+     */
+    synchronized void endMessage(){
+        messageOwner = null;
+        notifyAll();
+    }
+
+    private void checkOwner() throws IOException {
+        if(messageOwner == Thread.currentThread()){
+            //Waiting for our own message to finish would never end
+            throw new IOException("The last streamed message hasn't been closed");
+        }
+    }
+
+    /**
+     * Wait until the stream is free and, for a data frame, until nothing is queued and no message is open.
+     */
+    private void await(boolean data) throws IOException {
+        try {
+            while(failure == null && (writing || (data && (messageOwner != null || !queue.isEmpty())))){
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for queued writes");
+        }
+        if(failure != null){
+            throw failure;
+        }
+    }
+
+    /**
+     * Stop the writer thread once it has written everything already queued. Frames queued afterwards fail.
+     */
+    synchronized void close(){
+        closed = true;
+        notifyAll();
+    }
+
+    private void drain(){
+        List<Entry> batch = new ArrayList<Entry>();
+        while(true){
+            synchronized(this){
+                boolean idle = false;
+                while(writing || messageOwner != null || queue.isEmpty()){
+                    if(queue.isEmpty() && (closed || idle)){
+                        //Another thread is started if anything is queued later
+                        writer = null;
+                        return;
+                    }
+                    long start = System.currentTimeMillis();
+                    try {
+                        wait(IDLE_MILLIS);
+                    } catch (InterruptedException e) {
+                        //Nothing should interrupt the writer, so treat it as a timeout
+                    }
+                    idle = System.currentTimeMillis() - start >= IDLE_MILLIS;
+                }
+                batch.addAll(queue);
+                queue.clear();
+                writing = true;
+            }
+            IOException error = null;
+            try {
+                write(batch);
+            } catch (IOException e) {
+                error = e;
+            }
+            long written = 0;
+            long now = System.nanoTime();
+            for(Entry entry : batch){
+                written += entry.frame.length;
+                if(error == null){
+                    metrics.written(now - entry.queuedAt);
+                }
+            }
+            metrics.queued(-written);
+            boolean changed = false;
+            List<Entry> failed = null;
+            synchronized(this){
+                writing = false;
+                queuedBytes -= written;
+                if(error != null){
+                    failure = error;
+                    failed = new ArrayList<Entry>(queue);
+                    queue.clear();
+                    metrics.queued(-queuedBytes);
+                    queuedBytes = 0;
+                }
+                if(!writable && queuedBytes <= lowWatermark){
+                    writable = true;
+                    changed = true;
+                }
+                notifyAll();
+            }
+            for(Entry entry : batch){
+                if(error == null){
+                    entry.future.complete();
+                }else{
+                    entry.future.fail(error);
+                }
+            }
+            if(failed != null){
+                for(Entry entry : failed){
+                    entry.future.fail(error);
+                }
+            }
+            batch.clear();
+            if(changed){
+                fireWritability(true);
+            }
+            if(error != null){
+                synchronized(this){
+                    writer = null;
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Write a batch of frames, copying runs of small ones into one buffer.
+     */
+    private void write(List<Entry> batch) throws IOException {
+        if(coalesce == null){
+            coalesce = new byte[COALESCE_SIZE];
+        }
+        int n = 0;
+        for(Entry entry : batch){
+            byte[] frame = entry.frame;
+            if(frame.length > coalesce.length - n){
+                if(n > 0){
+                    out.write(coalesce, 0, n);
+                    n = 0;
+                }
+                if(frame.length > coalesce.length){
+                    out.write(frame);
+                    continue;
+                }
+            }
+            System.arraycopy(frame, 0, coalesce, n, frame.length);
+            n += frame.length;
+        }
+        if(n > 0){
+            out.write(coalesce, 0, n);
+        }
+        out.flush();
+    }
+
+    private void fireWritability(boolean writable){
+        for(Consumer<Boolean> listener : writabilityListeners){
+            listener.invoke(Boolean.valueOf(writable));
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package ca.awoo.websoc;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Shared pools of raw deflate Deflaters and Inflaters.
+ * <p>
+ * Each one holds tens of kilobytes of native memory and is slow to set up, so they are reset and reused rather than created for every message.
+ * At most MAX_POOLED of each kind are kept. Anything released beyond that is ended straight away to free its native memory.
+ * </p>
+ */
+final class ZipPool {
+
+    private static final int MAX_POOLED = 256;
+
+    private static final Pool<Inflater> inflaters = new Pool<Inflater>();
+    //One pool per compression level, from -1 (the default) to 9
+    private static final Pool<?>[] deflaters = new Pool<?>[11];
+
+    static {
+        for(int i = 0; i < deflaters.length; i++){
+            deflaters[i] = new Pool<Deflater>();
+        }
+    }
+
+    private ZipPool(){
+    }
+
+    private static class Pool<T> {
+        private final Queue<T> free = new ConcurrentLinkedQueue<T>();
+        private final AtomicInteger pooled = new AtomicInteger();
+
+        T poll(){
+            T item = free.poll();
+            if(item != null){
+                pooled.decrementAndGet();
+            }
+            return item;
+        }
+
+        boolean offer(T item){
+            if(pooled.incrementAndGet() > MAX_POOLED){
+                pooled.decrementAndGet();
+                return false;
+            }
+            free.add(item);
+            return true;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Pool<Deflater> deflaterPool(int level){
+        return (Pool<Deflater>) deflaters[level + 1];
+    }
+
+    /**
+     * @param level the compression level, from -1 for the default to 9
+     * @return a reset raw deflate Deflater for that level
+     */
+    static Deflater deflater(int level){
+        Deflater deflater = deflaterPool(level).poll();
+        if(deflater == null){
+            deflater = new Deflater(level, true);
+        }
+        return deflater;
+    }
+
+    /**
+     * Give a Deflater back. It is reset, so it can be released in any state.
+     * @param deflater a Deflater that came from {@link #deflater(int)}
+     * @param level the level it was taken for
+     */
+    static void release(Deflater deflater, int level){
+        deflater.reset();
+        if(!deflaterPool(level).offer(deflater)){
+            deflater.end();
+        }
+    }
+
+    /**
+     * @return a reset raw deflate Inflater
+     */
+    static Inflater inflater(){
+        Inflater inflater = inflaters.poll();
+        if(inflater == null){
+            inflater = new Inflater(true);
+        }
+        return inflater;
+    }
+
+    /**
+     * Give an Inflater back. It is reset, so it can be released in any state.
+     * @param inflater an Inflater that came from {@link #inflater()}
+     */
+    static void release(Inflater inflater){
+        inflater.reset();
+        if(!inflaters.offer(inflater)){
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package ca.awoo.websoc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import ca.awoo.fwoabl.function.Consumer;
+
+public class DispatchTest {
+
+    /**
+     * Counts the messages a server receives, slowly.
+     */
+    private static class SlowListener implements WebSocketListener {
+        final List<Integer> received = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch closed = new CountDownLatch(1);
+        final AtomicInteger running = new AtomicInteger();
+        volatile boolean overlapped = false;
+
+        public void onOpen(AsyncWebSocket socket) {
+        }
+
+        public void onMessage(AsyncWebSocket socket, int opcode, byte[] data) {
+            if(running.incrementAndGet() > 1){
+                overlapped = true;
+            }
+            try {
+                Thread.sleep(2);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            received.add(Integer.valueOf((data[0] & 0xFF) << 8 | (data[1] & 0xFF)));
+            running.decrementAndGet();
+        }
+
+        public void onClose(AsyncWebSocket socket, int code, String reason) {
+            closed.countDown();
+        }
+
+        public void onError(AsyncWebSocket socket, Exception e) {
+        }
+    }
+
+    @Test
+    public void serialOrderTest() throws Exception{
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        final SerialExecutor[] queues = new SerialExecutor[8];
+        final int[][] seen = new int[queues.length][1];
+        final boolean[] broken = new boolean[1];
+        for(int q = 0; q < queues.length; q++){
+            queues[q] = new SerialExecutor(pool, 100000);
+        }
+        for(int i = 0; i < 10000; i++){
+            for(int q = 0; q < queues.length; q++){
+                final int queue = q;
+                final int expected = i;
+                queues[q].force(new Runnable() {
+                    public void run() {
+                        //Only one task per queue runs at a time, so this needs no locking
+                        if(seen[queue][0] != expected){
+                            broken[0] = true;
+                        }
+                        seen[queue][0]++;
+                    }
+                });
+            }
+        }
+        final CountDownLatch done = new CountDownLatch(queues.length);
+        for(SerialExecutor queue : queues){
+            queue.force(new Runnable() {
+                public void run() {
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertFalse(broken[0]);
+        pool.shutdown();
+    }
+
+    @Test
+    public void slowReadListenerTest() throws Exception{
+        EchoServer server = new EchoServer();
+        WebSocket ws = new WebSocket(server.getUri());
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        ws.setDispatch(new Dispatch(pool, 1000, Dispatch.Overflow.BLOCK));
+        final List<Integer> frames = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch all = new CountDownLatch(20);
+        ws.onReadFrame(new Consumer<WebSocket.Frame>() {
+            public void invoke(WebSocket.Frame frame) {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                frames.add(Integer.valueOf(frame.getData()[0]));
+                all.countDown();
+            }
+        });
+        long start = System.nanoTime();
+        for(int i = 0; i < 20; i++){
+            ws.sendBinary(new byte[]{(byte) i}, 0, 1);
+            assertEquals(i, ws.readFrame().getData()[0]);
+        }
+        //Inline, the listener alone would take a second
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500));
+        assertTrue(all.await(10, TimeUnit.SECONDS));
+        for(int i = 0; i < 20; i++){
+            assertEquals(Integer.valueOf(i), frames.get(i));
+        }
+        ws.close();
+        pool.shutdown();
+        server.close();
+    }
+
+    private void sendAll(int port, int count) throws Exception{
+        WebSocket ws = new WebSocket(new java.net.URI("ws://localhost:" + port + "/"));
+        for(int i = 0; i < count; i++){
+            ws.sendBinary(new byte[]{(byte) (i >> 8), (byte) i}, 0, 2);
+        }
+        ws.writeFrame(new WebSocket.Frame(true, 8, true, 2, new byte[4], new byte[]{0x03, (byte) 0xE8}));
+        //Wait for the server's close frame so everything has been read before the socket closes
+        while(ws.nextMessage() != null){
+        }
+        ws.close();
+    }
+
+    @Test
+    public void blockOverflowTest() throws Exception{
+        SlowListener listener = new SlowListener();
+        WebSocketServer server = new WebSocketServer(new InetSocketAddress("localhost", 0), 1, null, listener);
+        Dispatch dispatch = Dispatch.virtualThreads(4, Dispatch.Overflow.BLOCK);
+        server.setDispatch(dispatch);
+        sendAll(server.getPort(), 300);
+        assertTrue(listener.closed.await(10, TimeUnit.SECONDS));
+        //Reading paused instead of losing anything
+        assertEquals(300, listener.received.size());
+        for(int i = 0; i < 300; i++){
+            assertEquals(Integer.valueOf(i), listener.received.get(i));
+        }
+        assertFalse(listener.overlapped);
+        assertTrue(dispatch.getOverflowCount() > 0);
+        server.close();
+    }
+
+    @Test
+    public void dropOverflowTest() throws Exception{
+        SlowListener listener = new SlowListener();
+        WebSocketServer server = new WebSocketServer(new InetSocketAddress("localhost", 0), 1, null, listener);
+        Dispatch dispatch = new Dispatch(Executors.newSingleThreadExecutor(), 4, Dispatch.Overflow.DROP);
+        final AtomicInteger reported = new AtomicInteger();
+        dispatch.onOverflow(new Dispatch.OverflowListener() {
+            public void overflow(Object connection, Dispatch.Overflow policy) {
+                reported.incrementAndGet();
+            }
+        });
+        server.setDispatch(dispatch);
+        sendAll(server.getPort(), 300);
+        assertTrue(listener.closed.await(10, TimeUnit.SECONDS));
+        assertTrue(listener.received.size() < 300);
+        assertEquals(300 - listener.received.size(), reported.get());
+        server.close();
+    }
+}
@@ -0,0 +1,211 @@
+package ca.awoo.websoc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import ca.awoo.websoc.WebSocket.Frame;
+
+public class FrameCaptureTest {
+
+    private static File tempDirectory() throws IOException {
+        File dir = File.createTempFile("capture", "");
+        dir.delete();
+        dir.mkdirs();
+        return dir;
+    }
+
+    private static void delete(File dir){
+        File[] files = dir.listFiles();
+        if(files != null){
+            for(File file : files){
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private static String text(FrameCapture.Record record) throws IOException {
+        return new String(record.getPayload(), "UTF-8");
+    }
+
+    @Test
+    public void blockingCaptureTest() throws Exception{
+        File dir = tempDirectory();
+        FrameCapture capture = new FrameCapture(dir);
+        EchoServer server = new EchoServer();
+        WebSocket ws = new WebSocket(server.getUri());
+        int connection = capture.attach(ws);
+        ws.sendText("hello");
+        Frame echoed = ws.readFrame();
+        assertEquals("hello", new String(echoed.getData(), "UTF-8"));
+        capture.close();
+        ws.close();
+        server.close();
+
+        List<FrameCapture.Record> records = new CaptureReader(dir).readAll();
+        assertEquals(2, records.size());
+        FrameCapture.Record sent = records.get(0);
+        assertTrue(sent.isOutgoing());
+        assertEquals(connection, sent.getConnection());
+        assertEquals(1, sent.getOpcode());
+        assertTrue(sent.isFin());
+        assertEquals("hello", text(sent));
+        FrameCapture.Record received = records.get(1);
+        assertFalse(received.isOutgoing());
+        assertEquals("hello", text(received));
+        assertTrue(received.getTime() >= sent.getTime());
+        assertEquals(2, capture.getRecordedCount());
+        assertEquals(0, capture.getDroppedCount());
+        delete(dir);
+    }
+
+    @Test
+    public void serverCaptureTest() throws Exception{
+        File dir = tempDirectory();
+        FrameCapture capture = new FrameCapture(dir);
+        WebSocketServer server = new WebSocketServer(0, new WebSocketListener() {
+            public void onOpen(AsyncWebSocket socket) {
+            }
+
+            public void onMessage(AsyncWebSocket socket, int opcode, byte[] data) {
+                try {
+                    socket.send(data);
+                } catch (IOException e) {
+                    socket.close();
+                }
+            }
+
+            public void onClose(AsyncWebSocket socket, int code, String reason) {
+            }
+
+            public void onError(AsyncWebSocket socket, Exception e) {
+            }
+        });
+        server.setCapture(capture);
+        WebSocket ws = new WebSocket(new URI("ws://localhost:" + server.getPort() + "/"));
+        byte[] data = new byte[1000];
+        for(int i = 0; i < data.length; i++){
+            data[i] = (byte) i;
+        }
+        ws.sendBinary(data, 0, data.length);
+        assertEquals(data.length, ws.readFrame().getData().length);
+        ws.close();
+        server.close();
+        capture.close();
+
+        List<FrameCapture.Record> records = new CaptureReader(dir).readAll();
+        //The message, its echo, and the close handshake
+        assertEquals(4, records.size());
+        FrameCapture.Record received = records.get(0);
+        assertFalse(received.isOutgoing());
+        assertEquals(2, received.getOpcode());
+        //The client masked it, and the capture has it unmasked
+        for(int i = 0; i < data.length; i++){
+            assertEquals(data[i], received.getPayload()[i]);
+        }
+        FrameCapture.Record sent = records.get(1);
+        assertTrue(sent.isOutgoing());
+        assertEquals(1000, sent.getPayload().length);
+        assertEquals(8, records.get(2).getOpcode());
+        assertEquals(8, records.get(3).getOpcode());
+        delete(dir);
+    }
+
+    @Test
+    public void rotationTest() throws Exception{
+        File dir = tempDirectory();
+        FrameCapture capture = new FrameCapture(dir, 4096, 3, 100, 1000);
+        byte[] payload = new byte[300];
+        for(int i = 0; i < 500; i++){
+            payload[0] = (byte) i;
+            capture.record(i, i % 2 == 0, new Frame(true, 2, false, payload.length, new byte[4], payload));
+        }
+        capture.close();
+        assertEquals(0, capture.getDroppedCount());
+        assertEquals(3, dir.listFiles().length);
+
+        List<FrameCapture.Record> records = new CaptureReader(dir).readAll();
+        //Only the newest files are kept, so only the newest records
+        assertTrue(records.size() > 0 && records.size() < 500);
+        int first = 500 - records.size();
+        for(int i = 0; i < records.size(); i++){
+            FrameCapture.Record record = records.get(i);
+            assertEquals(first + i, record.getConnection());
+            assertEquals((byte) (first + i), record.getPayload()[0]);
+            assertEquals(100, record.getPayload().length);
+            assertEquals(300, record.getLength());
+            assertTrue(record.isTruncated());
+        }
+        delete(dir);
+    }
+
+    @Test
+    public void replayTest() throws Exception{
+        File dir = tempDirectory();
+        FrameCapture capture = new FrameCapture(dir);
+        final CountDownLatch done = new CountDownLatch(1);
+        WebSocketServer server = new WebSocketServer(0, new WebSocketListener() {
+            public void onOpen(AsyncWebSocket socket) {
+            }
+
+            public void onMessage(AsyncWebSocket socket, int opcode, byte[] data) {
+                done.countDown();
+            }
+
+            public void onClose(AsyncWebSocket socket, int code, String reason) {
+            }
+
+            public void onError(AsyncWebSocket socket, Exception e) {
+            }
+        });
+        server.setCapture(capture);
+        WebSocket ws = new WebSocket(new URI("ws://localhost:" + server.getPort() + "/"));
+        ws.setFragmentSize(10);
+        ws.sendText("a message long enough to be fragmented");
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        ws.close();
+        server.close();
+        capture.close();
+
+        //Feed the client's frames back through Frame.read, masked as they were sent
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        int frames = 0;
+        CaptureReader reader = new CaptureReader(dir);
+        FrameCapture.Record record;
+        while((record = reader.next()) != null){
+            if(!record.isOutgoing()){
+                wire.write(record.encode(new byte[]{1, 2, 3, 4}));
+                frames++;
+            }
+        }
+        reader.close();
+        assertEquals(5, frames);
+        ByteArrayInputStream in = new ByteArrayInputStream(wire.toByteArray());
+        StringBuilder text = new StringBuilder();
+        Frame frame = Frame.read(in);
+        assertEquals(1, frame.getOpcode());
+        while(true){
+            text.append(new String(frame.getData(), "UTF-8"));
+            if(frame.isFin()){
+                break;
+            }
+            frame = Frame.read(in);
+            assertEquals(0, frame.getOpcode());
+        }
+        assertEquals("a message long enough to be fragmented", text.toString());
+        assertEquals(8, Frame.read(in).getOpcode());
+        delete(dir);
+    }
+}
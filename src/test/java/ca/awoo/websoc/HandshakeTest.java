@@ -0,0 +1,206 @@
+package ca.awoo.websoc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.junit.Test;
+
+public class HandshakeTest {
+
+    private static final String RESPONSE = "HTTP/1.1 101 Switching Protocols\r\n"
+        + "Upgrade: websocket\r\n"
+        + "Connection: Upgrade\r\n"
+        + "Sec-WebSocket-Accept: s3pPLMBiTxaQ9kYGzzhZRbK+xOo=\r\n"
+        + "\r\n";
+
+    private static Handshake.Head parse(String head) throws IOException{
+        byte[] bytes = head.getBytes("ISO-8859-1");
+        return Handshake.parse(bytes, 0, bytes.length);
+    }
+
+    private static void assertMalformed(String head){
+        try {
+            parse(head);
+            fail("Parsed " + head);
+        } catch (IOException e) {
+            //Expected
+        }
+    }
+
+    /**
+     * A stream that hands out at most a few bytes per read, like a slow socket.
+     */
+    private static class TrickleInputStream extends InputStream {
+        private final byte[] data;
+        private final int chunk;
+        private int position = 0;
+
+        TrickleInputStream(byte[] data, int chunk){
+            this.data = data;
+            this.chunk = chunk;
+        }
+
+        public int read(){
+            return position < data.length ? data[position++] & 0xFF : -1;
+        }
+
+        public int read(byte[] b, int off, int len){
+            if(position == data.length){
+                return -1;
+            }
+            int n = Math.min(Math.min(len, chunk), data.length - position);
+            System.arraycopy(data, position, b, off, n);
+            position += n;
+            return n;
+        }
+    }
+
+    @Test
+    public void acceptTest() throws Exception{
+        //The example from RFC 6455
+        assertEquals("s3pPLMBiTxaQ9kYGzzhZRbK+xOo=", Handshake.accept("dGhlIHNhbXBsZSBub25jZQ=="));
+        assertEquals("s3pPLMBiTxaQ9kYGzzhZRbK+xOo=", Handshake.accept("dGhlIHNhbXBsZSBub25jZQ=="));
+    }
+
+    @Test
+    public void parseTest() throws Exception{
+        Handshake.Head head = parse("HTTP/1.1 101 Switching Protocols\r\n"
+            + "UPGRADE: websocket\r\n"
+            + "Connection:keep-alive\r\n"
+            + "connection: \tUpgrade  \r\n"
+            + "X-Empty:\r\n"
+            + "\r\n");
+        assertEquals("HTTP/1.1 101 Switching Protocols", head.startLine);
+        assertEquals(101, head.status());
+        assertEquals("websocket", head.header("upgrade"));
+        assertEquals("keep-alive, Upgrade", head.header("connection"));
+        assertTrue(head.headerContains("connection", "upgrade"));
+        assertEquals("", head.header("x-empty"));
+        assertNull(head.header("sec-websocket-accept"));
+        assertEquals(404, parse("HTTP/1.1 404\r\n\r\n").status());
+    }
+
+    @Test
+    public void malformedTest() throws Exception{
+        assertMalformed("HTTP/1.1 101 OK\r\nUpgrade websocket\r\n\r\n");
+        assertMalformed("HTTP/1.1 101 OK\r\n: websocket\r\n\r\n");
+        assertMalformed("HTTP/1.1 101 OK\r\nUp grade: websocket\r\n\r\n");
+        assertMalformed("HTTP/1.1 101 OK\r\nUpgrade: web\u0001socket\r\n\r\n");
+        assertMalformed("HTTP/1.1 101 OK\r\nUpgrade: websocket\n\r\n");
+        assertMalformed("HTTP/1.1 101 OK\r\nUpgrade: websocket\r\n folded\r\n\r\n");
+        for(String status : new String[]{"HTTP/1.0 101 OK", "HTTP/1.1 1O1 OK", "HTTP/1.1 1010 OK", "HTTP/1.1 10"}){
+            try {
+                parse(status + "\r\n\r\n").status();
+                fail("Parsed " + status);
+            } catch (IOException e) {
+                //Expected
+            }
+        }
+    }
+
+    @Test
+    public void limitTest() throws Exception{
+        StringBuilder sb = new StringBuilder("HTTP/1.1 101 OK\r\n");
+        for(int i = 0; i <= Handshake.MAX_HEADERS; i++){
+            sb.append("X-").append(i).append(": a\r\n");
+        }
+        assertMalformed(sb.append("\r\n").toString());
+
+        sb = new StringBuilder("HTTP/1.1 101 OK\r\nX-Long: ");
+        while(sb.length() < Handshake.MAX_HEAD_SIZE){
+            sb.append("aaaaaaaa");
+        }
+        byte[] big = sb.append("\r\n\r\n").toString().getBytes("ISO-8859-1");
+        try {
+            Handshake.read(new ByteArrayInputStream(big));
+            fail("Read a head larger than the limit");
+        } catch (IOException e) {
+            //Expected
+        }
+    }
+
+    @Test
+    public void restTest() throws Exception{
+        byte[] head = RESPONSE.getBytes("ISO-8859-1");
+        byte[] data = new byte[head.length + 3];
+        System.arraycopy(head, 0, data, 0, head.length);
+        data[head.length] = (byte) 0x81;
+        data[head.length + 1] = 1;
+        data[head.length + 2] = 'x';
+        //Split the stream at every size so the terminator lands across reads
+        for(int chunk = 1; chunk <= data.length; chunk++){
+            Handshake.Head parsed = Handshake.read(new TrickleInputStream(data, chunk));
+            assertEquals(101, parsed.status());
+            int expected = Math.min(data.length, ((head.length + chunk - 1) / chunk) * chunk) - head.length;
+            if(expected == 0){
+                assertNull(parsed.rest);
+            }else{
+                assertEquals(expected, parsed.rest.length);
+                assertEquals((byte) 0x81, parsed.rest[0]);
+            }
+        }
+    }
+
+    @Test
+    public void framesAfterResponseTest() throws Exception{
+        final ServerSocket listener = new ServerSocket(0);
+        Thread server = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Socket socket = listener.accept();
+                    InputStream in = socket.getInputStream();
+                    String key = null;
+                    StringBuilder line = new StringBuilder();
+                    int b;
+                    while((b = in.read()) != -1){
+                        if(b != '\n'){
+                            line.append((char) b);
+                            continue;
+                        }
+                        String l = line.toString().trim();
+                        line.setLength(0);
+                        if(l.length() == 0){
+                            break;
+                        }
+                        if(l.toLowerCase().startsWith("sec-websocket-key:")){
+                            key = l.substring(18).trim();
+                        }
+                    }
+                    //The response and two frames in one write, so they arrive together
+                    String response = "HTTP/1.1 101 Switching Protocols\r\n"
+                        + "Upgrade: websocket\r\n"
+                        + "Connection: Upgrade\r\n"
+                        + "Sec-WebSocket-Accept: " + Handshake.accept(key) + "\r\n"
+                        + "\r\n";
+                    byte[] head = response.getBytes("ISO-8859-1");
+                    byte[] all = new byte[head.length + 10];
+                    System.arraycopy(head, 0, all, 0, head.length);
+                    byte[] frames = {(byte) 0x81, 3, 'o', 'n', 'e', (byte) 0x81, 3, 't', 'w', 'o'};
+                    System.arraycopy(frames, 0, all, head.length, frames.length);
+                    OutputStream out = socket.getOutputStream();
+                    out.write(all);
+                    out.flush();
+                    socket.close();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        server.start();
+        WebSocket ws = new WebSocket(new java.net.URI("ws://localhost:" + listener.getLocalPort() + "/"));
+        assertEquals("one", new String(ws.readFrame().getData(), "UTF-8"));
+        assertEquals("two", new String(ws.readFrame().getData(), "UTF-8"));
+        ws.close();
+        server.join(5000);
+        listener.close();
+    }
+}
@@ -0,0 +1,137 @@
+package ca.awoo.websoc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class HeartbeatTest {
+
+    /**
+     * A server that accepts one websocket handshake and then never says anything again, like a peer that has gone away without closing.
+     */
+    private static class SilentServer implements Runnable {
+        final ServerSocket listener;
+        private Socket socket;
+
+        SilentServer() throws IOException{
+            listener = new ServerSocket(0);
+            Thread thread = new Thread(this, "silent-server");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        URI getUri() throws Exception{
+            return new URI("ws://localhost:" + listener.getLocalPort() + "/");
+        }
+
+        public void run() {
+            try {
+                socket = listener.accept();
+                Handshake.Head head = Handshake.read(socket.getInputStream());
+                socket.getOutputStream().write(Handshake.response(Handshake.accept(head.header("sec-websocket-key")), null).getBytes("UTF-8"));
+                socket.getOutputStream().flush();
+                //Swallow the pings without answering
+                InputStream in = socket.getInputStream();
+                byte[] buf = new byte[1024];
+                while(in.read(buf) != -1){
+                }
+            } catch (Exception e) {
+                //The test is over
+            }
+        }
+
+        void close() throws IOException{
+            listener.close();
+            if(socket != null){
+                socket.close();
+            }
+        }
+    }
+
+    private static class CloseListener implements WebSocketListener {
+        final BlockingQueue<Integer> closes = new LinkedBlockingQueue<Integer>();
+
+        public void onOpen(AsyncWebSocket socket) {
+        }
+
+        public void onMessage(AsyncWebSocket socket, int opcode, byte[] data) {
+        }
+
+        public void onClose(AsyncWebSocket socket, int code, String reason) {
+            closes.add(code);
+        }
+
+        public void onError(AsyncWebSocket socket, Exception e) {
+        }
+    }
+
+    @Test
+    public void rttTest() throws Exception{
+        EchoServer server = new EchoServer();
+        WebSocket ws = new WebSocket(server.getUri());
+        assertEquals(-1, ws.getLastRttNanos());
+        ws.setHeartbeat(new Heartbeat(100, TimeUnit.MILLISECONDS, 3));
+        long deadline = System.currentTimeMillis() + 5000;
+        //Pongs are only seen while reading
+        while(ws.getLastRttNanos() < 0 && System.currentTimeMillis() < deadline){
+            WebSocket.Frame frame = ws.readFrame();
+            assertEquals(10, frame.getOpcode());
+        }
+        assertTrue(ws.getLastRttNanos() > 0);
+        assertTrue(ws.getSmoothedRttNanos() > 0);
+        ws.setHeartbeat(null);
+        ws.close();
+        server.close();
+    }
+
+    @Test
+    public void deadPeerTest() throws Exception{
+        SilentServer server = new SilentServer();
+        WebSocket ws = new WebSocket(server.getUri());
+        ws.setHeartbeat(new Heartbeat(100, TimeUnit.MILLISECONDS, 2));
+        long start = System.currentTimeMillis();
+        try {
+            ws.readFrame();
+            fail("Read from a silent server");
+        } catch (IOException e) {
+            //The socket was closed under the read
+        }
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        server.close();
+    }
+
+    @Test
+    public void engineTest() throws Exception{
+        EchoServer echo = new EchoServer();
+        SilentServer silent = new SilentServer();
+        WebSocketEngine engine = new WebSocketEngine();
+        engine.setHeartbeat(new Heartbeat(100, TimeUnit.MILLISECONDS, 2));
+        CloseListener alive = new CloseListener();
+        CloseListener dead = new CloseListener();
+        AsyncWebSocket good = engine.connect(echo.getUri(), alive);
+        engine.connect(silent.getUri(), dead);
+        assertEquals(Integer.valueOf(1006), dead.closes.poll(5, TimeUnit.SECONDS));
+        long deadline = System.currentTimeMillis() + 5000;
+        while(good.getLastRttNanos() < 0 && System.currentTimeMillis() < deadline){
+            Thread.sleep(50);
+        }
+        assertTrue(good.getLastRttNanos() > 0);
+        assertTrue(good.isOpen());
+        good.close();
+        assertEquals(Integer.valueOf(1000), alive.closes.poll(5, TimeUnit.SECONDS));
+        engine.close();
+        echo.close();
+        silent.close();
+    }
+}
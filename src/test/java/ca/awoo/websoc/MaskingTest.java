@@ -0,0 +1,68 @@
+package ca.awoo.websoc;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class MaskingTest {
+
+    private static void scalarMask(byte[] key, long keyOffset, byte[] src, int srcOff, byte[] dst, int dstOff, int len){
+        for(int i = 0; i < len; i++){
+            dst[dstOff + i] = (byte)(src[srcOff + i] ^ key[(int)((keyOffset + i) % 4)]);
+        }
+    }
+
+    @Test
+    public void matchesScalar() throws Exception{
+        Random random = new Random(1234);
+        for(int run = 0; run < 5000; run++){
+            int len = random.nextInt(run < 4000 ? 64 : 5000);
+            int srcOff = random.nextInt(16);
+            int dstOff = random.nextInt(16);
+            long keyOffset = random.nextInt(1 << 20);
+            byte[] key = new byte[4];
+            random.nextBytes(key);
+            byte[] src = new byte[srcOff + len + random.nextInt(16)];
+            random.nextBytes(src);
+            byte[] expected = new byte[dstOff + len + 8];
+            byte[] actual = new byte[expected.length];
+            random.nextBytes(expected);
+            System.arraycopy(expected, 0, actual, 0, expected.length);
+            scalarMask(key, keyOffset, src, srcOff, expected, dstOff, len);
+            Masking.mask(key, keyOffset, src, srcOff, actual, dstOff, len);
+            assertArrayEquals("len " + len + " srcOff " + srcOff + " dstOff " + dstOff + " keyOffset " + keyOffset, expected, actual);
+        }
+    }
+
+    @Test
+    public void inPlaceMatchesScalar() throws Exception{
+        Random random = new Random(5678);
+        for(int run = 0; run < 2000; run++){
+            int len = random.nextInt(2000);
+            int off = random.nextInt(16);
+            byte[] key = new byte[4];
+            random.nextBytes(key);
+            byte[] expected = new byte[off + len + random.nextInt(16)];
+            random.nextBytes(expected);
+            byte[] actual = expected.clone();
+            scalarMask(key, 0, expected, off, expected, off, len);
+            Masking.mask(key, actual, off, len);
+            assertArrayEquals("len " + len + " off " + off, expected, actual);
+        }
+    }
+
+    @Test
+    public void maskTwiceRestores() throws Exception{
+        Random random = new Random(91011);
+        byte[] key = new byte[4];
+        random.nextBytes(key);
+        byte[] original = new byte[100003];
+        random.nextBytes(original);
+        byte[] data = original.clone();
+        Masking.mask(key, data, 0, data.length);
+        Masking.mask(key, data, 0, data.length);
+        assertArrayEquals(original, data);
+    }
+}
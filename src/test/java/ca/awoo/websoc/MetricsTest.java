@@ -0,0 +1,172 @@
+package ca.awoo.websoc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+public class MetricsTest {
+
+    private static class MessageListener implements WebSocketListener {
+        final BlockingQueue<byte[]> messages = new LinkedBlockingQueue<byte[]>();
+        final CountDownLatch opened = new CountDownLatch(1);
+
+        public void onOpen(AsyncWebSocket socket) {
+            opened.countDown();
+        }
+
+        public void onMessage(AsyncWebSocket socket, int opcode, byte[] data) {
+            messages.add(data);
+        }
+
+        public void onClose(AsyncWebSocket socket, int code, String reason) {
+        }
+
+        public void onError(AsyncWebSocket socket, Exception e) {
+        }
+    }
+
+    @Test
+    public void histogramTest(){
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.getPercentile(50));
+        for(int i = 1; i <= 1000; i++){
+            histogram.record(i);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500500, histogram.getSum());
+        assertEquals(1000, histogram.getMax());
+        assertEquals(500.5, histogram.getMean(), 0.001);
+        //The 500th value is in the bucket from 256 to 511
+        assertEquals(511, histogram.getPercentile(50));
+        //The 990th is in the bucket from 512 to 1023, which is capped at the largest value
+        assertEquals(1000, histogram.getPercentile(99));
+        assertEquals(1, histogram.getPercentile(0));
+        assertEquals(1, histogram.getBuckets()[0]);
+        assertEquals(2, histogram.getBuckets()[1]);
+    }
+
+    @Test
+    public void parentTest(){
+        Histogram parent = new Histogram();
+        Histogram child = new Histogram(parent);
+        child.record(10);
+        parent.record(20);
+        assertEquals(1, child.getCount());
+        assertEquals(2, parent.getCount());
+        assertEquals(20, parent.getMax());
+    }
+
+    @Test
+    public void blockingTest() throws Exception{
+        EchoServer server = new EchoServer();
+        long globalHandshakes = Metrics.global().getHandshakes();
+        WebSocket ws = new WebSocket(server.getUri());
+        Metrics metrics = ws.getMetrics();
+        assertEquals(1, metrics.getHandshakes());
+        assertTrue(metrics.getMaxHandshakeNanos() > 0);
+        ws.sendText("hello");
+        ws.sendBinaryAsync(new byte[3], 0, 3).get(5, TimeUnit.SECONDS);
+        for(int i = 0; i < 2; i++){
+            InputStream in = ws.nextMessage();
+            while(in.read() != -1){
+            }
+        }
+        assertEquals(1, metrics.getFramesOut(1));
+        assertEquals(5, metrics.getBytesOut(1));
+        assertEquals(1, metrics.getFramesOut(2));
+        assertEquals(3, metrics.getBytesOut(2));
+        assertEquals(2, metrics.getFramesOut());
+        assertEquals(8, metrics.getBytesOut());
+        assertEquals(1, metrics.getFramesIn(1));
+        assertEquals(1, metrics.getFramesIn(2));
+        assertEquals(8, metrics.getBytesIn());
+        assertEquals(2, metrics.getMessagesIn());
+        assertEquals(1, metrics.getMaxFragmentsPerMessage());
+        assertEquals(0, metrics.getQueuedBytes());
+        assertEquals(2, metrics.getWriteLatency().getCount());
+        assertEquals(2, metrics.getReadLatency().getCount());
+        assertTrue(Metrics.global().getHandshakes() > globalHandshakes);
+        assertTrue(Metrics.global().getFramesOut() >= metrics.getFramesOut());
+        ws.close();
+        server.close();
+    }
+
+    @Test
+    public void fragmentsTest() throws Exception{
+        EchoServer server = new EchoServer();
+        WebSocket ws = new WebSocket(server.getUri());
+        ws.setFragmentSize(16);
+        StringBuilder text = new StringBuilder();
+        for(int i = 0; i < 40; i++){
+            text.append('a');
+        }
+        ws.sendText(text);
+        InputStream in = ws.nextMessage();
+        while(in.read() != -1){
+        }
+        Metrics metrics = ws.getMetrics();
+        assertEquals(1, metrics.getFramesOut(1));
+        assertEquals(2, metrics.getFramesOut(0));
+        assertEquals(40, metrics.getBytesOut());
+        ws.close();
+        server.close();
+    }
+
+    @Test
+    public void engineTest() throws Exception{
+        EchoServer server = new EchoServer();
+        WebSocketEngine engine = new WebSocketEngine();
+        MessageListener listener = new MessageListener();
+        AsyncWebSocket ws = engine.connect(server.getUri(), listener);
+        assertTrue(listener.opened.await(5, TimeUnit.SECONDS));
+        ws.send("hi");
+        assertEquals(2, listener.messages.poll(5, TimeUnit.SECONDS).length);
+        Metrics metrics = ws.getMetrics();
+        assertEquals(1, metrics.getHandshakes());
+        assertEquals(1, metrics.getFramesOut(1));
+        assertEquals(2, metrics.getBytesOut(1));
+        assertEquals(1, metrics.getFramesIn(1));
+        assertEquals(1, metrics.getMessagesIn());
+        assertTrue(metrics.getReadLatency().getCount() > 0);
+        assertEquals(0, metrics.getQueuedBytes());
+        ws.close();
+        engine.close();
+        server.close();
+    }
+
+    @Test
+    public void jmxTest() throws Exception{
+        MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+        ObjectName global = JmxRegistry.objectName(Metrics.GLOBAL_NAME);
+        ObjectName pattern = new ObjectName("ca.awoo.websoc:type=Metrics,*");
+        EchoServer server = new EchoServer();
+        Metrics.setRegistry(new JmxRegistry());
+        try {
+            assertTrue(mbeans.isRegistered(global));
+            int before = mbeans.queryNames(pattern, null).size();
+            WebSocket ws = new WebSocket(server.getUri());
+            //The echo server's end of the connection may be registered too
+            int open = mbeans.queryNames(pattern, null).size();
+            assertTrue(open > before);
+            assertTrue((Long) mbeans.getAttribute(global, "Handshakes") >= 1);
+            ws.close();
+            assertTrue(mbeans.queryNames(pattern, null).size() < open);
+        } finally {
+            Metrics.setRegistry(null);
+            server.close();
+        }
+        assertFalse(mbeans.isRegistered(global));
+    }
+}
@@ -0,0 +1,279 @@
+package ca.awoo.websoc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class MultiplexerTest {
+
+    /**
+     * Multiplexes every connection. Each stream the client opens starts with a byte saying what to do with it: 'E' echoes it, 'S' never reads it, and 'O' opens a stream back to the client and echoes into that.
+     */
+    private static class Server implements WebSocketListener {
+        final Map<AsyncWebSocket, Multiplexer> muxes = new ConcurrentHashMap<AsyncWebSocket, Multiplexer>();
+        volatile int maxStreams = Multiplexer.DEFAULT_MAX_STREAMS;
+
+        public void onOpen(AsyncWebSocket socket) {
+            final Multiplexer mux = new Multiplexer(socket);
+            mux.setMaxStreams(maxStreams);
+            muxes.put(socket, mux);
+            start(new Runnable() {
+                public void run() {
+                    try {
+                        Multiplexer.Stream stream;
+                        while((stream = mux.accept()) != null){
+                            serve(mux, stream);
+                        }
+                    } catch (IOException e) {
+                        //Connection closed
+                    }
+                }
+            });
+        }
+
+        private void serve(final Multiplexer mux, final Multiplexer.Stream stream){
+            start(new Runnable() {
+                public void run() {
+                    try {
+                        InputStream in = stream.getInputStream();
+                        int mode = in.read();
+                        if(mode == 'S'){
+                            return;
+                        }
+                        OutputStream out = mode == 'O' ? mux.open().getOutputStream() : stream.getOutputStream();
+                        byte[] buffer = new byte[4096];
+                        int read;
+                        while((read = in.read(buffer)) != -1){
+                            out.write(buffer, 0, read);
+                        }
+                        out.close();
+                    } catch (IOException e) {
+                        //Reset or closed
+                    }
+                }
+            });
+        }
+
+        public void onMessage(AsyncWebSocket socket, int opcode, byte[] data) {
+            muxes.get(socket).receive(data);
+        }
+
+        public void onClose(AsyncWebSocket socket, int code, String reason) {
+            Multiplexer mux = muxes.remove(socket);
+            if(mux != null){
+                mux.disconnected();
+            }
+        }
+
+        public void onError(AsyncWebSocket socket, Exception e) {
+        }
+    }
+
+    private static Thread start(Runnable task){
+        Thread thread = new Thread(task);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        byte[] buffer = new byte[1024];
+        int length = 0;
+        int read;
+        while((read = in.read(buffer, length, buffer.length - length)) != -1){
+            length += read;
+            if(length == buffer.length){
+                byte[] grown = new byte[buffer.length * 2];
+                System.arraycopy(buffer, 0, grown, 0, length);
+                buffer = grown;
+            }
+        }
+        byte[] all = new byte[length];
+        System.arraycopy(buffer, 0, all, 0, length);
+        return all;
+    }
+
+    private static byte[] pattern(int seed, int length){
+        byte[] data = new byte[length];
+        for(int i = 0; i < length; i++){
+            data[i] = (byte) (seed * 7 + i);
+        }
+        return data;
+    }
+
+    @Test
+    public void manyStreamsTest() throws Exception{
+        Server listener = new Server();
+        WebSocketServer server = new WebSocketServer(0, listener);
+        final Multiplexer mux = new Multiplexer(new WebSocket(new URI("ws://localhost:" + server.getPort() + "/")));
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread[] threads = new Thread[50];
+        for(int t = 0; t < threads.length; t++){
+            final int seed = t;
+            threads[t] = start(new Runnable() {
+                public void run() {
+                    try {
+                        Multiplexer.Stream stream = mux.open();
+                        //Some streams are bigger than the window, so they only finish if credit comes back
+                        final byte[] data = pattern(seed, seed % 5 == 0 ? 300000 : 1000 + seed);
+                        final OutputStream out = stream.getOutputStream();
+                        //Written while the echo is read, as the echo can't get ahead of the reading by more than a window
+                        start(new Runnable() {
+                            public void run() {
+                                try {
+                                    out.write('E');
+                                    out.write(data);
+                                    out.close();
+                                } catch (IOException e) {
+                                    errors.add(e);
+                                }
+                            }
+                        });
+                        byte[] echoed = readAll(stream.getInputStream());
+                        assertEquals(data.length, echoed.length);
+                        for(int i = 0; i < data.length; i++){
+                            assertEquals(data[i], echoed[i]);
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            });
+        }
+        for(Thread thread : threads){
+            thread.join(30000);
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertEquals(0, mux.getStreamCount());
+        mux.close();
+        server.close();
+    }
+
+    @Test
+    public void flowControlTest() throws Exception{
+        Server listener = new Server();
+        WebSocketServer server = new WebSocketServer(0, listener);
+        final Multiplexer mux = new Multiplexer(new WebSocket(new URI("ws://localhost:" + server.getPort() + "/")));
+        //A bulk stream the server never reads
+        final Multiplexer.Stream bulk = mux.open();
+        final AtomicLong written = new AtomicLong();
+        Thread writer = start(new Runnable() {
+            public void run() {
+                try {
+                    OutputStream out = bulk.getOutputStream();
+                    out.write('S');
+                    byte[] chunk = new byte[1024];
+                    while(true){
+                        out.write(chunk);
+                        written.addAndGet(chunk.length);
+                    }
+                } catch (IOException e) {
+                    //Reset
+                }
+            }
+        });
+        long deadline = System.currentTimeMillis() + 5000;
+        while(written.get() < Multiplexer.INITIAL_WINDOW - 1024 && System.currentTimeMillis() < deadline){
+            Thread.sleep(10);
+        }
+        Thread.sleep(200);
+        //It stops at the window instead of filling the server's memory
+        assertTrue("Wrote " + written.get(), written.get() <= Multiplexer.INITIAL_WINDOW);
+        assertTrue(writer.isAlive());
+
+        //Other streams still get through
+        for(int i = 0; i < 20; i++){
+            Multiplexer.Stream stream = mux.open();
+            OutputStream out = stream.getOutputStream();
+            out.write('E');
+            out.write(pattern(i, 100));
+            out.close();
+            assertEquals(100, readAll(stream.getInputStream()).length);
+        }
+
+        //Resetting the bulk stream ends the blocked write
+        bulk.close();
+        writer.join(5000);
+        assertTrue(!writer.isAlive());
+        mux.close();
+        server.close();
+    }
+
+    @Test
+    public void maxStreamsTest() throws Exception{
+        Server listener = new Server();
+        listener.maxStreams = 2;
+        WebSocketServer server = new WebSocketServer(0, listener);
+        Multiplexer mux = new Multiplexer(new WebSocket(new URI("ws://localhost:" + server.getPort() + "/")));
+        //Two streams the server holds open without reading
+        Multiplexer.Stream first = mux.open();
+        first.getOutputStream().write('S');
+        Multiplexer.Stream second = mux.open();
+        second.getOutputStream().write('S');
+        //One too many, which the server resets instead of buffering
+        Multiplexer.Stream refused = mux.open();
+        refused.getOutputStream().write('E');
+        try {
+            refused.getInputStream().read();
+            assertTrue("Read from a refused stream", false);
+        } catch (IOException e) {
+            //Expected
+        }
+        //Closing one makes room for another
+        first.close();
+        Multiplexer.Stream stream = mux.open();
+        OutputStream out = stream.getOutputStream();
+        out.write('E');
+        out.write(pattern(1, 100));
+        out.close();
+        assertEquals(100, readAll(stream.getInputStream()).length);
+        second.close();
+        mux.close();
+        server.close();
+    }
+
+    @Test
+    public void serverOpenedStreamTest() throws Exception{
+        Server listener = new Server();
+        WebSocketServer server = new WebSocketServer(0, listener);
+        Multiplexer mux = new Multiplexer(new WebSocket(new URI("ws://localhost:" + server.getPort() + "/")));
+        mux.setWindowSize(1 << 20);
+        Multiplexer.Stream request = mux.open();
+        assertEquals(1, request.getId() & 1);
+        OutputStream out = request.getOutputStream();
+        out.write('O');
+        out.write(pattern(3, 200000));
+        out.close();
+        Multiplexer.Stream reply = mux.accept();
+        assertEquals(0, reply.getId() & 1);
+        assertEquals(200000, readAll(reply.getInputStream()).length);
+        request.close();
+        reply.close();
+
+        //Closing the connection ends accept() and any stream still open
+        Multiplexer.Stream open = mux.open();
+        open.getOutputStream().write('E');
+        mux.close();
+        assertNull(mux.accept());
+        try {
+            open.getInputStream().read();
+            assertTrue("Read from a closed connection", false);
+        } catch (IOException e) {
+            //Expected
+        }
+        server.close();
+    }
+}
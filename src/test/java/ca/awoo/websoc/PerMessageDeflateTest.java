@@ -0,0 +1,95 @@
+package ca.awoo.websoc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class PerMessageDeflateTest {
+
+    private static byte[] message(int i) throws Exception{
+        return ("{\"type\":\"chat\",\"room\":\"general\",\"user\":\"user" + i + "\",\"text\":\"message number " + i + "\"}").getBytes("UTF-8");
+    }
+
+    @Test
+    public void roundTripTest() throws Exception{
+        boolean[] takeover = {true, false};
+        for(boolean compressTakeover : takeover){
+            DeflateCodec sender = new DeflateCodec(-1, compressTakeover, false);
+            DeflateCodec receiver = new DeflateCodec(-1, false, compressTakeover);
+            for(int i = 0; i < 100; i++){
+                byte[] message = message(i);
+                byte[] compressed = sender.compress(message, 0, message.length);
+                assertArrayEquals(message, receiver.decompress(compressed, 0, compressed.length));
+            }
+            sender.release();
+            receiver.release();
+        }
+    }
+
+    @Test
+    public void contextTakeoverTest() throws Exception{
+        if(!DeflateCodec.canKeepContext()){
+            return;
+        }
+        DeflateCodec with = new DeflateCodec(-1, true, true);
+        DeflateCodec without = new DeflateCodec(-1, false, false);
+        byte[] first = message(1);
+        with.compress(first, 0, first.length);
+        without.compress(first, 0, first.length);
+        byte[] second = message(2);
+        //The second message is mostly a back reference to the first
+        assertTrue(with.compress(second, 0, second.length).length < without.compress(second, 0, second.length).length);
+        with.release();
+    }
+
+    @Test
+    public void largeAndEmptyTest() throws Exception{
+        DeflateCodec codec = new DeflateCodec(-1, true, true);
+        byte[] random = new byte[1024 * 1024];
+        new Random(42).nextBytes(random);
+        byte[] compressed = codec.compress(random, 0, random.length);
+        assertArrayEquals(random, codec.decompress(compressed, 0, compressed.length));
+        byte[] empty = codec.compress(new byte[0], 0, 0);
+        assertEquals(0, codec.decompress(empty, 0, empty.length).length);
+        codec.release();
+    }
+
+    @Test
+    public void negotiationTest() throws Exception{
+        PerMessageDeflate client = new PerMessageDeflate();
+        client.setPeerNoContextTakeover(true);
+        client.setPeerMaxWindowBits(15);
+        PerMessageDeflate server = new PerMessageDeflate();
+        String response = server.respond(client.offer());
+        assertTrue(response, response.startsWith("permessage-deflate"));
+        assertTrue(response, response.contains("server_no_context_takeover"));
+        DeflateCodec clientCodec = client.accept(response);
+        DeflateCodec serverCodec = server.serverCodec(response);
+        byte[] message = message(1);
+        byte[] compressed = clientCodec.compress(message, 0, message.length);
+        assertArrayEquals(message, serverCodec.decompress(compressed, 0, compressed.length));
+        compressed = serverCodec.compress(message, 0, message.length);
+        assertArrayEquals(message, clientCodec.decompress(compressed, 0, compressed.length));
+    }
+
+    @Test
+    public void serverDeclinesTest() throws Exception{
+        PerMessageDeflate server = new PerMessageDeflate();
+        assertNull(server.respond(null));
+        assertNull(server.respond("x-webkit-deflate-frame"));
+        //A smaller window for the server's messages can't be honoured, so the next offer is taken
+        assertEquals("permessage-deflate", server.respond("permessage-deflate; server_max_window_bits=10, permessage-deflate").replace("; server_no_context_takeover", ""));
+        assertNull(server.respond("permessage-deflate; unknown_param"));
+    }
+
+    @Test(expected = IOException.class)
+    public void clientRejectsUnofferedTest() throws Exception{
+        new PerMessageDeflate().accept("permessage-deflate; client_max_window_bits=10");
+    }
+}
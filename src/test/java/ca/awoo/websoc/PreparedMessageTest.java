@@ -0,0 +1,150 @@
+package ca.awoo.websoc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import ca.awoo.websoc.WebSocket.Frame;
+
+public class PreparedMessageTest {
+
+    /**
+     * Keeps the server end of every connection, to broadcast to.
+     */
+    private static class Subscribers implements WebSocketListener {
+        final List<AsyncWebSocket> sockets = new CopyOnWriteArrayList<AsyncWebSocket>();
+
+        public void onOpen(AsyncWebSocket socket) {
+            sockets.add(socket);
+        }
+
+        public void onMessage(AsyncWebSocket socket, int opcode, byte[] data) {
+        }
+
+        public void onClose(AsyncWebSocket socket, int code, String reason) {
+            sockets.remove(socket);
+        }
+
+        public void onError(AsyncWebSocket socket, Exception e) {
+        }
+    }
+
+    private static class Receiver implements WebSocketListener {
+        final CountDownLatch opened;
+        final BlockingQueue<String> messages;
+
+        Receiver(CountDownLatch opened, BlockingQueue<String> messages){
+            this.opened = opened;
+            this.messages = messages;
+        }
+
+        public void onOpen(AsyncWebSocket socket) {
+            opened.countDown();
+        }
+
+        public void onMessage(AsyncWebSocket socket, int opcode, byte[] data) {
+            try {
+                messages.add(opcode + ":" + new String(data, "UTF-8"));
+            } catch (Exception e) {
+                messages.add(e.toString());
+            }
+        }
+
+        public void onClose(AsyncWebSocket socket, int code, String reason) {
+        }
+
+        public void onError(AsyncWebSocket socket, Exception e) {
+        }
+    }
+
+    @Test
+    public void sharedFrameTest() throws Exception{
+        PreparedMessage message = PreparedMessage.text("hello");
+        assertEquals(1, message.getOpcode());
+        assertEquals(5, message.getLength());
+        ByteBuffer a = message.frame(null);
+        ByteBuffer b = message.frame(null);
+        assertSame(a.array(), b.array());
+        Frame frame = FrameDecoder.decode(a);
+        assertEquals("hello", new String(frame.getData(), "UTF-8"));
+        assertEquals(0, b.position());
+
+        DeflateCodec reset = new DeflateCodec(-1, false, false);
+        ByteBuffer compressed = message.frame(reset);
+        assertEquals(Frame.RSV1, compressed.get(0) & Frame.RSV1);
+        assertSame(compressed.array(), message.frame(new DeflateCodec(-1, false, false)).array());
+        assertTrue(compressed.array() != message.frame(new DeflateCodec(9, false, false)).array());
+        byte[] payload = FrameDecoder.decode(compressed).getData();
+        assertEquals("hello", new String(reset.decompress(payload, 0, payload.length), "UTF-8"));
+        if(DeflateCodec.canKeepContext()){
+            //A connection that keeps its context can't take a shared compressed frame
+            assertSame(a.array(), message.frame(new DeflateCodec(-1, true, true)).array());
+        }
+    }
+
+    @Test
+    public void broadcastTest() throws Exception{
+        broadcast(null, null);
+    }
+
+    @Test
+    public void compressedBroadcastTest() throws Exception{
+        PerMessageDeflate reset = new PerMessageDeflate();
+        reset.setNoContextTakeover(true);
+        broadcast(reset, new PerMessageDeflate());
+        broadcast(new PerMessageDeflate(), new PerMessageDeflate());
+    }
+
+    private void broadcast(PerMessageDeflate serverCompression, PerMessageDeflate clientCompression) throws Exception{
+        int clients = 20;
+        Subscribers subscribers = new Subscribers();
+        WebSocketServer server = new WebSocketServer(0, subscribers);
+        server.setCompression(serverCompression);
+        WebSocketEngine engine = new WebSocketEngine();
+        engine.setCompression(clientCompression);
+        CountDownLatch opened = new CountDownLatch(clients);
+        BlockingQueue<String> messages = new LinkedBlockingQueue<String>();
+        for(int i = 0; i < clients; i++){
+            engine.connect(new URI("ws://localhost:" + server.getPort() + "/"), new Receiver(opened, messages));
+        }
+        assertTrue(opened.await(5, TimeUnit.SECONDS));
+        long deadline = System.currentTimeMillis() + 5000;
+        while(subscribers.sockets.size() < clients && System.currentTimeMillis() < deadline){
+            Thread.sleep(10);
+        }
+        StringBuilder text = new StringBuilder();
+        for(int i = 0; i < 100; i++){
+            text.append("{\"room\":\"lobby\",\"n\":").append(i).append("}");
+        }
+        assertEquals(clients, PreparedMessage.text(text).broadcast(subscribers.sockets));
+        assertEquals(clients, PreparedMessage.binary(new byte[]{'h', 'i'}, 0, 2).broadcast(subscribers.sockets));
+        int texts = 0;
+        int binaries = 0;
+        for(int i = 0; i < clients * 2; i++){
+            String message = messages.poll(5, TimeUnit.SECONDS);
+            if(("1:" + text).equals(message)){
+                texts++;
+            }else if("2:hi".equals(message)){
+                binaries++;
+            }
+        }
+        assertEquals(clients, texts);
+        assertEquals(clients, binaries);
+        if(serverCompression != null){
+            assertTrue(subscribers.sockets.get(0).isCompressed());
+        }
+        engine.close();
+        server.close();
+    }
+}
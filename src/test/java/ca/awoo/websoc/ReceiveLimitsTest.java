@@ -0,0 +1,390 @@
+package ca.awoo.websoc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.Inflater;
+
+import org.junit.Test;
+
+import ca.awoo.websoc.WebSocket.Frame;
+
+public class ReceiveLimitsTest {
+
+    /**
+     * Records the last message and how the connection closed, sending anything it is given to every connection that opens.
+     */
+    private static class Recorder implements LargeMessageListener {
+        final CountDownLatch message = new CountDownLatch(1);
+        final CountDownLatch closed = new CountDownLatch(1);
+        final AtomicReference<byte[]> small = new AtomicReference<byte[]>();
+        final AtomicReference<ByteBuffer> large = new AtomicReference<ByteBuffer>();
+        final AtomicInteger closeCode = new AtomicInteger();
+        byte[] greeting;
+
+        public void onOpen(AsyncWebSocket socket) {
+            if(greeting != null){
+                try {
+                    socket.send(greeting);
+                } catch (IOException e) {
+                    socket.close();
+                }
+            }
+        }
+
+        public void onMessage(AsyncWebSocket socket, int opcode, byte[] data) {
+            small.set(data);
+            message.countDown();
+        }
+
+        public void onLargeMessage(AsyncWebSocket socket, int opcode, ByteBuffer data) {
+            large.set(data);
+            message.countDown();
+        }
+
+        public void onClose(AsyncWebSocket socket, int code, String reason) {
+            closeCode.set(code);
+            closed.countDown();
+        }
+
+        public void onError(AsyncWebSocket socket, Exception e) {
+        }
+    }
+
+    private static byte[] pattern(int length){
+        byte[] data = new byte[length];
+        for(int i = 0; i < length; i++){
+            data[i] = (byte) (i * 31 + i / 7);
+        }
+        return data;
+    }
+
+    private static URI uri(WebSocketServer server) throws Exception {
+        return new URI("ws://localhost:" + server.getPort() + "/");
+    }
+
+    private static File tempDirectory() throws IOException {
+        File dir = File.createTempFile("spill", "");
+        dir.delete();
+        dir.mkdirs();
+        return dir;
+    }
+
+    @Test
+    public void frameReadEofTest() throws Exception{
+        byte[] frame = FrameEncoder.encode(true, 2, null, pattern(1000), 0, 1000);
+        //Cut off part way through the payload, which used to spin forever
+        InputStream cut = new ByteArrayInputStream(frame, 0, 500);
+        try {
+            Frame.read(cut);
+            assertTrue("Read a frame that was cut short", false);
+        } catch (EOFException e) {
+            //Expected
+        }
+        //Cut off part way through the header
+        try {
+            Frame.read(new ByteArrayInputStream(frame, 0, 3));
+            assertTrue("Read a header that was cut short", false);
+        } catch (EOFException e) {
+            //Expected
+        }
+        assertEquals(1000, Frame.read(new ByteArrayInputStream(frame)).getData().length);
+    }
+
+    @Test
+    public void frameReadLimitTest() throws Exception{
+        //A header claiming a 1GB payload that never comes
+        byte[] header = {(byte) 0x82, 127, 0, 0, 0, 0, 0x40, 0, 0, 0};
+        try {
+            Frame.read(new ByteArrayInputStream(header), null, 1 << 20);
+            assertTrue("Read a frame over the limit", false);
+        } catch (MessageTooBigException e) {
+            //Expected, without trying to allocate it
+        }
+        FrameDecoder decoder = new FrameDecoder(new ByteArrayInputStream(header));
+        decoder.setMaxFrameSize(1 << 20);
+        try {
+            decoder.read();
+            assertTrue("Decoded a frame over the limit", false);
+        } catch (MessageTooBigException e) {
+            //Expected
+        }
+        try {
+            FrameDecoder.decode(ByteBuffer.wrap(header), 1 << 20);
+            assertTrue("Decoded a frame over the limit", false);
+        } catch (MessageTooBigException e) {
+            //Expected
+        }
+    }
+
+    @Test
+    public void blockingFrameLimitTest() throws Exception{
+        Recorder listener = new Recorder();
+        listener.greeting = pattern(2 << 20);
+        WebSocketServer server = new WebSocketServer(0, listener);
+        WebSocket ws = new WebSocket(uri(server));
+        ReceiveLimits limits = new ReceiveLimits();
+        limits.setMaxFrameSize(1 << 20);
+        ws.setReceiveLimits(limits);
+        try {
+            ws.readFrame();
+            assertTrue("Read a frame over the limit", false);
+        } catch (MessageTooBigException e) {
+            //Expected
+        }
+        assertEquals(WebSocket.State.CLOSED, ws.getState());
+        assertTrue(listener.closed.await(5, TimeUnit.SECONDS));
+        //Closing with the rest of the frame unread resets the connection, which can beat the close frame
+        int code = listener.closeCode.get();
+        assertTrue("Closed with " + code, code == 1009 || code == 1006);
+        server.close();
+    }
+
+    @Test
+    public void blockingMessageLimitTest() throws Exception{
+        EchoServer server = new EchoServer();
+        WebSocket ws = new WebSocket(server.getUri());
+        ReceiveLimits limits = new ReceiveLimits();
+        limits.setMaxMessageSize(100000);
+        ws.setReceiveLimits(limits);
+        //Each frame is small, but the message isn't
+        ws.setFragmentSize(16384);
+        WebSocket.MessageOutputStream out = ws.startMessage(2);
+        out.write(pattern(100000));
+        out.close();
+        assertEquals(100000, readAll(ws.nextMessage()));
+        out = ws.startMessage(2);
+        out.write(pattern(200000));
+        out.close();
+        try {
+            readAll(ws.nextMessage());
+            assertTrue("Read a message over the limit", false);
+        } catch (MessageTooBigException e) {
+            //Expected
+        }
+        assertEquals(WebSocket.State.CLOSED, ws.getState());
+        server.close();
+    }
+
+    @Test
+    public void compressedMessageLimitTest() throws Exception{
+        EchoServer server = new EchoServer(0, null, new PerMessageDeflate());
+        WebSocket ws = new WebSocket(server.getUri(), null, new PerMessageDeflate());
+        ReceiveLimits limits = new ReceiveLimits();
+        limits.setMaxMessageSize(100000);
+        ws.setReceiveLimits(limits);
+        byte[] zeros = new byte[1 << 20];
+        ws.sendBinary(zeros, 0, zeros.length);
+        WebSocket.MessageInputStream in = ws.nextMessage();
+        assertTrue(in.isCompressed());
+        Field field = WebSocket.MessageInputStream.class.getDeclaredField("inflater");
+        field.setAccessible(true);
+        Inflater inflater = (Inflater) field.get(in);
+        try {
+            readAll(in);
+            assertTrue("Read a message over the limit", false);
+        } catch (MessageTooBigException e) {
+            //Expected
+        }
+        assertNull(field.get(in));
+        assertEquals(-1, in.read());
+        //Given back to the pool, not left for the collector
+        boolean pooled = false;
+        for(int i = 0; i < 256 && !pooled; i++){
+            pooled = ZipPool.inflater() == inflater;
+        }
+        assertTrue(pooled);
+        server.close();
+    }
+
+    private static int readAll(InputStream in) throws IOException {
+        byte[] buffer = new byte[8192];
+        int total = 0;
+        int read;
+        while((read = in.read(buffer)) != -1){
+            total += read;
+        }
+        return total;
+    }
+
+    @Test
+    public void asyncMessageLimitTest() throws Exception{
+        Recorder listener = new Recorder();
+        WebSocketServer server = new WebSocketServer(0, listener);
+        ReceiveLimits limits = new ReceiveLimits();
+        limits.setMaxMessageSize(100000);
+        server.setReceiveLimits(limits);
+        WebSocket ws = new WebSocket(uri(server));
+        ws.setFragmentSize(16384);
+        //Only the last frame goes over, so the server has read everything when it fails the connection
+        WebSocket.MessageOutputStream out = ws.startMessage(2);
+        out.write(pattern(100001));
+        out.close();
+        assertTrue(listener.closed.await(5, TimeUnit.SECONDS));
+        assertEquals(1009, listener.closeCode.get());
+        assertEquals(1, listener.message.getCount());
+        assertNull(ws.nextMessage());
+        assertEquals(1009, ws.getCloseCode());
+        server.close();
+    }
+
+    @Test
+    public void spillTest() throws Exception{
+        File dir = tempDirectory();
+        Recorder listener = new Recorder();
+        WebSocketServer server = new WebSocketServer(0, listener);
+        ReceiveLimits limits = new ReceiveLimits();
+        limits.setSpillThreshold(65536);
+        limits.setSpillDirectory(dir);
+        server.setReceiveLimits(limits);
+        WebSocket ws = new WebSocket(uri(server));
+        ws.setFragmentSize(16384);
+        byte[] data = pattern(1 << 20);
+        WebSocket.MessageOutputStream out = ws.startMessage(2);
+        out.write(data);
+        out.close();
+        assertTrue(listener.message.await(5, TimeUnit.SECONDS));
+        assertNull(listener.small.get());
+        ByteBuffer received = listener.large.get();
+        assertTrue(received.isDirect());
+        assertEquals(data.length, received.remaining());
+        for(int i = 0; i < data.length; i++){
+            assertEquals(data[i], received.get(i));
+        }
+        //The file is deleted as soon as it is mapped
+        assertEquals(0, dir.listFiles().length);
+        ws.close();
+        server.close();
+        dir.delete();
+    }
+
+    @Test
+    public void spillBufferLifecycleTest() throws Exception{
+        File dir = tempDirectory();
+        SpillBuffer buffer = new SpillBuffer(1024, 1 << 20, dir);
+        byte[] data = pattern(4096);
+        buffer.write(data, 0, data.length);
+        assertTrue(buffer.isSpilled());
+        ByteBuffer mapped = buffer.toBuffer();
+        assertEquals(data.length, mapped.remaining());
+        assertEquals(0, dir.listFiles().length);
+        //Finished buffers can't be used again, and discarding them is harmless
+        buffer.discard();
+        try {
+            buffer.toBuffer();
+            assertTrue("Finished a buffer twice", false);
+        } catch (IllegalStateException e) {
+            //Expected
+        }
+        buffer = new SpillBuffer(1024, 1 << 20, dir);
+        buffer.write(data, 0, 100);
+        buffer.discard();
+        try {
+            buffer.toByteArray();
+            assertTrue("Finished a discarded buffer", false);
+        } catch (IllegalStateException e) {
+            //Expected
+        }
+        assertEquals(data[4095], mapped.get(4095));
+        dir.delete();
+    }
+
+    @Test
+    public void interleavedSpillTest() throws Exception{
+        File dir = tempDirectory();
+        Recorder listener = new Recorder();
+        WebSocketServer server = new WebSocketServer(0, listener);
+        ReceiveLimits limits = new ReceiveLimits();
+        limits.setSpillThreshold(1024);
+        limits.setSpillDirectory(dir);
+        server.setReceiveLimits(limits);
+        Socket socket = new Socket("localhost", server.getPort());
+        OutputStream out = socket.getOutputStream();
+        out.write(Handshake.request(uri(server), Handshake.newKey()).getBytes("UTF-8"));
+        InputStream in = socket.getInputStream();
+        //Skip the response head
+        int last = 0;
+        while(last != 0x0D0A0D0A){
+            int b = in.read();
+            if(b == -1){
+                throw new EOFException();
+            }
+            last = last << 8 | b;
+        }
+        //The first message spills, then a second starts before it is finished
+        byte[] data = pattern(4096);
+        out.write(FrameEncoder.encode(false, 2, new byte[4], data, 0, data.length));
+        out.write(FrameEncoder.encode(false, 2, new byte[4], data, 0, data.length));
+        Frame close = new FrameDecoder(in).read();
+        assertEquals(8, close.getOpcode());
+        assertEquals(1002, (close.getData()[0] & 0xFF) << 8 | (close.getData()[1] & 0xFF));
+        assertTrue(listener.closed.await(5, TimeUnit.SECONDS));
+        assertEquals(1, listener.message.getCount());
+        assertEquals(0, dir.listFiles().length);
+        socket.close();
+        server.close();
+        dir.delete();
+    }
+
+    @Test
+    public void compressedSpillTest() throws Exception{
+        File dir = tempDirectory();
+        Recorder listener = new Recorder();
+        WebSocketServer server = new WebSocketServer(0, listener);
+        server.setCompression(new PerMessageDeflate());
+        ReceiveLimits limits = new ReceiveLimits();
+        limits.setSpillThreshold(65536);
+        limits.setSpillDirectory(dir);
+        server.setReceiveLimits(limits);
+        WebSocket ws = new WebSocket(uri(server), null, new PerMessageDeflate());
+        //Compresses to a small frame, so only the inflated message spills
+        StringBuilder text = new StringBuilder();
+        while(text.length() < 500000){
+            text.append("{\"type\":\"message\",\"text\":\"hello\"}");
+        }
+        ws.sendText(text);
+        assertTrue(listener.message.await(5, TimeUnit.SECONDS));
+        ByteBuffer received = listener.large.get();
+        assertEquals(text.length(), received.remaining());
+        byte[] bytes = new byte[received.remaining()];
+        received.get(bytes);
+        assertEquals(text.toString(), new String(bytes, "UTF-8"));
+        ws.close();
+        server.close();
+        dir.delete();
+    }
+
+    @Test
+    public void decompressionBombTest() throws Exception{
+        Recorder listener = new Recorder();
+        WebSocketServer server = new WebSocketServer(0, listener);
+        server.setCompression(new PerMessageDeflate());
+        ReceiveLimits limits = new ReceiveLimits();
+        limits.setMaxMessageSize(1 << 20);
+        server.setReceiveLimits(limits);
+        WebSocket ws = new WebSocket(uri(server), null, new PerMessageDeflate());
+        //Tens of kilobytes on the wire, 32MB once inflated
+        byte[] zeros = new byte[32 << 20];
+        ws.sendBinary(zeros, 0, zeros.length);
+        assertTrue(listener.closed.await(5, TimeUnit.SECONDS));
+        assertEquals(1009, listener.closeCode.get());
+        assertEquals(1, listener.message.getCount());
+        ws.close();
+        server.close();
+    }
+}
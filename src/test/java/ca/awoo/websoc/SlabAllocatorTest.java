@@ -0,0 +1,166 @@
+package ca.awoo.websoc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import ca.awoo.websoc.WebSocket.Frame;
+
+public class SlabAllocatorTest {
+
+    @Test
+    public void sizeClassTest(){
+        assertEquals(0, SlabAllocator.sizeClass(0));
+        assertEquals(0, SlabAllocator.sizeClass(64));
+        assertEquals(1, SlabAllocator.sizeClass(65));
+        assertEquals(1, SlabAllocator.sizeClass(128));
+        assertEquals(10, SlabAllocator.sizeClass(SlabAllocator.MAX_SIZE));
+    }
+
+    @Test
+    public void reuseTest(){
+        SlabAllocator allocator = new SlabAllocator();
+        PooledBuffer buffer = allocator.allocate(100);
+        assertTrue(buffer.buffer().isDirect());
+        assertEquals(0, buffer.buffer().position());
+        assertEquals(100, buffer.buffer().limit());
+        assertEquals(128, buffer.buffer().capacity());
+        assertEquals(SlabAllocator.SLAB_SIZE, allocator.getSlabBytes());
+        assertEquals(1, allocator.getInUseCount());
+        assertTrue(buffer.release());
+        assertEquals(0, allocator.getInUseCount());
+        //The last buffer released is the next handed out
+        assertSame(buffer, allocator.allocate(120));
+        assertEquals(120, buffer.buffer().limit());
+        assertEquals(SlabAllocator.SLAB_SIZE, allocator.getSlabBytes());
+        assertEquals(0, allocator.getUnpooledCount());
+    }
+
+    @Test
+    public void refCountTest(){
+        SlabAllocator allocator = new SlabAllocator();
+        PooledBuffer buffer = allocator.allocate(10);
+        assertEquals(1, buffer.refCount());
+        buffer.retain();
+        assertEquals(2, buffer.refCount());
+        assertFalse(buffer.release());
+        assertEquals(1, allocator.getInUseCount());
+        assertTrue(buffer.release());
+        try {
+            buffer.release();
+            fail("Released twice");
+        } catch (IllegalStateException e) {
+            //Expected
+        }
+        try {
+            buffer.retain();
+            fail("Retained after release");
+        } catch (IllegalStateException e) {
+            //Expected
+        }
+    }
+
+    @Test
+    public void unpooledTest(){
+        SlabAllocator allocator = new SlabAllocator(false, SlabAllocator.SLAB_SIZE);
+        PooledBuffer large = allocator.allocate(SlabAllocator.MAX_SIZE + 1);
+        assertFalse(large.buffer().isDirect());
+        assertEquals(1, allocator.getUnpooledCount());
+        allocator.allocate(64);
+        //The one slab allowed belongs to the smallest class, so another class gets nothing pooled
+        allocator.allocate(1000);
+        assertEquals(2, allocator.getUnpooledCount());
+        assertEquals(SlabAllocator.SLAB_SIZE, allocator.getSlabBytes());
+        large.release();
+    }
+
+    @Test
+    public void leakTest() throws Exception{
+        SlabAllocator allocator = new SlabAllocator(false, 4 * SlabAllocator.SLAB_SIZE);
+        allocator.setLeakDetection(true);
+        final List<Throwable> reported = new ArrayList<Throwable>();
+        allocator.setLeakListener(new SlabAllocator.LeakListener() {
+            public void onLeak(Throwable allocatedAt) {
+                reported.add(allocatedAt);
+            }
+        });
+        allocator.allocate(1000).release();
+        //Lose the PooledBuffer but keep using its memory
+        ByteBuffer kept = allocator.allocate(1000).buffer();
+        long deadline = System.currentTimeMillis() + 10000;
+        while(allocator.getLeakCount() == 0 && System.currentTimeMillis() < deadline){
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertEquals(1, allocator.getLeakCount());
+        assertEquals(1, reported.size());
+        //The trace leads back to the allocation here
+        boolean fromHere = false;
+        for(StackTraceElement element : reported.get(0).getStackTrace()){
+            fromHere |= "leakTest".equals(element.getMethodName());
+        }
+        assertTrue(fromHere);
+        assertEquals(0, allocator.getInUseCount());
+        //Every other buffer of the size class is handed out, but never the leaked one's memory
+        for(int i = 0; i < kept.limit(); i++){
+            kept.put(i, (byte) 0x5A);
+        }
+        for(int i = 0; i < SlabAllocator.SLAB_SIZE / 1024; i++){
+            ByteBuffer buffer = allocator.allocate(1000).buffer();
+            for(int j = 0; j < buffer.limit(); j++){
+                buffer.put(j, (byte) 0);
+            }
+        }
+        for(int i = 0; i < kept.limit(); i++){
+            assertEquals((byte) 0x5A, kept.get(i));
+        }
+    }
+
+    @Test
+    public void decoderTest() throws Exception{
+        Random random = new Random(42);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[][] payloads = new byte[4][];
+        int[] sizes = {0, 100, 20000, 100000};
+        for(int i = 0; i < payloads.length; i++){
+            payloads[i] = new byte[sizes[i]];
+            random.nextBytes(payloads[i]);
+            byte[] mask = {1, 2, 3, 4};
+            new Frame(true, 2, i % 2 == 0, payloads[i].length, mask, payloads[i]).write(out);
+        }
+        SlabAllocator allocator = new SlabAllocator();
+        FrameDecoder decoder = new FrameDecoder(new ByteArrayInputStream(out.toByteArray()));
+        ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+        ByteArrayOutputStream rewritten = new ByteArrayOutputStream();
+        for(int i = 0; i < payloads.length; i++){
+            Frame frame = decoder.read(allocator);
+            assertTrue(frame.isPooled());
+            assertEquals(payloads[i].length, frame.getPayload().remaining());
+            assertArrayEquals(payloads[i], frame.getData());
+            //Written straight from the pooled buffer
+            frame.write(rewritten);
+            frame.release();
+            frame = Frame.read(in, allocator);
+            assertArrayEquals(payloads[i], frame.getData());
+            frame.release();
+        }
+        assertEquals(0, allocator.getInUseCount());
+        assertArrayEquals(out.toByteArray(), rewritten.toByteArray());
+        Frame frame = Frame.read(new ByteArrayInputStream(out.toByteArray()));
+        assertFalse(frame.isPooled());
+        assertNull(frame.getPayload());
+    }
+}
@@ -0,0 +1,34 @@
+package ca.awoo.websoc;
+
+import java.io.InputStream;
+import java.security.KeyStore;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * TLS set up for tests, using the self-signed localhost certificate in test-keystore.jks.
+ */
+public class TestTls {
+
+    /**
+     * @return a context that both serves and trusts the test certificate
+     */
+    public static SSLContext context() throws Exception{
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        InputStream in = TestTls.class.getResourceAsStream("/test-keystore.jks");
+        try {
+            keyStore.load(in, "password".toCharArray());
+        } finally {
+            in.close();
+        }
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keyStore, "password".toCharArray());
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(keyStore);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
+        return context;
+    }
+}
@@ -0,0 +1,111 @@
+package ca.awoo.websoc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+public class TimerWheelTest {
+
+    @Test
+    public void orderTest() throws Exception{
+        //A small wheel, so the later timeouts wait several turns
+        TimerWheel wheel = new TimerWheel("test-timer", 10, TimeUnit.MILLISECONDS, 4);
+        final List<Integer> fired = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch done = new CountDownLatch(10);
+        final long start = System.nanoTime();
+        final boolean[] early = new boolean[1];
+        for(int i = 9; i >= 0; i--){
+            final int n = i;
+            wheel.schedule(new Runnable() {
+                public void run() {
+                    if(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(n * 25)){
+                        early[0] = true;
+                    }
+                    fired.add(Integer.valueOf(n));
+                    done.countDown();
+                }
+            }, n * 25, TimeUnit.MILLISECONDS);
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertFalse(early[0]);
+        for(int i = 0; i < 10; i++){
+            assertEquals(Integer.valueOf(i), fired.get(i));
+        }
+    }
+
+    @Test
+    public void throwingTaskTest() throws Exception{
+        TimerWheel wheel = new TimerWheel("test-timer", 10, TimeUnit.MILLISECONDS, 8);
+        final CountDownLatch after = new CountDownLatch(1);
+        wheel.schedule(new Runnable() {
+            public void run() {
+                throw new IllegalStateException("task failed");
+            }
+        }, 20, TimeUnit.MILLISECONDS);
+        wheel.schedule(new Runnable() {
+            public void run() {
+                after.countDown();
+            }
+        }, 50, TimeUnit.MILLISECONDS);
+        //The wheel keeps running
+        assertTrue(after.await(5, TimeUnit.SECONDS));
+        final CountDownLatch afterError = new CountDownLatch(1);
+        wheel.schedule(new Runnable() {
+            public void run() {
+                throw new AssertionError("task failed badly");
+            }
+        }, 20, TimeUnit.MILLISECONDS);
+        wheel.schedule(new Runnable() {
+            public void run() {
+                afterError.countDown();
+            }
+        }, 50, TimeUnit.MILLISECONDS);
+        //Even after an Error
+        assertTrue(afterError.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void cancelTest() throws Exception{
+        TimerWheel wheel = new TimerWheel("test-timer", 10, TimeUnit.MILLISECONDS, 8);
+        final AtomicBoolean ran = new AtomicBoolean();
+        final CountDownLatch after = new CountDownLatch(1);
+        TimerWheel.Timeout timeout = wheel.schedule(new Runnable() {
+            public void run() {
+                ran.set(true);
+            }
+        }, 50, TimeUnit.MILLISECONDS);
+        wheel.schedule(new Runnable() {
+            public void run() {
+                after.countDown();
+            }
+        }, 100, TimeUnit.MILLISECONDS);
+        timeout.cancel();
+        assertTrue(after.await(5, TimeUnit.SECONDS));
+        assertFalse(ran.get());
+    }
+
+    @Test
+    public void manyTest() throws Exception{
+        TimerWheel wheel = new TimerWheel("test-timer", 10, TimeUnit.MILLISECONDS, 64);
+        int count = 100000;
+        final CountDownLatch done = new CountDownLatch(count);
+        Runnable task = new Runnable() {
+            public void run() {
+                done.countDown();
+            }
+        };
+        for(int i = 0; i < count; i++){
+            wheel.schedule(task, i % 500, TimeUnit.MILLISECONDS);
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,93 @@
+package ca.awoo.websoc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.CharBuffer;
+import java.nio.charset.MalformedInputException;
+
+import org.junit.Test;
+
+public class Utf8Test {
+
+    private static final String TEXT = "Hello, \u03BA\u03CC\u03C3\u03BC\u03B5, \u3053\u3093\u306B\u3061\u306F, \uD83D\uDE00 and \u00FC";
+
+    private static byte[] bytes(int... values){
+        byte[] bytes = new byte[values.length];
+        for(int i = 0; i < values.length; i++){
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+
+    @Test
+    public void encodeTest() throws Exception{
+        byte[] expected = TEXT.getBytes("UTF-8");
+        assertEquals(expected.length, Utf8.encodedLength(TEXT));
+        Utf8.Encoder encoder = new Utf8.Encoder();
+        //Encode into a small buffer so characters land on the edges
+        byte[] buffer = new byte[5];
+        byte[] actual = new byte[expected.length];
+        int n = 0;
+        encoder.reset(TEXT);
+        while(!encoder.isDone()){
+            int written = encoder.encode(buffer, 0, buffer.length);
+            System.arraycopy(buffer, 0, actual, n, written);
+            n += written;
+        }
+        assertEquals(expected.length, n);
+        assertArrayEquals(expected, actual);
+    }
+
+    @Test
+    public void unpairedSurrogateTest() throws Exception{
+        String text = "a\uD800b";
+        byte[] actual = new byte[Utf8.encodedLength(text)];
+        Utf8.Encoder encoder = new Utf8.Encoder();
+        encoder.reset(text);
+        encoder.encode(actual, 0, actual.length);
+        assertArrayEquals(bytes('a', 0xEF, 0xBF, 0xBD, 'b'), actual);
+    }
+
+    @Test
+    public void splitDecodeTest() throws Exception{
+        byte[] data = TEXT.getBytes("UTF-8");
+        Utf8.Decoder decoder = new Utf8.Decoder();
+        for(int split = 0; split <= data.length; split++){
+            CharBuffer chars = CharBuffer.allocate(data.length + 1);
+            assertEquals(split, decoder.decode(data, 0, split, chars));
+            assertEquals(data.length - split, decoder.decode(data, split, data.length - split, chars));
+            decoder.finish();
+            chars.flip();
+            assertEquals(TEXT, chars.toString());
+        }
+    }
+
+    @Test
+    public void invalidTest() throws Exception{
+        byte[][] invalid = {
+            bytes(0xC0, 0x80),
+            bytes(0xE0, 0x80, 0x80),
+            bytes(0xED, 0xA0, 0x80),
+            bytes(0xF4, 0x90, 0x80, 0x80),
+            bytes(0xF5, 0x80, 0x80, 0x80),
+            bytes(0x80),
+            bytes('a', 0xFF),
+            bytes(0xCE, 0xBA, 0xE1),
+        };
+        for(byte[] data : invalid){
+            assertFalse(Utf8.isValid(data, 0, data.length));
+            try {
+                Utf8.decode(data, 0, data.length);
+                fail("Decoded invalid UTF-8");
+            } catch (MalformedInputException e) {
+                //Expected
+            }
+        }
+        byte[] valid = bytes(0xF4, 0x8F, 0xBF, 0xBF);
+        assertTrue(Utf8.isValid(valid, 0, valid.length));
+    }
+}
@@ -0,0 +1,139 @@
+package ca.awoo.websoc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class WebSocketConnectorTest {
+
+    @Test
+    public void resumptionTest() throws Exception{
+        EchoServer server = new EchoServer(0, TestTls.context());
+        WebSocketConnector connector = new WebSocketConnector(TestTls.context(), 4);
+        URI uri = new URI("wss://localhost:" + server.getPort() + "/");
+        connector.connect(uri).close();
+        List<URI> uris = new ArrayList<URI>();
+        for(int i = 0; i < 20; i++){
+            uris.add(uri);
+        }
+        for(Future<WebSocket> future : connector.connectAll(uris)){
+            WebSocket ws = future.get();
+            ws.sendText("hello");
+            assertEquals("hello", new String(ws.readFrame().getData(), "UTF-8"));
+            ws.close();
+        }
+        assertEquals(21, connector.getConnectCount());
+        assertEquals(21, connector.getHandshakeCount());
+        //Everything after the first connection can resume its session
+        assertTrue("Resumed " + connector.getResumedHandshakeCount(), connector.getResumedHandshakeCount() >= 19);
+        assertTrue(connector.getHandshakeNanos() >= connector.getMaxHandshakeNanos());
+        assertTrue(connector.getMaxHandshakeNanos() > 0);
+        assertEquals(0, connector.getFailedConnectCount());
+        connector.close();
+        server.close();
+    }
+
+    @Test
+    public void coldResumptionTest() throws Exception{
+        EchoServer server = new EchoServer(0, TestTls.context());
+        WebSocketConnector connector = new WebSocketConnector(TestTls.context(), 16);
+        URI uri = new URI("wss://localhost:" + server.getPort() + "/");
+        List<URI> uris = new ArrayList<URI>();
+        for(int i = 0; i < 21; i++){
+            uris.add(uri);
+        }
+        //Nothing is cached yet, so the first handshake has to finish before the rest can resume it
+        for(Future<WebSocket> future : connector.connectAll(uris)){
+            future.get().close();
+        }
+        assertEquals(21, connector.getHandshakeCount());
+        assertTrue("Resumed " + connector.getResumedHandshakeCount(), connector.getResumedHandshakeCount() >= 19);
+        connector.close();
+        server.close();
+    }
+
+    @Test
+    public void hungFirstHandshakeTest() throws Exception{
+        //Accepts connections but never answers the TLS handshake
+        final ServerSocket silent = new ServerSocket(0);
+        final List<Socket> accepted = Collections.synchronizedList(new ArrayList<Socket>());
+        Thread acceptor = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while(true){
+                        accepted.add(silent.accept());
+                    }
+                } catch (IOException e) {
+                    //Closed
+                }
+            }
+        });
+        acceptor.start();
+        WebSocketConnector connector = new WebSocketConnector(TestTls.context(), 2);
+        connector.setFirstHandshakeTimeout(200);
+        URI uri = new URI("wss://localhost:" + silent.getLocalPort() + "/");
+        Future<WebSocket> first = connector.connectAsync(uri);
+        long deadline = System.currentTimeMillis() + 5000;
+        while(accepted.size() < 1 && System.currentTimeMillis() < deadline){
+            Thread.sleep(10);
+        }
+        Future<WebSocket> second = connector.connectAsync(uri);
+        //The second gives up waiting on the first and tries its own handshake
+        while(accepted.size() < 2 && System.currentTimeMillis() < deadline){
+            Thread.sleep(10);
+        }
+        assertEquals(2, accepted.size());
+        assertFalse(first.isDone());
+        silent.close();
+        synchronized(accepted){
+            for(Socket socket : accepted){
+                socket.close();
+            }
+        }
+        List<Future<WebSocket>> futures = new ArrayList<Future<WebSocket>>();
+        futures.add(first);
+        futures.add(second);
+        for(Future<WebSocket> future : futures){
+            try {
+                future.get(5, TimeUnit.SECONDS);
+                fail("Connected to a silent server");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof WebSocketException);
+            }
+        }
+        acceptor.join(5000);
+        connector.close();
+    }
+
+    @Test
+    public void failureTest() throws Exception{
+        EchoServer server = new EchoServer();
+        int port = server.getPort();
+        server.close();
+        WebSocketConnector connector = new WebSocketConnector(null, 2);
+        Future<WebSocket> future = connector.connectAsync(new URI("ws://localhost:" + port + "/"));
+        try {
+            future.get();
+            fail("Connected to a closed server");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof WebSocketException);
+        }
+        assertEquals(1, connector.getFailedConnectCount());
+        assertEquals(0, connector.getHandshakeCount());
+        connector.close();
+    }
+}
@@ -0,0 +1,225 @@
+package ca.awoo.websoc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.channels.SelectionKey;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class WebSocketEngineTest {
+
+    private static class QueueListener implements WebSocketListener {
+        final BlockingQueue<String> messages = new LinkedBlockingQueue<String>();
+        final BlockingQueue<byte[]> binary = new LinkedBlockingQueue<byte[]>();
+        final BlockingQueue<Integer> closes = new LinkedBlockingQueue<Integer>();
+        private final String greeting;
+
+        QueueListener(String greeting){
+            this.greeting = greeting;
+        }
+
+        public void onOpen(AsyncWebSocket socket) {
+            try {
+                socket.send(greeting);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+
+        public void onMessage(AsyncWebSocket socket, int opcode, byte[] data) {
+            if(opcode == 2){
+                binary.add(data);
+                return;
+            }
+            try {
+                messages.add(new String(data, "UTF-8"));
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+
+        public void onClose(AsyncWebSocket socket, int code, String reason) {
+            closes.add(code);
+        }
+
+        public void onError(AsyncWebSocket socket, Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Test
+    public void echoTest() throws Exception{
+        WebSocketEngine engine = new WebSocketEngine();
+        QueueListener listener = new QueueListener("Hello, World!");
+        EchoServer server = new EchoServer();
+        AsyncWebSocket ws = engine.connect(server.getUri(), listener);
+        assertEquals("Hello, World!", listener.messages.poll(10, TimeUnit.SECONDS));
+        ws.close();
+        assertEquals(Integer.valueOf(1000), listener.closes.poll(10, TimeUnit.SECONDS));
+        engine.close();
+        server.close();
+    }
+
+    @Test
+    public void manyConnectionsTest() throws Exception{
+        EchoServer server = new EchoServer();
+        WebSocketEngine engine = new WebSocketEngine(2);
+        QueueListener[] listeners = new QueueListener[20];
+        AsyncWebSocket[] sockets = new AsyncWebSocket[listeners.length];
+        for(int i = 0; i < listeners.length; i++){
+            listeners[i] = new QueueListener("Hello " + i);
+            sockets[i] = engine.connect(server.getUri(), listeners[i]);
+        }
+        for(int i = 0; i < listeners.length; i++){
+            assertEquals("Hello " + i, listeners[i].messages.poll(10, TimeUnit.SECONDS));
+            sockets[i].close();
+        }
+        engine.close();
+        server.close();
+    }
+
+    @Test
+    public void localSecureEchoTest() throws Exception{
+        EchoServer server = new EchoServer(0, TestTls.context());
+        WebSocketEngine engine = new WebSocketEngine(1, TestTls.context());
+        QueueListener listener = new QueueListener("Hello, World!");
+        AsyncWebSocket ws = engine.connect(server.getUri(), listener);
+        assertEquals("Hello, World!", listener.messages.poll(10, TimeUnit.SECONDS));
+        byte[] longBuffer = new byte[1024*1024];
+        new Random(42).nextBytes(longBuffer);
+        ws.send(longBuffer);
+        byte[] echoed = listener.binary.poll(10, TimeUnit.SECONDS);
+        assertNotNull(echoed);
+        assertArrayEquals(longBuffer, echoed);
+        ws.close();
+        assertEquals(Integer.valueOf(1000), listener.closes.poll(10, TimeUnit.SECONDS));
+        engine.close();
+        server.close();
+    }
+
+    @Test
+    public void localSecureManyConnectionsTest() throws Exception{
+        EchoServer server = new EchoServer(0, TestTls.context());
+        WebSocketEngine engine = new WebSocketEngine(2, TestTls.context());
+        QueueListener[] listeners = new QueueListener[20];
+        AsyncWebSocket[] sockets = new AsyncWebSocket[listeners.length];
+        for(int i = 0; i < listeners.length; i++){
+            listeners[i] = new QueueListener("Hello " + i);
+            sockets[i] = engine.connect(server.getUri(), listeners[i]);
+        }
+        for(int i = 0; i < listeners.length; i++){
+            assertEquals("Hello " + i, listeners[i].messages.poll(10, TimeUnit.SECONDS));
+            sockets[i].close();
+        }
+        engine.close();
+        server.close();
+    }
+
+    @Test
+    public void compressedEchoTest() throws Exception{
+        PerMessageDeflate compression = new PerMessageDeflate();
+        EchoServer server = new EchoServer(0, null, compression);
+        WebSocketEngine engine = new WebSocketEngine();
+        engine.setCompression(compression);
+        QueueListener listener = new QueueListener("Hello, World!");
+        AsyncWebSocket ws = engine.connect(server.getUri(), listener);
+        assertEquals("Hello, World!", listener.messages.poll(10, TimeUnit.SECONDS));
+        assertTrue(ws.isCompressed());
+        byte[] longBuffer = new byte[1024*1024];
+        for(int i = 0; i < longBuffer.length; i++){
+            longBuffer[i] = (byte)(i % 251);
+        }
+        ws.send(longBuffer);
+        byte[] echoed = listener.binary.poll(10, TimeUnit.SECONDS);
+        assertNotNull(echoed);
+        assertArrayEquals(longBuffer, echoed);
+        ws.close();
+        assertEquals(Integer.valueOf(1000), listener.closes.poll(10, TimeUnit.SECONDS));
+        engine.close();
+        server.close();
+    }
+
+    @Test
+    public void closeTimeoutTest() throws Exception{
+        //A peer that completes the handshake and then ignores the close frame
+        final ServerSocket peerListener = new ServerSocket(0);
+        Thread peer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Socket socket = peerListener.accept();
+                    Handshake.Head head = Handshake.read(socket.getInputStream());
+                    socket.getOutputStream().write(Handshake.response(Handshake.accept(head.header("sec-websocket-key")), null).getBytes("UTF-8"));
+                    InputStream in = socket.getInputStream();
+                    while(in.read() != -1){
+                    }
+                    socket.close();
+                } catch (Exception e) {
+                    //The test is over
+                }
+            }
+        });
+        peer.start();
+        WebSocketEngine engine = new WebSocketEngine();
+        QueueListener listener = new QueueListener("Hello, World!");
+        AsyncWebSocket ws = engine.connect(new URI("ws://localhost:" + peerListener.getLocalPort() + "/"), listener);
+        long deadline = System.currentTimeMillis() + 5000;
+        while(!ws.isOpen() && System.currentTimeMillis() < deadline){
+            Thread.sleep(10);
+        }
+        assertTrue(ws.isOpen());
+        ws.setCloseTimeout(200);
+        long start = System.currentTimeMillis();
+        ws.close();
+        assertEquals(Integer.valueOf(1006), listener.closes.poll(5, TimeUnit.SECONDS));
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue("Waited " + elapsed + "ms", elapsed >= 150 && elapsed < 3000);
+        //Dropping the channel ends the peer's read
+        peer.join(5000);
+        assertFalse(peer.isAlive());
+        engine.close();
+        peerListener.close();
+    }
+
+    @Test
+    public void loopTaskFailureTest() throws Exception{
+        final BlockingQueue<Exception> failures = new LinkedBlockingQueue<Exception>();
+        EventLoop.Handler handler = new EventLoop.Handler() {
+            public void handle(SelectionKey key) {
+            }
+
+            public void failed(Exception e) {
+                failures.add(e);
+            }
+        };
+        EventLoop loop = new EventLoop("test-loop");
+        loop.start();
+        final RuntimeException thrown = new IllegalStateException("task failed");
+        loop.execute(new EventLoop.Task(handler) {
+            public void run() {
+                throw thrown;
+            }
+        });
+        //The task's handler is told, and the loop keeps going
+        assertTrue(thrown == failures.poll(5, TimeUnit.SECONDS));
+        final BlockingQueue<Boolean> ran = new LinkedBlockingQueue<Boolean>();
+        loop.execute(new EventLoop.Task(handler) {
+            public void run() {
+                ran.add(true);
+            }
+        });
+        assertEquals(Boolean.TRUE, ran.poll(5, TimeUnit.SECONDS));
+        loop.shutdown();
+    }
+}
@@ -0,0 +1,180 @@
+package ca.awoo.websoc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SelectionKey;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import ca.awoo.fwoabl.function.Consumer;
+import ca.awoo.websoc.WebSocket.Frame;
+
+public class WebSocketServerTest {
+
+    private static String readHead(InputStream in) throws Exception{
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        int b;
+        while((b = in.read()) != -1){
+            head.write(b);
+            if(head.toString("ISO-8859-1").endsWith("\r\n\r\n")){
+                break;
+            }
+        }
+        return head.toString("ISO-8859-1");
+    }
+
+    @Test
+    public void acceptKeyTest() throws Exception{
+        EchoServer server = new EchoServer();
+        Socket socket = new Socket("localhost", server.getPort());
+        OutputStream out = socket.getOutputStream();
+        //The example key and accept value from RFC 6455
+        out.write(("GET /chat HTTP/1.1\r\n"
+            + "Host: localhost\r\n"
+            + "Upgrade: websocket\r\n"
+            + "Connection: keep-alive, Upgrade\r\n"
+            + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n"
+            + "Sec-WebSocket-Version: 13\r\n"
+            + "\r\n").getBytes("UTF-8"));
+        String head = readHead(socket.getInputStream());
+        assertTrue(head, head.startsWith("HTTP/1.1 101 "));
+        assertTrue(head, head.contains("Sec-WebSocket-Accept: s3pPLMBiTxaQ9kYGzzhZRbK+xOo=\r\n"));
+        socket.close();
+        server.close();
+    }
+
+    @Test
+    public void acceptFailureTest() throws Exception{
+        WebSocketServer server = new WebSocketServer(new InetSocketAddress("localhost", 0), 1, null, new WebSocketListener() {
+            public void onOpen(AsyncWebSocket socket) {
+            }
+            public void onMessage(AsyncWebSocket socket, int opcode, byte[] data) {
+            }
+            public void onClose(AsyncWebSocket socket, int code, String reason) {
+            }
+            public void onError(AsyncWebSocket socket, Exception e) {
+            }
+        });
+        final BlockingQueue<Exception> errors = new LinkedBlockingQueue<Exception>();
+        server.onError(new Consumer<Exception>() {
+            public void invoke(Exception e) {
+                errors.add(e);
+            }
+        });
+        Field acceptorField = WebSocketServer.class.getDeclaredField("acceptor");
+        acceptorField.setAccessible(true);
+        final EventLoop.Handler acceptor = (EventLoop.Handler) acceptorField.get(server);
+        final Field keyField = acceptor.getClass().getDeclaredField("key");
+        keyField.setAccessible(true);
+        Field loopsField = WebSocketServer.class.getDeclaredField("loops");
+        loopsField.setAccessible(true);
+        EventLoop loop = ((EventLoop[]) loopsField.get(server))[0];
+        final IOException failure = new IOException("Too many open files");
+        final BlockingQueue<Integer> ops = new LinkedBlockingQueue<Integer>();
+        loop.execute(new EventLoop.Task(acceptor) {
+            public void run() {
+                acceptor.failed(failure);
+                try {
+                    ops.add(((SelectionKey) keyField.get(acceptor)).interestOps());
+                } catch (IllegalAccessException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        assertSame(failure, errors.poll(5, TimeUnit.SECONDS));
+        //Not spinning on a failing accept
+        assertEquals(0, ops.poll(5, TimeUnit.SECONDS).intValue());
+        //But accepting again once the backoff is over
+        Socket socket = new Socket("localhost", server.getPort());
+        socket.setSoTimeout(5000);
+        socket.getOutputStream().write("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes("UTF-8"));
+        String head = readHead(socket.getInputStream());
+        assertTrue(head, head.startsWith("HTTP/1.1 426 "));
+        assertTrue(errors.isEmpty());
+        socket.close();
+        server.close();
+    }
+
+    @Test
+    public void badRequestTest() throws Exception{
+        EchoServer server = new EchoServer();
+        Socket socket = new Socket("localhost", server.getPort());
+        socket.getOutputStream().write("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes("UTF-8"));
+        String head = readHead(socket.getInputStream());
+        assertTrue(head, head.startsWith("HTTP/1.1 426 "));
+        assertEquals(-1, socket.getInputStream().read());
+        socket.close();
+        server.close();
+    }
+
+    @Test
+    public void unmaskedFrameTest() throws Exception{
+        EchoServer server = new EchoServer();
+        Socket socket = new Socket("localhost", server.getPort());
+        OutputStream out = socket.getOutputStream();
+        out.write(Handshake.request(server.getUri(), Handshake.newKey()).getBytes("UTF-8"));
+        InputStream in = socket.getInputStream();
+        readHead(in);
+        byte[] data = "Hello".getBytes("UTF-8");
+        out.write(FrameEncoder.encode(true, 1, null, data, 0, data.length));
+        Frame close = new FrameDecoder(in).read();
+        assertEquals(8, close.getOpcode());
+        assertEquals(1002, (close.getData()[0] & 0xFF) << 8 | (close.getData()[1] & 0xFF));
+        socket.close();
+        server.close();
+    }
+
+    @Test
+    public void invalidControlFrameTest() throws Exception{
+        EchoServer server = new EchoServer();
+        //A fragmented ping, and a ping longer than 125 bytes
+        byte[][] frames = {
+            FrameEncoder.encode(false, 9, new byte[4], new byte[10], 0, 10),
+            FrameEncoder.encode(true, 9, new byte[4], new byte[126], 0, 126)
+        };
+        for(byte[] frame : frames){
+            Socket socket = new Socket("localhost", server.getPort());
+            OutputStream out = socket.getOutputStream();
+            out.write(Handshake.request(server.getUri(), Handshake.newKey()).getBytes("UTF-8"));
+            InputStream in = socket.getInputStream();
+            readHead(in);
+            out.write(frame);
+            Frame close = new FrameDecoder(in).read();
+            assertEquals(8, close.getOpcode());
+            assertEquals(1002, (close.getData()[0] & 0xFF) << 8 | (close.getData()[1] & 0xFF));
+            socket.close();
+        }
+        server.close();
+    }
+
+    @Test
+    public void invalidUtf8Test() throws Exception{
+        EchoServer server = new EchoServer();
+        Socket socket = new Socket("localhost", server.getPort());
+        OutputStream out = socket.getOutputStream();
+        out.write(Handshake.request(server.getUri(), Handshake.newKey()).getBytes("UTF-8"));
+        InputStream in = socket.getInputStream();
+        readHead(in);
+        //A surrogate encoded in UTF-8, split across two fragments
+        byte[] data = {'a', (byte) 0xED, (byte) 0xA0, (byte) 0x80};
+        out.write(FrameEncoder.encode(false, 1, new byte[4], data, 0, 2));
+        out.write(FrameEncoder.encode(true, 0, new byte[4], data, 2, 2));
+        Frame close = new FrameDecoder(in).read();
+        assertEquals(8, close.getOpcode());
+        assertEquals(1007, (close.getData()[0] & 0xFF) << 8 | (close.getData()[1] & 0xFF));
+        socket.close();
+        server.close();
+    }
+}
@@ -1,17 +1,62 @@
 package ca.awoo.websoc;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.net.URI;
+import java.nio.CharBuffer;
+import java.nio.charset.MalformedInputException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
+import javax.net.ssl.SSLContext;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
 import org.junit.Test;
 
 import ca.awoo.fwoabl.function.Consumer;
 
 public class WebSocketTest {
+
+    private static SSLContext sslContext;
+    private static EchoServer server;
+    private static EchoServer secureServer;
+    private static EchoServer compressedServer;
+
+    @BeforeClass
+    public static void startServers() throws Exception{
+        sslContext = TestTls.context();
+        server = new EchoServer();
+        secureServer = new EchoServer(0, sslContext);
+        compressedServer = new EchoServer(0, null, new PerMessageDeflate());
+    }
+
+    @AfterClass
+    public static void stopServers(){
+        server.close();
+        secureServer.close();
+        compressedServer.close();
+    }
+
     @Test
     public void echoTest() throws Exception{
-        WebSocket ws = new WebSocket(new URI("ws://echo.websocket.org/"));
+        WebSocket ws = new WebSocket(server.getUri());
         ws.onReadFrame(new Consumer<WebSocket.Frame>() {
             public void invoke(WebSocket.Frame frame) {
                 System.out.println(frame);
@@ -22,7 +67,6 @@ public class WebSocketTest {
                 System.out.println(frame);
             }
         });
-        ws.readFrame(); //This server sends a little hello message when you connect
         ws.getOutputStream().write("Hello, World!".getBytes("UTF-8"));
         byte[] buffer = new byte[1024];
         int len = ws.getInputStream().read(buffer);
@@ -33,7 +77,7 @@ public class WebSocketTest {
 
     @Test
     public void secureEchoTest() throws Exception{
-        WebSocket ws = new WebSocket(new URI("wss://echo.websocket.org"));
+        WebSocket ws = new WebSocket(secureServer.getUri(), sslContext);
         ws.onReadFrame(new Consumer<WebSocket.Frame>() {
             public void invoke(WebSocket.Frame frame) {
                 System.out.println(frame);
@@ -44,7 +88,6 @@ public class WebSocketTest {
                 System.out.println(frame);
             }
         });
-        ws.readFrame(); //This server sends a little hello message when you connect
         ws.getOutputStream().write("Hello, World!".getBytes("UTF-8"));
         byte[] buffer = new byte[1024];
         int len = ws.getInputStream().read(buffer);
@@ -55,7 +98,7 @@ public class WebSocketTest {
 
     @Test
     public void longTest() throws Exception{
-        WebSocket ws = new WebSocket(new URI("ws://echo.websocket.org/"));
+        WebSocket ws = new WebSocket(server.getUri());
         ws.onReadFrame(new Consumer<WebSocket.Frame>() {
             public void invoke(WebSocket.Frame frame) {
                 System.out.println(frame);
@@ -66,7 +109,6 @@ public class WebSocketTest {
                 System.out.println(frame);
             }
         });
-        ws.readFrame(); //This server sends a little hello message when you connect
         byte[] longBuffer = new byte[1024*50];
         for(int i = 0; i < longBuffer.length; i++){
             longBuffer[i] = (byte)(i % 256);
@@ -80,4 +122,458 @@ public class WebSocketTest {
         }
         ws.close();
     }
+
+    @Test
+    public void compressedEchoTest() throws Exception{
+        WebSocket ws = new WebSocket(compressedServer.getUri(), null, new PerMessageDeflate());
+        final boolean[] compressed = new boolean[1];
+        ws.onReadFrame(new Consumer<WebSocket.Frame>() {
+            public void invoke(WebSocket.Frame frame) {
+                compressed[0] |= frame.getRsv() == 4;
+            }
+        });
+        for(int i = 0; i < 10; i++){
+            String message = "{\"type\":\"chat\",\"text\":\"Hello, World! " + i + "\"}";
+            ws.getOutputStream().write(message.getBytes("UTF-8"));
+            byte[] buffer = new byte[1024];
+            int len = ws.getInputStream().read(buffer);
+            assertEquals(message, new String(buffer, 0, len, "UTF-8"));
+        }
+        assertTrue(compressed[0]);
+        ws.close();
+    }
+
+    @Test
+    public void streamedTest() throws Exception{
+        WebSocket ws = new WebSocket(server.getUri());
+        ws.setFragmentSize(16 * 1024);
+        final int[] frames = new int[1];
+        ws.onWriteFrame(new Consumer<WebSocket.Frame>() {
+            public void invoke(WebSocket.Frame frame) {
+                frames[0]++;
+            }
+        });
+        int length = 4 * 1024 * 1024;
+        byte[] chunk = new byte[1000];
+        WebSocket.MessageOutputStream out = ws.startMessage(2);
+        for(int sent = 0; sent < length; sent += chunk.length){
+            int n = Math.min(chunk.length, length - sent);
+            for(int i = 0; i < n; i++){
+                chunk[i] = (byte)((sent + i) % 251);
+            }
+            out.write(chunk, 0, n);
+        }
+        out.close();
+        assertEquals(length / (16 * 1024) + 1, frames[0]);
+        WebSocket.MessageInputStream in = ws.nextMessage();
+        assertEquals(2, in.getOpcode());
+        byte[] buffer = new byte[4096];
+        int received = 0;
+        int len;
+        while((len = in.read(buffer)) != -1){
+            for(int i = 0; i < len; i++){
+                assertEquals((byte)((received + i) % 251), buffer[i]);
+            }
+            received += len;
+        }
+        assertEquals(length, received);
+        ws.close();
+    }
+
+    @Test
+    public void byteReadTest() throws Exception{
+        byte[] payload = new byte[1024 * 1024];
+        new Random(7).nextBytes(payload);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new WebSocket.Frame(true, 2, true, payload.length, new byte[]{1, 2, 3, 4}, payload).write(out);
+        final int[] reads = new int[1];
+        InputStream in = new FilterInputStream(new ByteArrayInputStream(out.toByteArray())) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                reads[0]++;
+                return super.read(b, off, len);
+            }
+        };
+        FrameDecoder decoder = new FrameDecoder(in);
+        decoder.readHeader();
+        byte[] one = new byte[1];
+        for(int i = 0; i < payload.length; i++){
+            assertEquals(1, decoder.readPayload(one, 0, 1));
+            assertEquals(payload[i], one[0]);
+        }
+        assertEquals(-1, decoder.readPayload(one, 0, 1));
+        //A byte at a time still goes through the decoder's buffer
+        assertTrue("Reads " + reads[0], reads[0] <= payload.length / 8192 + 2);
+    }
+
+    @Test
+    public void textTest() throws Exception{
+        EchoServer[] servers = {server, compressedServer};
+        for(EchoServer echo : servers){
+            WebSocket ws = new WebSocket(echo.getUri(), null, new PerMessageDeflate());
+            //Small enough that characters are split across frames
+            ws.setFragmentSize(7);
+            StringBuilder text = new StringBuilder();
+            for(int i = 0; i < 100; i++){
+                text.append("Hello, \u03BA\u03CC\u03C3\u03BC\u03B5, \u3053\u3093\u306B\u3061\u306F, \uD83D\uDE00 ").append(i).append('\n');
+            }
+            CharBuffer sink = null;
+            for(int i = 0; i < 3; i++){
+                ws.sendText(text);
+                WebSocket.MessageInputStream message = ws.nextMessage();
+                assertTrue(message.isText());
+                sink = message.readText(sink);
+                assertEquals(text.toString(), sink.toString());
+                sink.clear();
+            }
+            byte[] binary = {1, 2, 3};
+            ws.sendBinary(binary, 0, binary.length);
+            assertFalse(ws.nextMessage().isText());
+            ws.close();
+        }
+    }
+
+    @Test
+    public void invalidTextTest() throws Exception{
+        //Sends a text message that goes bad in its first frame, with more of it still to come
+        ClosingListener listener = new ClosingListener(){
+            public void onOpen(AsyncWebSocket socket) {
+                byte[] bad = {'a', (byte) 0xFF};
+                byte[] rest = {'b', 'c'};
+                try {
+                    socket.sendFrame(false, 1, bad, 0, bad.length);
+                    socket.sendFrame(true, 0, rest, 0, rest.length);
+                } catch (java.io.IOException e) {
+                    socket.close();
+                }
+            }
+        };
+        WebSocketServer sending = new WebSocketServer(0, listener);
+        WebSocket ws = new WebSocket(new URI("ws://localhost:" + sending.getPort() + "/"));
+        try {
+            ws.nextMessage().readText(null);
+            assertTrue("Decoded invalid UTF-8", false);
+        } catch (MalformedInputException e) {
+            //Expected
+        }
+        assertEquals(WebSocket.State.CLOSED, ws.getState());
+        assertTrue(ws.isClosed());
+        //The peer answered the close, rather than the timeout running out
+        assertEquals(1007, ws.getCloseCode());
+        assertEquals(Integer.valueOf(1007), listener.closes.poll(5, TimeUnit.SECONDS));
+        sending.close();
+    }
+
+    @Test
+    public void asyncTest() throws Exception{
+        WebSocket ws = new WebSocket(server.getUri());
+        List<WriteFuture> futures = new ArrayList<WriteFuture>();
+        for(int i = 0; i < 1000; i++){
+            futures.add(ws.sendTextAsync("message " + i));
+        }
+        CharBuffer sink = null;
+        for(int i = 0; i < 1000; i++){
+            sink = ws.nextMessage().readText(sink);
+            assertEquals("message " + i, sink.toString());
+            sink.clear();
+        }
+        for(WriteFuture future : futures){
+            future.get(5, TimeUnit.SECONDS);
+            assertTrue(future.isSuccess());
+        }
+        assertEquals(0, ws.getBufferedAmount());
+        ws.close();
+    }
+
+    private static byte[] stressMessage(int thread, int seq, int length){
+        byte[] message = new byte[3 + length];
+        message[0] = (byte) thread;
+        message[1] = (byte) (seq >> 8);
+        message[2] = (byte) seq;
+        for(int j = 0; j < length; j++){
+            message[3 + j] = (byte) (thread * 31 + seq + j);
+        }
+        return message;
+    }
+
+    @Test
+    public void concurrentWritersTest() throws Exception{
+        final WebSocket ws = new WebSocket(server.getUri());
+        //Small fragments so streamed messages have plenty of places to be interleaved
+        ws.setFragmentSize(64);
+        final int threads = 8;
+        final int messages = 200;
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        final List<WriteFuture> futures = Collections.synchronizedList(new ArrayList<WriteFuture>());
+        Thread[] writers = new Thread[threads];
+        for(int t = 0; t < threads; t++){
+            final int thread = t;
+            writers[t] = new Thread(new Runnable() {
+                public void run() {
+                    Random random = new Random(thread);
+                    try {
+                        for(int seq = 0; seq < messages; seq++){
+                            byte[] message = stressMessage(thread, seq, random.nextInt(600));
+                            switch(seq % 4){
+                                case 0:
+                                    ws.sendBinary(message, 0, message.length);
+                                    break;
+                                case 1:
+                                    futures.add(ws.sendBinaryAsync(message, 0, message.length));
+                                    break;
+                                case 2:
+                                    WebSocket.MessageOutputStream out = ws.startMessage(2);
+                                    for(int off = 0; off < message.length; off += 37){
+                                        out.write(message, off, Math.min(37, message.length - off));
+                                    }
+                                    out.close();
+                                    break;
+                                default:
+                                    ws.writeFrame(new WebSocket.Frame(true, 9, true, 1, new byte[4], new byte[]{(byte) thread}));
+                                    ws.sendBinary(message, 0, message.length);
+                                    break;
+                            }
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            });
+            writers[t].start();
+        }
+        int[] nextSeq = new int[threads];
+        byte[] buffer = new byte[4096];
+        for(int received = 0; received < threads * messages; received++){
+            WebSocket.MessageInputStream in = ws.nextMessage();
+            int length = 0;
+            int read;
+            while((read = in.read(buffer, length, buffer.length - length)) != -1){
+                length += read;
+            }
+            assertTrue(length >= 3);
+            int thread = buffer[0];
+            int seq = (buffer[1] & 0xFF) << 8 | (buffer[2] & 0xFF);
+            assertEquals("Messages from one thread arrive in order", nextSeq[thread], seq);
+            nextSeq[thread]++;
+            for(int j = 0; j < length - 3; j++){
+                assertEquals((byte) (thread * 31 + seq + j), buffer[3 + j]);
+            }
+        }
+        for(Thread writer : writers){
+            writer.join(10000);
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+        synchronized(futures){
+            for(WriteFuture future : futures){
+                future.get(5, TimeUnit.SECONDS);
+            }
+        }
+        ws.close();
+    }
+
+    /**
+     * Echoes messages, except "bye", which it answers by closing with status 4000.
+     */
+    private static class ClosingListener implements WebSocketListener {
+        final BlockingQueue<Integer> closes = new LinkedBlockingQueue<Integer>();
+
+        public void onOpen(AsyncWebSocket socket) {
+        }
+
+        public void onMessage(AsyncWebSocket socket, int opcode, byte[] data) {
+            try {
+                if("bye".equals(new String(data, "UTF-8"))){
+                    socket.close(4000, "bye");
+                }else{
+                    socket.send(data);
+                }
+            } catch (Exception e) {
+                socket.close();
+            }
+        }
+
+        public void onClose(AsyncWebSocket socket, int code, String reason) {
+            closes.add(code);
+        }
+
+        public void onError(AsyncWebSocket socket, Exception e) {
+        }
+    }
+
+    @Test
+    public void closeHandshakeTest() throws Exception{
+        ClosingListener listener = new ClosingListener();
+        WebSocketServer closing = new WebSocketServer(0, listener);
+        URI uri = new URI("ws://localhost:" + closing.getPort() + "/");
+
+        WebSocket ws = new WebSocket(uri);
+        assertEquals(WebSocket.State.OPEN, ws.getState());
+        ws.sendText("hello");
+        ws.close(1001, "going away");
+        assertEquals(WebSocket.State.CLOSED, ws.getState());
+        assertTrue(ws.isClosed());
+        assertEquals(1001, ws.getCloseCode());
+        assertEquals(Integer.valueOf(1001), listener.closes.poll(5, TimeUnit.SECONDS));
+        try {
+            ws.sendText("too late");
+            assertTrue("Sent after closing", false);
+        } catch (java.io.IOException e) {
+            //Expected
+        }
+
+        //The server closes, and the reader answers
+        ws = new WebSocket(uri);
+        ws.sendText("bye");
+        assertNull(ws.nextMessage());
+        assertEquals(WebSocket.State.CLOSED, ws.getState());
+        assertEquals(4000, ws.getCloseCode());
+        assertEquals("bye", ws.getCloseReason());
+        assertEquals(Integer.valueOf(4000), listener.closes.poll(5, TimeUnit.SECONDS));
+        ws.close();
+
+        //Closing while another thread reads
+        final WebSocket reading = new WebSocket(uri);
+        Thread reader = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while(reading.nextMessage() != null){
+                    }
+                } catch (Exception e) {
+                    //Ends with the socket
+                }
+            }
+        });
+        reader.start();
+        reading.sendText("echo");
+        reading.close();
+        reader.join(5000);
+        assertFalse(reader.isAlive());
+        assertEquals(1000, reading.getCloseCode());
+        closing.close();
+    }
+
+    @Test
+    public void closeTimeoutTest() throws Exception{
+        //A peer that completes the handshake and then ignores the close frame
+        final ServerSocket listener = new ServerSocket(0);
+        Thread peer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Socket socket = listener.accept();
+                    Handshake.Head head = Handshake.read(socket.getInputStream());
+                    socket.getOutputStream().write(Handshake.response(Handshake.accept(head.header("sec-websocket-key")), null).getBytes("UTF-8"));
+                    InputStream in = socket.getInputStream();
+                    while(in.read() != -1){
+                    }
+                    socket.close();
+                } catch (Exception e) {
+                    //The test is over
+                }
+            }
+        });
+        peer.start();
+        WebSocket ws = new WebSocket(new URI("ws://localhost:" + listener.getLocalPort() + "/"));
+        ws.setCloseTimeout(200);
+        long start = System.currentTimeMillis();
+        ws.close();
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue("Waited " + elapsed + "ms", elapsed >= 150 && elapsed < 3000);
+        assertTrue(ws.isClosed());
+        assertEquals(-1, ws.getCloseCode());
+        //Closing the socket ends the peer's read
+        peer.join(5000);
+        assertFalse(peer.isAlive());
+        listener.close();
+    }
+
+    /**
+     * Answers every connection with the same HTTP response and hangs up.
+     */
+    private static class StatusServer implements Runnable {
+        final ServerSocket listener;
+        final String response;
+
+        StatusServer(String response) throws Exception{
+            this.listener = new ServerSocket(0);
+            this.response = response;
+            Thread thread = new Thread(this, "status-server");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        URI getUri() throws Exception{
+            return new URI("ws://localhost:" + listener.getLocalPort() + "/");
+        }
+
+        public void run() {
+            while(true){
+                try {
+                    Socket socket = listener.accept();
+                    try {
+                        Handshake.read(socket.getInputStream());
+                        socket.getOutputStream().write(response.getBytes("UTF-8"));
+                    } finally {
+                        socket.close();
+                    }
+                } catch (Exception e) {
+                    if(listener.isClosed()){
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    private static int openDescriptors(){
+        String[] fds = new File("/proc/self/fd").list();
+        return fds == null ? -1 : fds.length;
+    }
+
+    /**
+     * Wait for the server ends of closed connections to close too, and return the count once it settles.
+     */
+    private static int settledDescriptors(int expected) throws InterruptedException{
+        long deadline = System.currentTimeMillis() + 5000;
+        int count = openDescriptors();
+        while(count > expected && System.currentTimeMillis() < deadline){
+            Thread.sleep(50);
+            count = openDescriptors();
+        }
+        return count;
+    }
+
+    @Test
+    public void descriptorLeakTest() throws Exception{
+        if(openDescriptors() < 0){
+            //Only Linux lists them
+            return;
+        }
+        StatusServer redirect = new StatusServer("HTTP/1.1 301 Moved Permanently\r\nLocation: " + server.getUri() + "\r\n\r\n");
+        StatusServer notFound = new StatusServer("HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\n\r\n");
+        //Warm up, so lazily opened files and threads are already counted
+        new WebSocket(server.getUri()).close();
+        new WebSocket(secureServer.getUri(), sslContext).close();
+        int before = openDescriptors();
+        for(int i = 0; i < 3000; i++){
+            WebSocket ws = new WebSocket(server.getUri());
+            ws.sendText("ping");
+            ws.close();
+        }
+        for(int i = 0; i < 200; i++){
+            new WebSocket(secureServer.getUri(), sslContext).close();
+        }
+        for(int i = 0; i < 500; i++){
+            new WebSocket(redirect.getUri()).close();
+            try {
+                new WebSocket(notFound.getUri());
+                assertTrue("Connected to a 404", false);
+            } catch (WebSocketException e) {
+                //Expected
+            }
+        }
+        int after = settledDescriptors(before + 10);
+        assertTrue("Descriptors went from " + before + " to " + after, after <= before + 10);
+        redirect.listener.close();
+        notFound.listener.close();
+    }
 }
@@ -0,0 +1,168 @@
+package ca.awoo.websoc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import ca.awoo.fwoabl.function.Consumer;
+
+public class WriteQueueTest {
+
+    /**
+     * Blocks the first write until released, and counts writes.
+     */
+    private static class GatedStream extends OutputStream {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch gate = new CountDownLatch(1);
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        int writes = 0;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            entered.countDown();
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted");
+            }
+            synchronized(this){
+                writes++;
+                written.write(b, off, len);
+            }
+        }
+    }
+
+    private static byte[] frame(int i){
+        return new byte[]{(byte) 0x81, 1, (byte) i};
+    }
+
+    @Test
+    public void coalesceTest() throws Exception{
+        GatedStream out = new GatedStream();
+        WriteQueue queue = new WriteQueue(out, "test-writer");
+        List<WriteFuture> futures = new ArrayList<WriteFuture>();
+        futures.add(queue.enqueue(frame(0)));
+        assertTrue(out.entered.await(5, TimeUnit.SECONDS));
+        //Everything queued while the first write is stuck goes out in one write
+        for(int i = 1; i < 100; i++){
+            futures.add(queue.enqueue(frame(i)));
+        }
+        out.gate.countDown();
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for(int i = 0; i < 100; i++){
+            futures.get(i).get(5, TimeUnit.SECONDS);
+            assertTrue(futures.get(i).isSuccess());
+            expected.write(frame(i));
+        }
+        assertEquals(2, out.writes);
+        assertArrayEquals(expected.toByteArray(), out.written.toByteArray());
+        queue.close();
+    }
+
+    @Test
+    public void watermarkTest() throws Exception{
+        GatedStream out = new GatedStream();
+        WriteQueue queue = new WriteQueue(out, "test-writer");
+        queue.setWatermarks(30, 60);
+        final List<Boolean> changes = new ArrayList<Boolean>();
+        final CountDownLatch writableAgain = new CountDownLatch(1);
+        queue.onWritabilityChanged(new Consumer<Boolean>() {
+            public void invoke(Boolean writable) {
+                synchronized(changes){
+                    changes.add(writable);
+                }
+                if(writable.booleanValue()){
+                    writableAgain.countDown();
+                }
+            }
+        });
+        queue.enqueue(frame(0));
+        assertTrue(out.entered.await(5, TimeUnit.SECONDS));
+        for(int i = 1; i < 20; i++){
+            assertTrue(queue.isWritable());
+            queue.enqueue(frame(i));
+        }
+        //60 bytes queued is still within the high watermark
+        assertTrue(queue.isWritable());
+        queue.enqueue(frame(20));
+        assertFalse(queue.isWritable());
+        assertEquals(63, queue.getQueuedBytes());
+        out.gate.countDown();
+        assertTrue(writableAgain.await(5, TimeUnit.SECONDS));
+        assertTrue(queue.isWritable());
+        synchronized(changes){
+            assertEquals(2, changes.size());
+            assertFalse(changes.get(0).booleanValue());
+            assertTrue(changes.get(1).booleanValue());
+        }
+        queue.close();
+    }
+
+    @Test
+    public void directWriteWaitsTest() throws Exception{
+        GatedStream out = new GatedStream();
+        final WriteQueue queue = new WriteQueue(out, "test-writer");
+        WriteFuture future = queue.enqueue(frame(0));
+        assertTrue(out.entered.await(5, TimeUnit.SECONDS));
+        final boolean[] began = new boolean[1];
+        Thread direct = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    queue.beginWrite();
+                    began[0] = true;
+                    queue.endWrite();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        direct.start();
+        direct.join(200);
+        assertFalse(began[0]);
+        out.gate.countDown();
+        direct.join(5000);
+        assertTrue(began[0]);
+        //The writer completes the future after handing the stream over
+        future.get(5, TimeUnit.SECONDS);
+        assertTrue(future.isSuccess());
+        queue.close();
+    }
+
+    @Test
+    public void failureTest() throws Exception{
+        OutputStream broken = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("Broken pipe");
+            }
+        };
+        WriteQueue queue = new WriteQueue(broken, "test-writer");
+        WriteFuture future = queue.enqueue(frame(0));
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("Write to a broken stream succeeded");
+        } catch (ExecutionException e) {
+            assertEquals("Broken pipe", e.getCause().getMessage());
+        }
+        assertFalse(future.isSuccess());
+        assertFalse(queue.enqueue(frame(1)).isSuccess());
+    }
+}